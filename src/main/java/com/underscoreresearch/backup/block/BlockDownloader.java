@@ -12,4 +12,12 @@ public interface BlockDownloader {
     byte[] downloadEncryptedBlockStorage(BackupBlock block, BackupBlockStorage storage, Set<String> available) throws IOException;
 
     void shutdown();
+
+    // Registers that one more file being restored needs the block, so it can be kept after the first download
+    // until every file needing it has been restored.
+    default void retainBlock(String hash) {
+    }
+
+    default void releaseRetainedBlocks() {
+    }
 }
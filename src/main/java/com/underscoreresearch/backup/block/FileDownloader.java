@@ -7,5 +7,7 @@ import java.io.IOException;
 public interface FileDownloader {
     void downloadFile(BackupFile source, String destination, String password) throws IOException;
 
+    void duplicateFile(BackupFile source, String existingDestination, String destination) throws IOException;
+
     void shutdown();
 }
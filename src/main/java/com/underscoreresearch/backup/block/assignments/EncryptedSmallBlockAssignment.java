@@ -10,6 +10,7 @@ import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.BadPaddingException;
@@ -48,8 +49,10 @@ public class EncryptedSmallBlockAssignment extends SmallFileBlockAssignment impl
                                          FileSystemAccess access,
                                          EncryptionIdentity encryptionIdentity,
                                          int maximumFileSize,
-                                         int targetSize) {
-        super(uploader, blockDownloader, repository, access, encryptionIdentity, maximumFileSize, targetSize);
+                                         int targetSize,
+                                         MemoryBudget memoryBudget) {
+        super(uploader, blockDownloader, repository, access, encryptionIdentity, maximumFileSize, targetSize,
+                memoryBudget);
     }
 
     @Override
@@ -8,6 +8,7 @@ import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.extern.slf4j.Slf4j;
 
@@ -22,8 +23,10 @@ import java.util.zip.GZIPOutputStream;
 public class GzipLargeFileBlockAssignment extends LargeFileBlockAssignment {
     public GzipLargeFileBlockAssignment(FileBlockUploader uploader, BlockDownloader blockDownloader,
                                         FileSystemAccess access, MetadataRepository metadataRepository,
-                                        MachineState machineState, EncryptionIdentity encryptionIdentity, int maximumBlockSize) {
-        super(uploader, blockDownloader, access, metadataRepository, machineState, encryptionIdentity, maximumBlockSize);
+                                        MachineState machineState, EncryptionIdentity encryptionIdentity, int maximumBlockSize,
+                                        MemoryBudget memoryBudget) {
+        super(uploader, blockDownloader, access, metadataRepository, machineState, encryptionIdentity, maximumBlockSize,
+                memoryBudget);
     }
 
     @Override
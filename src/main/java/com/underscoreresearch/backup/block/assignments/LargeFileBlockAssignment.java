@@ -19,25 +19,35 @@ import com.underscoreresearch.backup.model.BackupFilePart;
 import com.underscoreresearch.backup.model.BackupLocation;
 import com.underscoreresearch.backup.model.BackupPartialFile;
 import com.underscoreresearch.backup.model.BackupSet;
+import com.underscoreresearch.backup.utils.MemoryBudget;
+import com.underscoreresearch.backup.utils.StatusLine;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 
 @RequiredArgsConstructor
 @Slf4j
 public abstract class LargeFileBlockAssignment extends BaseBlockAssignment implements FileBlockExtractor {
     private static final long GB = 1024 * 1024 * 1024;
+    private static final byte[] ZERO_BUFFER = new byte[64 * 1024];
+    // Holes smaller than a file system block do not save any space.
+    private static final int MINIMUM_ZERO_BLOCK_SIZE = 4096;
     private final FileBlockUploader uploader;
     private final BlockDownloader blockDownloader;
     private final FileSystemAccess access;
@@ -45,6 +55,23 @@ public abstract class LargeFileBlockAssignment extends BaseBlockAssignment imple
     private final MachineState machineState;
     private final EncryptionIdentity encryptionIdentity;
     private final int maximumBlockSize;
+    private final MemoryBudget memoryBudget;
+    private final AtomicLong zeroBlocks = new AtomicLong();
+    private final AtomicLong zeroBlockSize = new AtomicLong();
+    // Versions that predate zero block hashes fail to restore files referencing them, so they are only recorded
+    // once enabled.
+    @Setter
+    private boolean recordZeroBlocks;
+
+    static boolean isZero(byte[] buffer, int length) {
+        for (int offset = 0; offset < length; offset += ZERO_BUFFER.length) {
+            int end = Math.min(length, offset + ZERO_BUFFER.length);
+            if (Arrays.mismatch(buffer, offset, end, ZERO_BUFFER, 0, end - offset) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     @Override
     protected boolean internalAssignBlocks(BackupSet set, BackupPartialFile backupPartialFile,
@@ -57,7 +84,8 @@ public abstract class LargeFileBlockAssignment extends BaseBlockAssignment imple
             BackupPartialFile existingPartialFile = metadataRepository.getPartialFile(backupPartialFile);
             if (existingPartialFile != null && existingPartialFile.getParts() != null) {
                 for (BackupPartialFile.PartialCompletedPath part : existingPartialFile.getParts()) {
-                    if (metadataRepository.block(part.getPart().getBlockHash()) == null) {
+                    if (!BackupBlock.isZeroBlock(part.getPart().getBlockHash())
+                            && metadataRepository.block(part.getPart().getBlockHash()) == null) {
                         break;
                     }
                     backupPartialFile.addPart(metadataRepository, part);
@@ -77,107 +105,154 @@ public abstract class LargeFileBlockAssignment extends BaseBlockAssignment imple
         AtomicBoolean readyToComplete = new AtomicBoolean();
 
         BackupFile file = backupPartialFile.getFile();
+        // The digest covers the whole file so it is only calculated when nothing was skipped by resuming.
+        Hash digest = start == 0 ? new Hash() : null;
 
-        while (start < file.getLength()) {
-            if (InstanceFactory.isShutdown()) {
-                return true;
-            }
-            long end = start + maximumBlockSize;
-            if (end > file.getLength())
-                end = file.getLength();
+        // The read channel is normally closed when the end of the file is read, make sure it is also closed when
+        // processing stops early or the file changed length.
+        try {
+            while (start < file.getLength()) {
+                if (InstanceFactory.isShutdown()) {
+                    return true;
+                }
+                long end = start + maximumBlockSize;
+                if (end > file.getLength())
+                    end = file.getLength();
 
-            try {
                 int size = (int) (end - start);
-                byte[] buffer = new byte[size];
-                int length;
+                memoryBudget.acquire(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                boolean reserved = true;
                 try {
-                    length = access.readData(file.getPath(), buffer, start, size);
-                } catch (IOException exc) {
-                    log.warn("Failed to read file \"{}\": \u200E{}\u200E", PathNormalizer.physicalPath(file.getPath()),
-                            exc.getMessage());
-                    completionFuture.completed(null);
-                    return true;
-                }
+                    byte[] buffer = new byte[size];
+                    int length;
+                    // Ranges the file system reports as holes are known to be zero without reading them, other
+                    // ranges are still checked for zeros after being read.
+                    boolean hole = false;
+                    try {
+                        if (recordZeroBlocks && size >= MINIMUM_ZERO_BLOCK_SIZE) {
+                            hole = access.isHole(file.getPath(), start, size);
+                        }
+                        length = hole ? size : access.readData(file.getPath(), buffer, start, size);
+                    } catch (IOException exc) {
+                        log.warn("Failed to read file \"{}\": \u200E{}\u200E", PathNormalizer.physicalPath(file.getPath()),
+                                exc.getMessage());
+                        memoryBudget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                        completionFuture.completed(null);
+                        return true;
+                    }
 
-                final Hash hashCalc = new Hash();
-                encryptionIdentity.addBlockHashSalt(hashCalc);
-                hashCalc.addBytes(getClass().getName().getBytes(StandardCharsets.UTF_8));
-                hashCalc.addBytes(buffer);
-                final String hash = hashCalc.getHash();
+                    // Runs of zeros (preallocated or sparse regions) are only recorded in the metadata and never
+                    // uploaded, they are restored as holes.
+                    final boolean zero = hole
+                            || recordZeroBlocks && length == size && size >= MINIMUM_ZERO_BLOCK_SIZE && isZero(buffer, size);
+                    final String hash;
+                    if (zero) {
+                        hash = BackupBlock.createZeroBlockHash(size);
+                    } else {
+                        final Hash hashCalc = new Hash();
+                        encryptionIdentity.addBlockHashSalt(hashCalc);
+                        hashCalc.addBytes(getClass().getName().getBytes(StandardCharsets.UTF_8));
+                        hashCalc.addBytes(buffer);
+                        hash = hashCalc.getHash();
+                    }
 
-                BackupFilePart part = BackupFilePart.builder()
-                        .blockHash(hash)
-                        .offset(start > 0 ? start : null)
-                        .build();
+                    BackupFilePart part = BackupFilePart.builder()
+                            .blockHash(hash)
+                            .offset(start > 0 ? start : null)
+                            .build();
 
-                if (length != size) {
-                    log.warn("Only read {} when expected {} for \"{}\"", readableSize(length), readableSize(size),
-                            PathNormalizer.physicalPath(file.getPath()));
-                    locationRef.set(null);
-                    completionFuture.completed(null);
-                    return true;
-                } else {
-                    // TODO: If at the end we end up with a small piece that should go in a small block.
-
-                    BackupCompletion partialCompletion = new BackupCompletion() {
-                        @Override
-                        public void completed(boolean partialSuccess) {
-                            synchronized (partialCompletions) {
-                                partialCompletions.remove(this);
-                                if (!partialSuccess) {
-                                    success.set(false);
-                                }
-                                if (readyToComplete.get()) {
-                                    completeIfDone(partialCompletions, backupPartialFile, locationRef, completionFuture,
-                                            success);
+                    if (length != size) {
+                        log.warn("Only read {} when expected {} for \"{}\"", readableSize(length), readableSize(size),
+                                PathNormalizer.physicalPath(file.getPath()));
+                        locationRef.set(null);
+                        memoryBudget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                        completionFuture.completed(null);
+                        return true;
+                    } else if (zero) {
+                        if (digest != null) {
+                            digest.addBytes(buffer);
+                        }
+                        zeroBlocks.incrementAndGet();
+                        zeroBlockSize.addAndGet(size);
+                        buffer = null;
+                        memoryBudget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                        reserved = false;
+                    } else {
+                        // TODO: If at the end we end up with a small piece that should go in a small block.
+
+                        BackupCompletion partialCompletion = new BackupCompletion() {
+                            @Override
+                            public void completed(boolean partialSuccess) {
+                                memoryBudget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                                synchronized (partialCompletions) {
+                                    partialCompletions.remove(this);
+                                    if (!partialSuccess) {
+                                        success.set(false);
+                                    }
+                                    if (readyToComplete.get()) {
+                                        completeIfDone(partialCompletions, backupPartialFile, locationRef, completionFuture,
+                                                success);
+                                    }
                                 }
                             }
-                        }
 
-                    };
+                        };
 
-                    synchronized (partialCompletions) {
-                        partialCompletions.add(partialCompletion);
-                    }
+                        synchronized (partialCompletions) {
+                            partialCompletions.add(partialCompletion);
+                        }
+                        reserved = false;
+                        if (digest != null) {
+                            digest.addBytes(buffer);
+                        }
 
-                    BackupData data;
-                    {
-                        byte[] finalBuffer = buffer;
-                        data = new BackupData(() -> {
-                            try {
-                                return processBuffer(finalBuffer);
-                            } catch (IOException e) {
-                                throw new RuntimeException("Failed to compress file", e);
-                            }
-                        });
-                    }
-                    buffer = null;
+                        BackupData data;
+                        {
+                            byte[] finalBuffer = buffer;
+                            data = new BackupData(() -> {
+                                try {
+                                    return processBuffer(finalBuffer);
+                                } catch (IOException e) {
+                                    throw new RuntimeException("Failed to compress file", e);
+                                }
+                            });
+                        }
+                        buffer = null;
 
-                    uploader.uploadBlock(set, data, hash, getFormat(), partialCompletion);
-                }
+                        uploader.uploadBlock(set, data, hash, getFormat(), partialCompletion);
+                    }
 
-                backupPartialFile.addPart(metadataRepository, new BackupPartialFile.PartialCompletedPath(end, part));
+                    backupPartialFile.addPart(metadataRepository, new BackupPartialFile.PartialCompletedPath(end, part));
 
-                if (end < file.getLength()) {
-                    // We keep a checkpoint every 10th of a GB.
-                    if (start * 10 / GB != end * 10 / GB) {
-                        metadataRepository.savePartialFile(backupPartialFile);
+                    if (end < file.getLength()) {
+                        // We keep a checkpoint every 10th of a GB.
+                        if (start * 10 / GB != end * 10 / GB) {
+                            metadataRepository.savePartialFile(backupPartialFile);
+                        }
+                        if (start / GB != end / GB) {
+                            log.info("Processed {} / {} for \"{}\"", readableSize(end), readableSize(file.getLength()),
+                                    PathNormalizer.physicalPath(file.getPath()));
+                            machineState.waitForRunCheck();
+                        }
                     }
-                    if (start / GB != end / GB) {
-                        log.info("Processed {} / {} for \"{}\"", readableSize(end), readableSize(file.getLength()),
-                                PathNormalizer.physicalPath(file.getPath()));
-                        machineState.waitForRunCheck();
+                } catch (Exception e) {
+                    if (reserved) {
+                        memoryBudget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
                     }
+                    log.error("Failed to create block for \"{}\"", PathNormalizer.physicalPath(file.getPath()), e);
+                    locationRef.set(null);
+                    completionFuture.completed(null);
+                    return true;
                 }
-            } catch (Exception e) {
-                log.error("Failed to create block for \"{}\"", PathNormalizer.physicalPath(file.getPath()), e);
-                locationRef.set(null);
-                completionFuture.completed(null);
-                return true;
+                start = end;
             }
-            start = end;
+        } finally {
+            access.closeFile(file.getPath());
         }
 
+        if (digest != null) {
+            file.setDigest(digest.getHash());
+        }
         synchronized (partialCompletions) {
             readyToComplete.set(true);
             completeIfDone(partialCompletions, backupPartialFile, locationRef, completionFuture, success);
@@ -218,6 +293,24 @@ public abstract class LargeFileBlockAssignment extends BaseBlockAssignment imple
     public void flushAssignments() {
     }
 
+    @Override
+    public void resetStatus() {
+        super.resetStatus();
+        zeroBlocks.set(0);
+        zeroBlockSize.set(0);
+    }
+
+    @Override
+    public List<StatusLine> status() {
+        List<StatusLine> ret = super.status();
+        if (zeroBlocks.get() > 0) {
+            ret.add(new StatusLine(getClass(), "SKIPPED_ZERO_BLOCKS", "Skipped empty blocks",
+                    zeroBlocks.get(), readableNumber(zeroBlocks.get()) + " ("
+                    + readableSize(zeroBlockSize.get()) + ")"));
+        }
+        return ret;
+    }
+
     protected abstract byte[] processBuffer(byte[] buffer) throws IOException;
 
     protected abstract String getFormat();
@@ -7,6 +7,7 @@ import com.underscoreresearch.backup.encryption.EncryptionIdentity;
 import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.state.MachineState;
 
 import java.io.IOException;
@@ -15,8 +16,10 @@ import java.io.IOException;
 public class RawLargeFileBlockAssignment extends LargeFileBlockAssignment {
     public RawLargeFileBlockAssignment(FileBlockUploader uploader, BlockDownloader downloader, FileSystemAccess access,
                                        MetadataRepository metadataRepository, MachineState machineState,
-                                       EncryptionIdentity encryptionIdentity, int maximumBlockSize) {
-        super(uploader, downloader, access, metadataRepository, machineState, encryptionIdentity, maximumBlockSize);
+                                       EncryptionIdentity encryptionIdentity, int maximumBlockSize,
+                                       MemoryBudget memoryBudget) {
+        super(uploader, downloader, access, metadataRepository, machineState, encryptionIdentity, maximumBlockSize,
+                memoryBudget);
     }
 
     protected byte[] processBuffer(byte[] buffer) throws IOException {
@@ -21,6 +21,7 @@ import com.underscoreresearch.backup.model.BackupFilePart;
 import com.underscoreresearch.backup.model.BackupLocation;
 import com.underscoreresearch.backup.model.BackupPartialFile;
 import com.underscoreresearch.backup.model.BackupSet;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -45,6 +46,7 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 @Slf4j
 public abstract class SmallFileBlockAssignment extends BaseBlockAssignment implements FileBlockExtractor {
     private static final int MAX_FILES_PER_BLOCK = 1024;
+    private static final int CACHED_BLOCKS = 8;
     private final FileBlockUploader uploader;
     @Getter(AccessLevel.PROTECTED)
     private final BlockDownloader blockDownloader;
@@ -55,10 +57,11 @@ public abstract class SmallFileBlockAssignment extends BaseBlockAssignment imple
     private final int maximumFileSize;
     @Getter(AccessLevel.PROTECTED)
     private final int targetSize;
+    private final MemoryBudget memoryBudget;
     private final Map<BackupSet, PendingFile> pendingFiles = new HashMap<>();
     private final LoadingCache<KeyFetch, CachedData> cache = CacheBuilder
             .newBuilder()
-            .maximumSize(2)
+            .maximumSize(CACHED_BLOCKS)
             .build(new CacheLoader<>() {
                 @Override
                 public CachedData load(KeyFetch key) throws Exception {
@@ -92,6 +95,7 @@ public abstract class SmallFileBlockAssignment extends BaseBlockAssignment imple
                 completionFuture.completed(null);
                 return true;
             }
+            file.setDigest(Hash.hash(buffer));
             internalAssignBlock(set, buffer, completionFuture);
         } catch (Exception e) {
             log.error("Failed to create block for \"" + PathNormalizer.physicalPath(file.getPath()) + "\"", e);
@@ -116,11 +120,17 @@ public abstract class SmallFileBlockAssignment extends BaseBlockAssignment imple
     protected abstract PendingFile createPendingFile();
 
     private void uploadPending(BackupSet set, PendingFile pendingFile) {
+        int size = pendingFile.estimateSize();
+        memoryBudget.acquire(MemoryBudget.SMALL_BLOCK_STAGE, size);
         try {
             uploader.uploadBlock(set, new BackupData(pendingFile.data()), pendingFile.hash(), getFormat(),
-                    pendingFile::complete);
+                    (success) -> {
+                        memoryBudget.release(MemoryBudget.SMALL_BLOCK_STAGE, size);
+                        pendingFile.complete(success);
+                    });
         } catch (IOException e) {
             log.error("Failed to upload block", e);
+            memoryBudget.release(MemoryBudget.SMALL_BLOCK_STAGE, size);
             pendingFile.complete(false);
         }
         pendingFiles.remove(set);
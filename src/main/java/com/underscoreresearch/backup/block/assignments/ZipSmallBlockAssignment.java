@@ -9,6 +9,7 @@ import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -38,8 +39,10 @@ public class ZipSmallBlockAssignment extends SmallFileBlockAssignment implements
                                    FileSystemAccess access,
                                    EncryptionIdentity encryptionIdentity,
                                    int maximumFileSize,
-                                   int targetSize) {
-        super(uploader, blockDownloader, repository, access, encryptionIdentity, maximumFileSize, targetSize);
+                                   int targetSize,
+                                   MemoryBudget memoryBudget) {
+        super(uploader, blockDownloader, repository, access, encryptionIdentity, maximumFileSize, targetSize,
+                memoryBudget);
     }
 
     @Override
@@ -17,14 +17,17 @@ import com.underscoreresearch.backup.model.BackupBlockStorage;
 import com.underscoreresearch.backup.model.BackupConfiguration;
 import com.underscoreresearch.backup.model.BackupDestination;
 import com.underscoreresearch.backup.utils.ManualStatusLogger;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.StatusLine;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -34,30 +37,95 @@ import static com.underscoreresearch.backup.utils.LogUtil.getThroughputStatus;
 
 @Slf4j
 public class BlockDownloaderImpl extends SchedulerImpl implements BlockDownloader, ManualStatusLogger {
+    public static final String RETAINED_BYTES_PROPERTY = "restore.retainedBlockBytes";
+    private static final long DEFAULT_RETAINED_BYTES = 256L * 1024 * 1024;
+
     private final BackupConfiguration configuration;
     private final RateLimitController rateLimitController;
     private final EncryptionIdentity encryptionIdentity;
+    private final MemoryBudget memoryBudget;
 
     private final AtomicLong totalSize = new AtomicLong();
     private final AtomicLong totalCount = new AtomicLong();
     private final AtomicLong blockCount = new AtomicLong();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong reusedBlocks = new AtomicLong();
+    private final Map<String, RetainedBlock> retainedBlocks = new HashMap<>();
+    private final long maximumRetainedBytes;
 
     public BlockDownloaderImpl(BackupConfiguration configuration,
                                RateLimitController rateLimitController,
                                MetadataRepository metadataRepository,
                                EncryptionIdentity encryptionIdentity,
+                               MemoryBudget memoryBudget,
                                int maximumConcurrency) {
-        super(maximumConcurrency);
+        super(maximumConcurrency, true);
 
         StateLogger.addLogger(this);
 
         this.configuration = configuration;
         this.rateLimitController = rateLimitController;
         this.encryptionIdentity = encryptionIdentity;
+        this.memoryBudget = memoryBudget;
+        maximumRetainedBytes = configuration != null
+                ? configuration.getProperty(RETAINED_BYTES_PROPERTY, DEFAULT_RETAINED_BYTES)
+                : DEFAULT_RETAINED_BYTES;
     }
 
+    @Override
+    public void retainBlock(String hash) {
+        synchronized (retainedBlocks) {
+            retainedBlocks.computeIfAbsent(hash, key -> new RetainedBlock()).references++;
+        }
+    }
+
+    @Override
+    public void releaseRetainedBlocks() {
+        synchronized (retainedBlocks) {
+            retainedBlocks.clear();
+            retainedBytes.set(0);
+        }
+    }
+
+    // Blocks needed by more than one restored file are kept in memory until the last of them has used it, as long
+    // as they fit in the retained byte limit. Everything else is fetched every time it is needed.
     @Override
     public byte[] downloadBlock(BackupBlock block, String password) throws IOException {
+        RetainedBlock retained;
+        synchronized (retainedBlocks) {
+            retained = retainedBlocks.get(block.getHash());
+        }
+        if (retained == null) {
+            return fetchBlock(block, password);
+        }
+
+        synchronized (retained) {
+            try {
+                if (retained.data != null) {
+                    reusedBlocks.incrementAndGet();
+                    return retained.data;
+                }
+                byte[] data = fetchBlock(block, password);
+                if (retained.references > 1 && retainedBytes.addAndGet(data.length) <= maximumRetainedBytes) {
+                    retained.data = data;
+                } else if (retained.references > 1) {
+                    retainedBytes.addAndGet(-data.length);
+                }
+                return data;
+            } finally {
+                if (--retained.references <= 0) {
+                    synchronized (retainedBlocks) {
+                        if (retainedBlocks.remove(block.getHash(), retained) && retained.data != null) {
+                            retainedBytes.addAndGet(-retained.data.length);
+                        }
+                    }
+                    retained.data = null;
+                }
+            }
+        }
+    }
+
+    protected byte[] fetchBlock(BackupBlock block, String password) throws IOException {
 
         for (int storageIndex = 0; storageIndex < block.getStorage().size(); storageIndex++) {
             BackupBlockStorage storage = block.getStorage().get(storageIndex);
@@ -113,6 +181,13 @@ public class BlockDownloaderImpl extends SchedulerImpl implements BlockDownloade
             }
 
             if (completedParts.get() >= neededParts) {
+                long partSize = 0;
+                for (byte[] part : blockParts) {
+                    if (part != null) {
+                        partSize += part.length;
+                    }
+                }
+                memoryBudget.acquire(MemoryBudget.DOWNLOAD_STAGE, partSize);
                 try {
                     errorCorrected = corrector.decodeErrorCorrection(storage, Lists.newArrayList(blockParts));
                     break;
@@ -120,6 +195,8 @@ public class BlockDownloaderImpl extends SchedulerImpl implements BlockDownloade
                     if (remainingParts.isEmpty()) {
                         throw new IOException("Failed to error correct \"" + block.getHash() + "\"", e);
                     }
+                } finally {
+                    memoryBudget.release(MemoryBudget.DOWNLOAD_STAGE, partSize);
                 }
             }
 
@@ -175,6 +252,7 @@ public class BlockDownloaderImpl extends SchedulerImpl implements BlockDownloade
     public void resetStatus() {
         super.resetDuration();
         blockCount.set(0);
+        reusedBlocks.set(0);
         totalCount.set(0);
         totalSize.set(0);
     }
@@ -186,6 +264,14 @@ public class BlockDownloaderImpl extends SchedulerImpl implements BlockDownloade
         if (blockCount.get() > 0) {
             ret.add(new StatusLine(getClass(), "DOWNLOADED_BLOCKS", "Downloaded blocks", blockCount.get()));
         }
+        if (reusedBlocks.get() > 0) {
+            ret.add(new StatusLine(getClass(), "REUSED_BLOCKS", "Reused downloaded blocks", reusedBlocks.get()));
+        }
         return ret;
     }
+
+    private static class RetainedBlock {
+        private int references;
+        private byte[] data;
+    }
 }
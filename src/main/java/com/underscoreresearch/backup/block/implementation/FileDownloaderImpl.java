@@ -3,6 +3,7 @@ package com.underscoreresearch.backup.block.implementation;
 import com.underscoreresearch.backup.block.BlockFormatFactory;
 import com.underscoreresearch.backup.block.FileBlockExtractor;
 import com.underscoreresearch.backup.block.FileDownloader;
+import com.underscoreresearch.backup.encryption.Hash;
 import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.PathNormalizer;
@@ -27,6 +28,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static com.underscoreresearch.backup.utils.LogUtil.readableEta;
@@ -35,17 +37,27 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 @Slf4j
 public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
     private static final long GB = 1024 * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
     private final MetadataRepository repository;
     private final FileSystemAccess fileSystemAccess;
     private final AtomicBoolean shutdown = new AtomicBoolean();
     private final TreeMap<String, Progress> activeFiles = new TreeMap<>();
+    private final AtomicLong sparseSize = new AtomicLong();
+    private final RestoreJournal journal;
 
     public FileDownloaderImpl(MetadataRepository repository,
                               FileSystemAccess fileSystemAccess) {
+        this(repository, fileSystemAccess, null);
+    }
+
+    public FileDownloaderImpl(MetadataRepository repository,
+                              FileSystemAccess fileSystemAccess,
+                              RestoreJournal journal) {
         StateLogger.addLogger(this);
 
         this.repository = repository;
         this.fileSystemAccess = fileSystemAccess;
+        this.journal = journal;
     }
 
     public static boolean isNullFile(String file) {
@@ -59,6 +71,7 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
             activeFiles.put(source.getPath(), progress);
         }
 
+        boolean journaled = journal != null && journal.isActive() && !isNullFile(destinationFile);
         try {
             for (int i = 0; true; i++) {
                 try {
@@ -68,6 +81,15 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                     } else {
                         BackupLocation location = source.getLocations().get(i);
                         long offset = 0;
+                        long skipBlocks = 0;
+                        RestoreJournal.Entry resume = journaled ? journal.progress(destinationFile, source) : null;
+                        if (resume != null && resume.getLocation() == i && resume.getOffset() > 0
+                                && new File(PathNormalizer.physicalPath(destinationFile)).length() >= resume.getOffset()) {
+                            skipBlocks = resume.getBlocks();
+                            offset = resume.getOffset();
+                            log.info("Resuming restore of \"{}\" from {}", PathNormalizer.physicalPath(source.getPath()),
+                                    readableSize(offset));
+                        }
 
                         FileInputStream originalStream = null;
                         File originalFile = null;
@@ -85,6 +107,14 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                                 originalFile = null;
                             }
 
+                            // A local file matching the digest of the backup is known to be identical without
+                            // downloading any blocks.
+                            if (originalFile != null && source.getDigest() != null
+                                    && source.getDigest().equals(localDigest(originalFile))) {
+                                progress.setCompleted(source.getLength());
+                                break;
+                            }
+
                             if (originalFile != null) {
                                 try {
                                     originalStream = new FileInputStream(originalFile);
@@ -94,6 +124,22 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                             }
                         }
 
+                        // Zero blocks past the existing end of the destination are left as holes instead of
+                        // being written.
+                        long existingLength = isNullFile(destinationFile) ? 0
+                                : new File(PathNormalizer.physicalPath(destinationFile)).length();
+
+                        // Space is only reserved up front when nothing would be left as a hole.
+                        if (existingLength == 0 && offset == 0 && !isNullFile(destinationFile)
+                                && !hasZeroBlocks(location)) {
+                            fileSystemAccess.preallocateFile(destinationFile, source.getLength());
+                        }
+
+                        Hash digest = source.getDigest() != null ? new Hash() : null;
+                        if (digest != null && offset > 0) {
+                            addDigest(digest, destinationFile, offset);
+                        }
+                        long blockIndex = 0;
                         try {
                             for (BackupFilePart part : location.getParts()) {
                                 List<BackupBlock> blocks = BackupBlock.expandBlock(part.getBlockHash(), repository);
@@ -102,15 +148,31 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                                         throw new IOException(String.format("File referenced block \"%s\" that doesn't exist",
                                                 part.getBlockHash()));
                                     }
-                                    FileBlockExtractor extractor = BlockFormatFactory.getExtractor(block.getFormat());
+                                    if (blockIndex < skipBlocks) {
+                                        blockIndex++;
+                                        continue;
+                                    }
                                     try {
-                                        byte[] fileData = extractor.extractPart(part, block, password);
+                                        byte[] fileData;
+                                        if (block.isZeroBlock()) {
+                                            fileData = new byte[(int) BackupBlock.zeroBlockLength(block.getHash())];
+                                        } else {
+                                            FileBlockExtractor extractor = BlockFormatFactory.getExtractor(block.getFormat());
+                                            fileData = extractor.extractPart(part, block, password);
+                                        }
                                         if (fileData == null) {
                                             throw new IOException("Failed to extra data for part of block \"" + block.getHash() + "\"");
                                         }
+                                        if (digest != null) {
+                                            digest.addBytes(fileData);
+                                        }
 
                                         if (!isNullFile(destinationFile)) {
-                                            fileSystemAccess.writeData(destinationFile, fileData, offset, fileData.length);
+                                            if (block.isZeroBlock() && offset >= existingLength) {
+                                                sparseSize.addAndGet(fileData.length);
+                                            } else {
+                                                fileSystemAccess.writeData(destinationFile, fileData, offset, fileData.length);
+                                            }
                                         } else if (destinationFile.equals("=")) {
                                             for (int originalOffset = 0; originalStream != null && originalOffset < fileData.length; originalOffset += 8192) {
                                                 byte[] original = new byte[8192];
@@ -142,6 +204,10 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                                         }
 
                                         progress.setCompleted(offset);
+                                        blockIndex++;
+                                        if (journaled) {
+                                            journal.recordProgress(destinationFile, source, i, blockIndex, offset);
+                                        }
                                     } catch (Exception exc) {
                                         throw new IOException("Failed to download \"" + PathNormalizer.physicalPath(source.getPath())
                                                 + " \"because missing or corrupt block \"" + block.getHash() + "\"", exc);
@@ -160,6 +226,16 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                             throw new IOException(String.format("Expected file \"%s\" to be of size \u200E%s\u200E but was actually \u200E%s\u200E",
                                     PathNormalizer.physicalPath(source.getPath()), source.getLength(), offset));
                         }
+                        if (digest != null && !digest.getHash().equals(source.getDigest())) {
+                            if (journaled) {
+                                journal.recordProgress(destinationFile, source, i, 0, 0);
+                            }
+                            throw new IOException(String.format("Contents of file \"%s\" does not match its digest",
+                                    PathNormalizer.physicalPath(source.getPath())));
+                        }
+                    }
+                    if (journaled) {
+                        journal.recordCompleted(destinationFile, source);
                     }
                     break;
                 } catch (IOException exc) {
@@ -169,12 +245,85 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                 }
             }
         } finally {
+            if (!isNullFile(destinationFile)) {
+                fileSystemAccess.closeFile(destinationFile);
+            }
             synchronized (activeFiles) {
                 activeFiles.remove(source.getPath());
             }
         }
     }
 
+    private boolean hasZeroBlocks(BackupLocation location) throws IOException {
+        for (BackupFilePart part : location.getParts()) {
+            for (BackupBlock block : BackupBlock.expandBlock(part.getBlockHash(), repository)) {
+                if (block != null && block.isZeroBlock()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addDigest(Hash digest, String path, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, length)];
+        long offset = 0;
+        while (offset < length) {
+            int read = fileSystemAccess.readData(path, buffer, offset, (int) Math.min(buffer.length, length - offset));
+            if (read <= 0) {
+                throw new IOException(String.format("Unexpected end of partially restored file \"%s\"", path));
+            }
+            digest.addBytes(buffer, 0, read);
+            offset += read;
+        }
+    }
+
+    private String localDigest(File file) {
+        Hash digest = new Hash();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (FileInputStream stream = new FileInputStream(file)) {
+            int length;
+            while ((length = stream.read(buffer)) > 0) {
+                digest.addBytes(buffer, 0, length);
+            }
+            return digest.getHash();
+        } catch (IOException exc) {
+            log.warn("Failed to read \"{}\" to compare", file.getAbsolutePath());
+            return null;
+        }
+    }
+
+    @Override
+    public void duplicateFile(BackupFile source, String existingDestination, String destination) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, source.getLength())];
+        long offset = 0;
+        // Holes in the already restored copy are kept as holes in the duplicate.
+        long existingLength = new File(PathNormalizer.physicalPath(destination)).length();
+        try {
+            while (offset < source.getLength()) {
+                int size = (int) Math.min(buffer.length, source.getLength() - offset);
+                if (offset >= existingLength && fileSystemAccess.isHole(existingDestination, offset, size)) {
+                    sparseSize.addAndGet(size);
+                    offset += size;
+                    continue;
+                }
+                int length = fileSystemAccess.readData(existingDestination, buffer, offset, size);
+                if (length <= 0) {
+                    throw new IOException(String.format("Unexpected end of restored file \"%s\"", existingDestination));
+                }
+                fileSystemAccess.writeData(destination, buffer, offset, length);
+                offset += length;
+            }
+            fileSystemAccess.completeFile(source, destination, offset);
+        } finally {
+            fileSystemAccess.closeFile(existingDestination);
+            fileSystemAccess.closeFile(destination);
+        }
+        if (journal != null && journal.isActive()) {
+            journal.recordCompleted(destination, source);
+        }
+    }
+
     @Override
     public void shutdown() {
         shutdown.set(true);
@@ -185,12 +334,13 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
         synchronized (activeFiles) {
             activeFiles.clear();
         }
+        sparseSize.set(0);
     }
 
     @Override
     public List<StatusLine> status() {
         synchronized (activeFiles) {
-            return activeFiles.entrySet().stream().map(entry -> {
+            List<StatusLine> ret = activeFiles.entrySet().stream().map(entry -> {
                 if (entry.getValue().getCompleted() == 0)
                     return null;
 
@@ -214,6 +364,11 @@ public class FileDownloaderImpl implements FileDownloader, ManualStatusLogger {
                                     + readableSize(entry.getValue().getTotal()));
                 }
             }).filter(Objects::nonNull).collect(Collectors.toList());
+            if (sparseSize.get() > 0) {
+                ret.add(new StatusLine(getClass(), "RESTORED_SPARSE_SIZE", "Restored as sparse holes",
+                        sparseSize.get(), readableSize(sparseSize.get())));
+            }
+            return ret;
         }
     }
 
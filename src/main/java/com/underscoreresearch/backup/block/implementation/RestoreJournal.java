@@ -0,0 +1,164 @@
+package com.underscoreresearch.backup.block.implementation;
+
+import com.underscoreresearch.backup.model.BackupFile;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.SystemUtils;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import static com.underscoreresearch.backup.io.IOUtils.createDirectory;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+
+// Tracks the progress of a restore by destination path so an interrupted restore can skip files that were already
+// restored and continue partially restored files after the last block written. Progress is only recorded after the
+// data is written, so the journal can be behind the destination but never ahead of it. Progress is only kept for
+// the same restore run, any other restore discards what an earlier interrupted restore left behind.
+@Slf4j
+public class RestoreJournal implements Closeable {
+    private static final long COMMIT_INTERVAL_MS = 1000;
+    private static final String ENTRIES = "entries";
+    private static final String RUN = "run";
+
+    private final File file;
+    private DB db;
+    private HTreeMap<String, String> entries;
+    private long lastCommit;
+
+    public RestoreJournal(String manifestLocation) {
+        file = Paths.get(manifestLocation, "db", "restore.journal.db").toFile();
+    }
+
+    public synchronized void start(String run) {
+        if (db == null) {
+            createDirectory(file.getParentFile(), true);
+            DBMaker.Maker maker = DBMaker.fileDB(file).fileMmapPreclearDisable().transactionEnable();
+            if (SystemUtils.IS_OS_WINDOWS)
+                maker.fileChannelEnable();
+            else
+                maker.fileMmapEnableIfSupported();
+            db = maker.make();
+            entries = db.hashMap(ENTRIES, Serializer.STRING, Serializer.STRING).createOrOpen();
+            Atomic.String currentRun = db.atomicString(RUN).createOrOpen();
+            if (!run.equals(currentRun.get())) {
+                if (!entries.isEmpty()) {
+                    log.info("Discarding progress of {} files from a different interrupted restore", entries.size());
+                    entries.clear();
+                }
+                currentRun.set(run);
+                db.commit();
+            } else if (!entries.isEmpty()) {
+                log.info("Resuming restore with {} files already started", entries.size());
+            }
+        }
+    }
+
+    public synchronized boolean isActive() {
+        return db != null;
+    }
+
+    public synchronized boolean isCompleted(String destination, BackupFile file) {
+        Entry entry = entry(destination, file);
+        return entry != null && entry.isCompleted();
+    }
+
+    public synchronized Entry progress(String destination, BackupFile file) {
+        Entry entry = entry(destination, file);
+        if (entry != null && !entry.isCompleted()) {
+            return entry;
+        }
+        return null;
+    }
+
+    public synchronized void recordProgress(String destination, BackupFile file, int location, long blocks,
+                                            long offset) {
+        put(destination, new Entry(fileIdentity(file), location, blocks, offset, false));
+    }
+
+    public synchronized void recordCompleted(String destination, BackupFile file) {
+        put(destination, new Entry(fileIdentity(file), 0, 0, file.getLength(), true));
+    }
+
+    // Called when a restore has run to the end so that the next restore starts from scratch.
+    public synchronized void finish() {
+        if (db != null) {
+            entries.clear();
+            close();
+            if (!file.delete()) {
+                debug(() -> log.debug("Failed to delete restore journal \"{}\"", file.getAbsolutePath()));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (db != null) {
+            db.commit();
+            db.close();
+            db = null;
+            entries = null;
+        }
+    }
+
+    private Entry entry(String destination, BackupFile file) {
+        if (db == null) {
+            return null;
+        }
+        String data = entries.get(destination);
+        if (data == null) {
+            return null;
+        }
+        try {
+            Entry entry = MAPPER.readValue(data, Entry.class);
+            if (fileIdentity(file).equals(entry.getFile())) {
+                return entry;
+            }
+        } catch (IOException exc) {
+            log.warn("Invalid restore journal entry for \"{}\"", destination);
+        }
+        return null;
+    }
+
+    private void put(String destination, Entry entry) {
+        if (db == null) {
+            return;
+        }
+        try {
+            entries.put(destination, MAPPER.writeValueAsString(entry));
+        } catch (IOException exc) {
+            log.warn("Failed to record restore progress for \"{}\"", destination, exc);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastCommit >= COMMIT_INTERVAL_MS) {
+            lastCommit = now;
+            db.commit();
+        }
+    }
+
+    private static String fileIdentity(BackupFile file) {
+        return file.getPath() + ":" + file.getAdded() + ":" + file.getLength();
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private String file;
+        private int location;
+        private long blocks;
+        private long offset;
+        private boolean completed;
+    }
+}
@@ -9,6 +9,7 @@ import com.underscoreresearch.backup.manifest.LogConsumer;
 import com.underscoreresearch.backup.manifest.ManifestManager;
 import com.underscoreresearch.backup.service.SubscriptionLackingException;
 import com.underscoreresearch.backup.utils.StateLogger;
+import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.ParseException;
 
@@ -86,6 +87,7 @@ public class BackupCommand extends SimpleCommand {
             }, true);
 
             if (started.get()) {
+                MachineState.applyWorkerPriority();
                 scheduler.start();
                 debug(() -> log.debug("Backup scheduler shutdown"));
             }
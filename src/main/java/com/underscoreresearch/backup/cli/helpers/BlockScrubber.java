@@ -0,0 +1,419 @@
+package com.underscoreresearch.backup.cli.helpers;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.cli.ui.UIHandler;
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.errorcorrection.ErrorCorrector;
+import com.underscoreresearch.backup.errorcorrection.ErrorCorrectorFactory;
+import com.underscoreresearch.backup.file.CloseableStream;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.implementation.BackupStatsLogger;
+import com.underscoreresearch.backup.io.IOProvider;
+import com.underscoreresearch.backup.io.IOProviderFactory;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupBlockStorage;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupDestination;
+import com.underscoreresearch.backup.utils.ManualStatusLogger;
+import com.underscoreresearch.backup.utils.ProcessingStoppedException;
+import com.underscoreresearch.backup.utils.StateLogger;
+import com.underscoreresearch.backup.utils.StatusLine;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.readableDuration;
+import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
+import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+
+// Block hashes are calculated from the unencrypted data, which can't be read without the private key. Blocks are
+// instead verified by downloading every part, decoding the error correction and checking that encoding the result
+// again produces the exact parts that are stored.
+@Slf4j
+public class BlockScrubber implements ManualStatusLogger {
+    public static final String SCRUB_TASK = "Scrubbing destination blocks";
+    public static final String ENABLED_PROPERTY = "scrub.enabled";
+    public static final String BYTES_PER_SECOND_PROPERTY = "scrub.bytesPerSecond";
+    public static final String BYTES_PER_DAY_PROPERTY = "scrub.bytesPerDay";
+    private static final long DEFAULT_BYTES_PER_SECOND = 1024 * 1024;
+    private static final long DEFAULT_BYTES_PER_DAY = 1024L * 1024 * 1024;
+    private static final long SAVE_INTERVAL_MS = 60 * 1000;
+    private static final int PAGE_SIZE = 1000;
+    private static final ObjectReader READER = MAPPER.readerFor(ScrubState.class);
+    private static final ObjectWriter WRITER = MAPPER.writerFor(ScrubState.class);
+
+    private final MetadataRepository repository;
+    private final BackupConfiguration configuration;
+    private final DestinationBlockProcessor destinationBlockProcessor;
+    private final BackupStatsLogger backupStatsLogger;
+    private final String manifestLocation;
+    private final boolean enabled;
+    private final long bytesPerSecond;
+    private final long bytesPerDay;
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private final AtomicLong scrubbedBlocks = new AtomicLong();
+    private final AtomicLong scrubbedBytes = new AtomicLong();
+    private final AtomicLong totalBlocks = new AtomicLong();
+    private ScrubState state;
+
+    public BlockScrubber(MetadataRepository repository, BackupConfiguration configuration,
+                         DestinationBlockProcessor destinationBlockProcessor, BackupStatsLogger backupStatsLogger,
+                         String manifestLocation) {
+        StateLogger.addLogger(this);
+
+        this.repository = repository;
+        this.configuration = configuration;
+        this.destinationBlockProcessor = destinationBlockProcessor;
+        this.backupStatsLogger = backupStatsLogger;
+        this.manifestLocation = manifestLocation;
+
+        enabled = "true".equals(configuration.getProperty(ENABLED_PROPERTY, "false"));
+        bytesPerSecond = configuration.getProperty(BYTES_PER_SECOND_PROPERTY, DEFAULT_BYTES_PER_SECOND);
+        bytesPerDay = configuration.getProperty(BYTES_PER_DAY_PROPERTY, DEFAULT_BYTES_PER_DAY);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Blocks are walked in hash order a page at a time and the last scrubbed hash is persisted, so a pass continues
+    // where the last run stopped even if blocks were added or removed in between. The repository is only locked
+    // while a page of hashes is read, never while downloading or throttling.
+    public synchronized void scrub() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        state = readState();
+        if (state.getLastHash() == null) {
+            state.setPosition(0);
+        }
+        long today = Instant.now().getEpochSecond() / TimeUnit.DAYS.toSeconds(1);
+        if (state.getDay() != today) {
+            state.setDay(today);
+            state.setBytesToday(0);
+        }
+        if (state.getBytesToday() >= bytesPerDay) {
+            debug(() -> log.debug("Daily scrub budget already used"));
+            return;
+        }
+        if (state.getPassStarted() == null) {
+            state.setPassStarted(Instant.now().toEpochMilli());
+        }
+
+        log.info("Scrubbing destination blocks");
+        totalBlocks.set(repository.getBlockCount());
+        stopwatch.start();
+        long lastSave = 0;
+        try (Closeable ignored = UIHandler.registerTask(SCRUB_TASK, true)) {
+            List<String> page;
+            do {
+                page = nextPage(state.getLastHash());
+                for (String hash : page) {
+                    if (InstanceFactory.isShutdown() || state.getBytesToday() >= bytesPerDay) {
+                        return;
+                    }
+
+                    BackupBlock block = repository.block(hash);
+                    if (block != null) {
+                        try {
+                            scrubBlock(block);
+                        } catch (IOException exc) {
+                            log.warn("Failed to scrub block \"{}\", will retry next pass", hash, exc);
+                        }
+                    }
+                    state.setLastHash(hash);
+                    state.setPosition(state.getPosition() + 1);
+
+                    if (stopwatch.elapsed(TimeUnit.MILLISECONDS) - lastSave > SAVE_INTERVAL_MS) {
+                        lastSave = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                        saveState();
+                    }
+                }
+            } while (page.size() >= PAGE_SIZE);
+
+            log.info("Completed scrub pass of {} blocks, repaired {} and lost {}",
+                    readableNumber(state.getPassBlocks()), readableNumber(state.getPassRepaired()),
+                    readableNumber(state.getPassLost()));
+            state.setCompletedPasses(state.getCompletedPasses() + 1);
+            state.setLastPassCompleted(Instant.now().toEpochMilli());
+            state.setLastPassDuration(state.getLastPassCompleted() - state.getPassStarted());
+            state.setPosition(0);
+            state.setLastHash(null);
+            state.setPassStarted(null);
+            state.setPassBlocks(0);
+            state.setPassRepaired(0);
+            state.setPassLost(0);
+        } catch (ProcessingStoppedException ignored) {
+        } finally {
+            saveState();
+            if (scrubbedBlocks.get() > 0) {
+                log.info("Scrubbed {} blocks ({})", readableNumber(scrubbedBlocks.get()),
+                        readableSize(scrubbedBytes.get()));
+            }
+            stopwatch.reset();
+            scrubbedBlocks.set(0);
+            scrubbedBytes.set(0);
+        }
+    }
+
+    private List<String> nextPage(String after) throws IOException {
+        TreeSet<String> page = new TreeSet<>();
+        try (CloseableStream<BackupBlock> blocks = repository.allBlocks()) {
+            blocks.stream().forEach(block -> {
+                if (block != null && (after == null || block.getHash().compareTo(after) > 0)) {
+                    page.add(block.getHash());
+                    if (page.size() > PAGE_SIZE) {
+                        page.pollLast();
+                    }
+                }
+            });
+        }
+        return new ArrayList<>(page);
+    }
+
+    private void scrubBlock(BackupBlock block) throws IOException {
+        List<BackupBlockStorage> damaged = new ArrayList<>();
+        List<BackupBlockStorage> lost = new ArrayList<>();
+        boolean anyValid = false;
+        for (BackupBlockStorage storage : new ArrayList<>(block.getStorage())) {
+            StorageCheck check = checkStorage(block, storage);
+            if (check == null) {
+                // Destination is no longer configured so it can't be checked, but that doesn't make the block lost.
+                anyValid = true;
+                continue;
+            }
+            if (check.data == null) {
+                lost.add(storage);
+            } else if (check.damaged) {
+                damaged.add(storage);
+                anyValid = true;
+                if (destinationBlockProcessor.repairStorage(block, Lists.newArrayList(storage), check.data)) {
+                    log.warn("Repaired damaged storage of block \"{}\" on destination \"{}\"", block.getHash(),
+                            storage.getDestination());
+                }
+            } else {
+                anyValid = true;
+            }
+        }
+        scrubbedBlocks.incrementAndGet();
+        state.setPassBlocks(state.getPassBlocks() + 1);
+
+        if (!lost.isEmpty()) {
+            if (!anyValid) {
+                log.error("Block \"{}\" can not be recovered from any destination, removing so files are "
+                        + "uploaded again", block.getHash());
+                state.setPassLost(state.getPassLost() + 1);
+                repository.deleteBlock(block);
+                backupStatsLogger.setNeedValidation(true);
+                return;
+            }
+            for (BackupBlockStorage storage : lost) {
+                log.error("Block \"{}\" can not be recovered from destination \"{}\", removing storage",
+                        block.getHash(), storage.getDestination());
+                block.getStorage().remove(storage);
+            }
+        }
+        if (!damaged.isEmpty() || !lost.isEmpty()) {
+            state.setPassRepaired(state.getPassRepaired() + 1);
+            repository.addBlock(block);
+        }
+    }
+
+    private StorageCheck checkStorage(BackupBlock block, BackupBlockStorage storage) throws IOException {
+        BackupDestination destination = configuration.getDestinations().get(storage.getDestination());
+        if (destination == null) {
+            return null;
+        }
+        IOProvider provider = IOProviderFactory.getProvider(destination);
+
+        List<byte[]> parts = new ArrayList<>();
+        boolean damaged = false;
+        for (String key : storage.getParts()) {
+            if (InstanceFactory.isShutdown()) {
+                throw new ProcessingStoppedException();
+            }
+            byte[] data = null;
+            if (key != null) {
+                try {
+                    data = provider.download(key);
+                } catch (IOException exc) {
+                    if (provider.exists(key)) {
+                        throw exc;
+                    }
+                }
+                if (data != null) {
+                    throttle(data.length);
+                } else {
+                    log.warn("Part \"{}\" of block \"{}\" is missing from destination \"{}\"", key,
+                            block.getHash(), storage.getDestination());
+                }
+            }
+            if (data == null) {
+                damaged = true;
+            }
+            parts.add(data);
+        }
+
+        ErrorCorrector corrector = ErrorCorrectorFactory.getCorrector(storage.getEc());
+        byte[] data;
+        try {
+            data = corrector.decodeErrorCorrection(storage, parts);
+        } catch (Exception exc) {
+            log.warn("Block \"{}\" could not be decoded from destination \"{}\"", block.getHash(),
+                    storage.getDestination(), exc);
+            return new StorageCheck(null, true);
+        }
+
+        if (!damaged && !matchesEncoding(corrector, storage, parts, data)) {
+            log.warn("Block \"{}\" has corrupt parts on destination \"{}\"", block.getHash(),
+                    storage.getDestination());
+            damaged = true;
+        }
+        return new StorageCheck(data, damaged);
+    }
+
+    private boolean matchesEncoding(ErrorCorrector corrector, BackupBlockStorage storage, List<byte[]> parts,
+                                    byte[] data) {
+        BackupBlockStorage copy = storage.toBuilder()
+                .properties(storage.getProperties() != null ? new HashMap<>(storage.getProperties()) : null)
+                .build();
+        List<byte[]> encoded;
+        try {
+            encoded = corrector.encodeErrorCorrection(copy, data);
+        } catch (Exception exc) {
+            return true;
+        }
+
+        // Stored with different error correction settings than currently configured, so all we know is that it
+        // decodes.
+        if (encoded.size() != parts.size() || !Objects.equals(copy.getProperties(), storage.getProperties())) {
+            return true;
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            if (!Arrays.equals(encoded.get(i), parts.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void throttle(long bytes) {
+        scrubbedBytes.addAndGet(bytes);
+        state.setBytesToday(state.getBytesToday() + bytes);
+        state.setTotalBytes(state.getTotalBytes() + bytes);
+        if (bytesPerSecond > 0) {
+            long wait = scrubbedBytes.get() * 1000 / bytesPerSecond - stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private File getStateFile() {
+        return new File(manifestLocation, "scrubstate.json");
+    }
+
+    private ScrubState readState() {
+        File file = getStateFile();
+        if (file.exists()) {
+            try {
+                return READER.readValue(file);
+            } catch (IOException exc) {
+                log.warn("Failed to read scrub state, starting new pass", exc);
+            }
+        }
+        return new ScrubState();
+    }
+
+    private void saveState() {
+        try {
+            WRITER.writeValue(getStateFile(), state);
+        } catch (IOException exc) {
+            log.error("Failed to save scrub state", exc);
+        }
+    }
+
+    @Override
+    public void resetStatus() {
+    }
+
+    @Override
+    public List<StatusLine> status() {
+        if (stopwatch.isRunning() && state != null) {
+            long elapsedMilliseconds = stopwatch.elapsed().toMillis();
+            List<StatusLine> ret = Lists.newArrayList(
+                    new StatusLine(getClass(), "SCRUB_PASS_BLOCKS", "Scrub pass coverage",
+                            state.getPosition(), totalBlocks.get(),
+                            readableNumber(state.getPosition()) + " / "
+                                    + readableNumber(totalBlocks.get()) + " blocks"),
+                    new StatusLine(getClass(), "SCRUB_BYTES_TODAY", "Scrubbed today",
+                            state.getBytesToday(), readableSize(state.getBytesToday())));
+            if (elapsedMilliseconds > 0) {
+                long throughput = 1000 * scrubbedBytes.get() / elapsedMilliseconds;
+                ret.add(new StatusLine(getClass(), "SCRUB_THROUGHPUT", "Scrub throughput",
+                        throughput, readableSize(throughput) + "/s"));
+            }
+            if (state.getPassRepaired() > 0) {
+                ret.add(new StatusLine(getClass(), "SCRUB_REPAIRED_BLOCKS", "Scrub repaired blocks",
+                        state.getPassRepaired(), readableNumber(state.getPassRepaired())));
+            }
+            if (state.getPassLost() > 0) {
+                ret.add(new StatusLine(getClass(), "SCRUB_LOST_BLOCKS", "Scrub lost blocks",
+                        state.getPassLost(), readableNumber(state.getPassLost())));
+            }
+            if (state.getLastPassCompleted() != null) {
+                ret.add(new StatusLine(getClass(), "SCRUB_LAST_PASS", "Last completed scrub pass",
+                        state.getLastPassCompleted(), readableNumber(state.getCompletedPasses())
+                        + " passes, last took " + readableDuration(Duration.ofMillis(state.getLastPassDuration()))));
+            }
+            return ret;
+        }
+        return new ArrayList<>();
+    }
+
+    ScrubState getState() {
+        return state;
+    }
+
+    private record StorageCheck(byte[] data, boolean damaged) {
+    }
+
+    @Data
+    public static class ScrubState {
+        private long position;
+        private String lastHash;
+        private Long passStarted;
+        private long passBlocks;
+        private long passRepaired;
+        private long passLost;
+        private long day;
+        private long bytesToday;
+        private long totalBytes;
+        private long completedPasses;
+        private Long lastPassCompleted;
+        private long lastPassDuration;
+    }
+}
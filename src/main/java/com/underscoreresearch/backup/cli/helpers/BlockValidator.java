@@ -334,6 +334,13 @@ public class BlockValidator implements ManualStatusLogger {
         if (InstanceFactory.isShutdown())
             throw new ProcessingStoppedException();
 
+        if (BackupBlock.isZeroBlock(blockHash)) {
+            if (maximumSize != null) {
+                maximumSize.addAndGet(BackupBlock.zeroBlockLength(blockHash));
+            }
+            return true;
+        }
+
         BackupBlock block = repository.block(blockHash);
         if (block == null) {
             log.warn("Block hash \"{}\" does not exist", blockHash);
@@ -235,80 +235,8 @@ public class DestinationBlockProcessor extends SchedulerImpl {
         if (data != null) {
             boolean any = false;
             for (BackupBlockStorage storage : needUpdates) {
-                try {
-                    BackupDestination destination = configuration.getDestinations().get(storage.getDestination());
-
-                    IOProvider provider = IOProviderFactory.getProvider(destination);
-                    awaitStopwatch(provider);
-
-                    if (configuration.getShares() != null) {
-                        for (String key : configuration.getShares().keySet())
-                            if (activatedShares.contains(key)) {
-                                IdentityKeys keys = encryptionIdentity.getIdentityKeyForHash(key);
-                                storage.getAdditionalStorageProperties().put(keys, new HashMap<>());
-                            }
-                    }
-                    List<byte[]> partData = ErrorCorrectorFactory.encodeBlocks(destination.getErrorCorrection(),
-                            storage, data);
-                    partData.forEach(part -> uploadedSize.addAndGet(part.length));
-
-                    String[] parts = new String[partData.size()];
-                    AtomicInteger completed = new AtomicInteger();
-                    for (int i = 0; i < partData.size(); i++) {
-                        int currentIndex = i;
-
-                        // We don't want to write over existing data if we can avoid it.
-                        int disambiguator = 0;
-                        while (storage.getParts().contains(uploadScheduler.suggestedKey(block.getHash(), currentIndex, disambiguator)))
-                            disambiguator++;
-
-                        uploadScheduler.scheduleUpload(destination,
-                                block.getHash(), currentIndex, disambiguator, partData.get(currentIndex), key -> {
-                                    parts[currentIndex] = key;
-                                    synchronized (completed) {
-                                        completed.incrementAndGet();
-                                        completed.notify();
-                                    }
-                                });
-                    }
-
-                    synchronized (completed) {
-                        while (completed.get() < parts.length) {
-                            completed.wait();
-                        }
-                    }
-                    List<String> partList = Lists.newArrayList(parts);
-                    if (partList.stream().anyMatch(Objects::isNull)) {
-                        log.error("Failed to refresh storage for block \"{}\"", block.getHash());
-                    } else {
-                        debug(() -> log.debug("Refreshed storage for block \"{}\"", block.getHash()));
-
-                        BackupBlockStorage updatedStorage;
-                        if (noDelete) {
-                            storage.setCreated(Instant.now().toEpochMilli());
-                            updatedStorage = storage.toBuilder().build();
-                            ;
-                            block.getStorage().add(updatedStorage);
-                        } else {
-                            List<String> originalParts = storage.getParts();
-
-                            updatedStorage = storage;
-
-                            for (String part : originalParts) {
-                                if (!partList.contains(part)) {
-                                    provider.delete(part);
-                                }
-                            }
-                        }
-                        updatedStorage.setEc(destination.getErrorCorrection());
-                        updatedStorage.setCreated(Instant.now().toEpochMilli());
-                        updatedStorage.setValidated(null);
-                        updatedStorage.setParts(partList);
-                        any = true;
-                    }
-                } catch (Exception e) {
-                    log.error("Failed to refresh data for block \"{}\" on destination \"{}\"",
-                            block.getHash(), storage.getDestination(), e);
+                if (uploadStorageData(block, storage, data)) {
+                    any = true;
                 }
             }
             if (any) {
@@ -322,6 +250,100 @@ public class DestinationBlockProcessor extends SchedulerImpl {
         }
     }
 
+    public boolean repairStorage(BackupBlock block, List<BackupBlockStorage> storages, byte[] data) {
+        synchronized (this) {
+            if (activatedShares == null) {
+                activatedShares = manifestManager.getActivatedShares().keySet();
+            }
+        }
+        boolean any = false;
+        for (BackupBlockStorage storage : storages) {
+            if (uploadStorageData(block, storage, data)) {
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    private boolean uploadStorageData(BackupBlock block, BackupBlockStorage storage, byte[] data) {
+        try {
+            BackupDestination destination = configuration.getDestinations().get(storage.getDestination());
+
+            IOProvider provider = IOProviderFactory.getProvider(destination);
+            awaitStopwatch(provider);
+
+            if (configuration.getShares() != null) {
+                for (String key : configuration.getShares().keySet())
+                    if (activatedShares.contains(key)) {
+                        IdentityKeys keys = encryptionIdentity.getIdentityKeyForHash(key);
+                        storage.getAdditionalStorageProperties().put(keys, new HashMap<>());
+                    }
+            }
+            List<byte[]> partData = ErrorCorrectorFactory.encodeBlocks(destination.getErrorCorrection(),
+                    storage, data);
+            partData.forEach(part -> uploadedSize.addAndGet(part.length));
+
+            String[] parts = new String[partData.size()];
+            AtomicInteger completed = new AtomicInteger();
+            for (int i = 0; i < partData.size(); i++) {
+                int currentIndex = i;
+
+                // We don't want to write over existing data if we can avoid it.
+                int disambiguator = 0;
+                while (storage.getParts().contains(uploadScheduler.suggestedKey(block.getHash(), currentIndex, disambiguator)))
+                    disambiguator++;
+
+                uploadScheduler.scheduleUpload(destination,
+                        block.getHash(), currentIndex, disambiguator, partData.get(currentIndex), key -> {
+                            parts[currentIndex] = key;
+                            synchronized (completed) {
+                                completed.incrementAndGet();
+                                completed.notify();
+                            }
+                        });
+            }
+
+            synchronized (completed) {
+                while (completed.get() < parts.length) {
+                    completed.wait();
+                }
+            }
+            List<String> partList = Lists.newArrayList(parts);
+            if (partList.stream().anyMatch(Objects::isNull)) {
+                log.error("Failed to refresh storage for block \"{}\"", block.getHash());
+            } else {
+                debug(() -> log.debug("Refreshed storage for block \"{}\"", block.getHash()));
+
+                BackupBlockStorage updatedStorage;
+                if (noDelete) {
+                    storage.setCreated(Instant.now().toEpochMilli());
+                    updatedStorage = storage.toBuilder().build();
+                    ;
+                    block.getStorage().add(updatedStorage);
+                } else {
+                    List<String> originalParts = storage.getParts();
+
+                    updatedStorage = storage;
+
+                    for (String part : originalParts) {
+                        if (!partList.contains(part)) {
+                            provider.delete(part);
+                        }
+                    }
+                }
+                updatedStorage.setEc(destination.getErrorCorrection());
+                updatedStorage.setCreated(Instant.now().toEpochMilli());
+                updatedStorage.setValidated(null);
+                updatedStorage.setParts(partList);
+                return true;
+            }
+        } catch (Exception e) {
+            log.error("Failed to refresh data for block \"{}\" on destination \"{}\"",
+                    block.getHash(), storage.getDestination(), e);
+        }
+        return false;
+    }
+
     public long getRefreshedBlocks() {
         return refreshedBlocks.get();
     }
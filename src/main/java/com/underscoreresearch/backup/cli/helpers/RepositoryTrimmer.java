@@ -4,6 +4,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.underscoreresearch.backup.cli.ui.UIHandler;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
 import com.underscoreresearch.backup.file.CloseableLock;
@@ -47,7 +48,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -64,6 +70,9 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 @Slf4j
 public class RepositoryTrimmer implements ManualStatusLogger {
     public static final String TRIMMING_REPOSITORY_TASK = "Trimming repository";
+    private static final String DELETE_THREADS_PROPERTY = "trim.deleteThreads";
+    private static final int DEFAULT_DELETE_THREADS = 8;
+    private static final String READ_VIEW_PROPERTY = "trim.readView";
     private static final int MINIMUM_FILES_FOR_DIRECTORY = 50;
     private static final double MINIMUM_RATIO_DIRECTORY_DIFF = 0.75;
     private static final BackupDirectory EMPTY_DIRECTORY = BackupDirectory.builder().files(new TreeSet<>()).build();
@@ -215,6 +224,13 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                 }
             }) : null;
 
+            // Creating a read view copies the files and directories tables with the repository locked, and a full
+            // trim runs after every backup without a trim schedule, so it is only done when explicitly enabled.
+            boolean readView = !filesOnly && onlySet == null
+                    && "true".equals(configuration.getProperty(READ_VIEW_PROPERTY, "false"));
+            if (readView) {
+                metadataRepository.startReadView(false);
+            }
             try {
                 manifestManager.initialize((LogConsumer) metadataRepository, true);
 
@@ -263,6 +279,9 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                 if (usedBlockMap != null) {
                     usedBlockMap.close();
                 }
+                if (readView) {
+                    metadataRepository.closeReadView();
+                }
             }
 
             return statistics;
@@ -448,6 +467,14 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                             Statistics statistics) throws IOException {
         log.info("Trimming blocks");
 
+        int threads = Math.max(1, configuration.getProperty(DELETE_THREADS_PROPERTY, DEFAULT_DELETE_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-Delete-%d").build());
+        Semaphore inFlight = new Semaphore(threads * 2);
+        ConcurrentLinkedQueue<BackupBlock> completedBlocks = new ConcurrentLinkedQueue<>();
+
+        // Block metadata is only removed once all its parts have been deleted, so a trim that is stopped or
+        // crashes midway will pick up any remaining parts the next time it runs.
         try (CloseableStream<BackupBlock> blocks = metadataRepository.allBlocks()) {
             blocks.stream().filter(t -> {
                 processedSteps.incrementAndGet();
@@ -461,29 +488,35 @@ public class RepositoryTrimmer implements ManualStatusLogger {
             }).forEach(block -> {
                 if (InstanceFactory.isShutdown())
                     throw new ProcessingStoppedException();
+                statistics.addDeletedBlock();
                 try {
-                    statistics.addDeletedBlock();
-                    for (BackupBlockStorage storage : block.getStorage()) {
-                        IOProvider provider = IOProviderFactory.getProvider(
-                                configuration.getDestinations().get(storage.getDestination()));
-                        for (String key : storage.getParts()) {
-                            if (key != null) {
-                                try {
-                                    provider.delete(key);
-                                    debug(() -> log.debug("Removing block part \"" + key + "\""));
-                                    statistics.addDeletedBlockPart();
-                                } catch (IOException exc) {
-                                    log.error("Failed to delete part \"" + key + "\" from \"" + storage.getDestination() + "\"", exc);
-                                }
-                            }
-                        }
-                    }
-                    debug(() -> log.debug("Removing block \"" + block.getHash() + "\""));
-                    metadataRepository.deleteBlock(block);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProcessingStoppedException();
                 }
+                executor.submit(() -> {
+                    try {
+                        deleteBlockParts(block, statistics);
+                        completedBlocks.add(block);
+                    } catch (Exception exc) {
+                        log.error("Failed to delete block \"" + block.getHash() + "\"", exc);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                removeCompletedBlocks(completedBlocks);
             });
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for block deletions to complete");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            removeCompletedBlocks(completedBlocks);
         }
 
         log.info("Trimming partial references");
@@ -513,6 +546,37 @@ public class RepositoryTrimmer implements ManualStatusLogger {
         }
     }
 
+    private void deleteBlockParts(BackupBlock block, Statistics statistics) {
+        for (BackupBlockStorage storage : block.getStorage()) {
+            IOProvider provider = IOProviderFactory.getProvider(
+                    configuration.getDestinations().get(storage.getDestination()));
+            for (String key : storage.getParts()) {
+                if (key != null) {
+                    try {
+                        provider.delete(key);
+                        debug(() -> log.debug("Removing block part \"" + key + "\""));
+                        statistics.addDeletedBlockPart();
+                    } catch (IOException exc) {
+                        log.error("Failed to delete part \"" + key + "\" from \"" + storage.getDestination() + "\"", exc);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeCompletedBlocks(ConcurrentLinkedQueue<BackupBlock> completedBlocks) {
+        BackupBlock block;
+        while ((block = completedBlocks.poll()) != null) {
+            String hash = block.getHash();
+            debug(() -> log.debug("Removing block \"" + hash + "\""));
+            try {
+                metadataRepository.deleteBlock(block);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private boolean trimFiles(CloseableMap<String, Boolean> usedBlockMap,
                               boolean filesOnly, Statistics statistics, BackupSet onlySet)
             throws IOException {
@@ -526,7 +590,8 @@ public class RepositoryTrimmer implements ManualStatusLogger {
 
         AtomicBoolean foundError = new AtomicBoolean(false);
 
-        try (CloseableStream<BackupFile> files = metadataRepository.allFiles(false)) {
+        try (UsedBlockMarker marker = !filesOnly && usedBlockMap != null ? new UsedBlockMarker(usedBlockMap) : null;
+             CloseableStream<BackupFile> files = metadataRepository.allFiles(false)) {
             files.setReportErrorsAsNull(true);
             files.stream().forEachOrdered((file) -> {
                 if (file == null) {
@@ -550,7 +615,7 @@ public class RepositoryTrimmer implements ManualStatusLogger {
 
                 if (!fileVersions.isEmpty() && !file.getPath().equals(fileVersions.get(0).getPath())) {
                     try {
-                        processFiles(fileVersions, usedBlockMap, filesOnly, statistics);
+                        processFiles(fileVersions, marker, filesOnly, statistics);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
@@ -558,10 +623,13 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                 }
                 fileVersions.add(file);
             });
-        }
 
-        if (!fileVersions.isEmpty()) {
-            processFiles(fileVersions, usedBlockMap, filesOnly, statistics);
+            if (!fileVersions.isEmpty()) {
+                processFiles(fileVersions, marker, filesOnly, statistics);
+            }
+            if (marker != null) {
+                marker.complete();
+            }
         }
 
         log.info("Removed {} file versions and {} entire files from repository",
@@ -581,7 +649,7 @@ public class RepositoryTrimmer implements ManualStatusLogger {
         statistics.addDeletedDirectoryVersion();
     }
 
-    private void processFiles(List<BackupFile> files, CloseableMap<String, Boolean> usedBlockMap,
+    private void processFiles(List<BackupFile> files, UsedBlockMarker marker,
                               boolean filesOnly, Statistics statistics) throws IOException {
         BackupSet set = findSet(files.get(0));
         BackupRetention retention;
@@ -597,7 +665,7 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                 log.warn("File not in set \"{}\", use force flag to delete", PathNormalizer.physicalPath(files.get(0).getPath()));
                 boolean anyFound = false;
                 for (BackupFile file : files) {
-                    markFileBlocks(usedBlockMap, filesOnly, file, true);
+                    markFileBlocks(marker, filesOnly, file, true);
                     statistics.addTotalSize(file.getLength());
                     if (!anyFound) {
                         statistics.addTotalSizeLastVersion(file.getLength());
@@ -610,7 +678,7 @@ public class RepositoryTrimmer implements ManualStatusLogger {
                 log.warn("File not in set, deleting \"{}\"", PathNormalizer.physicalPath(files.get(0).getPath()));
                 for (BackupFile file : files) {
                     metadataRepository.deleteFile(file);
-                    markFileBlocks(usedBlockMap, filesOnly, file, false);
+                    markFileBlocks(marker, filesOnly, file, false);
                     statistics.addDeletedVersion();
                 }
                 statistics.addDeletedFile();
@@ -663,11 +731,11 @@ public class RepositoryTrimmer implements ManualStatusLogger {
 
                 if (remove) {
                     metadataRepository.deleteFile(file);
-                    markFileBlocks(usedBlockMap, filesOnly, file, false);
+                    markFileBlocks(marker, filesOnly, file, false);
                     statistics.addDeletedVersion();
                 } else {
                     lastFile = file;
-                    markFileBlocks(usedBlockMap, filesOnly, file, true);
+                    markFileBlocks(marker, filesOnly, file, true);
                     if (keptCopies == 0) {
                         statistics.addTotalSizeLastVersion(file.getLength());
                         statistics.addFile();
@@ -696,30 +764,33 @@ public class RepositoryTrimmer implements ManualStatusLogger {
         return missingInDirectory(path, directoryCache, 1, false);
     }
 
-    private void markFileBlocks(CloseableMap<String, Boolean> usedBlockMap, boolean filesOnly, BackupFile file,
+    private void markFileBlocks(UsedBlockMarker marker, boolean filesOnly, BackupFile file,
                                 boolean used) throws IOException {
-        if (!filesOnly && usedBlockMap != null) {
+        if (!filesOnly && marker != null) {
             if (file.getLocations() != null)
                 for (BackupLocation location : file.getLocations()) {
                     if (location.getParts() != null)
                         for (BackupFilePart part : location.getParts()) {
-                            markFileLocationBlocks(usedBlockMap, part.getBlockHash(), used);
+                            markFileLocationBlocks(marker, part.getBlockHash(), used);
                         }
                 }
         }
     }
 
-    private void markFileLocationBlocks(CloseableMap<String, Boolean> usedBlockMap,
+    private void markFileLocationBlocks(UsedBlockMarker marker,
                                         String hash, boolean used) throws IOException {
+        if (BackupBlock.isZeroBlock(hash)) {
+            return;
+        }
         if (used) {
-            usedBlockMap.put(hash, true);
+            marker.mark(hash);
         }
 
         if (BackupBlock.isSuperBlock(hash)) {
             BackupBlock block = metadataRepository.block(hash);
             if (block != null && block.getHashes() != null) {
                 for (String partHash : block.getHashes()) {
-                    markFileLocationBlocks(usedBlockMap, partHash, used);
+                    markFileLocationBlocks(marker, partHash, used);
                 }
             } else {
                 log.error("Missing referenced super block \"{}\", run validate-blocks to remedy", hash);
@@ -745,6 +816,92 @@ public class RepositoryTrimmer implements ManualStatusLogger {
         return configuration.getSets().stream().filter(t -> t.inRoot(backupFile.getPath())).findAny().orElse(null);
     }
 
+    // Writes to the used block map are batched and handed to a separate thread so they overlap with walking the
+    // repository, which is serialized behind the repository lock held for the duration of the trim.
+    private static class UsedBlockMarker implements Closeable {
+        private static final int BATCH_SIZE = 1000;
+        private static final int MAX_PENDING_BATCHES = 16;
+        private final CloseableMap<String, Boolean> usedBlockMap;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat(RepositoryTrimmer.class.getSimpleName() + "-Mark").build());
+        private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private List<String> batch = new ArrayList<>();
+        private String lastHash;
+
+        private UsedBlockMarker(CloseableMap<String, Boolean> usedBlockMap) {
+            this.usedBlockMap = usedBlockMap;
+        }
+
+        private void mark(String hash) throws IOException {
+            if (hash.equals(lastHash)) {
+                return;
+            }
+            lastHash = hash;
+            batch.add(hash);
+            if (batch.size() >= BATCH_SIZE) {
+                submitBatch();
+            }
+        }
+
+        private void submitBatch() throws IOException {
+            checkError();
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<String> hashes = batch;
+            batch = new ArrayList<>();
+            try {
+                pendingBatches.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingStoppedException();
+            }
+            executor.submit(() -> {
+                try {
+                    for (String hash : hashes) {
+                        usedBlockMap.put(hash, true);
+                    }
+                } catch (Throwable exc) {
+                    error.compareAndSet(null, exc);
+                } finally {
+                    pendingBatches.release();
+                }
+            });
+        }
+
+        private void checkError() throws IOException {
+            Throwable exc = error.get();
+            if (exc != null) {
+                throw new IOException("Failed to mark used blocks", exc);
+            }
+        }
+
+        private void complete() throws IOException {
+            submitBatch();
+            try {
+                pendingBatches.acquire(MAX_PENDING_BATCHES);
+                pendingBatches.release(MAX_PENDING_BATCHES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingStoppedException();
+            }
+            checkError();
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for block marking to complete");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Data
     public static class Statistics {
         private long files;
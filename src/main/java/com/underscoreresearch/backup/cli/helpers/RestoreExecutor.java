@@ -1,8 +1,11 @@
 package com.underscoreresearch.backup.cli.helpers;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.block.implementation.RestoreJournal;
 import com.underscoreresearch.backup.cli.ui.UIHandler;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.encryption.Hash;
 import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.PathNormalizer;
@@ -24,6 +27,8 @@ import static com.underscoreresearch.backup.block.implementation.FileDownloaderI
 import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
 import static com.underscoreresearch.backup.file.PathNormalizer.normalizePath;
 import static com.underscoreresearch.backup.model.BackupActivePath.stripPath;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
 
 @Slf4j
 public class RestoreExecutor {
@@ -33,14 +38,22 @@ public class RestoreExecutor {
     private final DownloadScheduler scheduler;
     private final String password;
     private final BackupStatsLogger backupStatsLogger;
+    private final RestoreJournal journal;
 
     public RestoreExecutor(BackupContentsAccess contents, FileSystemAccess fileSystemAccess, MetadataRepository repository, String password, BackupStatsLogger backupStatsLogger) {
+        this(contents, fileSystemAccess, repository, password, backupStatsLogger,
+                InstanceFactory.getInstance(DownloadScheduler.class), InstanceFactory.getInstance(RestoreJournal.class));
+    }
+
+    public RestoreExecutor(BackupContentsAccess contents, FileSystemAccess fileSystemAccess, MetadataRepository repository, String password, BackupStatsLogger backupStatsLogger,
+                           DownloadScheduler scheduler, RestoreJournal journal) {
         this.contents = contents;
         this.password = password;
         this.backupStatsLogger = backupStatsLogger;
         this.fileSystemAccess = fileSystemAccess;
         this.metadataRepository = repository;
-        scheduler = InstanceFactory.getInstance(DownloadScheduler.class);
+        this.scheduler = scheduler;
+        this.journal = journal;
     }
 
     public void restorePaths(List<BackupSetRoot> rootPaths,
@@ -50,6 +63,11 @@ public class RestoreExecutor {
                              boolean skipPermisssions) throws IOException {
         String commonRoot = findCommonRoot(rootPaths);
         backupStatsLogger.setDownloadRunning(true);
+        // Only an identical restore may pick up where an interrupted one left off, anything else such as a restore
+        // with overwrite must not skip files because of an earlier restore to the same destination.
+        journal.start(Hash.hash(MAPPER.writeValueAsBytes(Lists.newArrayList(rootPaths, destination, recursive,
+                overwrite))));
+        boolean finished = false;
 
         try (Closeable ignored = UIHandler.registerTask("Restoring from \"" + rootPaths.stream()
                 .map(BackupSetRoot::getPath)
@@ -76,7 +94,13 @@ public class RestoreExecutor {
                 }
                 scheduler.waitForCompletion();
             }
+            finished = !InstanceFactory.isShutdown();
         } finally {
+            if (finished) {
+                journal.finish();
+            } else {
+                journal.close();
+            }
             backupStatsLogger.setDownloadRunning(false);
         }
 
@@ -206,7 +230,12 @@ public class RestoreExecutor {
                 currentDestination = file.getPath();
             }
             File destinationFile = new File(PathNormalizer.physicalPath(currentDestination));
-            if (overwrite || !destinationFile.exists()) {
+            if (journal.isCompleted(currentDestination, file) && destinationFile.length() == file.getLength()) {
+                debug(() -> log.debug("Skipping already restored file \"{}\"", destinationFile));
+                return true;
+            }
+            boolean resuming = journal.progress(currentDestination, file) != null && destinationFile.exists();
+            if (overwrite || resuming || !destinationFile.exists()) {
                 if (destinationFile.exists() && !destinationFile.canWrite()) {
                     log.error("Does not have permissions to write to existing file \"{}\"", destinationFile);
                     return false;
@@ -11,12 +11,16 @@ import lombok.Getter;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -74,6 +78,46 @@ public class ApiAuth {
         return encryptData(info.getSharedKeyBytes(), data);
     }
 
+    // Encrypts and hashes the payload as it is written instead of first building it as a string.
+    public EncryptedData encryptData(byte[] sharedKey, PayloadWriter writer) throws IOException {
+        byte[] iv = new byte[IV_SIZE];
+        RANDOM.nextBytes(iv);
+
+        try {
+            SecretKeySpec secretKeySpec = new SecretKeySpec(sharedKey, "AES");
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+
+            ByteArrayOutputStream ret = new ByteArrayOutputStream();
+            ret.write(iv);
+            Hash hash = new Hash();
+            try (OutputStream stream = new FilterOutputStream(new CipherOutputStream(ret, cipher)) {
+                @Override
+                public void write(int b) throws IOException {
+                    hash.addBytes(new byte[]{(byte) b});
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    hash.addBytes(b, off, len);
+                    out.write(b, off, len);
+                }
+            }) {
+                writer.write(stream);
+            }
+
+            return new EncryptedData(hash.getHash64(), ret.toByteArray());
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+                 InvalidAlgorithmParameterException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public EncryptedData encryptData(EndpointInfo info, PayloadWriter writer) throws IOException {
+        return encryptData(info.getSharedKeyBytes(), writer);
+    }
+
     public String decryptData(byte[] sharedKey, byte[] data, String expectedHash) throws IOException {
         try {
             SecretKeySpec secretKeySpec = new SecretKeySpec(sharedKey, "AES");
@@ -217,6 +261,10 @@ public class ApiAuth {
         }
     }
 
+    public interface PayloadWriter {
+        void write(OutputStream stream) throws IOException;
+    }
+
     @Data
     @AllArgsConstructor
     public class EncryptedData {
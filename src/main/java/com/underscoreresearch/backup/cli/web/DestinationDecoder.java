@@ -73,6 +73,18 @@ public final class DestinationDecoder {
         return path;
     }
 
+    public static int getRequestLimit(Request req) throws IOException {
+        int limit = 0;
+        for (String val : new RqHref.Base(req).href().param("limit")) {
+            try {
+                limit = Integer.parseInt(val);
+            } catch (NumberFormatException exc) {
+                throw new HttpException(HttpURLConnection.HTTP_BAD_REQUEST, "Invalid limit specified");
+            }
+        }
+        return limit;
+    }
+
     public static List<BackupFile> getRequestFiles(Request req, String base) throws IOException {
         String path = decodePath(req, base);
         Long timestamp = null;
@@ -81,6 +93,12 @@ public final class DestinationDecoder {
             timestamp = Long.parseLong(ts);
         }
 
+        String cursor = null;
+        for (String val : href.param("cursor")) {
+            cursor = val;
+        }
+        int limit = getRequestLimit(req);
+
         boolean deleted = false;
         for (String val : href.param("include-deleted")) {
             if ("true".equals(val)) {
@@ -92,7 +110,7 @@ public final class DestinationDecoder {
         BackupContentsAccess access = InstanceFactory.getInstance(ManifestManager.class)
                 .backupContents(timestamp, deleted);
 
-        List<BackupFile> ret = access.directoryFiles(path);
+        List<BackupFile> ret = access.directoryFiles(path, cursor, limit);
         return ret != null ? ret : new ArrayList<>();
     }
 }
@@ -1,19 +1,30 @@
 package com.underscoreresearch.backup.cli.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.manifest.ManifestManager;
+import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.ExternalBackupFile;
 import org.takes.Request;
 import org.takes.Response;
+import org.takes.rs.RsWithHeader;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.List;
 
 import static com.underscoreresearch.backup.cli.web.DestinationDecoder.getRequestFiles;
+import static com.underscoreresearch.backup.cli.web.DestinationDecoder.getRequestLimit;
 import static com.underscoreresearch.backup.cli.web.PsAuthedContent.encryptResponse;
 import static com.underscoreresearch.backup.utils.SerializationUtils.EXTERNAL_BACKUP_FILES_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.EXTERNAL_BACKUP_FILE_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
 
 public class ListBackupFilesGet extends BaseWrap {
+    public static final String X_NEXT_CURSOR_HEADER = "x-next-cursor";
+
     public ListBackupFilesGet(String base) {
         super(new Implementation(base));
     }
@@ -27,14 +38,27 @@ public class ListBackupFilesGet extends BaseWrap {
 
         @Override
         public Response actualAct(Request req) throws Exception {
-            if (InstanceFactory.getInstance(ManifestManager.class).isBusy()) {
+            if (InstanceFactory.getInstance(ManifestManager.class).isBusy()
+                    && InstanceFactory.getInstance(MetadataRepository.class).readView() == null) {
                 return encryptResponse(req, EXTERNAL_BACKUP_FILES_WRITER.writeValueAsString(new ArrayList<>()));
             }
-            return encryptResponse(req, EXTERNAL_BACKUP_FILES_WRITER.writeValueAsString(
-                    getRequestFiles(req, base)
-                            .stream()
-                            .map(ExternalBackupFile::new)
-                            .collect(Collectors.toList())));
+            int limit = getRequestLimit(req);
+            List<BackupFile> files = getRequestFiles(req, base);
+            Response response = encryptResponse(req, (stream) -> {
+                try (JsonGenerator generator = MAPPER.getFactory().createGenerator(stream)) {
+                    generator.writeStartArray();
+                    for (BackupFile file : files) {
+                        EXTERNAL_BACKUP_FILE_WRITER.writeValue(generator, new ExternalBackupFile(file));
+                    }
+                    generator.writeEndArray();
+                }
+            });
+            if (limit > 0 && files.size() >= limit) {
+                // Encoded so that it can be passed back as the cursor parameter as is.
+                return new RsWithHeader(response, X_NEXT_CURSOR_HEADER,
+                        URLEncoder.encode(files.get(files.size() - 1).getPath(), StandardCharsets.UTF_8));
+            }
+            return response;
         }
     }
 }
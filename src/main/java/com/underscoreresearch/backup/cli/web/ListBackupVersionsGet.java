@@ -31,7 +31,9 @@ public class ListBackupVersionsGet extends BaseWrap {
         public static List<ExternalBackupFile> getRequestVersions(Request req, String base) throws IOException {
             String path = decodeFile(req, base);
 
-            List<ExternalBackupFile> versions = InstanceFactory.getInstance(MetadataRepository.class).file(path);
+            MetadataRepository repository = InstanceFactory.getInstance(MetadataRepository.class);
+            MetadataRepository view = repository.readView();
+            List<ExternalBackupFile> versions = (view != null ? view : repository).file(path);
 
             return versions != null ? Lists.reverse(versions) : new ArrayList<>();
         }
@@ -44,6 +44,13 @@ public class PsAuthedContent implements Pass {
                 X_PAYLOAD_HASH_HEADER, encryptedData.getHash()), ENCRYPTED_CONTENT_TYPE);
     }
 
+    public static Response encryptResponse(Request request, ApiAuth.PayloadWriter writer) throws Exception {
+        ApiAuth.EndpointInfo info = endpointInfoOrUnauthed(request);
+        ApiAuth.EncryptedData encryptedData = ApiAuth.getInstance().encryptData(info, writer);
+        return new RsWithType(new RsWithHeader(new RsText(encryptedData.getData()),
+                X_PAYLOAD_HASH_HEADER, encryptedData.getHash()), ENCRYPTED_CONTENT_TYPE);
+    }
+
     public static String decodeRequestBody(Request request) throws IOException {
         RqHeaders.Base headers = new RqHeaders.Base(request);
         List<String> contentType = headers.header("Content-Type");
@@ -56,6 +56,22 @@ public class SearchBackupFilesGet extends BaseWrap {
             search = val;
         }
 
+        long offset = 0;
+        long limit = MAX_HITS;
+        try {
+            for (String val : href.param("offset")) {
+                offset = Math.max(0, Long.parseLong(val));
+            }
+            for (String val : href.param("limit")) {
+                limit = Math.max(1, Math.min(MAX_HITS, Long.parseLong(val)));
+            }
+        } catch (NumberFormatException exc) {
+            throw new HttpException(
+                    HttpURLConnection.HTTP_BAD_REQUEST,
+                    "Invalid offset or limit"
+            );
+        }
+
         if (Strings.isNullOrEmpty(search)) {
             throw new HttpException(
                     HttpURLConnection.HTTP_BAD_REQUEST,
@@ -77,12 +93,13 @@ public class SearchBackupFilesGet extends BaseWrap {
                 deleted);
 
         List<BackupFile> ret = new ArrayList<>();
+        final long maxHits = limit;
 
         try (CloseableLock interrupt = access.acquireLock()) {
             try (CloseableStream<BackupFile> files = access.searchFiles(pattern, interrupt)) {
-                files.stream().forEach(item -> {
+                files.stream().skip(offset).forEach(item -> {
                     ret.add(item);
-                    if (ret.size() == MAX_HITS) {
+                    if (ret.size() == maxHits) {
                         throw new BackupSearchAccessImpl.InterruptedSearch();
                     }
                 });
@@ -14,6 +14,7 @@ import com.underscoreresearch.backup.block.assignments.LargeFileBlockAssignment;
 import com.underscoreresearch.backup.block.assignments.RawLargeFileBlockAssignment;
 import com.underscoreresearch.backup.block.assignments.ZipSmallBlockAssignment;
 import com.underscoreresearch.backup.block.implementation.FileBlockUploaderImpl;
+import com.underscoreresearch.backup.cli.helpers.BlockScrubber;
 import com.underscoreresearch.backup.cli.helpers.BlockValidator;
 import com.underscoreresearch.backup.cli.helpers.DestinationBlockProcessor;
 import com.underscoreresearch.backup.cli.helpers.RepositoryTrimmer;
@@ -48,7 +49,9 @@ import com.underscoreresearch.backup.manifest.ServiceManager;
 import com.underscoreresearch.backup.manifest.implementation.AdditionalManifestManager;
 import com.underscoreresearch.backup.manifest.implementation.LoggingMetadataRepository;
 import com.underscoreresearch.backup.manifest.implementation.ManifestManagerImpl;
+import com.underscoreresearch.backup.manifest.implementation.ShareQueue;
 import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.extern.slf4j.Slf4j;
@@ -122,17 +125,23 @@ public class BackupModule extends AbstractModule {
     @Provides
     public FileScannerImpl fileScanner(MetadataRepository repository, FileConsumer fileConsumer,
                                        FileSystemAccess access, MachineState machineState, @Named(DEBUG) boolean debug,
-                                       @Named(MANIFEST_LOCATION) String manifestLocation) {
+                                       @Named(MANIFEST_LOCATION) String manifestLocation,
+                                       BackupConfiguration configuration) {
         // Validate destinations is turned on either by using the --force command line or through the manifest option.
-        return new FileScannerImpl(repository, fileConsumer, access, machineState, debug, manifestLocation);
+        return new FileScannerImpl(repository, fileConsumer, access, machineState, debug, manifestLocation,
+                configuration);
     }
 
     @Singleton
     @Provides
     public FileConsumer fileConsumer(MetadataRepository repository,
+                                     BackupConfiguration configuration,
                                      EncryptedSmallBlockAssignment smallFileBlockAssignment,
                                      LargeFileBlockAssignment largeFileBlockAssignment) {
-        return new FileConsumerImpl(repository, Lists.newArrayList(smallFileBlockAssignment, largeFileBlockAssignment));
+        FileConsumerImpl fileConsumer = new FileConsumerImpl(repository,
+                Lists.newArrayList(smallFileBlockAssignment, largeFileBlockAssignment));
+        fileConsumer.setRecordDigest("true".equals(configuration.getProperty("files.digest", "false")));
+        return fileConsumer;
     }
 
     @Provides
@@ -142,11 +151,13 @@ public class BackupModule extends AbstractModule {
                                                           MetadataRepository metadataRepository,
                                                           FileBlockUploader fileBlockUploader,
                                                           FileSystemAccess fileSystemAccess,
-                                                          EncryptionIdentity identity) {
+                                                          EncryptionIdentity identity,
+                                                          MemoryBudget memoryBudget) {
         return new ZipSmallBlockAssignment(fileBlockUploader, blockDownloader, metadataRepository, fileSystemAccess,
                 identity,
                 configuration.getProperty("smallFileBlockAssignment.maximumSize", DEFAULT_SMALL_FILE_MAXIMUM_SIZE),
-                configuration.getProperty("smallFileBlockAssignment.targetSize", DEFAULT_SMALL_FILE_TARGET_SIZE));
+                configuration.getProperty("smallFileBlockAssignment.targetSize", DEFAULT_SMALL_FILE_TARGET_SIZE),
+                memoryBudget);
     }
 
     @Provides
@@ -156,11 +167,13 @@ public class BackupModule extends AbstractModule {
                                                                        MetadataRepository metadataRepository,
                                                                        FileBlockUploader fileBlockUploader,
                                                                        FileSystemAccess fileSystemAccess,
-                                                                       EncryptionIdentity identity) {
+                                                                       EncryptionIdentity identity,
+                                                                       MemoryBudget memoryBudget) {
         return new EncryptedSmallBlockAssignment(fileBlockUploader, blockDownloader, metadataRepository, fileSystemAccess,
                 identity,
                 configuration.getProperty("smallFileBlockAssignment.maximumSize", DEFAULT_SMALL_FILE_MAXIMUM_SIZE),
-                configuration.getProperty("smallFileBlockAssignment.targetSize", DEFAULT_SMALL_FILE_TARGET_SIZE));
+                configuration.getProperty("smallFileBlockAssignment.targetSize", DEFAULT_SMALL_FILE_TARGET_SIZE),
+                memoryBudget);
     }
 
     @Provides
@@ -172,14 +185,15 @@ public class BackupModule extends AbstractModule {
     @Provides
     @Singleton
     public UploadSchedulerImpl uploadScheduler(BackupConfiguration configuration,
-                                               RateLimitController rateLimitController) {
+                                               RateLimitController rateLimitController,
+                                               MemoryBudget memoryBudget) {
         int threads;
         if (configuration.getLimits() == null || configuration.getLimits().getMaximumUploadThreads() == null)
             threads = DEFAULT_UPLOAD_THREADS;
         else
             threads = configuration.getLimits().getMaximumUploadThreads();
 
-        return new UploadSchedulerImpl(threads, rateLimitController);
+        return new UploadSchedulerImpl(threads, rateLimitController, memoryBudget);
     }
 
     @Provides
@@ -204,10 +218,13 @@ public class BackupModule extends AbstractModule {
     public LargeFileBlockAssignment largeFileBlockAssignment(@Named(SOURCE_CONFIG) BackupConfiguration configuration,
                                                              RawLargeFileBlockAssignment raw,
                                                              GzipLargeFileBlockAssignment gzip) {
+        LargeFileBlockAssignment assignment = gzip;
         if ("true".equals(configuration.getProperty("largeBlockAssignment.raw", "false"))) {
-            return raw;
+            assignment = raw;
         }
-        return gzip;
+        assignment.setRecordZeroBlocks("true".equals(configuration.getProperty("largeBlockAssignment.zeroBlocks",
+                "false")));
+        return assignment;
     }
 
     @Provides
@@ -218,10 +235,11 @@ public class BackupModule extends AbstractModule {
                                                                      BlockDownloader blockDownloader,
                                                                      FileSystemAccess fileSystemAccess,
                                                                      MachineState machineState,
-                                                                     EncryptionIdentity identity) {
+                                                                     EncryptionIdentity identity,
+                                                                     MemoryBudget memoryBudget) {
         int maxSize = configuration.getProperty("largeBlockAssignment.maximumSize", DEFAULT_LARGE_MAXIMUM_SIZE);
         return new GzipLargeFileBlockAssignment(fileBlockUploader, blockDownloader, fileSystemAccess,
-                metadataRepository, machineState, identity, maxSize);
+                metadataRepository, machineState, identity, maxSize, memoryBudget);
     }
 
     @Provides
@@ -237,6 +255,16 @@ public class BackupModule extends AbstractModule {
                 statsLogger, maxBlockSize, manifestLocation);
     }
 
+    @Provides
+    @Singleton
+    public BlockScrubber blockScrubber(MetadataRepository repository,
+                                       BackupConfiguration configuration,
+                                       DestinationBlockProcessor destinationBlockProcessor,
+                                       BackupStatsLogger statsLogger,
+                                       @Named(MANIFEST_LOCATION) String manifestLocation) {
+        return new BlockScrubber(repository, configuration, destinationBlockProcessor, statsLogger, manifestLocation);
+    }
+
     @Provides
     @Singleton
     public RawLargeFileBlockAssignment rawLargeFileBlockAssignment(BackupConfiguration configuration,
@@ -245,10 +273,11 @@ public class BackupModule extends AbstractModule {
                                                                    BlockDownloader blockDownloader,
                                                                    FileSystemAccess fileSystemAccess,
                                                                    MachineState machineState,
-                                                                   EncryptionIdentity identity) {
+                                                                   EncryptionIdentity identity,
+                                                                   MemoryBudget memoryBudget) {
         int maxSize = configuration.getProperty("largeBlockAssignment.maximumSize", DEFAULT_LARGE_MAXIMUM_SIZE);
         return new RawLargeFileBlockAssignment(fileBlockUploader, blockDownloader, fileSystemAccess,
-                metadataRepository, machineState, identity, maxSize);
+                metadataRepository, machineState, identity, maxSize, memoryBudget);
     }
 
     @Singleton
@@ -331,19 +360,29 @@ public class BackupModule extends AbstractModule {
                                                                ManifestManager manifest,
                                                                BackupConfiguration configuration,
                                                                CommandLine commandLine,
-                                                               @Named(ADDITIONAL_SOURCE) String source) {
+                                                               @Named(ADDITIONAL_SOURCE) String source,
+                                                               @Named(MANIFEST_LOCATION) String manifestLocation) {
         if (Strings.isNullOrEmpty(source)) {
             return new LoggingMetadataRepository(repository,
                     manifest,
                     configuration.getShares(),
                     null,
-                    commandLine.hasOption(NO_DELETE));
+                    60 * 1000,
+                    commandLine.hasOption(NO_DELETE),
+                    "true".equals(configuration.getProperty("shares.asyncFanout", "true"))
+                            ? new ShareQueue(manifestLocation) : null);
         }
         return new LoggingMetadataRepository.Readonly(repository,
                 manifest,
                 false);
     }
 
+    @Singleton
+    @Provides
+    public MemoryBudget memoryBudget(BackupConfiguration configuration) {
+        return MemoryBudget.create(configuration);
+    }
+
     @Singleton
     @Provides
     public BackupStatsLogger backupStatsLogger(BackupConfiguration configuration, @Named(MANIFEST_LOCATION) String manifestLocation) {
@@ -388,8 +427,10 @@ public class BackupModule extends AbstractModule {
                                                    MetadataRepository repository,
                                                    ContinuousBackup continuousBackup,
                                                    MachineState machineState,
+                                                   FileSystemAccess fileSystemAccess,
                                                    @Named(MANIFEST_LOCATION) String manifestLocation) {
-        return new FileChangeWatcherImpl(configuration, repository, continuousBackup, manifestLocation, machineState);
+        return new FileChangeWatcherImpl(configuration, repository, continuousBackup, manifestLocation, machineState,
+                fileSystemAccess);
     }
 
     @Singleton
@@ -22,6 +22,7 @@ import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.state.LinuxState;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import com.underscoreresearch.backup.utils.state.OsxState;
+import com.underscoreresearch.backup.utils.state.PressureStallMonitor;
 import com.underscoreresearch.backup.utils.state.WindowsState;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.CommandLine;
@@ -294,7 +295,7 @@ public class CommandLineModule extends AbstractModule {
         }
 
         if (SystemUtils.IS_OS_LINUX) {
-            return new LinuxState(pauseOnBattery);
+            return new LinuxState(pauseOnBattery, PressureStallMonitor.create(configuration));
         }
         if (SystemUtils.IS_OS_WINDOWS) {
             return new WindowsState(pauseOnBattery);
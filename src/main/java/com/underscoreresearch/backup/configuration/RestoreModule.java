@@ -8,6 +8,7 @@ import com.underscoreresearch.backup.block.BlockDownloader;
 import com.underscoreresearch.backup.block.FileDownloader;
 import com.underscoreresearch.backup.block.implementation.BlockDownloaderImpl;
 import com.underscoreresearch.backup.block.implementation.FileDownloaderImpl;
+import com.underscoreresearch.backup.block.implementation.RestoreJournal;
 import com.underscoreresearch.backup.encryption.EncryptionIdentity;
 import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
@@ -15,7 +16,9 @@ import com.underscoreresearch.backup.io.DownloadScheduler;
 import com.underscoreresearch.backup.io.RateLimitController;
 import com.underscoreresearch.backup.io.implementation.DownloadSchedulerImpl;
 import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 
+import static com.underscoreresearch.backup.configuration.CommandLineModule.MANIFEST_LOCATION;
 import static com.underscoreresearch.backup.configuration.CommandLineModule.SOURCE_CONFIG;
 
 public class RestoreModule extends AbstractModule {
@@ -41,8 +44,9 @@ public class RestoreModule extends AbstractModule {
     @Provides
     public DownloadSchedulerImpl downloadSchedulerImpl(@Named(DOWNLOAD_THREADS) int threads,
                                                        MetadataRepository repository,
-                                                       FileDownloader fileDownloader) {
-        return new DownloadSchedulerImpl(threads, repository, fileDownloader);
+                                                       FileDownloader fileDownloader,
+                                                       BlockDownloader blockDownloader) {
+        return new DownloadSchedulerImpl(threads, repository, fileDownloader, blockDownloader);
     }
 
     @Singleton
@@ -63,8 +67,10 @@ public class RestoreModule extends AbstractModule {
                                                RateLimitController rateLimitController,
                                                MetadataRepository metadataRepository,
                                                EncryptionIdentity identity,
+                                               MemoryBudget memoryBudget,
                                                @Named(DOWNLOAD_THREADS) int threads) {
-        return new BlockDownloaderImpl(configuration, rateLimitController, metadataRepository, identity, threads);
+        return new BlockDownloaderImpl(configuration, rateLimitController, metadataRepository, identity, memoryBudget,
+                threads);
     }
 
     @Provides
@@ -76,7 +82,14 @@ public class RestoreModule extends AbstractModule {
     @Singleton
     @Provides
     public FileDownloaderImpl fileDownloader(MetadataRepository repository,
-                                             FileSystemAccess fileSystemAccess) {
-        return new FileDownloaderImpl(repository, fileSystemAccess);
+                                             FileSystemAccess fileSystemAccess,
+                                             RestoreJournal journal) {
+        return new FileDownloaderImpl(repository, fileSystemAccess, journal);
+    }
+
+    @Singleton
+    @Provides
+    public RestoreJournal restoreJournal(@Named(MANIFEST_LOCATION) String manifestLocation) {
+        return new RestoreJournal(manifestLocation);
     }
 }
@@ -46,6 +46,10 @@ public class Hash {
         hasher.putBytes(bytes);
     }
 
+    public void addBytes(byte[] bytes, int offset, int length) {
+        hasher.putBytes(bytes, offset, length);
+    }
+
     public String getHash() {
         if (hash == null) {
             hash = encodeBytes(hasher.hash().asBytes());
@@ -14,10 +14,16 @@ public interface FileSystemAccess {
 
     int readData(String path, byte[] buffer, long offset, int length) throws IOException;
 
+    boolean isHole(String path, long offset, int length) throws IOException;
+
     void writeData(String path, byte[] buffer, long offset, int length) throws IOException;
 
+    void preallocateFile(String path, long length) throws IOException;
+
     void completeFile(BackupFile file, String path, long length) throws IOException;
 
+    void closeFile(String path);
+
     String extractPermissions(String path) throws IOException;
 
     void delete(String path) throws IOException;
@@ -23,6 +23,12 @@ public interface MetadataRepository {
 
     BackupFile file(String path, Long timestamp) throws IOException;
 
+    List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException;
+
+    List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException;
+
+    CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException;
+
     boolean deleteFile(BackupFile file) throws IOException;
 
     List<BackupFilePart> existingFilePart(String partHash) throws IOException;
@@ -139,4 +145,17 @@ public interface MetadataRepository {
     CloseableLock exclusiveLock() throws IOException;
 
     void compact() throws IOException;
+
+    // Point in time copy used for browsing and searching while maintenance operations hold the repository. Only
+    // files and directories are copied unless all tables are requested.
+    void startReadView(boolean allTables) throws IOException;
+
+    void closeReadView() throws IOException;
+
+    MetadataRepository readView();
+
+    // Collects file, part, block and directory changes on disk and applies them in key order when finished.
+    void startSortedLoad() throws IOException;
+
+    void finishSortedLoad() throws IOException;
 }
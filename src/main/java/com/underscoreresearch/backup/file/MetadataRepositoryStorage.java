@@ -31,6 +31,16 @@ public interface MetadataRepositoryStorage {
 
     CloseableStream<BackupFilePart> allFileParts() throws IOException;
 
+    CloseableStream<String> allBlockHashes() throws IOException;
+
+    CloseableStream<String> allFilePartHashes() throws IOException;
+
+    CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException;
+
+    boolean needPathIndex();
+
+    void buildPathIndex() throws IOException;
+
     CloseableStream<BackupDirectory> allDirectories(boolean ascending) throws IOException;
 
     CloseableStream<BackupBlockAdditional> allAdditionalBlocks() throws IOException;
@@ -43,6 +53,10 @@ public interface MetadataRepositoryStorage {
 
     BackupFile file(String path, Long timestamp) throws IOException;
 
+    List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException;
+
+    List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException;
+
     BackupBlock block(String hash) throws IOException;
 
     BackupDirectory directory(String path, Long timestamp, boolean accumulative) throws IOException;
@@ -109,6 +123,16 @@ public interface MetadataRepositoryStorage {
 
     void clear() throws IOException;
 
+    // Copies the storage files of the given tables, or all of them if null, into the same layout under another
+    // repository path. Storage must be closed.
+    void copyTo(String destination, Set<RepositoryTable> tables) throws IOException;
+
+    // Flushes a table that will not be written again so it survives a crash while other tables are still written.
+    void completeTable(RepositoryTable table) throws IOException;
+
+    // Deletes everything except the given tables. Storage must be closed.
+    void clearExcept(Set<RepositoryTable> tables) throws IOException;
+
     void commit() throws IOException;
 
     boolean needPeriodicCommits();
@@ -0,0 +1,11 @@
+package com.underscoreresearch.backup.file;
+
+public enum RepositoryTable {
+    PENDING_SETS,
+    BLOCKS,
+    ADDITIONAL_BLOCKS,
+    FILES,
+    PARTS,
+    DIRECTORIES,
+    UPDATED_FILES
+}
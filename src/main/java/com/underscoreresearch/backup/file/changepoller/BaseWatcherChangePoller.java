@@ -20,6 +20,7 @@ public abstract class BaseWatcherChangePoller implements FileChangePoller {
     @Getter(AccessLevel.PROTECTED)
     private final WatchService watchService;
     private final AtomicBoolean overflow = new AtomicBoolean(false);
+    private Path overflowPath;
 
     public BaseWatcherChangePoller(WatchService service) throws IOException {
         this.watchService = service;
@@ -32,7 +33,7 @@ public abstract class BaseWatcherChangePoller implements FileChangePoller {
     public List<String> fetchPaths() throws OverflowException {
         if (overflow.get()) {
             overflow.set(false);
-            throw new OverflowException();
+            throw new OverflowException(overflowPath);
         }
 
         WatchKey key;
@@ -49,6 +50,7 @@ public abstract class BaseWatcherChangePoller implements FileChangePoller {
             Path watchedPath = getEventPath(key.watchable());
             for (WatchEvent<?> event : key.pollEvents()) {
                 if (event.kind().equals(OVERFLOW)) {
+                    overflowPath = watchedPath;
                     overflow.set(true);
                     break;
                 }
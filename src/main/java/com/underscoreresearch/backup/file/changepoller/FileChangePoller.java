@@ -12,5 +12,18 @@ public interface FileChangePoller {
     void close() throws IOException;
 
     class OverflowException extends Exception {
+        private final Path path;
+
+        public OverflowException() {
+            this(null);
+        }
+
+        public OverflowException(Path path) {
+            this.path = path;
+        }
+
+        public Path getPath() {
+            return path;
+        }
     }
 }
@@ -37,6 +37,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import static com.underscoreresearch.backup.io.IOUtils.INTERNET_WAIT;
 import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.formatTimestamp;
 import static com.underscoreresearch.backup.utils.LogUtil.lastProcessedPath;
 import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
@@ -45,6 +46,9 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogger {
     private static final int MAX_PENDING_FILES = 100;
     private static final long FLUSH_TIME_MS = Duration.ofMinutes(1).toMillis();
+    private static final String QUIESCENCE_PROPERTY = "continuous.quiescenceSeconds";
+    private static final String MINIMUM_VERSION_INTERVAL_PROPERTY = "continuous.minimumVersionIntervalMinutes";
+    private static final int DEFAULT_QUIESCENCE_SECONDS = 0;
     private final Lock lock = new ReentrantLock();
     private final Condition condition = lock.newCondition();
     private final MetadataRepository repository;
@@ -53,7 +57,11 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
     private final List<BackupSet> sets;
     private final AtomicLong processedFiles = new AtomicLong(0);
     private final AtomicLong processedSize = new AtomicLong(0);
+    private final AtomicLong deferredActiveFiles = new AtomicLong(0);
+    private final AtomicLong deferredRateLimitedFiles = new AtomicLong(0);
     private final HashSet<String> pendingFiles = new HashSet<>();
+    private final long quiescenceMs;
+    private final long minimumVersionIntervalMs;
     private BackupFile lastProcessed;
     private boolean shutdown;
     private boolean retry;
@@ -66,12 +74,18 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
         this.fileConsumer = fileConsumer;
         this.machineState = machineState;
         this.sets = FileChangeWatcherImpl.getContinuousSets(configuration, null);
+        this.quiescenceMs = Duration.ofSeconds(configuration.getProperty(QUIESCENCE_PROPERTY,
+                DEFAULT_QUIESCENCE_SECONDS)).toMillis();
+        this.minimumVersionIntervalMs = Duration.ofMinutes(configuration.getProperty(
+                MINIMUM_VERSION_INTERVAL_PROPERTY, 0)).toMillis();
     }
 
     @Override
     public void resetStatus() {
         processedFiles.set(0);
         processedSize.set(0);
+        deferredActiveFiles.set(0);
+        deferredRateLimitedFiles.set(0);
         lastProcessed = null;
     }
 
@@ -87,6 +101,16 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
                         new StatusLine(getClass(), "CONTINUOUS_BACKUP_SIZE", "Continuous files size processed",
                                 processedSize.get(), readableSize(processedSize.get()))
                 );
+                if (deferredActiveFiles.get() > 0) {
+                    ret.add(new StatusLine(getClass(), "CONTINUOUS_DEFERRED_ACTIVE",
+                            "Continuous uploads deferred while file is written", deferredActiveFiles.get(),
+                            readableNumber(deferredActiveFiles.get())));
+                }
+                if (deferredRateLimitedFiles.get() > 0) {
+                    ret.add(new StatusLine(getClass(), "CONTINUOUS_DEFERRED_RATE_LIMITED",
+                            "Continuous uploads deferred by version interval", deferredRateLimitedFiles.get(),
+                            readableNumber(deferredRateLimitedFiles.get())));
+                }
                 lastProcessedPath(getClass(), ret, lastProcessed, "PROCESSED_PATH");
                 return ret;
             }
@@ -136,7 +160,7 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
         }
     }
 
-    private void processFile(BackupUpdatedFile updatedFile) throws IOException {
+    void processFile(BackupUpdatedFile updatedFile) throws IOException {
         BackupSet set = findSet(updatedFile.getPath());
         if (set == null) {
             repository.removeUpdatedFile(updatedFile);
@@ -158,8 +182,23 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
             }
         } else if (file.isFile()) {
             BackupFile existingFile = repository.file(file.getPath(), null);
+            long lastChanged = Files.getLastModifiedTime(file.toPath()).toMillis();
             if (existingFile == null
-                    || (existingFile.getLastChanged() != Files.getLastModifiedTime(file.toPath()).toMillis() || existingFile.getLength() != file.length())) {
+                    || (existingFile.getLastChanged() != lastChanged || existingFile.getLength() != file.length())) {
+                long now = System.currentTimeMillis();
+                // A modification time in the future would otherwise keep the file deferred forever,
+                // so treat it as already stable.
+                if (lastChanged <= now && lastChanged + quiescenceMs > now) {
+                    deferredActiveFiles.incrementAndGet();
+                    deferUpdatedFile(updatedFile, lastChanged + quiescenceMs);
+                    return;
+                }
+                if (existingFile != null && existingFile.getAdded() != null
+                        && existingFile.getAdded() + minimumVersionIntervalMs > now) {
+                    deferredRateLimitedFiles.incrementAndGet();
+                    deferUpdatedFile(updatedFile, existingFile.getAdded() + minimumVersionIntervalMs);
+                    return;
+                }
                 log.info("Backing up \"{}\"", PathNormalizer.physicalPath(updatedFile.getPath()));
                 uploadFile(set, file, updatedFile);
             }
@@ -167,6 +206,13 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
         repository.removeUpdatedFile(updatedFile);
     }
 
+    private void deferUpdatedFile(BackupUpdatedFile updatedFile, long when) throws IOException {
+        debug(() -> log.debug("Deferring \"{}\" until {}", PathNormalizer.physicalPath(updatedFile.getPath()),
+                formatTimestamp(when)));
+        repository.removeUpdatedFile(updatedFile);
+        repository.addUpdatedFile(new BackupUpdatedFile(updatedFile.getPath(), when), -1);
+    }
+
     private BackupSet findSet(String path) {
         if (path.endsWith(PathNormalizer.PATH_SEPARATOR)) {
             for (BackupSet set : sets) {
@@ -291,6 +337,7 @@ public class ContinuousBackupImpl implements ContinuousBackup, ManualStatusLogge
 
         @Override
         public void run() {
+            MachineState.applyWorkerPriority();
             lock.lock();
             try {
                 StateLogger.addLogger(ContinuousBackupImpl.this);
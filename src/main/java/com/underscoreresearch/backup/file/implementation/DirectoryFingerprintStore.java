@@ -0,0 +1,211 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.encryption.Hash;
+import com.underscoreresearch.backup.file.PathNormalizer;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupSet;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.SystemUtils;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.underscoreresearch.backup.io.IOUtils.createDirectory;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+
+// Files modified in place do not change the fingerprint of their directory, so unchanged directories are only
+// trusted until the next periodic full scan.
+@Slf4j
+public class DirectoryFingerprintStore implements Closeable {
+    public static final String INCREMENTAL_SCAN_PROPERTY = "incrementalScan.enabled";
+    public static final String FULL_SCAN_DAYS_PROPERTY = "incrementalScan.fullScanDays";
+    public static final String FILE_SYSTEMS_PROPERTY = "incrementalScan.fileSystems";
+    private static final int DEFAULT_FULL_SCAN_DAYS = 7;
+    private static final String DEFAULT_FILE_SYSTEMS = "ext3,ext4,xfs,btrfs,zfs,f2fs,jfs,reiserfs,tmpfs,apfs,hfs,ntfs";
+    private static final String UNIX_ATTRIBUTES = "unix:lastModifiedTime,ctime,ino,dev";
+    private static final String FINGERPRINTS = "fingerprints";
+    private static final String LAST_FULL_SCAN = "lastFullScan";
+    private static final String SET_SIGNATURE = "setSignature";
+
+    private final DB db;
+    private final HTreeMap<String, long[]> fingerprints;
+    private final Atomic.Long lastFullScan;
+    private final Atomic.String setSignature;
+    private final String currentSignature;
+    private final Set<String> reliableFileSystems;
+    private final Map<Object, Boolean> trustedDevices = new HashMap<>();
+    private final boolean fullScan;
+    private boolean unixAttributes = !SystemUtils.IS_OS_WINDOWS;
+
+    private DirectoryFingerprintStore(File file, BackupSet set, Set<String> reliableFileSystems, int fullScanDays)
+            throws IOException {
+        this.reliableFileSystems = reliableFileSystems;
+
+        DBMaker.Maker maker = DBMaker.fileDB(file).fileMmapPreclearDisable().transactionEnable();
+        if (SystemUtils.IS_OS_WINDOWS)
+            maker.fileChannelEnable();
+        else
+            maker.fileMmapEnableIfSupported();
+        db = maker.make();
+
+        fingerprints = db.hashMap(FINGERPRINTS, Serializer.STRING, Serializer.LONG_ARRAY).createOrOpen();
+        lastFullScan = db.atomicLong(LAST_FULL_SCAN).createOrOpen();
+        setSignature = db.atomicString(SET_SIGNATURE).createOrOpen();
+
+        currentSignature = Hash.hash(MAPPER.writeValueAsBytes(set));
+        if (!currentSignature.equals(setSignature.get())) {
+            debug(() -> log.debug("Set \"{}\" changed, discarding directory fingerprints", set.getId()));
+            fingerprints.clear();
+            fullScan = true;
+        } else {
+            fullScan = Instant.ofEpochMilli(lastFullScan.get()).plus(Duration.ofDays(fullScanDays))
+                    .isBefore(Instant.now());
+        }
+    }
+
+    public static DirectoryFingerprintStore open(BackupConfiguration configuration, String manifestLocation,
+                                                 BackupSet set) {
+        if (configuration == null || !"true".equals(configuration.getProperty(INCREMENTAL_SCAN_PROPERTY, "false"))) {
+            return null;
+        }
+
+        File file = Paths.get(manifestLocation, "db", "sets", set.getId() + ".fingerprints.db").toFile();
+        createDirectory(file.getParentFile(), true);
+        Set<String> fileSystems = Arrays.stream(configuration.getProperty(FILE_SYSTEMS_PROPERTY, DEFAULT_FILE_SYSTEMS)
+                        .split(","))
+                .map(String::trim)
+                .filter(t -> !Strings.isNullOrEmpty(t))
+                .map(String::toLowerCase)
+                .collect(Collectors.toCollection(Sets::newHashSet));
+        try {
+            return new DirectoryFingerprintStore(file, set, fileSystems,
+                    configuration.getProperty(FULL_SCAN_DAYS_PROPERTY, DEFAULT_FULL_SCAN_DAYS));
+        } catch (Exception exc) {
+            log.warn("Failed to open directory fingerprints for set \"{}\", doing full scan", set.getId(), exc);
+            return null;
+        }
+    }
+
+    public boolean isFullScan() {
+        return fullScan;
+    }
+
+    public DirectoryFingerprint capture(String path) {
+        Path physicalPath = Paths.get(PathNormalizer.physicalPath(path));
+        try {
+            long modified;
+            long changed = 0;
+            long inode = 0;
+            Object device = "";
+            if (unixAttributes) {
+                try {
+                    Map<String, Object> attributes = Files.readAttributes(physicalPath, UNIX_ATTRIBUTES,
+                            LinkOption.NOFOLLOW_LINKS);
+                    modified = ((FileTime) attributes.get("lastModifiedTime")).toMillis();
+                    changed = ((FileTime) attributes.get("ctime")).toMillis();
+                    inode = ((Number) attributes.get("ino")).longValue();
+                    device = attributes.get("dev");
+                } catch (UnsupportedOperationException | IllegalArgumentException exc) {
+                    unixAttributes = false;
+                    return capture(path);
+                }
+            } else {
+                BasicFileAttributes attributes = Files.readAttributes(physicalPath, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                modified = attributes.lastModifiedTime().toMillis();
+            }
+
+            if (!trustedDevice(device, physicalPath)) {
+                return null;
+            }
+
+            String[] entries = physicalPath.toFile().list();
+            if (entries == null) {
+                return null;
+            }
+            return new DirectoryFingerprint(modified, changed, inode, entries.length);
+        } catch (IOException exc) {
+            debug(() -> log.debug("Failed to read fingerprint of \"{}\"", physicalPath, exc));
+            return null;
+        }
+    }
+
+    private boolean trustedDevice(Object device, Path path) throws IOException {
+        Boolean trusted = trustedDevices.get(device);
+        if (trusted == null) {
+            String type = Files.getFileStore(path).type().toLowerCase();
+            trusted = reliableFileSystems.contains(type);
+            if (!trusted) {
+                log.info("Directory modification times on \"{}\" filesystem not trusted for incremental scan", type);
+            }
+            trustedDevices.put(device, trusted);
+        }
+        return trusted;
+    }
+
+    public boolean unchanged(String path, DirectoryFingerprint fingerprint) {
+        if (fullScan || fingerprint == null) {
+            return false;
+        }
+        long[] existing = fingerprints.get(path);
+        return existing != null && Arrays.equals(existing, fingerprint.encode());
+    }
+
+    public void record(String path, DirectoryFingerprint fingerprint) {
+        fingerprints.put(path, fingerprint.encode());
+    }
+
+    public void invalidate(String path) {
+        fingerprints.remove(path);
+    }
+
+    public void completedScan() {
+        if (fullScan) {
+            lastFullScan.set(Instant.now().toEpochMilli());
+        }
+        setSignature.set(currentSignature);
+    }
+
+    @Override
+    public void close() {
+        db.commit();
+        db.close();
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class DirectoryFingerprint {
+        private long lastModified;
+        private long lastChanged;
+        private long inode;
+        private long entries;
+
+        private long[] encode() {
+            return new long[]{lastModified, lastChanged, inode, entries};
+        }
+    }
+}
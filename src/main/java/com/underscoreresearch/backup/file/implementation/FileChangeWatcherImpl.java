@@ -2,13 +2,20 @@ package com.underscoreresearch.backup.file.implementation;
 
 import com.underscoreresearch.backup.file.ContinuousBackup;
 import com.underscoreresearch.backup.file.FileChangeWatcher;
+import com.underscoreresearch.backup.file.FileSystemAccess;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.PathNormalizer;
 import com.underscoreresearch.backup.file.changepoller.FileChangePoller;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
 import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupSet;
 import com.underscoreresearch.backup.model.BackupSetRoot;
 import com.underscoreresearch.backup.model.BackupUpdatedFile;
+import com.underscoreresearch.backup.utils.ManualStatusLogger;
+import com.underscoreresearch.backup.utils.SingleTaskScheduler;
+import com.underscoreresearch.backup.utils.StateLogger;
+import com.underscoreresearch.backup.utils.StatusLine;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.extern.slf4j.Slf4j;
 
@@ -21,23 +28,32 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
+
 @Slf4j
-public class FileChangeWatcherImpl implements FileChangeWatcher {
+public class FileChangeWatcherImpl implements FileChangeWatcher, ManualStatusLogger {
     private static final int THREAD_POOL_SIZE = 5;
     private static final int QUEUE_SIZE = 100;
+    private static final long RESCAN_DELAY_MS = 10 * 1000;
+    private static final int MAX_RESCAN_ENTRIES = 100000;
     private final List<BackupSet> sets;
     private final Map<String, Long> whenBySet;
     private final MetadataRepository repository;
@@ -46,21 +62,31 @@ public class FileChangeWatcherImpl implements FileChangeWatcher {
     private final Lock lock = new ReentrantLock();
     private final Condition condition = lock.newCondition();
     private final MachineState machineState;
+    private final FileSystemAccess fileSystemAccess;
+    private final Set<String> overflowPaths = new TreeSet<>();
+    private final AtomicLong rescannedFiles = new AtomicLong();
+    private final AtomicLong rescanQueuedFiles = new AtomicLong();
     private FileChangePoller poller;
     private Thread thread;
     private ExecutorService executorService;
     private BlockingQueue<Runnable> executionQueue;
+    private SingleTaskScheduler rescanScheduler;
+    private boolean rescanScheduled;
+    private boolean rescanning;
 
     public FileChangeWatcherImpl(BackupConfiguration configuration, MetadataRepository repository,
                                  ContinuousBackup continuousBackup, String manifestDirectory,
-                                 MachineState machineState) {
+                                 MachineState machineState, FileSystemAccess fileSystemAccess) {
         this.repository = repository;
+        this.fileSystemAccess = fileSystemAccess;
         this.manifestDirectory = FileSystems.getDefault().getPath(manifestDirectory);
         this.continuousBackup = continuousBackup;
         this.machineState = machineState;
 
         whenBySet = new HashMap<>();
         sets = getContinuousSets(configuration, whenBySet);
+
+        StateLogger.addLogger(this);
     }
 
     public static List<BackupSet> getContinuousSets(BackupConfiguration configuration, Map<String, Long> whenBySet) {
@@ -110,6 +136,8 @@ public class FileChangeWatcherImpl implements FileChangeWatcher {
                             return executorThread;
                         });
 
+                rescanScheduler = new SingleTaskScheduler("FileChangeWatcherRescan");
+
                 thread.start();
             }
         } finally {
@@ -137,6 +165,13 @@ public class FileChangeWatcherImpl implements FileChangeWatcher {
 
             executorService.shutdownNow();
             executorService = null;
+            if (rescanScheduler != null) {
+                rescanScheduler.shutdownNow();
+                rescanScheduler = null;
+            }
+            synchronized (overflowPaths) {
+                rescanScheduled = false;
+            }
         } finally {
             lock.unlock();
         }
@@ -147,6 +182,167 @@ public class FileChangeWatcherImpl implements FileChangeWatcher {
         return !sets.isEmpty() && poller != null;
     }
 
+    private void recordOverflow(Path path) {
+        List<String> paths = new ArrayList<>();
+        if (path != null) {
+            String normalizedPath = PathNormalizer.normalizePath(path.toAbsolutePath().toString());
+            if (!normalizedPath.endsWith(PathNormalizer.PATH_SEPARATOR)) {
+                normalizedPath += PathNormalizer.PATH_SEPARATOR;
+            }
+            String directory = normalizedPath;
+            if (sets.stream().anyMatch(set -> set.includeDirectory(directory))) {
+                paths.add(directory);
+            }
+        }
+        if (paths.isEmpty()) {
+            for (BackupSet set : sets) {
+                for (BackupSetRoot root : set.getRoots()) {
+                    String rootPath = root.getNormalizedPath();
+                    paths.add(rootPath.endsWith(PathNormalizer.PATH_SEPARATOR) ? rootPath
+                            : rootPath + PathNormalizer.PATH_SEPARATOR);
+                }
+            }
+        }
+
+        synchronized (overflowPaths) {
+            overflowPaths.addAll(paths);
+            if (!rescanScheduled && rescanScheduler != null) {
+                rescanScheduled = true;
+                rescanScheduler.schedule(this::rescanOverflowPaths, RESCAN_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Walks directories affected by a watcher overflow and queues anything that differs from the repository
+    // through the same updated file queue the watcher uses.
+    void rescanOverflowPaths() {
+        List<String> paths = new ArrayList<>();
+        synchronized (overflowPaths) {
+            for (String path : overflowPaths) {
+                if (paths.stream().noneMatch(path::startsWith)) {
+                    paths.add(path);
+                }
+            }
+            overflowPaths.clear();
+            rescanScheduled = false;
+            rescanning = true;
+        }
+
+        try {
+            log.info("Rescanning {} paths after file change overflow", paths.size());
+            long queuedBefore = rescanQueuedFiles.get();
+            AtomicLong remaining = new AtomicLong(MAX_RESCAN_ENTRIES);
+            for (String path : paths) {
+                if (!rescanDirectory(path, remaining)) {
+                    log.warn("Rescan after overflow stopped after {} entries, remaining changes will be picked up "
+                            + "by the next scheduled scan", readableNumber(MAX_RESCAN_ENTRIES));
+                    break;
+                }
+            }
+            if (rescanQueuedFiles.get() > queuedBefore) {
+                continuousBackup.signalChanged();
+            }
+        } catch (IOException e) {
+            log.error("Failed to rescan after file change overflow", e);
+        } finally {
+            synchronized (overflowPaths) {
+                rescanning = false;
+            }
+        }
+    }
+
+    private boolean rescanDirectory(String directoryPath, AtomicLong remaining) throws IOException {
+        if (Path.of(PathNormalizer.physicalPath(directoryPath)).startsWith(manifestDirectory)) {
+            return true;
+        }
+        Set<BackupFile> directoryFiles = fileSystemAccess.directoryFiles(directoryPath);
+        Map<String, BackupFile> existingFiles = existingDirectoryFiles(directoryPath, directoryFiles);
+        Set<String> existing = new HashSet<>();
+        for (BackupFile file : directoryFiles) {
+            if (remaining.decrementAndGet() < 0) {
+                return false;
+            }
+            existing.add(file.getPath().substring(directoryPath.length()));
+            if (file.isDirectory()) {
+                if (sets.stream().anyMatch(set -> set.includeDirectory(file.getPath()))) {
+                    if (!rescanDirectory(file.getPath(), remaining)) {
+                        return false;
+                    }
+                }
+            } else {
+                rescannedFiles.incrementAndGet();
+                BackupFile backupFile = existingFiles != null ? existingFiles.get(file.getPath())
+                        : repository.file(file.getPath(), null);
+                if (backupFile == null || backupFile.getDeleted() != null
+                        || !Objects.equals(backupFile.getLastChanged(), file.getLastChanged())
+                        || !Objects.equals(backupFile.getLength(), file.getLength())) {
+                    queueUpdatedFile(file.getPath(), file.getLastChanged());
+                }
+            }
+        }
+
+        BackupDirectory backupDirectory = repository.directory(directoryPath, null, false);
+        if (backupDirectory != null && backupDirectory.getDeleted() == null && backupDirectory.getFiles() != null) {
+            for (String name : backupDirectory.getFiles()) {
+                if (!name.endsWith(PathNormalizer.PATH_SEPARATOR) && !existing.contains(name)) {
+                    queueUpdatedFile(directoryPath + name, 0);
+                }
+            }
+        }
+        return true;
+    }
+
+    private Map<String, BackupFile> existingDirectoryFiles(String path, Set<BackupFile> directoryFiles) {
+        if (directoryFiles.stream().allMatch(BackupFile::isDirectory)) {
+            return null;
+        }
+        try {
+            List<BackupFile> files = repository.directoryFiles(path, null);
+            if (files != null) {
+                return files.stream().collect(Collectors.toMap(BackupFile::getPath, file -> file));
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read metadata about files in \"{}\", reading them individually",
+                    PathNormalizer.physicalPath(path), e);
+        }
+        return null;
+    }
+
+    private void queueUpdatedFile(String path, long when) throws IOException {
+        for (BackupSet set : sets) {
+            if (set.includeFile(path)) {
+                if (repository.addUpdatedFile(new BackupUpdatedFile(path, when), whenBySet.get(set.getId()))) {
+                    rescanQueuedFiles.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void resetStatus() {
+        rescannedFiles.set(0);
+        rescanQueuedFiles.set(0);
+    }
+
+    @Override
+    public List<StatusLine> status() {
+        List<StatusLine> ret = new ArrayList<>();
+        synchronized (overflowPaths) {
+            if (rescanScheduled) {
+                ret.add(new StatusLine(getClass(), "OVERFLOW_RESCAN_PENDING", "Paths pending rescan after overflow",
+                        (long) overflowPaths.size()));
+            }
+            if (rescanning || rescannedFiles.get() > 0) {
+                ret.add(new StatusLine(getClass(), "OVERFLOW_RESCANNED_FILES", "Files rescanned after overflow",
+                        rescannedFiles.get(), readableNumber(rescannedFiles.get())));
+                ret.add(new StatusLine(getClass(), "OVERFLOW_RESCAN_CHANGED", "Changed files found after overflow",
+                        rescanQueuedFiles.get(), readableNumber(rescanQueuedFiles.get())));
+            }
+        }
+        return ret;
+    }
+
     private class PollingThread implements Runnable {
         private final AtomicBoolean overflowing = new AtomicBoolean();
 
@@ -166,9 +362,10 @@ public class FileChangeWatcherImpl implements FileChangeWatcher {
                         }
                     } catch (FileChangePoller.OverflowException e) {
                         if (!overflowing.get()) {
-                            log.warn("Overflow detected, some files may not be backed up");
+                            log.warn("Overflow detected, rescanning affected paths");
                             overflowing.set(true);
                         }
+                        recordOverflow(e.getPath());
                         continue;
                     } catch (IOException e) {
                         log.warn("Error while watching for file changes", e);
@@ -0,0 +1,245 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.underscoreresearch.backup.utils.state.LinuxLibC;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+
+// Channels are only closed once no caller is using them, so eviction of a busy channel is deferred until it is
+// released. Idle channels are also closed from a timer so files are not held open after activity stops.
+//
+// FileChannel doesn't expose its file descriptor, so on Linux a second descriptor for the same file is opened through
+// libc for fallocate, posix_fadvise, lseek and ftruncate. These work on the file and its page cache rather than the
+// descriptor they are called through.
+@Slf4j
+class FileChannelCache {
+    private static final int MAX_OPEN_FILES = 16;
+    private static final long IDLE_CLOSE_MS = 30 * 1000;
+    private static final ScheduledExecutorService EXPIRY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("FileChannelCache-%d").setDaemon(true).build());
+    private static volatile boolean nativeHints = SystemUtils.IS_OS_LINUX && Platform.is64Bit();
+
+    private final Map<String, OpenChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+    private final ChannelOpener opener;
+    private boolean expiryScheduled;
+
+    FileChannelCache(ChannelOpener opener) {
+        this.opener = opener;
+    }
+
+    synchronized OpenChannel acquire(File file, boolean write) throws IOException {
+        String key = file.getAbsolutePath();
+        OpenChannel channel = channels.get(key);
+        if (channel != null && write && !channel.write) {
+            channels.remove(key);
+            channel.retire();
+            channel = null;
+        }
+        if (channel == null) {
+            expire();
+            channel = new OpenChannel(file, opener.open(file, write), write);
+            channels.put(key, channel);
+            scheduleExpiry();
+        }
+        channel.users++;
+        channel.lastUsed = System.currentTimeMillis();
+        return channel;
+    }
+
+    synchronized void release(OpenChannel channel) {
+        channel.users--;
+        if (channel.retired && channel.users == 0) {
+            channel.close();
+        }
+    }
+
+    synchronized boolean isOpen(File file) {
+        return channels.containsKey(file.getAbsolutePath());
+    }
+
+    synchronized void close(File file) {
+        OpenChannel channel = channels.remove(file.getAbsolutePath());
+        if (channel != null) {
+            channel.retire();
+        }
+    }
+
+    private void scheduleExpiry() {
+        if (!expiryScheduled) {
+            expiryScheduled = true;
+            EXPIRY_EXECUTOR.schedule(this::expireIdle, IDLE_CLOSE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void expireIdle() {
+        expiryScheduled = false;
+        expire();
+        if (!channels.isEmpty()) {
+            scheduleExpiry();
+        }
+    }
+
+    private void expire() {
+        long idleBefore = System.currentTimeMillis() - IDLE_CLOSE_MS;
+        Iterator<OpenChannel> iterator = channels.values().iterator();
+        int remaining = channels.size();
+        while (iterator.hasNext()) {
+            OpenChannel channel = iterator.next();
+            if (remaining >= MAX_OPEN_FILES || channel.lastUsed < idleBefore) {
+                iterator.remove();
+                channel.retire();
+            }
+            remaining--;
+        }
+    }
+
+    interface ChannelOpener {
+        FileChannel open(File file, boolean write) throws IOException;
+    }
+
+    static FileChannel openChannel(File file, boolean write) throws IOException {
+        if (write) {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    private static void nativeUnavailable(Throwable exc) {
+        if (nativeHints) {
+            nativeHints = false;
+            log.warn("Can't load native library for file hints", exc);
+        }
+    }
+
+    static class OpenChannel {
+        private final File file;
+        private final FileChannel channel;
+        private final boolean write;
+        private int users;
+        private boolean retired;
+        private long lastUsed;
+        private int descriptor = -1;
+        private boolean descriptorOpened;
+
+        private OpenChannel(File file, FileChannel channel, boolean write) {
+            this.file = file;
+            this.channel = channel;
+            this.write = write;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        // Starts reading the next range into the page cache while the caller processes the current one.
+        synchronized void willNeed(long offset, long length) {
+            int fd = descriptor();
+            if (fd >= 0) {
+                try {
+                    LinuxLibC.INSTANCE.posix_fadvise(fd, offset, length, LinuxLibC.POSIX_FADV_WILLNEED);
+                } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+                    nativeUnavailable(exc);
+                }
+            }
+        }
+
+        // Reserves space for the whole file without changing its length, so it is allocated in one extent instead
+        // of growing block by block.
+        synchronized void preallocate(long length) {
+            int fd = descriptor();
+            if (fd >= 0) {
+                try {
+                    if (LinuxLibC.INSTANCE.fallocate(fd, LinuxLibC.FALLOC_FL_KEEP_SIZE, 0, length) != 0) {
+                        debug(() -> log.debug("Failed to preallocate \"{}\"", file.getAbsolutePath()));
+                    }
+                } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+                    nativeUnavailable(exc);
+                }
+            }
+        }
+
+        // Only answers true when the file system reports no data in the range, so a false answer says nothing.
+        synchronized boolean isHole(long offset, long length) {
+            int fd = descriptor();
+            if (fd >= 0) {
+                try {
+                    long data = LinuxLibC.INSTANCE.lseek(fd, offset, LinuxLibC.SEEK_DATA);
+                    if (data < 0) {
+                        return Native.getLastError() == LinuxLibC.ENXIO;
+                    }
+                    return data >= offset + length;
+                } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+                    nativeUnavailable(exc);
+                }
+            }
+            return false;
+        }
+
+        // Grows the file without writing anything so the added range is left entirely as a hole.
+        synchronized boolean extend(long length) {
+            int fd = descriptor();
+            if (fd >= 0) {
+                try {
+                    return LinuxLibC.INSTANCE.ftruncate(fd, length) == 0;
+                } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+                    nativeUnavailable(exc);
+                }
+            }
+            return false;
+        }
+
+        private int descriptor() {
+            if (!descriptorOpened && nativeHints) {
+                descriptorOpened = true;
+                try {
+                    descriptor = LinuxLibC.INSTANCE.open(file.getAbsolutePath(),
+                            (write ? LinuxLibC.O_RDWR : LinuxLibC.O_RDONLY) | LinuxLibC.O_CLOEXEC);
+                } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+                    nativeUnavailable(exc);
+                }
+            }
+            return descriptor;
+        }
+
+        private void retire() {
+            retired = true;
+            if (users == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                debug(() -> log.debug("Failed to close file channel", e));
+            }
+            synchronized (this) {
+                if (descriptor >= 0) {
+                    // Pages read for a backup are not needed again, so drop them instead of evicting other data.
+                    if (!write) {
+                        LinuxLibC.INSTANCE.posix_fadvise(descriptor, 0, 0, LinuxLibC.POSIX_FADV_DONTNEED);
+                    }
+                    LinuxLibC.INSTANCE.close(descriptor);
+                    descriptor = -1;
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.underscoreresearch.backup.file.implementation;
 
 import com.underscoreresearch.backup.block.FileBlockAssignment;
+import com.underscoreresearch.backup.encryption.Hash;
 import com.underscoreresearch.backup.file.FileConsumer;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.PathNormalizer;
@@ -8,6 +9,7 @@ import com.underscoreresearch.backup.model.BackupCompletion;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupSet;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
@@ -21,10 +23,15 @@ import static com.underscoreresearch.backup.utils.LogUtil.debug;
 public class FileConsumerImpl implements FileConsumer {
     private final MetadataRepository repository;
     private final List<FileBlockAssignment> assignments;
+    // Versions that predate file digests fail to read log entries containing them, so they are only kept once
+    // enabled.
+    @Setter
+    private boolean recordDigest;
 
     @Override
     public void backupFile(BackupSet set, BackupFile file, BackupCompletion completionPromise) {
         if (file.getLength() == 0) {
+            file.setDigest(Hash.hash(new byte[0]));
             saveFile(file, completionPromise);
         } else {
             for (FileBlockAssignment assignment : assignments) {
@@ -56,6 +63,9 @@ public class FileConsumerImpl implements FileConsumer {
         try {
             debug(() -> log.debug("Completed file \"{}\"", PathNormalizer.physicalPath(file.getPath())));
             file.setAdded(Instant.now().toEpochMilli());
+            if (!recordDigest) {
+                file.setDigest(null);
+            }
             repository.addFile(file);
             completionPromise.completed(true);
         } catch (IOException e) {
@@ -15,6 +15,7 @@ import com.underscoreresearch.backup.model.BackupActivePath;
 import com.underscoreresearch.backup.model.BackupActiveStatus;
 import com.underscoreresearch.backup.model.BackupBlock;
 import com.underscoreresearch.backup.model.BackupBlockStorage;
+import com.underscoreresearch.backup.model.BackupConfiguration;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupFilePart;
 import com.underscoreresearch.backup.model.BackupLocation;
@@ -31,6 +32,7 @@ import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -58,9 +60,14 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
     private final MachineState machineState;
     private final boolean debug;
     private final String manifestLocation;
+    private final BackupConfiguration configuration;
     private final AtomicInteger outstandingFiles = new AtomicInteger();
     private final AtomicLong completedFiles = new AtomicLong();
     private final AtomicLong completedSize = new AtomicLong();
+    private final AtomicLong unchangedDirectories = new AtomicLong();
+    private final AtomicLong movedFiles = new AtomicLong();
+    private final Map<String, DirectoryFingerprintStore.DirectoryFingerprint> capturedFingerprints = new HashMap<>();
+    private final Set<String> failedPaths = new HashSet<>();
     private final ReentrantLock lock = new ReentrantLock();
     private final Condition pendingDirectoriesUpdated = lock.newCondition();
     private TreeMap<String, BackupActivePath> pendingPaths;
@@ -68,15 +75,24 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
     private Stopwatch duration;
     private BackupFile lastProcessed;
     private Duration lastPath;
+    private DirectoryFingerprintStore fingerprints;
+    private MoveDetectionStore moves;
 
     public FileScannerImpl(MetadataRepository repository, FileConsumer consumer, FileSystemAccess filesystem,
                            MachineState machineState, boolean debug, String manifestLocation) {
+        this(repository, consumer, filesystem, machineState, debug, manifestLocation, null);
+    }
+
+    public FileScannerImpl(MetadataRepository repository, FileConsumer consumer, FileSystemAccess filesystem,
+                           MachineState machineState, boolean debug, String manifestLocation,
+                           BackupConfiguration configuration) {
         this.repository = repository;
         this.consumer = consumer;
         this.filesystem = filesystem;
         this.machineState = machineState;
         this.debug = debug;
         this.manifestLocation = manifestLocation;
+        this.configuration = configuration;
 
         StateLogger.addLogger(this);
     }
@@ -100,11 +116,22 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
             if (needStorageValidation)
                 log.info("Enabled storage validation for set \"{}\"", backupSet.getId());
 
+            fingerprints = DirectoryFingerprintStore.open(configuration, manifestLocation, backupSet);
+            if (fingerprints != null) {
+                if (fingerprints.isFullScan() || needStorageValidation) {
+                    log.info("Doing full verification scan of set \"{}\"", backupSet.getId());
+                } else {
+                    log.info("Skipping unchanged directories in set \"{}\"", backupSet.getId());
+                }
+            }
+            moves = MoveDetectionStore.open(configuration, manifestLocation, backupSet, filesystem);
+
             if (!pendingPaths.isEmpty()) {
                 debug(() -> log.debug("Resuming paths from \"{}\"", pendingPaths.keySet().stream().map(PathNormalizer::physicalPath)
                         .collect(Collectors.joining("\", \""))));
             }
             if (!registerBackupRoots(backupSet)) {
+                closeFingerprints();
                 return !shutdown;
             }
 
@@ -113,7 +140,7 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
             for (BackupSetRoot root : backupSet.getRoots()) {
                 if (!shutdown && pendingPaths.containsKey(root.getNormalizedPath())) {
                     try {
-                        processPath(backupSet, root.getNormalizedPath(), needStorageValidation);
+                        processPath(backupSet, root.getNormalizedPath(), needStorageValidation, null);
                     } catch (Throwable exc) {
                         try {
                             consumer.flushAssignments();
@@ -121,6 +148,7 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                         } catch (Throwable e) {
                             log.error("Failed to reset status", e);
                         }
+                        closeFingerprints();
                         throw exc;
                     }
                 }
@@ -160,10 +188,14 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                     }
                 }
                 BackupSetDestinations.completedStorageValidation(manifestLocation, backupSet);
+                if (fingerprints != null && !needStorageValidation) {
+                    fingerprints.completedScan();
+                }
             }
         } finally {
             completed = !shutdown;
             shutdown = false;
+            closeFingerprints();
 
             lock.unlock();
         }
@@ -171,6 +203,27 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         return completed;
     }
 
+    private void closeFingerprints() {
+        capturedFingerprints.clear();
+        failedPaths.clear();
+        if (fingerprints != null) {
+            try {
+                fingerprints.close();
+            } catch (Exception exc) {
+                log.warn("Failed to close directory fingerprints", exc);
+            }
+            fingerprints = null;
+        }
+        if (moves != null) {
+            try {
+                moves.close();
+            } catch (Exception exc) {
+                log.warn("Failed to close move detection", exc);
+            }
+            moves = null;
+        }
+    }
+
     private String formatPathList(Collection<String> keySet) {
         return "\"" + keySet.stream().map(PathNormalizer::physicalPath)
                 .collect(Collectors.joining("\", \"")) + "\"";
@@ -215,6 +268,8 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         completedSize.set(0);
         completedFiles.set(0);
         outstandingFiles.set(0);
+        unchangedDirectories.set(0);
+        movedFiles.set(0);
         duration = null;
         lastProcessed = null;
     }
@@ -231,6 +286,16 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
             lastProcessedPath(getClass(), ret, lastProcessed, "PROCESSED_PATH");
         }
 
+        if (unchangedDirectories.get() > 0) {
+            ret.add(new StatusLine(getClass(), "UNCHANGED_DIRECTORIES", "Unchanged directories skipped",
+                    unchangedDirectories.get()));
+        }
+
+        if (movedFiles.get() > 0) {
+            ret.add(new StatusLine(getClass(), "MOVED_FILES", "Moved files reused without reading",
+                    movedFiles.get()));
+        }
+
         if (outstandingFiles.get() > 0 && debug) {
             ret.add(new StatusLine(getClass(), "OUTSTANDING_FILES", "Outstanding backup files",
                     (long) outstandingFiles.get()));
@@ -240,7 +305,8 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         return ret;
     }
 
-    private BackupActiveStatus processPath(BackupSet set, String currentPath, boolean needStorageValidation) throws IOException {
+    private BackupActiveStatus processPath(BackupSet set, String currentPath, boolean needStorageValidation,
+                                           BackupDirectory unchangedDirectory) throws IOException {
         BackupActivePath pendingFiles = pendingPaths.get(currentPath);
         pendingFiles.getFiles().forEach(file -> {
             if (BackupActiveStatus.INCOMPLETE.equals(file.getStatus()))
@@ -250,6 +316,7 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
 
         boolean anyIncluded = false;
         Set<BackupFile> directoryFiles;
+        Map<String, BackupFile> existingFiles = null;
 
         lock.unlock();
         try {
@@ -258,7 +325,14 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                 log.info("Started processing \"{}\"", PathNormalizer.physicalPath(currentPath));
             }
 
-            directoryFiles = filesystem.directoryFiles(currentPath);
+            if (unchangedDirectory != null) {
+                directoryFiles = unchangedDirectory.getFiles().stream()
+                        .map(name -> BackupFile.builder().path(currentPath + name).build())
+                        .collect(Collectors.toSet());
+            } else {
+                directoryFiles = filesystem.directoryFiles(currentPath);
+                existingFiles = existingDirectoryFiles(currentPath, directoryFiles);
+            }
         } finally {
             lock.lock();
         }
@@ -278,8 +352,10 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
             if (pendingFiles.unprocessedFile(file.getPath())) {
                 if (file.isDirectory()) {
                     if (set.includeDirectory(file.getPath())) {
-                        addPendingPath(set, file.getPath());
-                        BackupActiveStatus status = processPath(set, file.getPath(), needStorageValidation);
+                        BackupDirectory unchangedChild = unchangedDirectory(file.getPath(), needStorageValidation);
+                        addPendingPath(set, file.getPath(), unchangedChild);
+                        BackupActiveStatus status = processPath(set, file.getPath(), needStorageValidation,
+                                unchangedChild);
                         lastProcessed = file;
 
                         if (status == BackupActiveStatus.INCLUDED || status == BackupActiveStatus.INCOMPLETE) {
@@ -290,11 +366,22 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                         pendingFiles.getFile(file).setStatus(BackupActiveStatus.EXCLUDED);
                     }
                     updateActivePath(set, currentPath, false);
+                } else if (unchangedDirectory != null) {
+                    if (set.includeFile(file.getPath())) {
+                        anyIncluded = true;
+                        pendingFiles.getFile(file).setStatus(BackupActiveStatus.INCLUDED);
+                    } else {
+                        pendingFiles.getFile(file).setStatus(BackupActiveStatus.EXCLUDED);
+                    }
                 } else {
                     if (set.includeFile(file.getPath())) {
                         BackupFile existingFile;
                         try {
-                            existingFile = repository.file(file.getPath(), null);
+                            if (existingFiles != null) {
+                                existingFile = existingFiles.get(file.getPath());
+                            } else {
+                                existingFile = repository.file(file.getPath(), null);
+                            }
                         } catch (IOException e) {
                             log.error("Failed to read metadata about file for \"{}\". Backing up again to be sure. Consider doing rebuild-repository.", PathNormalizer.physicalPath(file.getPath()), e);
                             existingFile = null;
@@ -302,7 +389,11 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
 
                         anyIncluded = true;
 
-                        if (existingFile == null
+                        if (existingFile == null && moves != null && !needStorageValidation
+                                && movedFile(set, file)) {
+                            lastProcessed = file;
+                            pendingFiles.getFile(file).setStatus(BackupActiveStatus.INCLUDED);
+                        } else if (existingFile == null
                                 || !existingFile.getLastChanged().equals(file.getLastChanged())
                                 || !existingFile.getLength().equals(file.getLength())
                                 || (needStorageValidation && invalidStorage(existingFile, set))) {
@@ -315,6 +406,7 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                                 file.setPermissions(filesystem.extractPermissions(file.getPath()));
 
                                 lastProcessed = file;
+                                MoveDetectionStore currentMoves = moves;
                                 consumer.backupFile(set, file, (success) -> {
                                     outstandingFiles.decrementAndGet();
                                     if (!success) {
@@ -326,8 +418,14 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                                     }
                                     completedFiles.incrementAndGet();
                                     completedSize.addAndGet(file.getLength());
+                                    if (success && currentMoves != null) {
+                                        currentMoves.record(file.getPath(), currentMoves.fileKey(file.getPath()));
+                                    }
                                     lock.lock();
                                     try {
+                                        if (!success) {
+                                            failedPaths.add(currentPath);
+                                        }
                                         pendingFiles.getFile(file).setStatus(success ?
                                                 BackupActiveStatus.INCLUDED :
                                                 BackupActiveStatus.EXCLUDED);
@@ -347,6 +445,15 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                                 repository.addFile(existingFile);
                                 log.info("File \"{}\" undeleted", PathNormalizer.physicalPath(file.getPath()));
                             }
+                            if (moves != null && !moves.isKnown(file.getPath())) {
+                                MoveDetectionStore currentMoves = moves;
+                                lock.unlock();
+                                try {
+                                    currentMoves.record(file.getPath(), currentMoves.fileKey(file.getPath()));
+                                } finally {
+                                    lock.lock();
+                                }
+                            }
                             pendingFiles.getFile(file).setStatus(BackupActiveStatus.INCLUDED);
                         }
                     } else {
@@ -372,13 +479,80 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         }
     }
 
+    // A new path with the file key, length and modification time of a previously backed up path is the same file
+    // moved, so its existing locations are reused instead of reading it again.
+    private boolean movedFile(BackupSet set, BackupFile file) {
+        MoveDetectionStore currentMoves = moves;
+        String fileKey;
+        String previousPath;
+        lock.unlock();
+        try {
+            fileKey = currentMoves.fileKey(file.getPath());
+            previousPath = currentMoves.previousPath(fileKey);
+        } finally {
+            lock.lock();
+        }
+        if (previousPath == null || previousPath.equals(file.getPath())) {
+            return false;
+        }
+
+        try {
+            BackupFile previous = repository.file(previousPath, null);
+            if (previous == null || previous.getLocations() == null
+                    || !file.getLength().equals(previous.getLength())
+                    || !file.getLastChanged().equals(previous.getLastChanged())) {
+                return false;
+            }
+
+            String permissions;
+            lock.unlock();
+            try {
+                if (!currentMoves.verify(fileKey, file.getPath())) {
+                    log.info("File \"{}\" does not match moved \"{}\"", PathNormalizer.physicalPath(file.getPath()),
+                            PathNormalizer.physicalPath(previousPath));
+                    return false;
+                }
+                permissions = filesystem.extractPermissions(file.getPath());
+            } finally {
+                lock.lock();
+            }
+            if (invalidStorage(previous, set)) {
+                return false;
+            }
+
+            repository.addFile(BackupFile.builder()
+                    .path(file.getPath())
+                    .length(file.getLength())
+                    .lastChanged(file.getLastChanged())
+                    .permissions(permissions)
+                    .locations(previous.getLocations())
+                    .digest(previous.getDigest())
+                    .added(Instant.now().toEpochMilli())
+                    .build());
+            lock.unlock();
+            try {
+                currentMoves.record(file.getPath(), fileKey);
+            } finally {
+                lock.lock();
+            }
+            movedFiles.incrementAndGet();
+            log.info("File \"{}\" moved from \"{}\"", PathNormalizer.physicalPath(file.getPath()),
+                    PathNormalizer.physicalPath(previousPath));
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to reuse moved file for \"{}\"", PathNormalizer.physicalPath(file.getPath()), e);
+            return false;
+        }
+    }
+
     private boolean invalidStorage(BackupFile existingFile, BackupSet set) {
         if (existingFile.getLength() != 0) {
             for (BackupLocation location : existingFile.getLocations()) {
                 for (BackupFilePart part : location.getParts()) {
                     try {
                         List<BackupBlock> blocks;
-                        if (BackupBlock.isSuperBlock(part.getBlockHash())) {
+                        if (BackupBlock.isSuperBlock(part.getBlockHash())
+                                || BackupBlock.isZeroBlock(part.getBlockHash())) {
                             blocks = BackupBlock.expandBlock(part.getBlockHash(), repository);
                         } else {
                             BackupBlock block = repository.block(part.getBlockHash());
@@ -389,6 +563,9 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                         }
 
                         for (BackupBlock block : blocks) {
+                            if (block.isZeroBlock()) {
+                                continue;
+                            }
                             HashSet<String> destinations = Sets.newHashSet(set.getDestinations());
 
                             for (BackupBlockStorage storage : block.getStorage()) {
@@ -420,13 +597,68 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         }
     }
 
+    private Map<String, BackupFile> existingDirectoryFiles(String path, Set<BackupFile> directoryFiles) {
+        if (!path.endsWith(PATH_SEPARATOR) || directoryFiles.stream().allMatch(BackupFile::isDirectory)) {
+            return null;
+        }
+        try {
+            List<BackupFile> files = repository.directoryFiles(path, null);
+            if (files != null) {
+                return files.stream().collect(Collectors.toMap(BackupFile::getPath, file -> file));
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read metadata about files in \"{}\", reading them individually",
+                    PathNormalizer.physicalPath(path), e);
+        }
+        return null;
+    }
+
+    private BackupDirectory unchangedDirectory(String path, boolean needStorageValidation) {
+        if (fingerprints == null || needStorageValidation || pendingPaths.containsKey(path)) {
+            return null;
+        }
+
+        DirectoryFingerprintStore.DirectoryFingerprint fingerprint;
+        lock.unlock();
+        try {
+            fingerprint = fingerprints.capture(path);
+        } finally {
+            lock.lock();
+        }
+        if (fingerprint == null) {
+            return null;
+        }
+
+        if (fingerprints.unchanged(path, fingerprint)) {
+            try {
+                BackupDirectory directory = repository.directory(path, null, false);
+                if (directory != null && directory.getDeleted() == null && directory.getFiles() != null) {
+                    unchangedDirectories.incrementAndGet();
+                    return directory;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to read directory \"{}\", processing it completely", PathNormalizer.physicalPath(path), e);
+            }
+        }
+        capturedFingerprints.put(path, fingerprint);
+        return null;
+    }
+
     private void addPendingPath(BackupSet set, String path) {
+        addPendingPath(set, path, null);
+    }
+
+    private void addPendingPath(BackupSet set, String path, BackupDirectory unchangedDirectory) {
         if (!pendingPaths.containsKey(path)) {
             BackupActivePath activePath;
 
             lock.unlock();
             try {
-                if (path.endsWith(PATH_SEPARATOR)) {
+                if (unchangedDirectory != null) {
+                    activePath = new BackupActivePath(path, unchangedDirectory.getFiles().stream()
+                            .map(BackupActiveFile::new)
+                            .collect(Collectors.toSet()));
+                } else if (path.endsWith(PATH_SEPARATOR)) {
                     Set<BackupActiveFile> files = filesystem.directoryFiles(path).stream()
                             .map(file -> new BackupActiveFile(BackupActivePath.stripPath(file.getPath())))
                             .collect(Collectors.toSet());
@@ -451,6 +683,18 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
         }
     }
 
+    private void recordFingerprint(String currentPath, boolean forceClose) {
+        DirectoryFingerprintStore.DirectoryFingerprint fingerprint = capturedFingerprints.remove(currentPath);
+        boolean failed = failedPaths.remove(currentPath);
+        if (fingerprints != null) {
+            if (failed || forceClose) {
+                fingerprints.invalidate(currentPath);
+            } else if (fingerprint != null) {
+                fingerprints.record(currentPath, fingerprint);
+            }
+        }
+    }
+
     private void updateActivePath(BackupSet set, String currentPath, boolean forceClose) {
         BackupActivePath pending = pendingPaths.get(currentPath);
         if (pending != null) {
@@ -477,6 +721,7 @@ public class FileScannerImpl implements FileScanner, ManualStatusLogger {
                 } catch (IOException e) {
                     log.error("Failed to record completing \"" + currentPath + "\"", e);
                 }
+                recordFingerprint(currentPath, forceClose);
                 pendingPaths.remove(currentPath);
                 debug(() -> log.debug("Completed processing \"{}\"", PathNormalizer.physicalPath(currentPath)));
                 String parent = BackupActivePath.findParent(currentPath);
@@ -12,13 +12,18 @@ import org.apache.commons.lang.SystemUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -35,6 +40,7 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 public class FileSystemAccessImpl implements FileSystemAccess, ManualStatusLogger {
     private static final List<StatusLine> EMPTY_LIST = Lists.newArrayList();
     private final AtomicLong processedFiles = new AtomicLong();
+    private final FileChannelCache channelCache = new FileChannelCache(this::openChannel);
     private File activePath;
     private int activeFiles;
     private boolean registered;
@@ -55,15 +61,23 @@ public class FileSystemAccessImpl implements FileSystemAccess, ManualStatusLogge
             }
         } else {
             File parent = new File(PathNormalizer.physicalPath(!path.contains(PATH_SEPARATOR) ? path + PATH_SEPARATOR : path));
+            BasicFileAttributes parentAttributes = null;
+            try {
+                parentAttributes = Files.readAttributes(parent.toPath(), BasicFileAttributes.class);
+            } catch (InvalidPathException exc) {
+                log.warn("Skipping invalid path \"{}\"", parent.getAbsolutePath(), exc);
+            } catch (IOException exc) {
+                debug(() -> log.debug("Path \"{}\" not accessible", parent.getAbsolutePath()));
+            }
 
-            if (parent.isDirectory()) {
-                String[] fileNames = parent.list();
+            if (parentAttributes != null && parentAttributes.isDirectory()) {
+                List<Path> entries = listDirectory(parent.toPath());
 
-                if (fileNames != null) {
-                    Arrays.sort(fileNames);
+                if (entries != null) {
+                    entries.sort(Comparator.comparing(entry -> entry.getFileName().toString()));
                     try {
                         synchronized (processedFiles) {
-                            activeFiles = fileNames.length;
+                            activeFiles = entries.size();
                             processedFiles.set(0);
                             activePath = parent;
                             if (!registered) {
@@ -71,31 +85,31 @@ public class FileSystemAccessImpl implements FileSystemAccess, ManualStatusLogge
                                 StateLogger.addLogger(this);
                             }
                         }
-                        for (String fileName : fileNames) {
-                            File file = new File(parent, fileName);
+                        for (Path filePath : entries) {
+                            String fileName = filePath.getFileName().toString();
                             try {
-                                Path filePath = file.toPath();
-                                if (!isSymbolicLink(filePath)) {
-                                    if (file.isDirectory()) {
-                                        if (Files.isReadable(filePath)) {
+                                BasicFileAttributes attributes = readAttributes(filePath);
+                                if (!isSymbolicLink(filePath, attributes)) {
+                                    if (attributes.isDirectory()) {
+                                        if (isReadable(filePath)) {
                                             files.add(BackupFile.builder()
                                                     .path(path + PATH_SEPARATOR + fileName + PATH_SEPARATOR)
                                                     .build());
                                         } else {
                                             debug(() -> log.debug("Skipping unreadable directory \"" + filePath.toAbsolutePath() + "\""));
                                         }
-                                    } else if (file.isFile()) {
-                                        if (Files.isReadable(filePath)) {
-                                            files.add(createBackupFile(path + PATH_SEPARATOR + fileName, file));
+                                    } else if (attributes.isRegularFile()) {
+                                        if (isReadable(filePath)) {
+                                            files.add(createBackupFile(path + PATH_SEPARATOR + fileName, attributes));
                                         } else {
                                             debug(() -> log.debug("Skipping unreadable file \"" + filePath.toAbsolutePath() + "\""));
                                         }
                                     }
                                 }
                             } catch (InvalidPathException exc) {
-                                log.warn("Skipping invalid path \"{}\"", file.getAbsolutePath(), exc);
+                                log.warn("Skipping invalid path \"{}\"", filePath.toAbsolutePath(), exc);
                             } catch (IOException e) {
-                                log.warn("Failed to get last modified time for \"{}\"", parent.getAbsolutePath(), e);
+                                log.warn("Failed to get attributes for \"{}\"", filePath.toAbsolutePath(), e);
                             }
                             processedFiles.incrementAndGet();
                         }
@@ -108,28 +122,55 @@ public class FileSystemAccessImpl implements FileSystemAccess, ManualStatusLogge
                 } else {
                     log.warn("Failed to get list of files for \"" + parent + "\"");
                 }
-            } else if (parent.exists()) {
+            } else if (parentAttributes != null) {
+                Path parentPath = parent.toPath();
                 try {
-                    Path parentPath = parent.toPath();
-                    if (!Files.isSymbolicLink(parentPath) && parent.isFile()) {
-                        if (Files.isReadable(parentPath)) {
-                            files.add(createBackupFile(path, parent));
+                    BasicFileAttributes attributes = readAttributes(parentPath);
+                    if (!isSymbolicLink(parentPath, attributes) && attributes.isRegularFile()) {
+                        if (isReadable(parentPath)) {
+                            files.add(createBackupFile(path, attributes));
                         } else {
                             debug(() -> log.debug("Skipping unreadable file \"" + parentPath.toAbsolutePath() + "\""));
                         }
                     }
-                } catch (InvalidPathException exc) {
-                    log.warn("Skipping invalid path \"{}\"", parent.getAbsolutePath(), exc);
                 } catch (IOException e) {
-                    log.warn("Failed to get last modified time for \"{}\"", parent.getAbsolutePath(), e);
+                    log.warn("Failed to get attributes for \"{}\"", parent.getAbsolutePath(), e);
                 }
             }
         }
         return files;
     }
 
-    protected boolean isSymbolicLink(Path filePath) {
-        return Files.isSymbolicLink(filePath);
+    // The JDK already lists directories with readdir and reads attributes with a single stat. A getdents64 path
+    // through LinuxLibC could use d_type to skip the stat for subdirectories only, they still need the readable
+    // check and files still need the stat for size and modification time, so it isn't worth the JNA call overhead.
+    private List<Path> listDirectory(Path directory) {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } catch (IOException | DirectoryIteratorException exc) {
+            debug(() -> log.debug("Failed to list \"{}\"", directory.toAbsolutePath(), exc));
+            return null;
+        }
+        return entries;
+    }
+
+    protected FileChannel openChannel(File file, boolean write) throws IOException {
+        return FileChannelCache.openChannel(file, write);
+    }
+
+    protected BasicFileAttributes readAttributes(Path filePath) throws IOException {
+        return Files.readAttributes(filePath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    protected boolean isReadable(Path filePath) {
+        return Files.isReadable(filePath);
+    }
+
+    protected boolean isSymbolicLink(Path filePath, BasicFileAttributes attributes) {
+        return attributes.isSymbolicLink();
     }
 
     @Override
@@ -142,54 +183,124 @@ public class FileSystemAccessImpl implements FileSystemAccess, ManualStatusLogge
 
     }
 
-    protected BackupFile createBackupFile(String path, File file) throws IOException {
+    protected BackupFile createBackupFile(String path, BasicFileAttributes attributes) {
         return BackupFile.builder()
                 .path(path)
-                .length(file.length())
-                .lastChanged(Files.getLastModifiedTime(file.toPath()).toMillis())
+                .length(attributes.size())
+                .lastChanged(attributes.lastModifiedTime().toMillis())
                 .build();
     }
 
+    // Channels stay open between calls so sequential block reads and restore writes only open the file once. Read
+    // channels are closed when the end of the file is reached and write channels when the file is completed.
     @Override
     public int readData(String path, byte[] buffer, long offset, int length) throws IOException {
         File file = new File(PathNormalizer.physicalPath(path));
-        try (RandomAccessFile stream = new RandomAccessFile(file, "r")) {
-            try (FileChannel ch = stream.getChannel()) {
-                return ch.read(ByteBuffer.wrap(buffer, 0, length), offset);
+        FileChannelCache.OpenChannel openChannel = channelCache.acquire(file, false);
+        boolean done = true;
+        try {
+            FileChannel ch = openChannel.getChannel();
+            int read = ch.read(ByteBuffer.wrap(buffer, 0, length), offset);
+            done = read < length || offset + read >= ch.size();
+            if (!done) {
+                openChannel.willNeed(offset + read, length);
             }
+            return read;
+        } finally {
+            channelCache.release(openChannel);
+            if (done) {
+                channelCache.close(file);
+            }
+        }
+    }
+
+    @Override
+    public boolean isHole(String path, long offset, int length) throws IOException {
+        FileChannelCache.OpenChannel openChannel = channelCache.acquire(new File(PathNormalizer.physicalPath(path)),
+                false);
+        try {
+            return openChannel.isHole(offset, length);
+        } finally {
+            channelCache.release(openChannel);
         }
     }
 
     @Override
     public void writeData(String path, byte[] buffer, long offset, int length) throws IOException {
         File file = new File(PathNormalizer.physicalPath(path));
-        createDirectory(file.getParentFile(), true);
-        try (RandomAccessFile stream = new RandomAccessFile(file, "rw")) {
-            try (FileChannel ch = stream.getChannel()) {
-                if (ch.write(ByteBuffer.wrap(buffer, 0, length), offset) != length) {
-                    throw new IOException("Failed to write data to file \"" + file.getAbsolutePath() + "\"");
-                }
+        FileChannelCache.OpenChannel openChannel;
+        try {
+            openChannel = channelCache.acquire(file, true);
+        } catch (NoSuchFileException exc) {
+            createDirectory(file.getParentFile(), true);
+            openChannel = channelCache.acquire(file, true);
+        }
+        try {
+            if (openChannel.getChannel().write(ByteBuffer.wrap(buffer, 0, length), offset) != length) {
+                throw new IOException("Failed to write data to file \"" + file.getAbsolutePath() + "\"");
             }
+        } catch (IOException exc) {
+            channelCache.close(file);
+            throw exc;
+        } finally {
+            channelCache.release(openChannel);
+        }
+    }
+
+    @Override
+    public void preallocateFile(String path, long length) throws IOException {
+        File file = new File(PathNormalizer.physicalPath(path));
+        FileChannelCache.OpenChannel openChannel;
+        try {
+            openChannel = channelCache.acquire(file, true);
+        } catch (NoSuchFileException exc) {
+            createDirectory(file.getParentFile(), true);
+            openChannel = channelCache.acquire(file, true);
+        }
+        try {
+            openChannel.preallocate(length);
+        } finally {
+            channelCache.release(openChannel);
         }
     }
 
     @Override
     public void completeFile(BackupFile backupFile, String path, long length) throws IOException {
         File file = new File(PathNormalizer.physicalPath(path));
-        if (file.length() != length) {
-            try (RandomAccessFile stream = new RandomAccessFile(file, "rw")) {
-                try (FileChannel ch = stream.getChannel()) {
+        if (channelCache.isOpen(file) || file.length() != length) {
+            FileChannelCache.OpenChannel openChannel;
+            try {
+                openChannel = channelCache.acquire(file, true);
+            } catch (NoSuchFileException exc) {
+                createDirectory(file.getParentFile(), true);
+                openChannel = channelCache.acquire(file, true);
+            }
+            try {
+                FileChannel ch = openChannel.getChannel();
+                if (ch.size() > length) {
                     ch.truncate(length);
+                } else if (ch.size() < length && !openChannel.extend(length)) {
+                    // Trailing zero blocks are not written so extend the file leaving a hole.
+                    ch.write(ByteBuffer.wrap(new byte[1]), length - 1);
                 }
+            } finally {
+                channelCache.release(openChannel);
+                channelCache.close(file);
             }
         }
 
         applyPermissions(file, backupFile.getPermissions());
     }
 
+    @Override
+    public void closeFile(String path) {
+        channelCache.close(new File(PathNormalizer.physicalPath(path)));
+    }
+
     @Override
     public void delete(String path) throws IOException {
         File file = new File(PathNormalizer.physicalPath(path));
+        channelCache.close(file);
         deleteFileException(file);
     }
 
@@ -0,0 +1,113 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.underscoreresearch.backup.utils.StatusLine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
+import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
+
+// Deleted hashes are never removed from the filter, they only show up as false positives until the next rebuild.
+// Hashes added while the filter is being built are recorded and applied before it is used.
+public class KnownHashFilter {
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final long MINIMUM_EXPECTED_ENTRIES = 100000;
+
+    private final BloomFilter<CharSequence> filter;
+    private final long expectedEntries;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final List<String> pendingPuts = new ArrayList<>();
+    private volatile boolean ready;
+
+    public KnownHashFilter(long existingEntries) {
+        expectedEntries = Math.max(MINIMUM_EXPECTED_ENTRIES, existingEntries * 2);
+        filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedEntries,
+                FALSE_POSITIVE_PROBABILITY);
+    }
+
+    public void build(Stream<String> hashes) {
+        hashes.forEach(hash -> {
+            filter.put(hash);
+            entries.incrementAndGet();
+        });
+        synchronized (pendingPuts) {
+            pendingPuts.forEach(filter::put);
+            pendingPuts.clear();
+            ready = true;
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void put(String hash) {
+        entries.incrementAndGet();
+        if (!ready) {
+            synchronized (pendingPuts) {
+                if (!ready) {
+                    pendingPuts.add(hash);
+                    return;
+                }
+            }
+        }
+        filter.put(hash);
+    }
+
+    public boolean isOverCapacity() {
+        return ready && entries.get() > expectedEntries;
+    }
+
+    public boolean mightContain(String hash) {
+        if (!ready) {
+            return true;
+        }
+        lookups.incrementAndGet();
+        if (filter.mightContain(hash)) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    public void falsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    public long memoryUsage() {
+        return (long) (-expectedEntries * Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2) * Math.log(2))) / 8;
+    }
+
+    public List<StatusLine> status(String code, String description) {
+        List<StatusLine> ret = new ArrayList<>();
+        long total = lookups.get();
+        if (ready && total > 0) {
+            long misses = skipped.get() + falsePositives.get();
+            double rate = misses > 0 ? (double) falsePositives.get() / misses : 0;
+            ret.add(new StatusLine(getClass(), code + "_FILTER_SKIPPED", description + " lookups skipped by filter",
+                    skipped.get(), total, readableNumber(skipped.get()) + " / " + readableNumber(total)));
+            ret.add(new StatusLine(getClass(), code + "_FILTER_FALSE_POSITIVES", description
+                    + " filter false positive rate", falsePositives.get(),
+                    String.format("%.2f%% (expected %.2f%%, %s)", rate * 100, filter.expectedFpp() * 100,
+                            readableSize(memoryUsage()))));
+        }
+        return ret;
+    }
+}
@@ -15,6 +15,8 @@ import com.underscoreresearch.backup.file.MapSerializer;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.MetadataRepositoryStorage;
 import com.underscoreresearch.backup.file.RepositoryOpenMode;
+import com.underscoreresearch.backup.file.RepositoryTable;
+import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
 import com.underscoreresearch.backup.model.BackupActivePath;
 import com.underscoreresearch.backup.model.BackupBlock;
@@ -27,7 +29,10 @@ import com.underscoreresearch.backup.model.BackupPendingSet;
 import com.underscoreresearch.backup.model.BackupUpdatedFile;
 import com.underscoreresearch.backup.model.ExternalBackupFile;
 import com.underscoreresearch.backup.utils.AccessLock;
+import com.underscoreresearch.backup.utils.ManualStatusLogger;
 import com.underscoreresearch.backup.utils.SingleTaskScheduler;
+import com.underscoreresearch.backup.utils.StateLogger;
+import com.underscoreresearch.backup.utils.StatusLine;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -40,6 +45,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,16 +58,19 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
+import static com.underscoreresearch.backup.io.IOUtils.deleteContents;
 import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
 
 @Slf4j
-public class LockingMetadataRepository implements MetadataRepository {
+public class LockingMetadataRepository implements MetadataRepository, ManualStatusLogger {
     public static final long MINIMUM_WAIT_UPDATE_MS = 2000;
     public static final int MAPDB_STORAGE = 1;
     public static final int MAPDB_STORAGE_VERSIONED = 4;
     public static final int MAPDB_STORAGE_LEAF_STORAGE = 5;
     public static final String COMPACT_TASK = "Upgrading metadata repository";
+    public static final String PATH_INDEX_TASK = "Building path search index";
     private static final ObjectReader REPOSITORY_INFO_READER
             = MAPPER.readerFor(RepositoryInfo.class);
     private static final ObjectWriter REPOSITORY_INFO_WRITER
@@ -68,6 +78,9 @@ public class LockingMetadataRepository implements MetadataRepository {
     private static final String REQUEST_LOCK_FILE = "request.lock";
     private static final String LOCK_FILE = "access.lock";
     private static final String INFO_STORE = "info.json";
+    private static final String UPGRADE_PROGRESS_STORE = "upgrade.json";
+    private static final String READ_VIEW_DIRECTORY = "readview";
+    private static final String SORTED_LOAD_DIRECTORY = "sortedload";
     private static final Map<String, LockingMetadataRepository> openRepositories = new HashMap<>();
     private static final int COMMIT_THRESHOLD = 1000000;
     private final String dataPath;
@@ -75,6 +88,8 @@ public class LockingMetadataRepository implements MetadataRepository {
     private final int defaultVersion;
     private final ReentrantLock updateLock = new ReentrantLock();
     private final ReentrantLock openLock = new ReentrantLock();
+    private final Object readViewLock = new Object();
+    private final Map<String, String> sortedLoadSyncedLogFiles = new HashMap<>();
     private final AtomicInteger mutatingChanges = new AtomicInteger(0);
     protected RepositoryOpenMode openMode;
     protected ReentrantLock explicitLock = new ReentrantLock();
@@ -84,6 +99,14 @@ public class LockingMetadataRepository implements MetadataRepository {
     private AccessLock fileLock;
     private SingleTaskScheduler taskScheduler;
     private LogFileRepository logFileRepository;
+    private volatile KnownHashFilter blockFilter;
+    private volatile KnownHashFilter partFilter;
+    private boolean registered;
+    private volatile LockingMetadataRepository readView;
+    private int readViewUsers;
+    private boolean readViewAllTables;
+    private boolean discarded;
+    private SortedRebuildLoader sortedLoader;
 
     public LockingMetadataRepository(String dataPath, boolean replayOnly) {
         this(dataPath, replayOnly, getDefaultVersion());
@@ -306,6 +329,13 @@ public class LockingMetadataRepository implements MetadataRepository {
                         taskScheduler = null;
                     }
 
+                    if (sortedLoader != null) {
+                        log.warn("Discarding sorted changes that were not loaded");
+                        sortedLoader.close();
+                        sortedLoader = null;
+                        sortedLoadSyncedLogFiles.clear();
+                    }
+
                     closeAllDataFiles();
 
                     fileLock.close();
@@ -322,6 +352,9 @@ public class LockingMetadataRepository implements MetadataRepository {
 
     private void ensureOpen(boolean readOnly) throws IOException {
         if (!open) {
+            if (discarded) {
+                throw new IOException("Read view of repository has been closed");
+            }
             open(openMode);
         }
         if (!readOnly && openMode == RepositoryOpenMode.READ_ONLY) {
@@ -344,6 +377,9 @@ public class LockingMetadataRepository implements MetadataRepository {
                     closeAllDataFiles();
 
                     storage.clear();
+                    if (sortedLoader != null) {
+                        sortedLoader.clear();
+                    }
 
                     prepareOpen(openMode);
 
@@ -362,6 +398,9 @@ public class LockingMetadataRepository implements MetadataRepository {
                 return null;
             }
         }
+        if (sortedLoadSyncedLogFiles.containsKey(share)) {
+            return sortedLoadSyncedLogFiles.get(share);
+        }
         return repositoryInfo.getLastSyncedLogFile(share);
     }
 
@@ -370,10 +409,48 @@ public class LockingMetadataRepository implements MetadataRepository {
         if (repositoryInfo == null) {
             readRepositoryInfo(RepositoryOpenMode.READ_WRITE);
         }
+        // Progress can't be recorded before the sorted changes it covers are loaded.
+        if (sortedLoader != null) {
+            sortedLoadSyncedLogFiles.put(share, entry);
+            return;
+        }
         repositoryInfo.setLastSyncedLogFile(share, entry);
         saveRepositoryInfo();
     }
 
+    @Override
+    public void startSortedLoad() throws IOException {
+        try (RepositoryLock ignored = new RepositoryLock(true)) {
+            ensureOpen(false);
+            if (sortedLoader == null) {
+                sortedLoader = new SortedRebuildLoader(getPath(SORTED_LOAD_DIRECTORY).toFile());
+                log.info("Collecting file, block and directory changes in sorted runs");
+            }
+        }
+    }
+
+    @Override
+    public void finishSortedLoad() throws IOException {
+        try (RepositoryLock ignored = new RepositoryLock(true)) {
+            if (sortedLoader != null) {
+                try {
+                    ensureOpen(false);
+                    sortedLoader.load(storage);
+                    for (Map.Entry<String, String> entry : sortedLoadSyncedLogFiles.entrySet()) {
+                        repositoryInfo.setLastSyncedLogFile(entry.getKey(), entry.getValue());
+                    }
+                    if (!sortedLoadSyncedLogFiles.isEmpty()) {
+                        saveRepositoryInfo();
+                    }
+                } finally {
+                    sortedLoader.close();
+                    sortedLoader = null;
+                    sortedLoadSyncedLogFiles.clear();
+                }
+            }
+        }
+    }
+
     @Override
     public CloseableLock acquireUpdateLock() {
         return new UpdateLock(true);
@@ -388,9 +465,59 @@ public class LockingMetadataRepository implements MetadataRepository {
         storage.open(openMode);
 
         logFileRepository = new LogFileRepositoryImpl(getPath("logs.log"));
+
+        resetFilters(true);
+    }
+
+    private void resetFilters(boolean build) {
+        blockFilter = null;
+        partFilter = null;
+
+        if (!build || replayOnly || openMode != RepositoryOpenMode.READ_WRITE) {
+            return;
+        }
+
+        MetadataRepositoryStorage currentStorage = storage;
+        KnownHashFilter blocks;
+        KnownHashFilter parts;
+        try {
+            blocks = new KnownHashFilter(currentStorage.getBlockCount());
+            parts = new KnownHashFilter(currentStorage.getPartCount());
+        } catch (IOException exc) {
+            log.warn("Failed to size lookup filters", exc);
+            return;
+        }
+        blockFilter = blocks;
+        partFilter = parts;
+
+        if (!registered) {
+            registered = true;
+            StateLogger.addLogger(this);
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                try (CloseableStream<String> hashes = currentStorage.allBlockHashes()) {
+                    blocks.build(hashes.stream());
+                }
+                try (CloseableStream<String> hashes = currentStorage.allFilePartHashes()) {
+                    parts.build(hashes.stream());
+                }
+                debug(() -> log.debug("Built lookup filters using {}",
+                        readableSize(blocks.memoryUsage() + parts.memoryUsage())));
+            } catch (Exception exc) {
+                if (blockFilter == blocks) {
+                    log.warn("Failed to build lookup filters", exc);
+                }
+            }
+        }, "KnownHashFilter");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     private void closeAllDataFiles() throws IOException {
+        resetFilters(false);
+
         storage.close();
 
         if (logFileRepository != null) {
@@ -410,10 +537,18 @@ public class LockingMetadataRepository implements MetadataRepository {
 
     @Override
     public List<BackupFilePart> existingFilePart(String partHash) throws IOException {
+        KnownHashFilter filter = partFilter;
+        if (filter != null && !filter.mightContain(partHash)) {
+            return null;
+        }
         try (RepositoryLock ignored = new RepositoryLock(false)) {
             ensureOpen(true);
 
-            return storage.existingFilePart(partHash);
+            List<BackupFilePart> parts = storage.existingFilePart(partHash);
+            if (parts == null && filter != null && filter.isReady()) {
+                filter.falsePositive();
+            }
+            return parts;
         }
     }
 
@@ -499,12 +634,54 @@ public class LockingMetadataRepository implements MetadataRepository {
         }
     }
 
+    @Override
+    public List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException {
+        try (RepositoryLock ignored = new RepositoryLock(false)) {
+            ensureOpen(true);
+
+            return storage.directoryFiles(path, timestamp);
+        }
+    }
+
+    @Override
+    public List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException {
+        try (RepositoryLock ignored = new RepositoryLock(false)) {
+            ensureOpen(true);
+
+            return storage.subDirectories(path, timestamp);
+        }
+    }
+
+    @Override
+    public CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException {
+        CloseableLock lock = acquireStreamLock();
+        try {
+            CloseableStream<BackupFile> stream = storage.pathIndexFiles(text);
+            if (stream != null) {
+                return new LockedStream<>(stream, lock);
+            }
+        } catch (IOException exc) {
+            lock.close();
+            throw exc;
+        }
+        lock.close();
+        return null;
+    }
+
     @Override
     public BackupBlock block(String hash) throws IOException {
+        KnownHashFilter filter = blockFilter;
+        if (filter != null && !filter.mightContain(hash)) {
+            return null;
+        }
         try (RepositoryLock ignored = new RepositoryLock(false)) {
             ensureOpen(true);
 
-            return storage.block(hash);
+            BackupBlock block = storage.block(hash);
+            if (block == null && filter != null && filter.isReady()) {
+                filter.falsePositive();
+            }
+            return block;
         }
     }
 
@@ -522,16 +699,29 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
-            storage.addFile(file);
+            if (sortedLoader != null) {
+                sortedLoader.addFile(file);
+            } else {
+                storage.addFile(file);
+            }
 
             if (!replayOnly && file.getLocations() != null) {
+                KnownHashFilter filter = partFilter;
                 for (BackupLocation location : file.getLocations()) {
                     for (BackupFilePart part : location.getParts()) {
                         if (part.getPartHash() != null) {
-                            storage.addFilePart(part);
+                            if (filter != null) {
+                                filter.put(part.getPartHash());
+                            }
+                            if (sortedLoader != null) {
+                                sortedLoader.addFilePart(part);
+                            } else {
+                                storage.addFilePart(part);
+                            }
                         }
                     }
                 }
+                rebuildFullFilter(filter);
             }
         }
     }
@@ -541,10 +731,33 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
-            storage.addBlock(block);
+            KnownHashFilter filter = blockFilter;
+            if (filter != null) {
+                filter.put(block.getHash());
+            }
+            if (sortedLoader != null) {
+                sortedLoader.addBlock(block);
+            } else {
+                storage.addBlock(block);
+            }
+            rebuildFullFilter(filter);
+        }
+    }
+
+    private void rebuildFullFilter(KnownHashFilter filter) {
+        // Storage counts lag behind while changes are collected for a sorted load, so wait until it is finished.
+        if (filter != null && sortedLoader == null && filter.isOverCapacity()) {
+            log.info("Rebuilding lookup filters that have grown past their capacity");
+            resetFilters(true);
         }
     }
 
+    boolean filtersReady() {
+        KnownHashFilter blocks = blockFilter;
+        KnownHashFilter parts = partFilter;
+        return blocks != null && blocks.isReady() && parts != null && parts.isReady();
+    }
+
     @Override
     public void addTemporaryBlock(BackupBlock block) throws IOException {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
@@ -563,6 +776,8 @@ public class LockingMetadataRepository implements MetadataRepository {
             saveRepositoryInfo();
 
             storage.switchBlocksTable();
+
+            resetFilters(true);
         }
     }
 
@@ -571,7 +786,11 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
-            storage.addDirectory(directory);
+            if (sortedLoader != null) {
+                sortedLoader.addDirectory(directory);
+            } else {
+                storage.addDirectory(directory);
+            }
         }
     }
 
@@ -580,6 +799,10 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
+            if (sortedLoader != null) {
+                sortedLoader.deleteBlock(block);
+                return true;
+            }
             return storage.deleteBlock(block);
         }
     }
@@ -589,6 +812,10 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
+            if (sortedLoader != null) {
+                sortedLoader.deleteFile(file);
+                return true;
+            }
             return storage.deleteFile(file);
         }
     }
@@ -599,6 +826,10 @@ public class LockingMetadataRepository implements MetadataRepository {
             try (RepositoryLock ignored = new RepositoryLock(true)) {
                 ensureOpen(false);
 
+                if (sortedLoader != null) {
+                    sortedLoader.deleteFilePart(part);
+                    return true;
+                }
                 return storage.deleteFilePart(part);
             }
         }
@@ -610,6 +841,10 @@ public class LockingMetadataRepository implements MetadataRepository {
         try (RepositoryLock ignored = new RepositoryLock(true)) {
             ensureOpen(false);
 
+            if (sortedLoader != null) {
+                sortedLoader.deleteDirectory(path, timestamp);
+                return true;
+            }
             return storage.deleteDirectory(path, timestamp);
         }
     }
@@ -816,6 +1051,20 @@ public class LockingMetadataRepository implements MetadataRepository {
         if (shouldUpgrade() &&
                 !repositoryInfo.errorsDetected && !repositoryInfo.stopSaving) {
             performUpgrade();
+        } else if (openMode == RepositoryOpenMode.READ_WRITE && !repositoryInfo.stopSaving) {
+            buildPathIndex();
+        }
+    }
+
+    private void buildPathIndex() throws IOException {
+        try (RepositoryLock ignored = new RepositoryLock(true)) {
+            ensureOpen(false);
+            if (storage.needPathIndex()) {
+                try (Closeable ignored2 = UIHandler.registerTask(PATH_INDEX_TASK, true)) {
+                    log.info("Building path search index");
+                    storage.buildPathIndex();
+                }
+            }
         }
     }
 
@@ -830,7 +1079,8 @@ public class LockingMetadataRepository implements MetadataRepository {
                     MetadataRepositoryStorage upgradedStorage = createStorage(version, 0);
 
                     try {
-                        new RepositoryUpgrader(storage, upgradedStorage).upgrade();
+                        new RepositoryUpgrader(storage, upgradedStorage,
+                                getPath(UPGRADE_PROGRESS_STORE).toFile()).upgrade();
 
                         repositoryInfo.version = version;
                         repositoryInfo.revision = 0;
@@ -871,6 +1121,7 @@ public class LockingMetadataRepository implements MetadataRepository {
             storage.close();
         }
         storage = ret;
+        resetFilters(false);
         if (open) {
             storage.open(openMode);
         }
@@ -895,6 +1146,10 @@ public class LockingMetadataRepository implements MetadataRepository {
 
             MetadataRepositoryStorage oldStorage = createStorage(repositoryInfo.version, repositoryInfo.revision - 1);
             oldStorage.clear();
+
+            if (open) {
+                resetFilters(true);
+            }
         }
     }
 
@@ -948,8 +1203,82 @@ public class LockingMetadataRepository implements MetadataRepository {
         return storage.exclusiveLock();
     }
 
+    @Override
+    public void startReadView(boolean allTables) throws IOException {
+        synchronized (readViewLock) {
+            if (readViewUsers++ > 0) {
+                if (allTables && !readViewAllTables) {
+                    log.warn("Existing read only view of repository does not contain all tables");
+                }
+                return;
+            }
+            File viewPath = getPath(READ_VIEW_DIRECTORY).toFile();
+            try {
+                try (UpdateLock ignored = new UpdateLock(false)) {
+                    try (RepositoryLock ignored2 = new OpenLock()) {
+                        ensureOpen(true);
+                        deleteContents(viewPath);
+
+                        // Storage is closed while copying so that the copy does not depend on uncommitted changes.
+                        storage.close();
+                        try {
+                            storage.copyTo(viewPath.getAbsolutePath(), allTables ? null
+                                    : EnumSet.of(RepositoryTable.FILES, RepositoryTable.DIRECTORIES));
+                            REPOSITORY_INFO_WRITER.writeValue(new File(viewPath, INFO_STORE), repositoryInfo);
+                        } finally {
+                            storage.open(openMode);
+                        }
+                    }
+                }
+                LockingMetadataRepository view = new LockingMetadataRepository(viewPath.getAbsolutePath(), true,
+                        repositoryInfo.version);
+                view.open(RepositoryOpenMode.READ_ONLY);
+                readView = view;
+                readViewAllTables = allTables;
+                log.info("Created read only view of repository for use during maintenance");
+            } catch (IOException | RuntimeException exc) {
+                log.warn("Failed to create read only view of repository, browsing will wait for maintenance", exc);
+                deleteContents(viewPath);
+                IOUtils.deleteFile(viewPath);
+            }
+        }
+    }
+
+    @Override
+    public void closeReadView() throws IOException {
+        synchronized (readViewLock) {
+            if (readViewUsers == 0 || --readViewUsers > 0) {
+                return;
+            }
+            LockingMetadataRepository view = readView;
+            readView = null;
+            if (view != null) {
+                view.discarded = true;
+                view.close();
+                File viewPath = getPath(READ_VIEW_DIRECTORY).toFile();
+                deleteContents(viewPath);
+                IOUtils.deleteFile(viewPath);
+                debug(() -> log.debug("Closed read only view of repository"));
+            }
+        }
+    }
+
+    @Override
+    public MetadataRepository readView() {
+        return readView;
+    }
+
     @Override
     public void compact() throws IOException {
+        startReadView(false);
+        try {
+            compactStorage();
+        } finally {
+            closeReadView();
+        }
+    }
+
+    private void compactStorage() throws IOException {
         try (UpdateLock ignored = new UpdateLock(true)) {
             try (RepositoryLock ignored2 = new OpenLock()) {
                 try (Closeable ignored3 = UIHandler.registerTask(COMPACT_TASK, true)) {
@@ -976,6 +1305,24 @@ public class LockingMetadataRepository implements MetadataRepository {
         }
     }
 
+    @Override
+    public void resetStatus() {
+    }
+
+    @Override
+    public List<StatusLine> status() {
+        List<StatusLine> ret = new ArrayList<>();
+        KnownHashFilter blocks = blockFilter;
+        if (blocks != null) {
+            ret.addAll(blocks.status("BLOCK", "Block"));
+        }
+        KnownHashFilter parts = partFilter;
+        if (parts != null) {
+            ret.addAll(parts.status("PART", "File part"));
+        }
+        return ret;
+    }
+
     @Data
     @Builder
     @NoArgsConstructor
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.underscoreresearch.backup.file.CloseableLock;
 import com.underscoreresearch.backup.file.CloseableMap;
 import com.underscoreresearch.backup.file.CloseableSortedMap;
@@ -12,6 +13,7 @@ import com.underscoreresearch.backup.file.MapSerializer;
 import com.underscoreresearch.backup.file.MetadataRepositoryStorage;
 import com.underscoreresearch.backup.file.PathNormalizer;
 import com.underscoreresearch.backup.file.RepositoryOpenMode;
+import com.underscoreresearch.backup.file.RepositoryTable;
 import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
 import com.underscoreresearch.backup.model.BackupActivePath;
@@ -28,6 +30,7 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.SystemUtils;
+import org.mapdb.Atomic;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
@@ -42,26 +45,35 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
 import static com.underscoreresearch.backup.file.implementation.LockingMetadataRepository.MAPDB_STORAGE_LEAF_STORAGE;
 import static com.underscoreresearch.backup.file.implementation.LockingMetadataRepository.MINIMUM_WAIT_UPDATE_MS;
 import static com.underscoreresearch.backup.io.IOUtils.clearTempFiles;
 import static com.underscoreresearch.backup.io.IOUtils.deleteContents;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_ACTIVE_PATH_READER;
 import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_ACTIVE_PATH_WRITER;
 import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_BLOCK_ADDITIONAL_READER;
@@ -97,6 +109,23 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
     private static final String ADDITIONAL_BLOCK_STORE = "additionalblocks.db";
     private static final String UPDATED_FILES_STORE = "updatedfiles.db";
     private static final String UPDATED_PENDING_FILES_STORE = "updatedpendingfiles.db";
+    private static final String[] ALL_STORES = new String[]{
+            FILE_STORE,
+            BLOCK_STORE,
+            BLOCK_ALT_STORE,
+            PARTS_STORE,
+            DIRECTORY_STORE,
+            ACTIVE_PATH_STORE,
+            PENDING_SET_STORE,
+            PARTIAL_FILE_STORE,
+            ADDITIONAL_BLOCK_STORE,
+            UPDATED_FILES_STORE,
+            UPDATED_PENDING_FILES_STORE
+    };
+    private static final String PATH_INDEX = "pathIndex";
+    private static final String PATH_INDEX_PATHS = "pathIndexPaths";
+    private static final String PATH_INDEX_COMPLETE = "pathIndexComplete";
+    private static final int MAXIMUM_PATH_INDEX_CANDIDATES = 100000;
     private static final long MAX_WRITES = 50000;
     private final String dataPath;
     private final int revision;
@@ -125,6 +154,9 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
     private HTreeMap<String, byte[]> pendingSetMap;
     private HTreeMap<String, byte[]> partialFileMap;
     private HTreeMap<String, Long> updatedFilesMap;
+    private NavigableSet<Object[]> pathIndex;
+    private HTreeMap<Long, String> pathIndexPaths;
+    private Atomic.Boolean pathIndexComplete;
     private boolean alternateBlockTable;
     private RepositoryOpenMode openMode;
     private boolean useLeafNodes;
@@ -242,6 +274,8 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
         updatedFilesDb = createDb(openMode, UPDATED_FILES_STORE);
         updatedPendingFilesDb = createDb(openMode, UPDATED_PENDING_FILES_STORE);
 
+        boolean newFileDb = fileDb.nameCatalogLoad().isEmpty();
+
         blockMap = openHashMap(blockDb.hashMap(BLOCK_STORE, Serializer.STRING, Serializer.BYTE_ARRAY));
         additionalBlockMap = openTreeMap(additionalBlockDb, additionalBlockDb.treeMap(ADDITIONAL_BLOCK_STORE)
                 .keySerializer(new SerializerArrayTuple(Serializer.STRING, Serializer.STRING))
@@ -264,12 +298,30 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
         pendingSetMap = openHashMap(pendingSetDb.hashMap(BLOCK_STORE, Serializer.STRING, Serializer.BYTE_ARRAY));
         partialFileMap = openHashMap(partialFileDb.hashMap(BLOCK_STORE, Serializer.STRING, Serializer.BYTE_ARRAY));
         updatedFilesMap = openHashMap(updatedFilesDb.hashMap(UPDATED_FILES_STORE, Serializer.STRING, Serializer.LONG));
+        openPathIndex(newFileDb);
 
         if (openMode != RepositoryOpenMode.READ_ONLY) {
             clearTempFiles();
         }
     }
 
+    private void openPathIndex(boolean newFileDb) {
+        boolean existing = fileDb.exists(PATH_INDEX_COMPLETE);
+        if (!existing && openMode == RepositoryOpenMode.READ_ONLY) {
+            pathIndex = null;
+            pathIndexPaths = null;
+            pathIndexComplete = null;
+            return;
+        }
+        pathIndex = fileDb.treeSet(PATH_INDEX, new SerializerArrayTuple(Serializer.STRING, Serializer.LONG))
+                .createOrOpen();
+        pathIndexPaths = fileDb.hashMap(PATH_INDEX_PATHS, Serializer.LONG, Serializer.STRING).createOrOpen();
+        pathIndexComplete = fileDb.atomicBoolean(PATH_INDEX_COMPLETE).createOrOpen();
+        if (!existing) {
+            pathIndexComplete.set(newFileDb);
+        }
+    }
+
     private HTreeMap<String, byte[]> getBlockTmpMap() {
         if (blockTmpMap == null) {
             deleteAlternativeBlocksTable();
@@ -297,10 +349,19 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
 
         if (openMode != RepositoryOpenMode.WITHOUT_TRANSACTION) {
             maker.transactionEnable();
+        } else {
+            // Only used as the target of an upgrade. Tables that were not completed before a crash are deleted
+            // before opening again and completed tables were flushed when they finished.
+            maker.checksumHeaderBypass();
         }
 
-        if (openMode == RepositoryOpenMode.READ_ONLY)
+        if (openMode == RepositoryOpenMode.READ_ONLY) {
+            // Read views only copy some of the stores, the rest are opened empty.
+            if (!getPath(blockStore).toFile().exists()) {
+                return DBMaker.memoryDB().make();
+            }
             maker.readOnly();
+        }
         return maker.make();
     }
 
@@ -443,6 +504,16 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
         return new MapdbCloseableStream<>(stream);
     }
 
+    @Override
+    public CloseableStream<String> allBlockHashes() {
+        return new MapdbCloseableStream<>(blockMap.keySet().stream());
+    }
+
+    @Override
+    public CloseableStream<String> allFilePartHashes() {
+        return new MapdbCloseableStream<>(partsMap.ascendingMap().keySet().stream().map(key -> (String) key[0]));
+    }
+
     @Override
     public CloseableStream<BackupFilePart> allFileParts() {
         Stream<BackupFilePart> stream = partsMap.ascendingMap().entrySet().stream().map((entry) -> {
@@ -579,6 +650,66 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
         return null;
     }
 
+    @Override
+    public List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException {
+        String parent = path.isEmpty() || path.endsWith(PATH_SEPARATOR) ? path : path + PATH_SEPARATOR;
+        long maxTimestamp = timestamp != null ? timestamp : Long.MAX_VALUE;
+        NavigableMap<Object[], byte[]> map = fileMap.ascendingMap();
+        List<BackupFile> ret = new ArrayList<>();
+
+        Map.Entry<Object[], byte[]> entry = map.ceilingEntry(new Object[]{parent});
+        while (entry != null) {
+            String filePath = (String) entry.getKey()[0];
+            if (!filePath.startsWith(parent)) {
+                break;
+            }
+            int subDirectory = filePath.indexOf(PATH_SEPARATOR, parent.length());
+            if (subDirectory >= 0) {
+                // Jump past everything stored below the subdirectory.
+                entry = map.ceilingEntry(new Object[]{filePath.substring(0, subDirectory)
+                        + (char) (PATH_SEPARATOR.charAt(0) + 1)});
+            } else {
+                Map.Entry<Object[], byte[]> latest = map.floorEntry(new Object[]{filePath, maxTimestamp});
+                if (latest != null && filePath.equals(latest.getKey()[0])) {
+                    ret.add(decodeFile(latest));
+                }
+                entry = map.higherEntry(new Object[]{filePath, Long.MAX_VALUE});
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException {
+        String parent = path.isEmpty() || path.endsWith(PATH_SEPARATOR) ? path : path + PATH_SEPARATOR;
+        long maxTimestamp = timestamp != null ? timestamp : Long.MAX_VALUE;
+        NavigableMap<Object[], byte[]> map = directoryMap.ascendingMap();
+        List<BackupDirectory> ret = new ArrayList<>();
+
+        Map.Entry<Object[], byte[]> entry = map.higherEntry(new Object[]{parent, Long.MAX_VALUE});
+        while (entry != null) {
+            String directoryPath = (String) entry.getKey()[0];
+            if (!directoryPath.startsWith(parent)) {
+                break;
+            }
+            int separator = directoryPath.indexOf(PATH_SEPARATOR, parent.length());
+            if (separator >= 0 && separator == directoryPath.length() - 1) {
+                Map.Entry<Object[], byte[]> latest = map.floorEntry(new Object[]{directoryPath, maxTimestamp});
+                if (latest != null && directoryPath.equals(latest.getKey()[0])) {
+                    ret.add(decodeDirectory(latest));
+                }
+                entry = map.higherEntry(new Object[]{directoryPath, Long.MAX_VALUE});
+            } else if (separator >= 0) {
+                // Jump past everything stored below the child directory.
+                entry = map.ceilingEntry(new Object[]{directoryPath.substring(0, separator)
+                        + (char) (PATH_SEPARATOR.charAt(0) + 1)});
+            } else {
+                entry = map.higherEntry(new Object[]{directoryPath, Long.MAX_VALUE});
+            }
+        }
+        return ret;
+    }
+
     @Override
     public BackupBlock block(String hash) throws IOException {
         byte[] data = blockMap.get(hash);
@@ -654,9 +785,178 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
 
         fileMap.put(new Object[]{file.getPath(), added},
                 encodeData(BACKUP_FILE_WRITER, strippedCopy(file)));
+        indexPath(file.getPath());
         increaseWrite();
     }
 
+    private void indexPath(String path) {
+        if (pathIndexPaths == null || !addIndexedPath(path)) {
+            return;
+        }
+        // Parents of an indexed path are always indexed so we can stop at the first one already present.
+        int index = path.lastIndexOf(PATH_SEPARATOR, path.length() - 2);
+        while (index >= 0) {
+            String parent = path.substring(0, index + 1);
+            if (!addIndexedPath(parent)) {
+                break;
+            }
+            index = parent.lastIndexOf(PATH_SEPARATOR, parent.length() - 2);
+        }
+    }
+
+    private boolean addIndexedPath(String path) {
+        long id = pathIndexId(path);
+        String existing = pathIndexPaths.putIfAbsent(id, path);
+        if (existing != null) {
+            if (!existing.equals(path)) {
+                log.warn("Path index collision between \"{}\" and \"{}\"", PathNormalizer.physicalPath(existing),
+                        PathNormalizer.physicalPath(path));
+            }
+            return false;
+        }
+        for (String trigram : pathTrigrams(pathName(path))) {
+            pathIndex.add(new Object[]{trigram, id});
+        }
+        return true;
+    }
+
+    private void removeIndexedPath(String path) {
+        if (pathIndexPaths == null || !fileMap.prefixSubMap(new Object[]{path}).isEmpty()) {
+            return;
+        }
+        long id = pathIndexId(path);
+        if (path.equals(pathIndexPaths.get(id))) {
+            for (String trigram : pathTrigrams(pathName(path))) {
+                pathIndex.remove(new Object[]{trigram, id});
+            }
+            pathIndexPaths.remove(id);
+        }
+    }
+
+    private static long pathIndexId(String path) {
+        return Hashing.murmur3_128().hashString(path, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static String pathName(String path) {
+        String name = path.endsWith(PATH_SEPARATOR) ? path.substring(0, path.length() - 1) : path;
+        return name.substring(name.lastIndexOf(PATH_SEPARATOR) + 1);
+    }
+
+    private static Set<String> pathTrigrams(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        Set<String> ret = new TreeSet<>();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            ret.add(lower.substring(i, i + 3));
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean needPathIndex() {
+        return pathIndexComplete != null && !pathIndexComplete.get();
+    }
+
+    @Override
+    public void buildPathIndex() throws IOException {
+        if (pathIndexComplete == null) {
+            return;
+        }
+        String lastPath = null;
+        for (Object[] key : fileMap.ascendingMap().keySet()) {
+            String path = (String) key[0];
+            if (!path.equals(lastPath)) {
+                indexPath(path);
+                increaseWrite();
+                lastPath = path;
+            }
+        }
+        pathIndexComplete.set(true);
+        commit();
+    }
+
+    @Override
+    public CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException {
+        if (pathIndexComplete == null || !pathIndexComplete.get()) {
+            return null;
+        }
+
+        String segment = "";
+        for (String part : text.split(PATH_SEPARATOR)) {
+            if (part.length() > segment.length()) {
+                segment = part;
+            }
+        }
+        Set<String> trigrams = pathTrigrams(segment);
+        if (trigrams.isEmpty()) {
+            return null;
+        }
+
+        TreeSet<String> candidates = new TreeSet<>();
+        long current = Long.MIN_VALUE;
+        search:
+        while (true) {
+            boolean agreed = true;
+            for (String trigram : trigrams) {
+                Object[] key = pathIndex.ceiling(new Object[]{trigram, current});
+                if (key == null || !trigram.equals(key[0])) {
+                    break search;
+                }
+                long found = (Long) key[1];
+                if (found != current) {
+                    current = found;
+                    agreed = false;
+                }
+            }
+            if (agreed) {
+                String path = pathIndexPaths.get(current);
+                if (path != null) {
+                    candidates.add(path);
+                    if (candidates.size() > MAXIMUM_PATH_INDEX_CANDIDATES) {
+                        return null;
+                    }
+                }
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+                current++;
+            }
+        }
+
+        List<String> roots = new ArrayList<>();
+        String directory = null;
+        for (String path : candidates) {
+            if (directory == null || !path.startsWith(directory)) {
+                roots.add(path);
+                if (path.endsWith(PATH_SEPARATOR)) {
+                    directory = path;
+                }
+            }
+        }
+
+        NavigableMap<Object[], byte[]> map = fileMap.ascendingMap();
+        Stream<BackupFile> stream = roots.stream().flatMap(root -> {
+            NavigableMap<Object[], byte[]> files;
+            if (root.endsWith(PATH_SEPARATOR)) {
+                files = map.subMap(new Object[]{root}, true,
+                        new Object[]{root.substring(0, root.length() - 1) + (char) (PATH_SEPARATOR.charAt(0) + 1)},
+                        false);
+            } else {
+                files = fileMap.prefixSubMap(new Object[]{root});
+            }
+            return files.entrySet().stream();
+        }).map(entry -> {
+            try {
+                return decodeFile(entry);
+            } catch (IOException e) {
+                log.error("Invalid file \"{}:{}\"", PathNormalizer.physicalPath((String) entry.getKey()[0]),
+                        entry.getKey()[1], e);
+                return null;
+            }
+        });
+
+        return new MapdbCloseableStream<>(stream);
+    }
+
     @Override
     public void addFilePart(BackupFilePart part) throws IOException {
         partsMap.put(new Object[]{part.getPartHash(), part.getBlockHash()},
@@ -675,6 +975,7 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
                 .deleted(file.getDeleted())
                 .permissions(file.getPermissions())
                 .lastChanged(file.getLastChanged())
+                .digest(file.getDigest())
                 .build();
     }
 
@@ -759,6 +1060,7 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
     @Override
     public boolean deleteFile(BackupFile file) throws IOException {
         if (fileMap.remove(new Object[]{file.getPath(), file.getAdded()}) != null) {
+            removeIndexedPath(file.getPath());
             increaseWrite();
             return true;
         }
@@ -949,31 +1251,109 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
         return updatedPendingFilesMap.size();
     }
 
+    private static boolean isStoreFile(String name) {
+        for (String startName : ALL_STORES) {
+            if (name.startsWith(startName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void copyTo(String destination, Set<RepositoryTable> tables) throws IOException {
+        File parent = new File(dataPath);
+        File target = nonVersionedPath(version, revision) ? new File(destination) : new File(destination,
+                parent.getName());
+        Set<String> stores;
+        if (tables != null) {
+            // Active paths are small and shown when browsing so they are always included.
+            stores = tables.stream().flatMap(table -> Arrays.stream(tableStores(table)))
+                    .collect(Collectors.toCollection(HashSet::new));
+            stores.add(ACTIVE_PATH_STORE);
+        } else {
+            stores = null;
+        }
+        File[] files = parent.listFiles(file -> file.isFile()
+                && (stores != null ? stores.stream().anyMatch(file.getName()::startsWith)
+                : !nonVersionedPath(version, revision) || isStoreFile(file.getName())));
+        if (files == null) {
+            throw new IOException("Missing repository storage \"" + dataPath + "\"");
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        IOUtils.createDirectory(target, true);
+        if (target.getUsableSpace() < size + size / 10) {
+            throw new IOException("Not enough free space to copy " + readableSize(size) + " of repository storage");
+        }
+
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(target, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        debug(() -> log.debug("Copied repository storage to \"{}\"", target));
+    }
+
+    @Override
+    public void completeTable(RepositoryTable table) {
+        switch (table) {
+            case PENDING_SETS -> pendingSetDb.commit();
+            case BLOCKS -> blockDb.commit();
+            case ADDITIONAL_BLOCKS -> {
+                additionalBlockMap.complete();
+                additionalBlockDb.commit();
+            }
+            case FILES -> {
+                fileMap.complete();
+                fileDb.commit();
+            }
+            case PARTS -> {
+                partsMap.complete();
+                partsDb.commit();
+            }
+            case DIRECTORIES -> {
+                directoryMap.complete();
+                directoryDb.commit();
+            }
+            case UPDATED_FILES -> {
+                updatedPendingFilesMap.complete();
+                updatedPendingFilesDb.commit();
+                updatedFilesDb.commit();
+            }
+        }
+    }
+
+    private String[] tableStores(RepositoryTable table) {
+        return switch (table) {
+            case PENDING_SETS -> new String[]{PENDING_SET_STORE};
+            case BLOCKS -> new String[]{alternateBlockTable ? BLOCK_ALT_STORE : BLOCK_STORE};
+            case ADDITIONAL_BLOCKS -> new String[]{ADDITIONAL_BLOCK_STORE};
+            case FILES -> new String[]{FILE_STORE};
+            case PARTS -> new String[]{PARTS_STORE};
+            case DIRECTORIES -> new String[]{DIRECTORY_STORE};
+            case UPDATED_FILES -> new String[]{UPDATED_FILES_STORE, UPDATED_PENDING_FILES_STORE};
+        };
+    }
+
+    @Override
+    public void clearExcept(Set<RepositoryTable> tables) throws IOException {
+        Set<String> keep = tables.stream().flatMap(table -> Arrays.stream(tableStores(table)))
+                .collect(Collectors.toSet());
+        File[] files = new File(dataPath).listFiles((file, name) -> isStoreFile(name)
+                && keep.stream().noneMatch(name::startsWith));
+        if (files != null) {
+            for (File file : files) {
+                IOUtils.deleteFile(file);
+            }
+        }
+    }
+
     public void clear() throws IOException {
         File parent = new File(dataPath);
         if (nonVersionedPath(version, revision)) {
-            String[] allFiles = new String[]{
-                    FILE_STORE,
-                    BLOCK_STORE,
-                    BLOCK_ALT_STORE,
-                    PARTS_STORE,
-                    DIRECTORY_STORE,
-                    ACTIVE_PATH_STORE,
-                    PENDING_SET_STORE,
-                    PARTIAL_FILE_STORE,
-                    ADDITIONAL_BLOCK_STORE,
-                    UPDATED_FILES_STORE,
-                    UPDATED_PENDING_FILES_STORE
-            };
-
-            File[] files = parent.listFiles((file, name) -> {
-                for (String startName : allFiles) {
-                    if (name.startsWith(startName)) {
-                        return true;
-                    }
-                }
-                return false;
-            });
+            File[] files = parent.listFiles((file, name) -> isStoreFile(name));
             if (files != null) {
                 for (File file : files) {
                     IOUtils.deleteFile(file);
@@ -1173,6 +1553,12 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
             tree.close();
         }
 
+        public void complete() {
+            if (tree == null) {
+                closeSink();
+            }
+        }
+
         public NavigableMap<Object[], byte[]> prefixSubMap(Object[] objects) {
             if (tree == null) {
                 closeSink();
@@ -1196,6 +1582,10 @@ public class MapdbMetadataRepositoryStorage implements MetadataRepositoryStorage
 
         public byte[] remove(Object[] objects) {
             if (tree == null) {
+                // Keys reach the sink in order so nothing after the last key can be present yet.
+                if (lastKey == null || compareKeys(objects, lastKey) > 0) {
+                    return null;
+                }
                 closeSink();
             }
             return tree.remove(objects);
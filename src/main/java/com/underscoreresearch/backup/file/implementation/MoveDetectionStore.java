@@ -0,0 +1,167 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.underscoreresearch.backup.encryption.Hash;
+import com.underscoreresearch.backup.file.FileSystemAccess;
+import com.underscoreresearch.backup.file.PathNormalizer;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupSet;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.SystemUtils;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static com.underscoreresearch.backup.io.IOUtils.createDirectory;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+
+// Remembers the filesystem file key (device and inode on Unix) of every backed up file so that a file showing up
+// under a new path can reuse the locations of its previous path. File systems without file keys never match.
+@Slf4j
+public class MoveDetectionStore implements Closeable {
+    public static final String MOVE_DETECTION_PROPERTY = "moveDetection.enabled";
+    public static final String VERIFY_PROPERTY = "moveDetection.verify";
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final String KEY_PATHS = "keyPaths";
+    private static final String PATH_KEYS = "pathKeys";
+    private static final String SAMPLES = "samples";
+
+    private final DB db;
+    private final HTreeMap<String, String> keyPaths;
+    private final HTreeMap<String, String> pathKeys;
+    private final HTreeMap<String, String> samples;
+    private final FileSystemAccess filesystem;
+    private final boolean verify;
+    private boolean closed;
+
+    private MoveDetectionStore(File file, FileSystemAccess filesystem, boolean verify) {
+        this.filesystem = filesystem;
+        this.verify = verify;
+
+        DBMaker.Maker maker = DBMaker.fileDB(file).fileMmapPreclearDisable().transactionEnable();
+        if (SystemUtils.IS_OS_WINDOWS)
+            maker.fileChannelEnable();
+        else
+            maker.fileMmapEnableIfSupported();
+        db = maker.make();
+
+        keyPaths = db.hashMap(KEY_PATHS, Serializer.STRING, Serializer.STRING).createOrOpen();
+        pathKeys = db.hashMap(PATH_KEYS, Serializer.STRING, Serializer.STRING).createOrOpen();
+        samples = db.hashMap(SAMPLES, Serializer.STRING, Serializer.STRING).createOrOpen();
+        if (!verify) {
+            samples.clear();
+        }
+    }
+
+    public static MoveDetectionStore open(BackupConfiguration configuration, String manifestLocation,
+                                          BackupSet set, FileSystemAccess filesystem) {
+        if (configuration == null || !"true".equals(configuration.getProperty(MOVE_DETECTION_PROPERTY, "false"))) {
+            return null;
+        }
+
+        File file = Paths.get(manifestLocation, "db", "sets", set.getId() + ".moves.db").toFile();
+        createDirectory(file.getParentFile(), true);
+        try {
+            return new MoveDetectionStore(file, filesystem,
+                    "true".equals(configuration.getProperty(VERIFY_PROPERTY, "false")));
+        } catch (Exception exc) {
+            log.warn("Failed to open move detection for set \"{}\", moved files will be read again", set.getId(), exc);
+            return null;
+        }
+    }
+
+    public String fileKey(String path) {
+        try {
+            Object key = Files.readAttributes(Paths.get(PathNormalizer.physicalPath(path)), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS).fileKey();
+            return key != null ? key.toString() : null;
+        } catch (IOException exc) {
+            debug(() -> log.debug("Failed to read file key of \"{}\"", PathNormalizer.physicalPath(path), exc));
+            return null;
+        }
+    }
+
+    public synchronized boolean isKnown(String path) {
+        return !closed && pathKeys.containsKey(path);
+    }
+
+    public synchronized String previousPath(String fileKey) {
+        if (closed || fileKey == null) {
+            return null;
+        }
+        return keyPaths.get(fileKey);
+    }
+
+    public void record(String path, String fileKey) {
+        if (fileKey == null) {
+            return;
+        }
+        String sample = verify ? sampleHash(path) : null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            keyPaths.put(fileKey, path);
+            pathKeys.put(path, fileKey);
+            if (sample != null) {
+                samples.put(fileKey, sample);
+            }
+        }
+    }
+
+    // Without verification a matching file key, length and modification time is trusted. With verification a hash
+    // of the start, middle and end of the file must also match what was seen when it was last recorded.
+    public boolean verify(String fileKey, String path) {
+        if (!verify) {
+            return true;
+        }
+        String expected;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            expected = samples.get(fileKey);
+        }
+        return expected != null && Objects.equals(expected, sampleHash(path));
+    }
+
+    private String sampleHash(String path) {
+        try {
+            long length = Files.size(Paths.get(PathNormalizer.physicalPath(path)));
+            Hash hash = new Hash();
+            long[] offsets = length <= SAMPLE_SIZE * 3L
+                    ? new long[]{0}
+                    : new long[]{0, length / 2 - SAMPLE_SIZE / 2, length - SAMPLE_SIZE};
+            byte[] buffer = new byte[offsets.length == 1 ? (int) length : SAMPLE_SIZE];
+            for (long offset : offsets) {
+                int read = filesystem.readData(path, buffer, offset, buffer.length);
+                if (read > 0) {
+                    hash.addBytes(Arrays.copyOf(buffer, read));
+                }
+            }
+            return hash.getHash();
+        } catch (IOException exc) {
+            debug(() -> log.debug("Failed to sample \"{}\"", PathNormalizer.physicalPath(path), exc));
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            db.commit();
+            db.close();
+        }
+    }
+}
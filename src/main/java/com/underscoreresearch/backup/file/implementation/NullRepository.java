@@ -147,6 +147,31 @@ public class NullRepository implements MetadataRepository {
 
     }
 
+    @Override
+    public void startReadView(boolean allTables) throws IOException {
+
+    }
+
+    @Override
+    public void closeReadView() throws IOException {
+
+    }
+
+    @Override
+    public MetadataRepository readView() {
+        return null;
+    }
+
+    @Override
+    public void startSortedLoad() throws IOException {
+
+    }
+
+    @Override
+    public void finishSortedLoad() throws IOException {
+
+    }
+
     @Override
     public List<ExternalBackupFile> file(String path) throws IOException {
         return null;
@@ -157,6 +182,21 @@ public class NullRepository implements MetadataRepository {
         return null;
     }
 
+    @Override
+    public List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException {
+        return null;
+    }
+
+    @Override
+    public List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException {
+        return null;
+    }
+
+    @Override
+    public CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException {
+        return null;
+    }
+
     @Override
     public boolean deleteFile(BackupFile file) throws IOException {
         return false;
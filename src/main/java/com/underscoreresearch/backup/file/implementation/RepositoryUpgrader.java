@@ -1,52 +1,100 @@
 package com.underscoreresearch.backup.file.implementation;
 
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
 import com.underscoreresearch.backup.file.CloseableLock;
 import com.underscoreresearch.backup.file.CloseableStream;
 import com.underscoreresearch.backup.file.MetadataRepositoryStorage;
 import com.underscoreresearch.backup.file.RepositoryOpenMode;
-import com.underscoreresearch.backup.manifest.model.BackupDirectory;
-import com.underscoreresearch.backup.model.BackupBlock;
-import com.underscoreresearch.backup.model.BackupBlockAdditional;
-import com.underscoreresearch.backup.model.BackupFile;
-import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.file.RepositoryTable;
+import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.model.BackupPendingSet;
-import com.underscoreresearch.backup.model.BackupUpdatedFile;
 import com.underscoreresearch.backup.utils.ManualStatusLogger;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.StatusLine;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
 import static com.underscoreresearch.backup.utils.LogUtil.readableEta;
 import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
 
+// Tables are migrated concurrently since every table is stored separately. Within a table records are read and
+// decoded on one thread while the previous batch is encoded and inserted in order on another, which keeps sorted
+// tables on the bulk load path. When given a progress file, completed tables are recorded so that an interrupted
+// migration only redoes the tables that had not finished.
 @Slf4j
 public class RepositoryUpgrader implements ManualStatusLogger {
+    private static final ObjectReader PROGRESS_READER = MAPPER.readerFor(UpgradeProgress.class);
+    private static final ObjectWriter PROGRESS_WRITER = MAPPER.writerFor(UpgradeProgress.class);
+    private static final int BATCH_SIZE = 1000;
+    private static final int QUEUED_BATCHES = 8;
+
     private final MetadataRepositoryStorage storage;
     private final MetadataRepositoryStorage updatedStorage;
+    private final File progressFile;
 
     private final AtomicLong totalSteps = new AtomicLong(0);
     private final AtomicLong currentStep = new AtomicLong(0);
     private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private UpgradeProgress progress;
+    private ExecutorService readers;
 
     public RepositoryUpgrader(MetadataRepositoryStorage storage, MetadataRepositoryStorage upgradedStorage) {
+        this(storage, upgradedStorage, null);
+    }
+
+    public RepositoryUpgrader(MetadataRepositoryStorage storage, MetadataRepositoryStorage upgradedStorage,
+                              File progressFile) {
         this.storage = storage;
         this.updatedStorage = upgradedStorage;
+        this.progressFile = progressFile;
+    }
+
+    private static long tableCount(MetadataRepositoryStorage storage, RepositoryTable table) throws IOException {
+        return switch (table) {
+            case PENDING_SETS -> storage.getPendingSets().size();
+            case BLOCKS -> storage.getBlockCount();
+            case ADDITIONAL_BLOCKS -> storage.getAdditionalBlockCount();
+            case FILES -> storage.getFileCount();
+            case PARTS -> storage.getPartCount();
+            case DIRECTORIES -> storage.getDirectoryCount();
+            case UPDATED_FILES -> storage.getUpdatedFileCount();
+        };
     }
 
     public void upgrade() throws IOException, RepositoryErrorException {
-        updatedStorage.clear();
-        updatedStorage.open(RepositoryOpenMode.WITHOUT_TRANSACTION);
+        Map<RepositoryTable, Long> sourceCounts = new EnumMap<>(RepositoryTable.class);
+        for (RepositoryTable table : RepositoryTable.values()) {
+            sourceCounts.put(table, tableCount(storage, table));
+        }
+        openUpdatedStorage(sourceCounts);
 
         try (CloseableLock ignored = storage.exclusiveLock()) {
             try (CloseableLock ignored2 = updatedStorage.exclusiveLock()) {
@@ -55,133 +103,21 @@ public class RepositoryUpgrader implements ManualStatusLogger {
 
                 StateLogger.addLogger(this);
 
-                totalSteps.set(storage.getBlockCount() + storage.getFileCount() + storage.getAdditionalBlockCount()
-                        + storage.getDirectoryCount() + storage.getPartCount() + storage.getUpdatedFileCount());
+                totalSteps.set(sourceCounts.values().stream().mapToLong(Long::longValue).sum());
+                currentStep.set(progress.getCompleted().values().stream().mapToLong(Long::longValue).sum());
 
                 log.info("Started metadata migration");
-                {
+                if (!progress.getCompleted().containsKey(RepositoryTable.PENDING_SETS)) {
                     Set<BackupPendingSet> pendingSets = storage.getPendingSets();
-                    totalSteps.addAndGet(pendingSets.size());
-
-                    pendingSets.forEach(set -> {
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addPendingSets(set);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+                    for (BackupPendingSet set : pendingSets) {
+                        currentStep.incrementAndGet();
+                        updatedStorage.addPendingSets(set);
+                    }
+                    completeTable(RepositoryTable.PENDING_SETS, sourceCounts);
                     log.info("Migrated {} pending sets", readableNumber(pendingSets.size()));
                 }
 
-                try (CloseableStream<BackupBlock> blocks = storage.allBlocks()) {
-                    blocks.setReportErrorsAsNull(true);
-                    blocks.stream().forEach(block -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (block == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid block");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addBlock(block);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    log.info("Migrated {} blocks", readableNumber(updatedStorage.getBlockCount()));
-                }
-
-                try (CloseableStream<BackupBlockAdditional> blocks = storage.allAdditionalBlocks()) {
-                    blocks.setReportErrorsAsNull(true);
-                    blocks.stream().forEach(block -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (block == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid additional block");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addAdditionalBlock(block);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    log.info("Migrated {} additional blocks", readableNumber(updatedStorage.getAdditionalBlockCount()));
-                }
-
-                try (CloseableStream<BackupFile> files = storage.allFiles(true)) {
-                    files.setReportErrorsAsNull(true);
-                    files.stream().forEach(file -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (file == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid file");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addFile(file);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    log.info("Migrated {} files", readableNumber(updatedStorage.getFileCount()));
-                }
-
-                try (CloseableStream<BackupFilePart> parts = storage.allFileParts()) {
-                    parts.setReportErrorsAsNull(true);
-                    parts.stream().forEach(part -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (part == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid file part");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addFilePart(part);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    log.info("Migrated {} file parts", readableNumber(updatedStorage.getPartCount()));
-                }
-
-                try (CloseableStream<BackupDirectory> dirs = storage.allDirectories(true)) {
-                    dirs.setReportErrorsAsNull(true);
-                    dirs.stream().forEach(dir -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (dir == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid directory");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addDirectory(dir);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-
-                    log.info("Migrated {} directories", readableNumber(updatedStorage.getDirectoryCount()));
-                }
-
-                try (CloseableStream<BackupUpdatedFile> files = storage.getUpdatedFiles()) {
-                    files.setReportErrorsAsNull(true);
-                    files.stream().forEach(file -> {
-                        if (InstanceFactory.isShutdown())
-                            throw new CancellationException();
-                        if (file == null) {
-                            throw new RuntimeRepositoryErrorException("Invalid updated file");
-                        }
-                        try {
-                            currentStep.incrementAndGet();
-                            updatedStorage.addUpdatedFile(file, -1);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    log.info("Migrated {} updated files", readableNumber(updatedStorage.getUpdatedFileCount()));
-                }
+                migrateTables(sourceCounts);
 
                 updatedStorage.commit();
             }
@@ -198,9 +134,130 @@ public class RepositoryUpgrader implements ManualStatusLogger {
             StateLogger.removeLogger(this);
         }
 
+        if (progressFile != null) {
+            IOUtils.deleteFile(progressFile);
+        }
         log.info("Successfully completed metadata migration");
     }
 
+    private void openUpdatedStorage(Map<RepositoryTable, Long> sourceCounts) throws IOException {
+        progress = readProgress();
+        // A table is only trusted if the source has not changed since it was migrated.
+        progress.getCompleted().entrySet()
+                .removeIf(entry -> !entry.getValue().equals(sourceCounts.get(entry.getKey())));
+
+        if (progress.getCompleted().isEmpty()) {
+            updatedStorage.clear();
+            updatedStorage.open(RepositoryOpenMode.WITHOUT_TRANSACTION);
+        } else {
+            updatedStorage.clearExcept(progress.getCompleted().keySet());
+            updatedStorage.open(RepositoryOpenMode.WITHOUT_TRANSACTION);
+
+            for (Map.Entry<RepositoryTable, Long> entry : progress.getCompleted().entrySet()) {
+                if (tableCount(updatedStorage, entry.getKey()) != entry.getValue()) {
+                    log.warn("Migrated metadata does not match, starting migration over");
+                    updatedStorage.close();
+                    updatedStorage.clear();
+                    updatedStorage.open(RepositoryOpenMode.WITHOUT_TRANSACTION);
+                    progress = new UpgradeProgress();
+                    break;
+                }
+            }
+            if (!progress.getCompleted().isEmpty()) {
+                log.info("Resuming metadata migration with {} of {} tables already migrated",
+                        progress.getCompleted().size(), RepositoryTable.values().length);
+            }
+        }
+        saveProgress();
+    }
+
+    private void migrateTables(Map<RepositoryTable, Long> sourceCounts) {
+        List<TableMigration<?>> migrations = Lists.newArrayList(
+                new TableMigration<>(RepositoryTable.BLOCKS, "blocks", storage::allBlocks,
+                        updatedStorage::addBlock),
+                new TableMigration<>(RepositoryTable.ADDITIONAL_BLOCKS, "additional blocks",
+                        storage::allAdditionalBlocks, updatedStorage::addAdditionalBlock),
+                new TableMigration<>(RepositoryTable.FILES, "files", () -> storage.allFiles(true),
+                        updatedStorage::addFile),
+                new TableMigration<>(RepositoryTable.PARTS, "file parts", storage::allFileParts,
+                        updatedStorage::addFilePart),
+                new TableMigration<>(RepositoryTable.DIRECTORIES, "directories", () -> storage.allDirectories(true),
+                        updatedStorage::addDirectory),
+                new TableMigration<>(RepositoryTable.UPDATED_FILES, "updated files", storage::getUpdatedFiles,
+                        file -> updatedStorage.addUpdatedFile(file, -1)));
+        migrations.removeIf(migration -> progress.getCompleted().containsKey(migration.table));
+        if (migrations.isEmpty()) {
+            return;
+        }
+
+        ExecutorService writers = Executors.newFixedThreadPool(migrations.size(),
+                new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-Write-%d").build());
+        readers = Executors.newFixedThreadPool(migrations.size(),
+                new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-Read-%d").build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (TableMigration<?> migration : migrations) {
+                futures.add(writers.submit(() -> {
+                    migration.migrate();
+                    completeTable(migration.table, sourceCounts);
+                    return null;
+                }));
+            }
+
+            // Let every table finish even if one fails so as much as possible is kept for the next attempt.
+            Throwable failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException exc) {
+                    if (failure == null) {
+                        failure = exc.getCause();
+                    }
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                }
+            }
+            if (failure instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        } finally {
+            writers.shutdownNow();
+            readers.shutdownNow();
+            readers = null;
+        }
+    }
+
+    private synchronized void completeTable(RepositoryTable table, Map<RepositoryTable, Long> sourceCounts)
+            throws IOException {
+        updatedStorage.completeTable(table);
+        progress.getCompleted().put(table, sourceCounts.get(table));
+        saveProgress();
+    }
+
+    private UpgradeProgress readProgress() {
+        if (progressFile != null && progressFile.exists()) {
+            try {
+                return PROGRESS_READER.readValue(progressFile);
+            } catch (IOException exc) {
+                log.warn("Failed to read metadata migration progress, starting over", exc);
+            }
+        }
+        return new UpgradeProgress();
+    }
+
+    private void saveProgress() throws IOException {
+        if (progressFile != null) {
+            File tempFile = new File(progressFile.getParentFile(), progressFile.getName() + ".tmp");
+            PROGRESS_WRITER.writeValue(tempFile, progress);
+            Files.move(tempFile.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            debug(() -> log.debug("Saved metadata migration progress for {} tables", progress.getCompleted().size()));
+        }
+    }
+
     @Override
     public void resetStatus() {
         currentStep.set(0);
@@ -226,6 +283,19 @@ public class RepositoryUpgrader implements ManualStatusLogger {
         return new ArrayList<>();
     }
 
+    private interface TableSource<T> {
+        CloseableStream<T> open() throws IOException;
+    }
+
+    private interface TableWriter<T> {
+        void write(T item) throws IOException;
+    }
+
+    @Data
+    private static class UpgradeProgress {
+        private Map<RepositoryTable, Long> completed = new EnumMap<>(RepositoryTable.class);
+    }
+
     private static class RuntimeRepositoryErrorException extends RuntimeException {
         public RuntimeRepositoryErrorException(String message) {
             super(message);
@@ -237,4 +307,98 @@ public class RepositoryUpgrader implements ManualStatusLogger {
             super(message);
         }
     }
+
+    private class TableMigration<T> {
+        private final RepositoryTable table;
+        private final String name;
+        private final TableSource<T> source;
+        private final TableWriter<T> writer;
+        // A batch shorter than BATCH_SIZE is always the last one, possibly empty.
+        private final BlockingQueue<List<T>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private TableMigration(RepositoryTable table, String name, TableSource<T> source, TableWriter<T> writer) {
+            this.table = table;
+            this.name = name;
+            this.source = source;
+            this.writer = writer;
+        }
+
+        private void migrate() throws IOException, InterruptedException, ExecutionException {
+            Future<?> reader = readers.submit(() -> {
+                read();
+                return null;
+            });
+            try {
+                while (true) {
+                    List<T> batch = queue.poll(1, TimeUnit.SECONDS);
+                    if (batch == null) {
+                        if (reader.isDone() && queue.isEmpty()) {
+                            reader.get();
+                            throw new IOException("Reading " + name + " ended early");
+                        }
+                        continue;
+                    }
+                    for (T item : batch) {
+                        if (InstanceFactory.isShutdown())
+                            throw new CancellationException();
+                        currentStep.incrementAndGet();
+                        writer.write(item);
+                    }
+                    if (batch.size() < BATCH_SIZE) {
+                        break;
+                    }
+                }
+            } catch (ExecutionException exc) {
+                if (exc.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw exc;
+            } finally {
+                stopped.set(true);
+                queue.clear();
+                try {
+                    reader.get();
+                } catch (ExecutionException | CancellationException ignored) {
+                }
+            }
+            log.info("Migrated {} {}", readableNumber(tableCount(updatedStorage, table)), name);
+        }
+
+        private void read() throws IOException, InterruptedException {
+            try (CloseableStream<T> items = source.open()) {
+                items.setReportErrorsAsNull(true);
+                Iterator<T> iterator = items.stream().iterator();
+                List<T> batch = new ArrayList<>(BATCH_SIZE);
+                while (iterator.hasNext()) {
+                    if (InstanceFactory.isShutdown())
+                        throw new CancellationException();
+                    if (stopped.get()) {
+                        return;
+                    }
+                    T item = iterator.next();
+                    if (item == null) {
+                        throw new RuntimeRepositoryErrorException("Invalid " + name);
+                    }
+                    batch.add(item);
+                    if (batch.size() == BATCH_SIZE) {
+                        if (!enqueue(batch)) {
+                            return;
+                        }
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                enqueue(batch);
+            }
+        }
+
+        private boolean enqueue(List<T> batch) throws InterruptedException {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                if (stopped.get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -7,6 +7,7 @@ import com.cronutils.model.time.ExecutionTime;
 import com.cronutils.parser.CronParser;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.underscoreresearch.backup.cli.helpers.BlockScrubber;
 import com.underscoreresearch.backup.cli.helpers.BlockValidator;
 import com.underscoreresearch.backup.cli.helpers.RepositoryTrimmer;
 import com.underscoreresearch.backup.cli.ui.UIHandler;
@@ -385,6 +386,13 @@ public class ScannerSchedulerImpl implements ScannerScheduler {
                 backupStatsLogger.setNeedValidation(true);
                 stateLogger.reset();
             }
+            try {
+                if (InstanceFactory.getInstance(ManifestManager.class).createSnapshot(repository, false)) {
+                    stateLogger.reset();
+                }
+            } catch (IOException exc) {
+                log.error("Failed to create metadata snapshot", exc);
+            }
             Stopwatch stopwatch = Stopwatch.createStarted();
             if (!repository.isErrorsDetected() && backupStatsLogger.isNeedValidation()) {
                 if (InstanceFactory.getInstance(BlockValidator.class).validateBlocks(false, stopwatch)) {
@@ -394,6 +402,10 @@ public class ScannerSchedulerImpl implements ScannerScheduler {
             if (!InstanceFactory.getInstance(BlockValidator.class).validateStorage(false, stopwatch)) {
                 log.error("Failed to validate logs and some destination blocks. Your backup could be corrupted. Consider doing a full block validation and optimize your logs");
             }
+            BlockScrubber scrubber = InstanceFactory.getInstance(BlockScrubber.class);
+            if (scrubber.isEnabled()) {
+                scrubber.scrub();
+            }
         }
     }
 
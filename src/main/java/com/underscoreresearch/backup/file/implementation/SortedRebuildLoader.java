@@ -0,0 +1,367 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.file.MetadataRepositoryStorage;
+import com.underscoreresearch.backup.file.RepositoryTable;
+import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+
+import static com.underscoreresearch.backup.io.IOUtils.createDirectory;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_BLOCK_READER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_BLOCK_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_DIRECTORY_READER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_DIRECTORY_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_FILE_PART_READER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_FILE_PART_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_FILE_READER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_FILE_WRITER;
+
+// Collects file, part, block and directory changes of a log rebuild in sorted runs on disk instead of applying them
+// in arrival order. When loaded the runs are merged keeping only the last change of every key and the result is
+// written in key order, so empty tables are bulk loaded through their sink.
+@Slf4j
+public class SortedRebuildLoader implements Closeable {
+    public static final String SORTED_LOAD_PROPERTY = "rebuild.sortedLoad";
+    static final int DEFAULT_RUN_ENTRIES = 250000;
+    static final int DEFAULT_MERGE_RUNS = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Comparator<Entry> ENTRY_COMPARATOR = Comparator
+            .comparing(Entry::first)
+            .thenComparing(Entry::second, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparingLong(Entry::number)
+            .thenComparingLong(Entry::sequence);
+
+    private final File directory;
+    private final int runEntries;
+    private final int mergeRuns;
+    private final Map<RepositoryTable, TableRuns> tables = new EnumMap<>(RepositoryTable.class);
+    private long sequence;
+    private int runCounter;
+
+    public SortedRebuildLoader(File directory) {
+        this(directory, DEFAULT_RUN_ENTRIES, DEFAULT_MERGE_RUNS);
+    }
+
+    SortedRebuildLoader(File directory, int runEntries, int mergeRuns) {
+        this.directory = directory;
+        this.runEntries = runEntries;
+        this.mergeRuns = mergeRuns;
+
+        IOUtils.deleteContents(directory);
+        createDirectory(directory, true);
+        for (RepositoryTable table : new RepositoryTable[]{RepositoryTable.FILES, RepositoryTable.PARTS,
+                RepositoryTable.BLOCKS, RepositoryTable.DIRECTORIES}) {
+            tables.put(table, new TableRuns(table));
+        }
+    }
+
+    private static boolean sameKey(Entry entry1, Entry entry2) {
+        return entry1.first().equals(entry2.first()) && Objects.equals(entry1.second(), entry2.second())
+                && entry1.number() == entry2.number();
+    }
+
+    public void addFile(BackupFile file) throws IOException {
+        long added = file.getAdded() != null ? file.getAdded() : file.getLastChanged();
+        add(RepositoryTable.FILES, file.getPath(), null, added, BACKUP_FILE_WRITER.writeValueAsBytes(file));
+    }
+
+    public void deleteFile(BackupFile file) throws IOException {
+        if (file.getAdded() != null) {
+            add(RepositoryTable.FILES, file.getPath(), null, file.getAdded(), null);
+        }
+    }
+
+    public void addFilePart(BackupFilePart part) throws IOException {
+        add(RepositoryTable.PARTS, part.getPartHash(), part.getBlockHash(), 0,
+                BACKUP_FILE_PART_WRITER.writeValueAsBytes(part));
+    }
+
+    public void deleteFilePart(BackupFilePart part) throws IOException {
+        add(RepositoryTable.PARTS, part.getPartHash(), part.getBlockHash(), 0, null);
+    }
+
+    public void addBlock(BackupBlock block) throws IOException {
+        add(RepositoryTable.BLOCKS, block.getHash(), null, 0, BACKUP_BLOCK_WRITER.writeValueAsBytes(block));
+    }
+
+    public void deleteBlock(BackupBlock block) throws IOException {
+        add(RepositoryTable.BLOCKS, block.getHash(), null, 0, null);
+    }
+
+    public void addDirectory(BackupDirectory directory) throws IOException {
+        add(RepositoryTable.DIRECTORIES, directory.getPath(), null, directory.getAdded(),
+                BACKUP_DIRECTORY_WRITER.writeValueAsBytes(directory));
+    }
+
+    public void deleteDirectory(String path, long timestamp) throws IOException {
+        add(RepositoryTable.DIRECTORIES, path, null, timestamp, null);
+    }
+
+    // Everything collected so far is superseded by a clear of the repository.
+    public void clear() {
+        for (TableRuns table : tables.values()) {
+            table.clear();
+        }
+    }
+
+    public void load(MetadataRepositoryStorage storage) throws IOException {
+        for (TableRuns table : tables.values()) {
+            table.load(storage);
+        }
+        storage.commit();
+    }
+
+    @Override
+    public void close() {
+        clear();
+        IOUtils.deleteContents(directory);
+        IOUtils.deleteFile(directory);
+    }
+
+    private void add(RepositoryTable table, String first, String second, long number, byte[] value)
+            throws IOException {
+        if (first != null) {
+            tables.get(table).add(new Entry(first, second, number, sequence++, value));
+        }
+    }
+
+    private File newRunFile(RepositoryTable table) {
+        return new File(directory, table.name().toLowerCase() + "-" + (runCounter++) + ".run");
+    }
+
+    private void applyEntry(MetadataRepositoryStorage storage, RepositoryTable table, Entry entry)
+            throws IOException {
+        if (entry.value() == null) {
+            switch (table) {
+                case FILES -> storage.deleteFile(BackupFile.builder().path(entry.first()).added(entry.number())
+                        .build());
+                case PARTS -> storage.deleteFilePart(BackupFilePart.builder().partHash(entry.first())
+                        .blockHash(entry.second()).build());
+                case BLOCKS -> storage.deleteBlock(BackupBlock.builder().hash(entry.first()).build());
+                case DIRECTORIES -> storage.deleteDirectory(entry.first(), entry.number());
+                default -> throw new IllegalArgumentException("Unsupported table " + table);
+            }
+        } else {
+            switch (table) {
+                case FILES -> storage.addFile(BACKUP_FILE_READER.readValue(entry.value()));
+                case PARTS -> storage.addFilePart(BACKUP_FILE_PART_READER.readValue(entry.value()));
+                case BLOCKS -> storage.addBlock(BACKUP_BLOCK_READER.readValue(entry.value()));
+                case DIRECTORIES -> storage.addDirectory(BACKUP_DIRECTORY_READER.readValue(entry.value()));
+                default -> throw new IllegalArgumentException("Unsupported table " + table);
+            }
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(Entry entry) throws IOException;
+    }
+
+    // A null value is a delete.
+    private record Entry(String first, String second, long number, long sequence, byte[] value) {
+    }
+
+    private static class RunWriter implements Closeable {
+        private final DataOutputStream stream;
+
+        private RunWriter(File file) throws IOException {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        private void write(Entry entry) throws IOException {
+            writeBytes(entry.first().getBytes(StandardCharsets.UTF_8));
+            writeBytes(entry.second() != null ? entry.second().getBytes(StandardCharsets.UTF_8) : null);
+            stream.writeLong(entry.number());
+            stream.writeLong(entry.sequence());
+            writeBytes(entry.value());
+        }
+
+        private void writeBytes(byte[] data) throws IOException {
+            if (data == null) {
+                stream.writeInt(-1);
+            } else {
+                stream.writeInt(data.length);
+                stream.write(data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream stream;
+        private Entry current;
+
+        private RunReader(File file) throws IOException {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            next();
+        }
+
+        private void next() throws IOException {
+            byte[] first;
+            try {
+                first = readBytes();
+            } catch (EOFException exc) {
+                current = null;
+                return;
+            }
+            byte[] second = readBytes();
+            long number = stream.readLong();
+            long sequence = stream.readLong();
+            current = new Entry(new String(first, StandardCharsets.UTF_8),
+                    second != null ? new String(second, StandardCharsets.UTF_8) : null,
+                    number, sequence, readBytes());
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = stream.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            stream.readFully(data);
+            return data;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private class TableRuns {
+        private final RepositoryTable table;
+        private final List<File> runs = new ArrayList<>();
+        private List<Entry> entries = new ArrayList<>();
+
+        private TableRuns(RepositoryTable table) {
+            this.table = table;
+        }
+
+        private void add(Entry entry) throws IOException {
+            entries.add(entry);
+            if (entries.size() >= runEntries) {
+                spill();
+            }
+        }
+
+        private void spill() throws IOException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            entries.sort(ENTRY_COMPARATOR);
+            File file = newRunFile(table);
+            try (RunWriter writer = new RunWriter(file)) {
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    if (i + 1 == entries.size() || !sameKey(entry, entries.get(i + 1))) {
+                        writer.write(entry);
+                    }
+                }
+            }
+            runs.add(file);
+            entries = new ArrayList<>();
+        }
+
+        private void clear() {
+            entries = new ArrayList<>();
+            for (File run : runs) {
+                IOUtils.deleteFile(run);
+            }
+            runs.clear();
+        }
+
+        private void load(MetadataRepositoryStorage storage) throws IOException {
+            spill();
+            while (runs.size() > mergeRuns) {
+                List<File> inputs = new ArrayList<>(runs.subList(0, mergeRuns));
+                File output = newRunFile(table);
+                try (RunWriter writer = new RunWriter(output)) {
+                    merge(inputs, writer::write);
+                }
+                runs.removeAll(inputs);
+                runs.add(output);
+                inputs.forEach(IOUtils::deleteFile);
+                debug(() -> log.debug("Merged {} runs of {}", inputs.size(), table));
+            }
+
+            long[] count = new long[1];
+            merge(runs, entry -> {
+                if (InstanceFactory.isShutdown()) {
+                    throw new CancellationException();
+                }
+                applyEntry(storage, table, entry);
+                count[0]++;
+            });
+            if (count[0] > 0) {
+                log.info("Loaded {} sorted {} changes", readableNumber(count[0]), table.name().toLowerCase());
+            }
+            clear();
+        }
+
+        // Only the last change of every key is passed on.
+        private void merge(List<File> inputs, EntryConsumer consumer) throws IOException {
+            PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(inputs.size(), 1),
+                    (reader1, reader2) -> ENTRY_COMPARATOR.compare(reader1.current, reader2.current));
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                for (File input : inputs) {
+                    RunReader reader = new RunReader(input);
+                    readers.add(reader);
+                    if (reader.current != null) {
+                        queue.add(reader);
+                    }
+                }
+
+                Entry pending = null;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    Entry entry = reader.current;
+                    if (pending != null && !sameKey(pending, entry)) {
+                        consumer.accept(pending);
+                    }
+                    pending = entry;
+                    reader.next();
+                    if (reader.current != null) {
+                        queue.add(reader);
+                    }
+                }
+                if (pending != null) {
+                    consumer.accept(pending);
+                }
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+    }
+}
@@ -3,14 +3,9 @@ package com.underscoreresearch.backup.file.implementation;
 import com.underscoreresearch.backup.file.FilePermissionManager;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 
-import static com.underscoreresearch.backup.utils.LogUtil.debug;
-
 @Slf4j
 public class WindowsFileSystemAccess extends PermissionFileSystemAccess {
     public WindowsFileSystemAccess(FilePermissionManager permissionManager) {
@@ -18,13 +13,7 @@ public class WindowsFileSystemAccess extends PermissionFileSystemAccess {
     }
 
     @Override
-    protected boolean isSymbolicLink(Path filePath) {
-        try {
-            BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
-            return (attrs.isDirectory() && attrs.isOther()) || attrs.isSymbolicLink();
-        } catch (IOException e) {
-            debug(() -> log.debug("Failed to determine symbolic link state of \"{}\"", filePath.toAbsolutePath(), e));
-            return true;
-        }
+    protected boolean isSymbolicLink(Path filePath, BasicFileAttributes attributes) {
+        return (attributes.isDirectory() && attributes.isOther()) || attributes.isSymbolicLink();
     }
 }
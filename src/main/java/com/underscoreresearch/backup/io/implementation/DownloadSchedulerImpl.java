@@ -4,7 +4,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.block.BlockDownloader;
 import com.underscoreresearch.backup.block.FileDownloader;
+import com.underscoreresearch.backup.block.implementation.FileDownloaderImpl;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
 import com.underscoreresearch.backup.file.CloseableMap;
 import com.underscoreresearch.backup.file.CloseableSortedMap;
@@ -13,10 +16,13 @@ import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.PathNormalizer;
 import com.underscoreresearch.backup.io.DownloadScheduler;
 import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.model.BackupBlock;
 import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
 import com.underscoreresearch.backup.utils.ManualStatusLogger;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.StatusLine;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -27,7 +33,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -40,10 +50,12 @@ import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
 
 @Slf4j
 public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatusLogger, DownloadScheduler {
+    private static final int MAX_GROUP_FILES = 32;
     private static final ObjectReader SCHEDULED_DOWNLOAD_READER = MAPPER.readerFor(ScheduledDownload.class);
     private static final ObjectWriter SCHEDULED_DOWNLOAD_WRITER = MAPPER.writerFor(ScheduledDownload.class);
 
     private final FileDownloader fileDownloader;
+    private final BlockDownloader blockDownloader;
     private final AtomicLong totalSize = new AtomicLong();
     private final AtomicLong totalCount = new AtomicLong();
     private final AtomicLong failedCount = new AtomicLong();
@@ -59,8 +71,16 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
     public DownloadSchedulerImpl(int maximumConcurrency,
                                  MetadataRepository repository,
                                  FileDownloader fileDownloader) {
-        super(maximumConcurrency);
+        this(maximumConcurrency, repository, fileDownloader, null);
+    }
+
+    public DownloadSchedulerImpl(int maximumConcurrency,
+                                 MetadataRepository repository,
+                                 FileDownloader fileDownloader,
+                                 BlockDownloader blockDownloader) {
+        super(maximumConcurrency, true);
         this.fileDownloader = fileDownloader;
+        this.blockDownloader = blockDownloader;
         this.repository = repository;
 
         StateLogger.addLogger(this);
@@ -91,12 +111,12 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
         if (duration == null)
             duration = Stopwatch.createStarted();
 
-        if (file.getLocations() != null && !file.getLocations().isEmpty()
-                && file.getLocations().get(0).getParts().size() == 1) {
+        String groupBlock = groupBlock(file);
+        if (groupBlock != null) {
             initializeMap();
 
             pendingOutstanding.incrementAndGet();
-            fileMap.put(new ScheduledDownloadKey(file.getLocations().get(0).getParts().get(0).getBlockHash(), index.incrementAndGet()),
+            fileMap.put(new ScheduledDownloadKey(groupBlock, index.incrementAndGet()),
                     new ScheduledDownload(file, destination));
             pendingPassword = password;
         } else {
@@ -104,6 +124,19 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
         }
     }
 
+    // Zero blocks are never downloaded, so files are grouped on their first block that is.
+    private static String groupBlock(BackupFile file) {
+        if (file.getLocations() != null && !file.getLocations().isEmpty()
+                && file.getLength() != null && file.getLength() > 0) {
+            for (BackupFilePart part : file.getLocations().get(0).getParts()) {
+                if (!BackupBlock.isZeroBlock(part.getBlockHash())) {
+                    return part.getBlockHash();
+                }
+            }
+        }
+        return null;
+    }
+
     private synchronized void initializeMap() {
         if (fileMap == null) {
             try {
@@ -153,16 +186,40 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
 
     @Override
     public void waitForCompletion() {
+        boolean retained = false;
         if (fileMap != null) {
-            fileMap.readOnlyEntryStream(true).forEach(entry -> {
+            if (blockDownloader != null) {
+                retained = true;
+                retainBlocks();
+            }
+
+            List<ScheduledDownload> group = new ArrayList<>();
+            Map<RestoredContent, String> restored = new ConcurrentHashMap<>();
+            String groupBlock = null;
+            Iterator<Map.Entry<ScheduledDownloadKey, ScheduledDownload>> iterator =
+                    fileMap.readOnlyEntryStream(true).iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<ScheduledDownloadKey, ScheduledDownload> entry = iterator.next();
                 if (InstanceFactory.isShutdown()) {
-                    return;
+                    break;
                 }
-                pendingOutstanding.decrementAndGet();
-                ScheduledDownload download = entry.getValue();
-                String destination = download.getDestination();
-                internalSchedule(download.getFile(), destination, pendingPassword);
-            });
+                if (!group.isEmpty()) {
+                    // Groups split only because of their size share restored content with the next group.
+                    if (!entry.getKey().getBlockHash().equals(groupBlock)) {
+                        scheduleGroup(group, pendingPassword, restored);
+                        group = new ArrayList<>();
+                        restored = new ConcurrentHashMap<>();
+                    } else if (group.size() >= MAX_GROUP_FILES) {
+                        scheduleGroup(group, pendingPassword, restored);
+                        group = new ArrayList<>();
+                    }
+                }
+                groupBlock = entry.getKey().getBlockHash();
+                group.add(entry.getValue());
+            }
+            if (!group.isEmpty() && !InstanceFactory.isShutdown()) {
+                scheduleGroup(group, pendingPassword, restored);
+            }
 
             CloseableMap<ScheduledDownloadKey, ScheduledDownload> closingFileMap = fileMap;
 
@@ -177,31 +234,110 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
             pendingPassword = null;
         }
 
-        super.waitForCompletion();
+        try {
+            super.waitForCompletion();
+        } finally {
+            if (retained) {
+                blockDownloader.releaseRetainedBlocks();
+            }
+        }
+    }
+
+    // Files sharing their first block are grouped, but files can also share later blocks and super block children.
+    // Every block the files need is registered with the block downloader so a block shared by several files is only
+    // fetched once.
+    private void retainBlocks() {
+        Iterator<Map.Entry<ScheduledDownloadKey, ScheduledDownload>> iterator =
+                fileMap.readOnlyEntryStream(true).iterator();
+        while (iterator.hasNext() && !InstanceFactory.isShutdown()) {
+            BackupFile file = iterator.next().getValue().getFile();
+            for (BackupFilePart part : file.getLocations().get(0).getParts()) {
+                if (BackupBlock.isZeroBlock(part.getBlockHash())) {
+                    continue;
+                }
+                try {
+                    for (BackupBlock block : BackupBlock.expandBlock(part.getBlockHash(), repository)) {
+                        if (block != null && !block.isZeroBlock()) {
+                            blockDownloader.retainBlock(block.getHash());
+                        }
+                    }
+                } catch (IOException | RuntimeException exc) {
+                    debug(() -> log.debug("Failed to look up block \"{}\" for \"{}\"", part.getBlockHash(),
+                            PathNormalizer.physicalPath(file.getPath())));
+                }
+            }
+        }
     }
 
     private void internalSchedule(BackupFile file, String destination, String password) {
+        pendingOutstanding.incrementAndGet();
+        scheduleGroup(Lists.newArrayList(new ScheduledDownload(file, destination)), password, new HashMap<>());
+    }
+
+    // Files sharing their first block are restored on the same thread to keep small block caches warm, and files
+    // with identical content, by digest or by location, are copied from the first restored copy instead of being
+    // fetched again.
+    private void scheduleGroup(List<ScheduledDownload> group, String password, Map<RestoredContent, String> restored) {
         schedule(() -> {
-            try {
-                if (file.getLength() == null) {
-                    log.warn("File \"{}\" had undefined length", PathNormalizer.physicalPath(file.getPath()));
-                    file.setLength(0L);
+            for (ScheduledDownload download : group) {
+                pendingOutstanding.decrementAndGet();
+                if (InstanceFactory.isShutdown()) {
+                    continue;
+                }
+                restoreFile(download.getFile(), download.getDestination(), password, restored);
+            }
+        });
+    }
+
+    private void restoreFile(BackupFile file, String destination, String password,
+                             Map<RestoredContent, String> restored) {
+        try {
+            if (file.getLength() == null) {
+                log.warn("File \"{}\" had undefined length", PathNormalizer.physicalPath(file.getPath()));
+                file.setLength(0L);
+            }
+            RestoredContent content = null;
+            if (file.getLength() > 0 && !FileDownloaderImpl.isNullFile(destination)
+                    && file.getLocations() != null && !file.getLocations().isEmpty()) {
+                if (file.getDigest() != null) {
+                    content = new RestoredContent(null, file.getLength(), file.getDigest());
+                } else {
+                    content = new RestoredContent(file.getLocations().get(0).getParts(), file.getLength(), null);
                 }
+            }
+            String existing = content != null ? restored.get(content) : null;
+            if (existing != null && duplicateFile(file, existing, destination)) {
+                log.info("Restoring \"{}\" to \"{}\" from \"{}\" ({})", PathNormalizer.physicalPath(file.getPath()),
+                        destination, existing, readableSize(file.getLength()));
+            } else {
                 log.info("Restoring \"{}\" to \"{}\" ({})", PathNormalizer.physicalPath(file.getPath()),
                         destination, readableSize(file.getLength()));
                 fileDownloader.downloadFile(file, destination, password);
-                debug(() -> log.debug("Restored \"{}\"", PathNormalizer.physicalPath(file.getPath())));
-                totalSize.addAndGet(file.getLength());
-                totalCount.incrementAndGet();
-                lastProcessed = file;
-            } catch (Exception e) {
-                if (!isShutdown()) {
-                    log.error("Failed to restore file \"{}\"", PathNormalizer.physicalPath(file.getPath()), e);
-                    failedCount.incrementAndGet();
+                if (content != null) {
+                    restored.put(content, destination);
                 }
             }
-            notifyCompleted(file.getPath());
-        });
+            debug(() -> log.debug("Restored \"{}\"", PathNormalizer.physicalPath(file.getPath())));
+            totalSize.addAndGet(file.getLength());
+            totalCount.incrementAndGet();
+            lastProcessed = file;
+        } catch (Exception e) {
+            if (!isShutdown()) {
+                log.error("Failed to restore file \"{}\"", PathNormalizer.physicalPath(file.getPath()), e);
+                failedCount.incrementAndGet();
+            }
+        }
+        notifyCompleted(file.getPath());
+    }
+
+    private boolean duplicateFile(BackupFile file, String existing, String destination) {
+        try {
+            fileDownloader.duplicateFile(file, existing, destination);
+            return true;
+        } catch (IOException exc) {
+            log.warn("Failed to copy \"{}\" from \"{}\", downloading instead", destination, existing, exc);
+            return false;
+        }
     }
 
     @Override
@@ -231,6 +367,14 @@ public class DownloadSchedulerImpl extends SchedulerImpl implements ManualStatus
         return ret;
     }
 
+    @Data
+    @AllArgsConstructor
+    private static class RestoredContent {
+        private List<BackupFilePart> parts;
+        private long length;
+        private String digest;
+    }
+
     @Data
     @NoArgsConstructor
     public static class ScheduledDownloadKey {
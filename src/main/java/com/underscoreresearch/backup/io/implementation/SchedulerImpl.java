@@ -2,6 +2,7 @@ package com.underscoreresearch.backup.io.implementation;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.underscoreresearch.backup.utils.state.MachineState;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -24,9 +25,18 @@ public class SchedulerImpl {
     private boolean shutdown;
 
     public SchedulerImpl(int maximumConcurrency) {
+        this(maximumConcurrency, false);
+    }
+
+    protected SchedulerImpl(int maximumConcurrency, boolean lowPriorityWorkers) {
         this.maximumConcurrency = maximumConcurrency;
-        executor = Executors.newFixedThreadPool(maximumConcurrency,
-                new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-%d").build());
+        if (lowPriorityWorkers) {
+            executor = Executors.newFixedThreadPool(maximumConcurrency,
+                    MachineState.workerThreadFactory(getClass().getSimpleName() + "-%d"));
+        } else {
+            executor = Executors.newFixedThreadPool(maximumConcurrency,
+                    new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-%d").build());
+        }
     }
 
     protected Duration getDuration() {
@@ -9,6 +9,7 @@ import com.underscoreresearch.backup.model.BackupDestination;
 import com.underscoreresearch.backup.model.BackupUploadCompletion;
 import com.underscoreresearch.backup.service.SubscriptionLackingException;
 import com.underscoreresearch.backup.utils.ManualStatusLogger;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.ProcessingStoppedException;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.StatusLine;
@@ -25,12 +26,15 @@ public class UploadSchedulerImpl extends SchedulerImpl implements ManualStatusLo
     public static final String PREFIX = "blocks" + PATH_SEPARATOR;
     private static UploadSchedulerImpl instance;
     private final RateLimitController rateLimitController;
+    private final MemoryBudget memoryBudget;
     private final AtomicLong totalSize = new AtomicLong();
     private final AtomicLong totalCount = new AtomicLong();
 
-    public UploadSchedulerImpl(int maximumConcurrency, RateLimitController rateLimitController) {
-        super(maximumConcurrency);
+    public UploadSchedulerImpl(int maximumConcurrency, RateLimitController rateLimitController,
+                               MemoryBudget memoryBudget) {
+        super(maximumConcurrency, true);
         this.rateLimitController = rateLimitController;
+        this.memoryBudget = memoryBudget;
         StateLogger.addLogger(this);
 
         if (instance != null)
@@ -81,10 +85,14 @@ public class UploadSchedulerImpl extends SchedulerImpl implements ManualStatusLo
             } catch (Throwable exc) {
                 log.error("Upload failed for \"" + suggestedPath + "\"", exc);
                 completionPromise.completed(null);
+            } finally {
+                memoryBudget.release(MemoryBudget.UPLOAD_STAGE, data.length);
             }
         };
 
+        memoryBudget.acquire(MemoryBudget.UPLOAD_STAGE, data.length);
         if (!schedule(runnable)) {
+            memoryBudget.release(MemoryBudget.UPLOAD_STAGE, data.length);
             completionPromise.completed(null);
         }
     }
@@ -8,5 +8,7 @@ import java.util.List;
 public interface BackupContentsAccess {
     List<BackupFile> directoryFiles(String path) throws IOException;
 
+    List<BackupFile> directoryFiles(String path, String after, int limit) throws IOException;
+
     String directoryPermissions(String path) throws IOException;
 }
\ No newline at end of file
@@ -17,6 +17,8 @@ public interface ManifestManager extends BaseManifestManager {
 
     boolean optimizeLog(MetadataRepository existingRepository, LogConsumer logConsumer, boolean force) throws IOException;
 
+    boolean createSnapshot(MetadataRepository existingRepository, boolean force) throws IOException;
+
     IOProvider getIoProvider();
 
     void setDisabledFlushing(boolean disabledFlushing);
@@ -72,6 +72,12 @@ public class AdditionalManifestManager {
         }
     }
 
+    public void deleteFiles(List<String> files, AtomicLong processedFiles) {
+        for (Map.Entry<String, Destination> entry : additionalProviders.entrySet()) {
+            BaseManifestManagerImpl.deleteFiles(files, entry.getValue().getProvider(), processedFiles);
+        }
+    }
+
     public void uploadConfigurationData(String filename, byte[] data, byte[] unencryptedData,
                                         Encryptor encryptor, IdentityKeys encryptionKey,
                                         Runnable success) throws IOException {
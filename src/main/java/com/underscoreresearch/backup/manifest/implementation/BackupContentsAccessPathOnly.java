@@ -16,9 +16,11 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
@@ -77,15 +79,22 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
     }
 
     private BackupFile createFile(String root, String path) throws IOException {
+        return createFile(root, path, null);
+    }
+
+    private BackupFile createFile(String root, String path, DirectoryChildren children) throws IOException {
+        if (children != null && !children.contains(path)) {
+            children = null;
+        }
         if (path.endsWith(PATH_SEPARATOR)) {
-            BackupDirectory ret = pathEntry(root + path);
+            BackupDirectory ret = children != null ? children.directories.get(root + path) : pathEntry(root + path);
             if (ret == null || ret.getFiles().isEmpty())
                 return null;
             if (!includeDeleted && ret.getDeleted() != null && (timestamp == null || ret.getDeleted() < timestamp))
                 return null;
             return BackupFile.builder().path(root + path).added(ret.getAdded()).deleted(ret.getDeleted()).build();
         }
-        BackupFile ret = repository.file(root + path, timestamp);
+        BackupFile ret = children != null ? children.files.get(root + path) : repository.file(root + path, timestamp);
 
         if (ret == null) {
             return null;
@@ -103,7 +112,12 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
     }
 
     private BackupFile createFileAllowMissing(String root, String path) throws IOException {
-        BackupFile file = createFile(root, path);
+        return createFileAllowMissing(root, path, null);
+    }
+
+    private BackupFile createFileAllowMissing(String root, String path, DirectoryChildren children)
+            throws IOException {
+        BackupFile file = createFile(root, path, children);
         if (file == null) {
             return BackupFile.builder().path(root + path).build();
         }
@@ -116,6 +130,11 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
 
     @Override
     public List<BackupFile> directoryFiles(String path) throws IOException {
+        return directoryFiles(path, null, 0);
+    }
+
+    @Override
+    public List<BackupFile> directoryFiles(String path, String after, int limit) throws IOException {
         final String normalizedRoot;
         if (!path.endsWith(PATH_SEPARATOR))
             normalizedRoot = path + PATH_SEPARATOR;
@@ -145,8 +164,11 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
                     if (ind > 0) {
                         fullPath = fullPath.substring(0, ind + 1);
                     }
-                    if (foundRoots.add(fullPath)) {
+                    if (foundRoots.add(fullPath) && (after == null || fullPath.compareTo(after) > 0)) {
                         files.add(createFileAllowMissing("", fullPath));
+                        if (limit > 0 && files.size() >= limit) {
+                            break;
+                        }
                     }
                 }
                 return files;
@@ -157,13 +179,29 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
         foundPaths = addRootPaths(foundPaths, normalizedRoot);
 
         if (!foundPaths.getFiles().isEmpty()) {
+            NavigableMap<String, Boolean> entries = foundPaths.getFiles();
+            if (after != null && after.startsWith(normalizedRoot)) {
+                entries = entries.tailMap(after.substring(normalizedRoot.length()), false);
+            }
+
+            // Two range scans for all children is cheaper than a point lookup per child unless only a small page
+            // of a large directory is requested.
+            DirectoryChildren children = null;
+            if (limit <= 0 || limit >= entries.size()) {
+                children = new DirectoryChildren(normalizedRoot);
+            }
+
             List<BackupFile> files = new ArrayList<>();
-            for (Map.Entry<String, Boolean> dirPath : foundPaths.getFiles().entrySet()) {
+            for (Map.Entry<String, Boolean> dirPath : entries.entrySet()) {
                 BackupFile file = dirPath.getValue() ?
-                        createFile(normalizedRoot, dirPath.getKey()) :
-                        createFileAllowMissing(normalizedRoot, dirPath.getKey());
-                if (file != null)
+                        createFile(normalizedRoot, dirPath.getKey(), children) :
+                        createFileAllowMissing(normalizedRoot, dirPath.getKey(), children);
+                if (file != null) {
                     files.add(file);
+                    if (limit > 0 && files.size() >= limit) {
+                        break;
+                    }
+                }
             }
             return files;
         }
@@ -197,6 +235,28 @@ public class BackupContentsAccessPathOnly implements BackupContentsAccess {
         return foundPaths;
     }
 
+    private class DirectoryChildren {
+        private final Map<String, BackupFile> files = new HashMap<>();
+        private final Map<String, BackupDirectory> directories = new HashMap<>();
+
+        private DirectoryChildren(String root) throws IOException {
+            List<BackupFile> foundFiles = repository.directoryFiles(root, timestamp);
+            if (foundFiles != null) {
+                foundFiles.forEach(file -> files.put(file.getPath(), file));
+            }
+            List<BackupDirectory> foundDirectories = repository.subDirectories(root, timestamp);
+            if (foundDirectories != null) {
+                foundDirectories.forEach(directory -> directories.put(directory.getPath(), directory));
+            }
+        }
+
+        // Only direct children are covered by the range scans.
+        private boolean contains(String name) {
+            int separator = name.indexOf(PATH_SEPARATOR);
+            return separator < 0 || separator == name.length() - 1;
+        }
+    }
+
     @Data
     @AllArgsConstructor
     @NoArgsConstructor
@@ -12,6 +12,7 @@ import com.underscoreresearch.backup.manifest.BackupContentsAccess;
 import com.underscoreresearch.backup.manifest.BackupSearchAccess;
 import com.underscoreresearch.backup.model.BackupFile;
 import lombok.RequiredArgsConstructor;
+import org.apache.commons.lang3.SystemUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -25,10 +26,12 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
 import static com.underscoreresearch.backup.file.PathNormalizer.ROOT;
 
 @RequiredArgsConstructor
 public class BackupSearchAccessImpl implements BackupSearchAccess {
+    private static final BackupFile END_OF_FILES = new BackupFile();
     private final MetadataRepository repository;
     private final BackupContentsAccess contentsAccess;
     private final Long timestamp;
@@ -57,18 +60,27 @@ public class BackupSearchAccessImpl implements BackupSearchAccess {
     public CloseableStream<BackupFile> searchFiles(Pattern pathPattern, CloseableLock interruptableLock) throws IOException {
         AtomicReference<List<BackupFile>> filesPerPath = new AtomicReference<>(new ArrayList<>());
         AtomicReference<String> currentPath = new AtomicReference<>();
-        CloseableStream<BackupFile> closeableStream = repository.allFiles(true);
-        Stream<BackupFile> stream = closeableStream.stream().map(file -> {
+        CloseableStream<BackupFile> closeableStream = null;
+        String literal = requiredLiteral(pathPattern.pattern());
+        if (literal != null) {
+            closeableStream = repository.pathIndexFiles(literal);
+        }
+        if (closeableStream == null) {
+            closeableStream = repository.allFiles(true);
+        }
+        CloseableStream<BackupFile> allFiles = closeableStream;
+        Stream<BackupFile> stream = Stream.concat(closeableStream.stream(), Stream.of(END_OF_FILES)).map(file -> {
                     if (interruptableLock.requested()) {
                         throw new InterruptedSearch();
                     }
-                    if (file.getPath().equals(currentPath.get())) {
+                    if (file != END_OF_FILES && file.getPath().equals(currentPath.get())) {
                         if (filesPerPath.get() != null) {
                             filesPerPath.get().add(file);
                         }
                     } else {
                         List<BackupFile> ret = filesPerPath.get();
-                        if (pathPattern.matcher(PathNormalizer.physicalPath(file.getPath())).find()) {
+                        if (file != END_OF_FILES
+                                && pathPattern.matcher(PathNormalizer.physicalPath(file.getPath())).find()) {
                             filesPerPath.set(Lists.newArrayList(file));
                         } else {
                             filesPerPath.set(null);
@@ -97,11 +109,105 @@ public class BackupSearchAccessImpl implements BackupSearchAccess {
 
             @Override
             public void close() throws IOException {
-                closeableStream.close();
+                allFiles.close();
             }
         };
     }
 
+    // Longest run of characters any match must contain, used to narrow the search using the path index.
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return null;
+        }
+        String best = "";
+        StringBuilder current = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            switch (c) {
+                case '\\' -> {
+                    if (i >= regex.length()) {
+                        return null;
+                    }
+                    char next = regex.charAt(i++);
+                    if (next == 'Q') {
+                        return null;
+                    }
+                    if (Character.isLetterOrDigit(next)) {
+                        best = longest(best, current);
+                    } else {
+                        current.append(next == '\\' && SystemUtils.IS_OS_WINDOWS ? PATH_SEPARATOR.charAt(0) : next);
+                        best = quantified(regex, i, current, best);
+                    }
+                }
+                case '(' -> {
+                    best = longest(best, current);
+                    int depth = 1;
+                    while (i < regex.length() && depth > 0) {
+                        char skipped = regex.charAt(i++);
+                        if (skipped == '\\') {
+                            i++;
+                        } else if (skipped == '(') {
+                            depth++;
+                        } else if (skipped == ')') {
+                            depth--;
+                        }
+                    }
+                }
+                case '[' -> {
+                    best = longest(best, current);
+                    if (i < regex.length() && regex.charAt(i) == '^') {
+                        i++;
+                    }
+                    if (i < regex.length() && regex.charAt(i) == ']') {
+                        i++;
+                    }
+                    while (i < regex.length() && regex.charAt(i) != ']') {
+                        if (regex.charAt(i) == '\\') {
+                            i++;
+                        }
+                        i++;
+                    }
+                    i++;
+                }
+                case '{' -> {
+                    best = longest(best, current);
+                    while (i < regex.length() && regex.charAt(i) != '}') {
+                        i++;
+                    }
+                    i++;
+                }
+                case '.', '^', '$', '*', '+', '?', ')', ']', '}' -> best = longest(best, current);
+                default -> {
+                    current.append(c);
+                    best = quantified(regex, i, current, best);
+                }
+            }
+        }
+        best = longest(best, current);
+        return best.length() >= 3 ? best : null;
+    }
+
+    private static String quantified(String regex, int next, StringBuilder current, String best) {
+        if (next < regex.length()) {
+            char quantifier = regex.charAt(next);
+            if (quantifier == '*' || quantifier == '?' || quantifier == '{') {
+                current.setLength(current.length() - 1);
+                return longest(best, current);
+            }
+            if (quantifier == '+') {
+                return longest(best, current);
+            }
+        }
+        return best;
+    }
+
+    private static String longest(String best, StringBuilder current) {
+        String ret = current.length() > best.length() ? current.toString() : best;
+        current.setLength(0);
+        return ret;
+    }
+
     private BackupFile findSearchFile(List<BackupFile> files) {
         BackupFile file = null;
         if (timestamp == null)
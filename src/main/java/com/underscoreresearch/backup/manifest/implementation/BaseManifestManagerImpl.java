@@ -28,6 +28,7 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.ParseException;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -50,6 +51,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
@@ -64,6 +66,7 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
     public static final String LOG_ROOT = "logs";
     public static final String IDENTITY_MANIFEST_LOCATION = "identity";
     public static final String PUBLICKEY_FILENAME = "publickey.json";
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
     private final static DateTimeFormatter LOG_FILE_FORMATTER
             = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss.nnnnnnnnn").withZone(ZoneId.of("UTC"));
     @Getter(AccessLevel.PROTECTED)
@@ -153,6 +156,20 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
         return outputStream.toByteArray();
     }
 
+    public static byte[] compressConfigData(InputStream stream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream, COMPRESSION_BUFFER_SIZE)) {
+            IOUtils.copyStream(stream, gzipStream);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static byte[] decompressConfigData(byte[] data) throws IOException {
+        try (GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return gzipStream.readAllBytes();
+        }
+    }
+
     public static void deleteLogFiles(String lastLogFile, IOIndex provider,
                                       AtomicLong totalFiles, AtomicLong processedFiles) throws IOException {
         if (lastLogFile != null) {
@@ -182,10 +199,14 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
     public static void deleteNewLogFiles(String lastLogFile, IOIndex provider,
                                          AtomicLong totalFiles, AtomicLong processedFiles) throws IOException {
         List<String> files = provider.availableLogs(lastLogFile, true);
+        totalFiles.addAndGet(files.size());
+        deleteFiles(files, provider, processedFiles);
+    }
+
+    public static void deleteFiles(List<String> files, IOIndex provider, AtomicLong processedFiles) {
         if (!files.isEmpty()) {
             DeletionScheduler scheduler = new DeletionScheduler(10);
             try {
-                totalFiles.addAndGet(files.size());
                 for (String file : files) {
                     scheduler.delete(provider, file, processedFiles);
                 }
@@ -208,8 +229,8 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
         return null;
     }
 
-    private void uploadLogFile(String localFile, String remoteFile, byte[] data) throws IOException {
-        uploadConfigData(remoteFile, data, true, localFile);
+    private void uploadLogFile(String localFile, String remoteFile, byte[] compressedData) throws IOException {
+        uploadCompressedConfigData(remoteFile, compressedData, localFile);
         addLogFile(remoteFile);
     }
 
@@ -217,10 +238,10 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
         getMetadataRepository(true).getLogFileRepository().addFile(remoteFile);
     }
 
-    protected void uploadLogFile(String file, byte[] data) throws IOException {
+    protected void uploadLogFile(String file, byte[] compressedData) throws IOException {
         String uploadFilename = transformLogFilename(file, null);
         updateNextLogFilename(uploadFilename);
-        uploadConfigData(uploadFilename, data, true, file);
+        uploadCompressedConfigData(uploadFilename, compressedData, file);
         addLogFile(uploadFilename);
     }
 
@@ -407,28 +428,41 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
     protected void uploadConfigData(String filename, byte[] unencryptedData,
                                     boolean encrypt,
                                     String deleteFilename) throws IOException {
-        byte[] data = unencryptedData;
         if (encrypt) {
-            data = encryptConfigData(unencryptedData);
+            uploadCompressedConfigData(filename, compressConfigData(unencryptedData), deleteFilename);
+            return;
         }
 
+        log.info("Uploading \"{}\" ({})", filename, readableSize(unencryptedData.length));
+
+        uploadData(filename, unencryptedData, deleteOnSuccess(deleteFilename));
+    }
+
+    protected void uploadCompressedConfigData(String filename, byte[] compressedData,
+                                              String deleteFilename) throws IOException {
+        byte[] data = encryptCompressedData(compressedData);
+
         log.info("Uploading \"{}\" ({})", filename, readableSize(data.length));
 
-        Runnable success;
+        uploadData(filename, data, deleteOnSuccess(deleteFilename));
+    }
+
+    private Runnable deleteOnSuccess(String deleteFilename) {
         if (deleteFilename != null) {
-            success = () -> {
+            return () -> {
                 deleteFile(new File(deleteFilename));
             };
-        } else {
-            success = null;
         }
-
-        uploadData(filename, data, success);
+        return null;
     }
 
     public byte[] encryptConfigData(byte[] data) throws IOException {
+        return encryptCompressedData(compressConfigData(data));
+    }
+
+    private byte[] encryptCompressedData(byte[] compressedData) throws IOException {
         try {
-            return encryptor.encryptBlock(null, compressConfigData(data), getIdentityKeys());
+            return encryptor.encryptBlock(null, compressedData, getIdentityKeys());
         } catch (GeneralSecurityException e) {
             throw new IOException(e);
         }
@@ -631,7 +665,7 @@ public abstract class BaseManifestManagerImpl implements BaseManifestManager {
             String filename = result.logLockToClose.getFilename();
             byte[] data;
             try (InputStream stream = Channels.newInputStream(result.logLockToClose.getLockedChannel())) {
-                data = IOUtils.readAllBytes(stream);
+                data = compressConfigData(stream);
             } finally {
                 try {
                     result.logLockToClose().close();
@@ -5,6 +5,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.underscoreresearch.backup.encryption.Encryptor;
 import com.underscoreresearch.backup.encryption.IdentityKeys;
 import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
@@ -12,12 +13,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.underscoreresearch.backup.configuration.RestoreModule.getGlobalDownloadThreads;
@@ -33,14 +34,17 @@ public class LogPrefetcher {
     private final IdentityKeys.PrivateKeys privateKey;
     private final ExecutorService executor;
     private final Integer maxConcurrency;
+    private final MemoryBudget memoryBudget;
+    private final AtomicLong expectedSize = new AtomicLong();
     private final Map<String, Holder> data = new HashMap<>();
     private final HashSet<String> syncCompletions = new HashSet<>();
     private final AtomicBoolean stop = new AtomicBoolean(false);
     private final AtomicReference<Throwable> error = new AtomicReference<>();
 
     public LogPrefetcher(List<String> logFiles, BackupConfiguration configuration, Downloader downloadData,
-                         Encryptor encryptor, IdentityKeys.PrivateKeys privateKey) {
+                         Encryptor encryptor, IdentityKeys.PrivateKeys privateKey, MemoryBudget memoryBudget) {
         this.logFiles = new LinkedBlockingDeque<String>(logFiles);
+        this.memoryBudget = memoryBudget;
         this.downloadData = downloadData;
         this.encryptor = encryptor;
         this.privateKey = privateKey;
@@ -55,34 +59,43 @@ public class LogPrefetcher {
                 executor.submit(() -> {
                     try {
                         while (true) {
-                            try {
-                                synchronized (data) {
-                                    while (data.size() > maxConcurrency && !shouldComplete()) {
-                                        try {
-                                            data.wait();
-                                        } catch (InterruptedException e) {
-                                            Thread.currentThread().interrupt();
-                                            setError(e);
-                                            return;
-                                        }
+                            synchronized (data) {
+                                while (data.size() > maxConcurrency && !shouldComplete()) {
+                                    try {
+                                        data.wait();
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                        setError(e);
+                                        return;
                                     }
                                 }
-                                if (shouldComplete()) {
-                                    return;
-                                }
-                                String finalFile = logFiles.removeFirst();
-
-                                debug(() -> log.debug("Fetching log file \"{}\"", finalFile));
-                                try {
-                                    byte[] fileData = downloadData.downloadFile(finalFile);
-                                    byte[] unencryptedData = encryptor.decodeBlock(null, fileData, privateKey);
-                                    addResult(finalFile, new Holder(unencryptedData));
-                                } catch (Exception exc) {
-                                    addResult(finalFile, new Holder(exc));
-                                }
-                            } catch (NoSuchElementException exc) {
+                            }
+                            if (shouldComplete()) {
                                 return;
                             }
+
+                            // Reserve before taking the next file so the log the consumer is waiting for has
+                            // always already been admitted.
+                            long reserved = expectedSize.get();
+                            memoryBudget.acquire(MemoryBudget.LOG_PREFETCH_STAGE, reserved);
+                            String finalFile = logFiles.pollFirst();
+                            if (finalFile == null) {
+                                memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, reserved);
+                                return;
+                            }
+
+                            debug(() -> log.debug("Fetching log file \"{}\"", finalFile));
+                            try {
+                                byte[] fileData = downloadData.downloadFile(finalFile);
+                                byte[] unencryptedData = encryptor.decodeBlock(null, fileData, privateKey);
+                                expectedSize.set(unencryptedData.length);
+                                memoryBudget.adjust(MemoryBudget.LOG_PREFETCH_STAGE,
+                                        unencryptedData.length - reserved);
+                                addResult(finalFile, new Holder(unencryptedData, unencryptedData.length));
+                            } catch (Exception exc) {
+                                memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, reserved);
+                                addResult(finalFile, new Holder(exc));
+                            }
                         }
                     } catch (Throwable e) {
                         synchronized (data) {
@@ -103,6 +116,11 @@ public class LogPrefetcher {
         synchronized (data) {
             if (syncCompletions.contains(finalFile)) {
                 log.info("Discarded log file \"{}\" as it was downloaded synchronously", finalFile);
+                memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, holder.reserved);
+                return;
+            }
+            if (stop.get()) {
+                memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, holder.reserved);
                 return;
             }
             data.put(finalFile, holder);
@@ -122,6 +140,10 @@ public class LogPrefetcher {
     public void stop() {
         stop.set(true);
         executor.shutdownNow();
+        synchronized (data) {
+            data.values().forEach(holder -> memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, holder.reserved));
+            data.clear();
+        }
     }
 
     public void shutdown() {
@@ -159,6 +181,7 @@ public class LogPrefetcher {
                     }
                 }
             }
+            memoryBudget.release(MemoryBudget.LOG_PREFETCH_STAGE, ret.reserved);
             data.notifyAll();
             if (ret.exc != null) {
                 if (ret.exc instanceof IOException ioException)
@@ -186,11 +209,17 @@ public class LogPrefetcher {
     private static class Holder {
         private byte[] data;
         private Throwable exc;
+        private long reserved;
 
         public Holder(byte[] data) {
             this.data = data;
         }
 
+        public Holder(byte[] data, long reserved) {
+            this.data = data;
+            this.reserved = reserved;
+        }
+
         public Holder(Throwable exc) {
             this.exc = exc;
         }
@@ -2,6 +2,7 @@ package com.underscoreresearch.backup.manifest.implementation;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.underscoreresearch.backup.encryption.IdentityKeys;
 import com.underscoreresearch.backup.file.CloseableLock;
 import com.underscoreresearch.backup.file.CloseableMap;
@@ -34,8 +35,10 @@ import com.underscoreresearch.backup.model.BackupUpdatedFile;
 import com.underscoreresearch.backup.model.ExternalBackupFile;
 import com.underscoreresearch.backup.utils.SingleTaskScheduler;
 import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -43,14 +46,18 @@ import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -67,6 +74,7 @@ import static com.underscoreresearch.backup.utils.SerializationUtils.PUSH_ACTIVE
 
 @Slf4j
 public class LoggingMetadataRepository implements MetadataRepository, LogConsumer {
+    private static final int MAX_SHARED_BLOCK_CACHE = 100000;
     private final MetadataRepository repository;
     @Getter(AccessLevel.PROTECTED)
     private final ManifestManager manifestManager;
@@ -76,6 +84,11 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
     private final Set<String> missingActivePaths = new HashSet<>();
     private final SingleTaskScheduler activePathSubmitters = new SingleTaskScheduler("LoggingMetadataRepository");
     private final Map<String, ShareManifestManager> shareManagers;
+    private final ShareQueue shareQueue;
+    private final Object shareProcessLock = new Object();
+    private final Map<String, Set<String>> sharedBlocks = new HashMap<>();
+    private final ExecutorService shareExecutor;
+    private boolean shareQueueScheduled;
     @Getter
     @Setter
     private boolean recoveryMode = false;
@@ -100,10 +113,27 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
                                      Map<String, ShareManifestManager> shareManagers,
                                      int activePathDelay,
                                      boolean noDeleteReplay) {
+        this(repository, manifestManager, shares, shareManagers, activePathDelay, noDeleteReplay, null);
+    }
+
+    public LoggingMetadataRepository(MetadataRepository repository,
+                                     ManifestManager manifestManager,
+                                     Map<String, BackupShare> shares,
+                                     Map<String, ShareManifestManager> shareManagers,
+                                     int activePathDelay,
+                                     boolean noDeleteReplay,
+                                     ShareQueue shareQueue) {
         this.repository = repository;
         this.manifestManager = manifestManager;
         this.shares = shares;
         this.shareManagers = shareManagers;
+        this.shareQueue = shareQueue;
+        if (shareQueue != null) {
+            shareExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-Share-%d").setDaemon(true).build());
+        } else {
+            shareExecutor = null;
+        }
 
         activePathSubmitters.scheduleAtFixedRate(() -> submitPendingActivePaths(Duration.ofMillis(activePathDelay)),
                 Math.min(activePathDelay, 1000), Math.min(activePathDelay, 1000), TimeUnit.MILLISECONDS);
@@ -228,29 +258,36 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         writeLogEntry("file", file);
 
         if (shares != null) {
-            for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
-                BackupShare share = shares.get(entry.getKey());
-                if (share != null && share.getContents().includeFile(file.getPath())) {
-                    try {
-                        if (file.getLocations() != null) {
-                            for (BackupLocation location : file.getLocations()) {
-                                for (BackupFilePart part : location.getParts()) {
-                                    shareBlocks(entry.getKey(), entry.getValue(), part.getBlockHash());
-                                }
+            submitShareUpdate("file", file);
+        }
+
+        repository.addFile(file);
+    }
+
+    private void shareFile(BackupFile file) {
+        for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
+            BackupShare share = shares.get(entry.getKey());
+            if (share != null && share.getContents().includeFile(file.getPath())) {
+                try {
+                    if (file.getLocations() != null) {
+                        for (BackupLocation location : file.getLocations()) {
+                            for (BackupFilePart part : location.getParts()) {
+                                shareBlocks(entry.getKey(), entry.getValue(), part.getBlockHash());
                             }
                         }
-                        writeLogEntry(entry.getValue(), "file", file);
-                    } catch (Exception e) {
-                        log.error("Failed to share file \"" + PathNormalizer.physicalPath(file.getPath()) + "\"", e);
                     }
+                    writeLogEntry(entry.getValue(), "file", file);
+                } catch (Exception e) {
+                    log.error("Failed to share file \"" + PathNormalizer.physicalPath(file.getPath()) + "\"", e);
                 }
             }
         }
-
-        repository.addFile(file);
     }
 
     private void shareBlocks(String publicKey, ShareManifestManager shareManager, String blockHash) throws IOException {
+        if (BackupBlock.isZeroBlock(blockHash) || isBlockShared(publicKey, blockHash)) {
+            return;
+        }
         if (BackupBlock.isSuperBlock(blockHash)) {
             BackupBlock block = repository.block(blockHash);
             if (block != null && block.getHashes() != null) {
@@ -258,6 +295,7 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
                     shareBlocks(publicKey, shareManager, partHash);
                 }
                 writeLogEntry(shareManager, "block", block);
+                markBlockShared(publicKey, blockHash);
             } else {
                 throw new IOException(String.format("Missing superblock \"%s\" for share key \"%s\"", blockHash, publicKey));
             }
@@ -281,6 +319,130 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
 
                 repository.addAdditionalBlock(additional);
             }
+            markBlockShared(publicKey, blockHash);
+        }
+    }
+
+    private boolean isBlockShared(String publicKey, String blockHash) {
+        synchronized (sharedBlocks) {
+            Set<String> blocks = sharedBlocks.get(publicKey);
+            return blocks != null && blocks.contains(blockHash);
+        }
+    }
+
+    private void markBlockShared(String publicKey, String blockHash) {
+        synchronized (sharedBlocks) {
+            sharedBlocks.computeIfAbsent(publicKey, (key) -> Collections.newSetFromMap(
+                    new LinkedHashMap<>() {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                            return size() > MAX_SHARED_BLOCK_CACHE;
+                        }
+                    })).add(blockHash);
+        }
+    }
+
+    private void unmarkBlockShared(String publicKey, String blockHash) {
+        synchronized (sharedBlocks) {
+            Set<String> blocks = sharedBlocks.get(publicKey);
+            if (blocks != null) {
+                blocks.remove(blockHash);
+            }
+        }
+    }
+
+    // Share manifest updates are applied in submission order by a background thread so that the threads doing the
+    // backup don't have to wait for them. Updates are queued on disk so they survive the process stopping before
+    // they are applied. Updates run holding the repository lock, which is always taken before the process lock, so a
+    // thread draining the queue while holding the repository lock can't deadlock with the worker.
+    private void submitShareUpdate(String type, Object update) throws IOException {
+        if (shareQueue == null) {
+            applyShareUpdate(type, update);
+            return;
+        }
+        synchronized (shareQueue) {
+            shareQueue.add(type, MAPPER.writeValueAsString(update));
+            scheduleShareQueue();
+        }
+    }
+
+    private void scheduleShareQueue() {
+        synchronized (shareQueue) {
+            if (!shareQueueScheduled) {
+                shareQueueScheduled = true;
+                shareExecutor.submit(this::processShareQueue);
+            }
+        }
+    }
+
+    private void processShareQueue() {
+        while (true) {
+            try (CloseableLock ignored = repository.acquireLock()) {
+                synchronized (shareProcessLock) {
+                    synchronized (shareQueue) {
+                        if (shareQueue.isEmpty()) {
+                            shareQueueScheduled = false;
+                            return;
+                        }
+                    }
+                    applyNextShareUpdate();
+                }
+            }
+        }
+    }
+
+    private void drainShareQueue() {
+        if (shareQueue == null) {
+            return;
+        }
+        try (CloseableLock ignored = repository.acquireLock()) {
+            synchronized (shareProcessLock) {
+                while (applyNextShareUpdate()) {
+                }
+                shareQueue.commit();
+            }
+        }
+    }
+
+    private boolean applyNextShareUpdate() {
+        Map.Entry<Long, ShareQueue.Entry> entry;
+        try {
+            entry = shareQueue.first();
+        } catch (IOException exc) {
+            log.error("Failed to read share update queue", exc);
+            return false;
+        }
+        if (entry == null) {
+            return false;
+        }
+        try {
+            applyShareUpdate(entry.getValue().getType(), decodeShareUpdate(entry.getValue()));
+        } catch (Throwable exc) {
+            log.error("Failed to update share manifest", exc);
+        }
+        shareQueue.remove(entry.getKey());
+        return true;
+    }
+
+    private Object decodeShareUpdate(ShareQueue.Entry entry) throws IOException {
+        return switch (entry.getType()) {
+            case "file", "deleteFile" -> BACKUP_FILE_READER.readValue(entry.getData());
+            case "block" -> MAPPER.readValue(entry.getData(), SharedBlock.class);
+            case "deleteBlock" -> BACKUP_BLOCK_READER.readValue(entry.getData());
+            case "dir", "deleteDir" -> BACKUP_DIRECTORY_READER.readValue(entry.getData());
+            default -> throw new IOException(String.format("Unknown share update \"%s\"", entry.getType()));
+        };
+    }
+
+    private void applyShareUpdate(String type, Object update) throws IOException {
+        switch (type) {
+            case "file" -> shareFile((BackupFile) update);
+            case "deleteFile" -> shareDeleteFile((BackupFile) update);
+            case "block" -> shareBlock((SharedBlock) update);
+            case "deleteBlock" -> shareDeleteBlock((BackupBlock) update);
+            case "dir" -> shareDirectory((BackupDirectory) update);
+            case "deleteDir" -> shareDeleteDirectory((BackupDirectory) update);
+            default -> throw new IOException(String.format("Unknown share update \"%s\"", type));
         }
     }
 
@@ -401,6 +563,31 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         repository.compact();
     }
 
+    @Override
+    public void startReadView(boolean allTables) throws IOException {
+        repository.startReadView(allTables);
+    }
+
+    @Override
+    public void closeReadView() throws IOException {
+        repository.closeReadView();
+    }
+
+    @Override
+    public MetadataRepository readView() {
+        return repository.readView();
+    }
+
+    @Override
+    public void startSortedLoad() throws IOException {
+        repository.startSortedLoad();
+    }
+
+    @Override
+    public void finishSortedLoad() throws IOException {
+        repository.finishSortedLoad();
+    }
+
     @Override
     public List<ExternalBackupFile> file(String path) throws IOException {
         return repository.file(path);
@@ -411,23 +598,42 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         return repository.file(path, timestamp);
     }
 
+    @Override
+    public List<BackupFile> directoryFiles(String path, Long timestamp) throws IOException {
+        return repository.directoryFiles(path, timestamp);
+    }
+
+    @Override
+    public List<BackupDirectory> subDirectories(String path, Long timestamp) throws IOException {
+        return repository.subDirectories(path, timestamp);
+    }
+
+    @Override
+    public CloseableStream<BackupFile> pathIndexFiles(String text) throws IOException {
+        return repository.pathIndexFiles(text);
+    }
+
     @Override
     public boolean deleteFile(BackupFile file) throws IOException {
         BackupFile deletedFile = BackupFile.builder().path(file.getPath()).added(file.getAdded()).build();
         writeLogEntry("deleteFile", deletedFile);
 
         if (shares != null) {
-            for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
-                BackupShare share = shares.get(entry.getKey());
-                if (share != null && share.getContents().includeFile(file.getPath())) {
-                    writeLogEntry(entry.getValue(), "deleteFile", deletedFile);
-                }
-            }
+            submitShareUpdate("deleteFile", deletedFile);
         }
 
         return repository.deleteFile(file);
     }
 
+    private void shareDeleteFile(BackupFile deletedFile) {
+        for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
+            BackupShare share = shares.get(entry.getKey());
+            if (share != null && share.getContents().includeFile(deletedFile.getPath())) {
+                writeLogEntry(entry.getValue(), "deleteFile", deletedFile);
+            }
+        }
+    }
+
     @Override
     public List<BackupFilePart> existingFilePart(String partHash) throws IOException {
         return repository.existingFilePart(partHash);
@@ -532,24 +738,31 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
                 if (blockAdditional.getProperties().size() != block.getStorage().size()) {
                     throw new RuntimeException("Internal mismatch between block and additional block storage size");
                 }
-                BackupBlockAdditional existing = repository.additionalBlock(blockAdditional.getPublicKey(), blockAdditional.getHash());
-                if (existing != null && existing.isUsed()) {
-                    blockAdditional.setUsed(true);
-
-                    BackupBlock newBlock = block.createAdditionalBlock(blockAdditional);
-                    ShareManifestManager logWriter = getShareManagers().get(blockAdditional.getPublicKey());
-                    if (logWriter == null)
-                        throw new RuntimeException(String.format("Unknown log writer for public key share %s",
-                                blockAdditional.getPublicKey()));
-                    writeLogEntry(logWriter, "block", newBlock);
-                }
-                repository.addAdditionalBlock(blockAdditional);
             }
+
+            submitShareUpdate("block", new SharedBlock(block, new ArrayList<>(additionalBlocks.values())));
         }
         writeLogEntry("block", block);
         repository.addBlock(block);
     }
 
+    private void shareBlock(SharedBlock sharedBlock) throws IOException {
+        for (BackupBlockAdditional blockAdditional : sharedBlock.getAdditional()) {
+            BackupBlockAdditional existing = repository.additionalBlock(blockAdditional.getPublicKey(), blockAdditional.getHash());
+            if (existing != null && existing.isUsed()) {
+                blockAdditional.setUsed(true);
+
+                BackupBlock newBlock = sharedBlock.getBlock().createAdditionalBlock(blockAdditional);
+                ShareManifestManager logWriter = getShareManagers().get(blockAdditional.getPublicKey());
+                if (logWriter == null)
+                    throw new RuntimeException(String.format("Unknown log writer for public key share %s",
+                            blockAdditional.getPublicKey()));
+                writeLogEntry(logWriter, "block", newBlock);
+            }
+            repository.addAdditionalBlock(blockAdditional);
+        }
+    }
+
     @Override
     public BackupBlock block(String hash) throws IOException {
         return repository.block(hash);
@@ -559,7 +772,16 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
     public boolean deleteBlock(BackupBlock block) throws IOException {
         writeLogEntry("deleteBlock", block);
 
+        if (!getShareManagers().isEmpty()) {
+            submitShareUpdate("deleteBlock", BackupBlock.builder().hash(block.getHash()).build());
+        }
+
+        return repository.deleteBlock(block);
+    }
+
+    private void shareDeleteBlock(BackupBlock block) throws IOException {
         for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
+            unmarkBlockShared(entry.getKey(), block.getHash());
             BackupBlockAdditional additional = repository.additionalBlock(entry.getKey(), block.getHash());
             if (additional != null) {
                 if (additional.isUsed()) {
@@ -569,8 +791,6 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
                 repository.deleteAdditionalBlock(entry.getKey(), block.getHash());
             }
         }
-
-        return repository.deleteBlock(block);
     }
 
     @Override
@@ -590,21 +810,7 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         if (currentData == null || !directory.getFiles().equals(currentData.getFiles()) ||
                 ((directory.getDeleted() == null) != (currentData.getDeleted() == null))) {
             if (shares != null) {
-                for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
-                    BackupShare share = shares.get(entry.getKey());
-                    String parent = directory.getPath();
-                    if (!parent.endsWith(PATH_SEPARATOR))
-                        parent += PATH_SEPARATOR;
-
-                    if (share != null && share.getContents().includeForShare(parent)) {
-                        NavigableSet<String> newContents = new TreeSet<>();
-                        for (String file : directory.getFiles()) {
-                            if (share.getContents().includeForShare(PathNormalizer.combinePaths(parent, file)))
-                                newContents.add(file);
-                        }
-                        writeLogEntry(entry.getValue(), "dir", directory.toBuilder().files(newContents).build());
-                    }
-                }
+                submitShareUpdate("dir", directory);
             }
 
             writeLogEntry("dir", directory);
@@ -612,6 +818,24 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         }
     }
 
+    private void shareDirectory(BackupDirectory directory) {
+        for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
+            BackupShare share = shares.get(entry.getKey());
+            String parent = directory.getPath();
+            if (!parent.endsWith(PATH_SEPARATOR))
+                parent += PATH_SEPARATOR;
+
+            if (share != null && share.getContents().includeForShare(parent)) {
+                NavigableSet<String> newContents = new TreeSet<>();
+                for (String file : directory.getFiles()) {
+                    if (share.getContents().includeForShare(PathNormalizer.combinePaths(parent, file)))
+                        newContents.add(file);
+                }
+                writeLogEntry(entry.getValue(), "dir", directory.toBuilder().files(newContents).build());
+            }
+        }
+    }
+
     @Override
     public BackupDirectory directory(String path, Long timestamp, boolean accumulative) throws IOException {
         return repository.directory(path, timestamp, accumulative);
@@ -621,17 +845,21 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
     public boolean deleteDirectory(String path, long timestamp) throws IOException {
         BackupDirectory deletedDir = new BackupDirectory(path, timestamp, null, null, null);
         if (shares != null) {
-            for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
-                BackupShare share = shares.get(entry.getKey());
-                if (share != null && share.getContents().includeForShare(path)) {
-                    writeLogEntry(entry.getValue(), "deleteDir", deletedDir);
-                }
-            }
+            submitShareUpdate("deleteDir", deletedDir);
         }
         writeLogEntry("deleteDir", deletedDir);
         return repository.deleteDirectory(path, timestamp);
     }
 
+    private void shareDeleteDirectory(BackupDirectory deletedDir) {
+        for (Map.Entry<String, ShareManifestManager> entry : getShareManagers().entrySet()) {
+            BackupShare share = shares.get(entry.getKey());
+            if (share != null && share.getContents().includeForShare(deletedDir.getPath())) {
+                writeLogEntry(entry.getValue(), "deleteDir", deletedDir);
+            }
+        }
+    }
+
     @Override
     public void pushActivePath(String setId, String path, BackupActivePath pendingFiles) throws IOException {
         try (CloseableLock ignored = acquireLock()) {
@@ -706,6 +934,7 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
 
     @Override
     public void flushLogging() throws IOException {
+        drainShareQueue();
         flushActivePaths();
 
         repository.flushLogging();
@@ -714,6 +943,9 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
     @Override
     public void open(RepositoryOpenMode openMode) throws IOException {
         repository.open(openMode);
+        if (shareQueue != null && openMode == RepositoryOpenMode.READ_WRITE && !shareQueue.isEmpty()) {
+            scheduleShareQueue();
+        }
     }
 
     @Override
@@ -721,12 +953,29 @@ public class LoggingMetadataRepository implements MetadataRepository, LogConsume
         flushLogging();
         repository.close();
         activePathSubmitters.shutdownNow();
+        if (shareQueue != null) {
+            shareExecutor.shutdown();
+            try {
+                shareExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shareQueue.close();
+        }
     }
 
     private interface LogReader {
         void applyJson(String json) throws IOException;
     }
 
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class SharedBlock {
+        private BackupBlock block;
+        private List<BackupBlockAdditional> additional;
+    }
+
     public static class Readonly extends LoggingMetadataRepository {
         public Readonly(MetadataRepository repository,
                         ManifestManager manifestManager,
@@ -23,8 +23,8 @@ import com.underscoreresearch.backup.file.implementation.BackupStatsLogger;
 import com.underscoreresearch.backup.file.implementation.LogFileRepositoryImpl;
 import com.underscoreresearch.backup.file.implementation.NullRepository;
 import com.underscoreresearch.backup.file.implementation.ScannerSchedulerImpl;
+import com.underscoreresearch.backup.file.implementation.SortedRebuildLoader;
 import com.underscoreresearch.backup.io.IOIndex;
-import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.io.RateLimitController;
 import com.underscoreresearch.backup.io.UploadScheduler;
 import com.underscoreresearch.backup.manifest.BackupContentsAccess;
@@ -35,6 +35,7 @@ import com.underscoreresearch.backup.manifest.ServiceManager;
 import com.underscoreresearch.backup.manifest.ShareActivateMetadataRepository;
 import com.underscoreresearch.backup.manifest.ShareManifestManager;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.manifest.model.BackupSnapshot;
 import com.underscoreresearch.backup.model.BackupActivatedShare;
 import com.underscoreresearch.backup.model.BackupActivePath;
 import com.underscoreresearch.backup.model.BackupBlock;
@@ -51,6 +52,7 @@ import com.underscoreresearch.backup.service.api.model.ShareResponse;
 import com.underscoreresearch.backup.service.api.model.SourceRequest;
 import com.underscoreresearch.backup.utils.AccessLock;
 import com.underscoreresearch.backup.utils.ManualStatusLogger;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.StateLogger;
 import com.underscoreresearch.backup.utils.StatusLine;
 import lombok.AccessLevel;
@@ -63,10 +65,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
@@ -95,14 +99,18 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
 import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_ACTIVATED_SHARE_READER;
 import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_DESTINATION_WRITER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_SNAPSHOT_READER;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_SNAPSHOT_WRITER;
 
 @Slf4j
 public class ManifestManagerImpl extends BaseManifestManagerImpl implements ManualStatusLogger, ManifestManager {
     public final static String CONFIGURATION_FILENAME = "configuration.json";
     public static final String OPTIMIZING_LOG_OPERATION = "Optimizing log";
     public static final String REPAIRING_REPOSITORY_OPERATION = "Repairing repository";
+    public static final String SNAPSHOT_OPERATION = "Creating snapshot";
     public static final long EVENTUAL_CONSISTENCY_TIMEOUT_MS = 5 * 1000;
     private static final String UPLOAD_PENDING = "Upload pending";
+    private static final int SNAPSHOT_UPLOAD_BATCH = 8;
     private final String source;
     private final BackupStatsLogger statsLogger;
     private final AdditionalManifestManager additionalManifestManager;
@@ -190,18 +198,24 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
                         byte[] data = null;
                         try (AccessLock lock = new AccessLock(file.getAbsolutePath())) {
                             if (lock.tryLock(true)) {
-                                try (InputStream stream = Channels
-                                        .newInputStream(lock.getLockedChannel())) {
-                                    data = IOUtils.readAllBytes(stream);
+                                FileChannel channel = lock.getLockedChannel();
+                                if (!repairingRepository) {
+                                    processLogInputStream(logConsumer,
+                                            new FilterInputStream(Channels.newInputStream(channel)) {
+                                                @Override
+                                                public void close() {
+                                                }
+                                            });
+                                    channel.position(0);
+                                }
+                                try (InputStream stream = Channels.newInputStream(channel)) {
+                                    data = compressConfigData(stream);
                                 }
                             } else {
                                 log.warn("Log file \"{}\" locked by other process", file.getAbsolutePath());
                             }
                         }
                         if (data != null) {
-                            if (!repairingRepository) {
-                                processLogInputStream(logConsumer, new ByteArrayInputStream(data));
-                            }
                             uploadLogFile(file.getAbsolutePath(), data);
                         }
                         processedFiles.incrementAndGet();
@@ -217,20 +231,29 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
 
     @Override
     protected void uploadConfigData(String filename, byte[] inputData, boolean encrypt, String deleteFilename) throws IOException {
-        byte[] unencryptedData;
+        if (encrypt) {
+            uploadCompressedConfigData(filename, compressConfigData(inputData), deleteFilename);
+        } else {
+            validateIdentity();
+            uploadToAllDestinations(filename, inputData, null, deleteFilename);
+        }
+    }
+
+    @Override
+    protected void uploadCompressedConfigData(String filename, byte[] compressedData, String deleteFilename) throws IOException {
         byte[] data;
         validateIdentity();
 
-        if (encrypt) {
-            unencryptedData = compressConfigData(inputData);
-            try {
-                data = getEncryptor().encryptBlock(null, unencryptedData, getIdentityKeys());
-            } catch (GeneralSecurityException e) {
-                throw new IOException(e);
-            }
-        } else {
-            data = unencryptedData = inputData;
+        try {
+            data = getEncryptor().encryptBlock(null, compressedData, getIdentityKeys());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
         }
+        uploadToAllDestinations(filename, data, compressedData, deleteFilename);
+    }
+
+    private void uploadToAllDestinations(String filename, byte[] data, byte[] unencryptedData,
+                                         String deleteFilename) throws IOException {
         log.info("Uploading \"{}\" ({})", filename, readableSize(data.length));
 
         AtomicInteger successNeeded = new AtomicInteger(1 + additionalManifestManager.count());
@@ -249,7 +272,7 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
         if (filename.equals(CONFIGURATION_FILENAME)) {
             additionalManifestManager.uploadConfiguration(getConfiguration(), getIdentityKeys());
         } else {
-            if (encrypt)
+            if (unencryptedData != null)
                 additionalManifestManager.uploadConfigurationData(filename, data, unencryptedData, getEncryptor(),
                         getIdentityKeys(), success);
             else
@@ -374,6 +397,10 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
                 }
             }
 
+            if (claimIdentity && consumer.lastSyncedLogFile(getShare()) == null) {
+                files = restoreSnapshot(consumer, password, files);
+            }
+
             totalFiles = new AtomicLong(files.size());
             processedFiles = new AtomicLong(0L);
             processedOperations = new AtomicLong(0L);
@@ -383,12 +410,18 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
                 logPrefetcher = new LogPrefetcher(files,
                         InstanceFactory.getInstance(BackupConfiguration.class),
                         this::downloadData, getEncryptor(),
-                        getIdentityKeys().getPrivateKeys(getEncryptionIdentity().getPrivateIdentity(password)));
+                        getIdentityKeys().getPrivateKeys(getEncryptionIdentity().getPrivateIdentity(password)),
+                        InstanceFactory.getInstance(MemoryBudget.class));
             } catch (GeneralSecurityException e) {
                 throw new IOException(e);
             }
             logPrefetcher.start();
+            boolean sortedLoad = claimIdentity && "true".equals(getConfiguration()
+                    .getProperty(SortedRebuildLoader.SORTED_LOAD_PROPERTY, "false"));
             try (CloseableLock ignored = repository.exclusiveLock()) {
+                if (sortedLoad) {
+                    repository.startSortedLoad();
+                }
                 for (String file : files) {
                     try {
                         log.info("Processing log file \"{}\"", file);
@@ -417,6 +450,9 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
                 }
             } finally {
                 logPrefetcher.shutdown();
+                if (sortedLoad) {
+                    repository.finishSortedLoad();
+                }
             }
 
             if (activeShares != null && !activeShares.isEmpty()) {
@@ -459,6 +495,82 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
         }
     }
 
+    private List<String> restoreSnapshot(LogConsumer consumer, String password, List<String> files)
+            throws IOException {
+        List<String> snapshots;
+        try {
+            snapshots = MetadataSnapshot.availableSnapshots((IOIndex) getIoProvider());
+        } catch (IOException exc) {
+            log.warn("Failed to list metadata snapshots", exc);
+            return files;
+        }
+        if (snapshots.isEmpty()) {
+            return files;
+        }
+
+        String snapshotKey = snapshots.get(snapshots.size() - 1);
+        MetadataRepository repository = getMetadataRepository(true);
+        LogPrefetcher prefetcher = null;
+        boolean restoring = false;
+        try {
+            IdentityKeys.PrivateKeys privateKeys = getIdentityKeys()
+                    .getPrivateKeys(getEncryptionIdentity().getPrivateIdentity(password));
+            BackupSnapshot snapshot = BACKUP_SNAPSHOT_READER.readValue(decompressConfigData(
+                    getEncryptor().decodeBlock(null, downloadData(snapshotKey), privateKeys)));
+            if (!MetadataSnapshot.usable(snapshot, files)) {
+                log.info("Metadata snapshot \"{}\" predates the last log optimization, replaying full log", snapshotKey);
+                return files;
+            }
+
+            log.info("Restoring metadata snapshot \"{}\" taken at log file \"{}\"", snapshotKey, snapshot.getLogFile());
+            List<String> chunks = MetadataSnapshot.chunkKeys(snapshot);
+            totalFiles = new AtomicLong(chunks.size());
+            processedFiles = new AtomicLong(0L);
+            processedOperations = new AtomicLong(0L);
+
+            prefetcher = new LogPrefetcher(chunks, getConfiguration(), this::downloadData, getEncryptor(),
+                    privateKeys, InstanceFactory.getInstance(MemoryBudget.class));
+            prefetcher.start();
+            LogPrefetcher chunkPrefetcher = prefetcher;
+            restoring = true;
+            try (CloseableLock ignored = repository.exclusiveLock()) {
+                MetadataSnapshot.restore(snapshot, getEncryptionIdentity(), (key) -> {
+                    byte[] data = decompressConfigData(chunkPrefetcher.getLog(key));
+                    processedFiles.incrementAndGet();
+                    return data;
+                }, consumer, processedOperations);
+            }
+            consumer.setLastSyncedLogFile(getShare(), snapshot.getLogFile());
+
+            LogFileRepository logFileRepository = repository.getLogFileRepository();
+            List<String> remainingFiles = new ArrayList<>();
+            for (String file : files) {
+                if (file.compareTo(snapshot.getLogFile()) <= 0) {
+                    logFileRepository.addFile(file);
+                } else {
+                    remainingFiles.add(file);
+                }
+            }
+            log.info("Restored {} entries from metadata snapshot, replaying {} log files after it",
+                    readableNumber(processedOperations.get()), readableNumber(remainingFiles.size()));
+            return remainingFiles;
+        } catch (Exception exc) {
+            log.warn("Failed to restore metadata snapshot \"{}\", replaying full log", snapshotKey, exc);
+            if (prefetcher != null) {
+                prefetcher.stop();
+            }
+            if (restoring) {
+                repository.clear();
+                consumer.setLastSyncedLogFile(getShare(), null);
+            }
+            return files;
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.shutdown();
+            }
+        }
+    }
+
     private List<String> trimFiles(List<String> files) {
         // Optimize log files start with an initial "-i.gz" file,
         // followed by "-c.gz" files once done. If only one file was needed to optimize the log the ending
@@ -628,6 +740,7 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
 
         String lastLogFile = logConsumer.lastSyncedLogFile(getShare());
 
+        existingRepository.startReadView(false);
         setDisabledFlushing(true);
 
         try (CloseableLock ignored = existingRepository.acquireLock()) {
@@ -743,6 +856,7 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
                 trimRecordedFiles();
 
                 deleteLogFiles(lastLogFile);
+                deleteObsoleteSnapshots(null);
 
                 additionalManifestManager.finishOptimizeLog(lastLogFile, totalFiles, processedFiles);
                 existingRepository.setErrorsDetected(false);
@@ -765,6 +879,118 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
             resetStatus();
 
             setDisabledFlushing(false);
+            existingRepository.closeReadView();
+        }
+    }
+
+    @Override
+    public boolean createSnapshot(MetadataRepository existingRepository, boolean force) throws IOException {
+        int intervalHours = getConfiguration().getProperty(MetadataSnapshot.SNAPSHOT_INTERVAL_PROPERTY, 0);
+        if (!force && intervalHours <= 0) {
+            return false;
+        }
+        IOIndex index = (IOIndex) getIoProvider();
+        if (!force && !MetadataSnapshot.isDue(MetadataSnapshot.availableSnapshots(index), intervalHours)) {
+            return false;
+        }
+
+        // The snapshot must contain everything up to the last uploaded log file, anything after it is
+        // harmlessly replayed again from the log tail during a rebuild.
+        flushRepositoryLogging(true);
+        getUploadScheduler().waitForCompletion();
+        waitUploads();
+
+        if (!existingLogFiles().isEmpty()) {
+            log.warn("Still having pending log files, can't create snapshot");
+            return false;
+        }
+
+        String lastLogFile = existingRepository.lastSyncedLogFile(getShare());
+        if (lastLogFile == null) {
+            return false;
+        }
+
+        // The view only needs files and directories, the other tables are read from the repository while
+        // holding its lock.
+        existingRepository.startReadView(false);
+        try {
+            MetadataRepository view = existingRepository.readView();
+            if (view == null) {
+                log.warn("Can't create snapshot without a read only view of the repository");
+                return false;
+            }
+
+            startOperation(SNAPSHOT_OPERATION);
+            processedOperations = new AtomicLong();
+            totalOperations = new AtomicLong(view.getFileCount()
+                    + existingRepository.getBlockCount()
+                    + view.getDirectoryCount());
+
+            AtomicLong uploadedChunks = new AtomicLong();
+            BackupSnapshot snapshot;
+            try {
+                snapshot = new MetadataSnapshot(getEncryptionIdentity()).write(view, existingRepository, lastLogFile,
+                        MetadataSnapshot.availableChunks(index),
+                        (key, data) -> {
+                            uploadConfigData(key, data, true, null);
+                            if (uploadedChunks.incrementAndGet() % SNAPSHOT_UPLOAD_BATCH == 0) {
+                                waitUploads();
+                            }
+                        }, processedOperations);
+            } catch (IOException exc) {
+                if (InstanceFactory.isShutdown()) {
+                    throw exc;
+                }
+                log.warn("Snapshot does not match repository, keeping previous snapshot: {}", exc.getMessage());
+                return false;
+            } finally {
+                waitUploads();
+            }
+
+            List<String> chunks = MetadataSnapshot.chunkKeys(snapshot);
+            Set<String> availableChunks = MetadataSnapshot.availableChunks(index);
+            if (!chunks.stream().allMatch(key -> availableChunks.contains(
+                    key.substring(MetadataSnapshot.CHUNK_ROOT.length() + 1)))) {
+                log.error("Failed to upload all snapshot chunks, keeping previous snapshot");
+                return false;
+            }
+
+            String snapshotKey = MetadataSnapshot.snapshotKey(snapshot);
+            uploadConfigData(snapshotKey, BACKUP_SNAPSHOT_WRITER.writeValueAsBytes(snapshot), true, null);
+            waitUploads();
+
+            log.info("Completed snapshot \"{}\" at log file \"{}\" (Uploaded {} of {} chunks)", snapshotKey,
+                    lastLogFile, readableNumber(uploadedChunks.get()), readableNumber(chunks.size()));
+
+            deleteObsoleteSnapshots(snapshot);
+            return true;
+        } finally {
+            resetStatus();
+            existingRepository.closeReadView();
+        }
+    }
+
+    private void deleteObsoleteSnapshots(BackupSnapshot currentSnapshot) throws IOException {
+        if (noDelete) {
+            return;
+        }
+
+        IOIndex index = (IOIndex) getIoProvider();
+        Set<String> keep = new HashSet<>();
+        if (currentSnapshot != null) {
+            keep.add(MetadataSnapshot.snapshotKey(currentSnapshot));
+            keep.addAll(MetadataSnapshot.chunkKeys(currentSnapshot));
+        }
+
+        List<String> files = new ArrayList<>(MetadataSnapshot.availableSnapshots(index));
+        MetadataSnapshot.availableChunks(index).forEach(chunk -> files.add(MetadataSnapshot.chunkKey(chunk)));
+        files.removeAll(keep);
+
+        if (!files.isEmpty()) {
+            debug(() -> log.debug("Deleting {} obsolete snapshot files", files.size()));
+            AtomicLong processed = new AtomicLong();
+            deleteFiles(files, index, processed);
+            additionalManifestManager.deleteFiles(files, processed);
         }
     }
 
@@ -805,6 +1031,7 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
     public void repairRepository(LogConsumer consumer, String password) throws IOException {
         MetadataRepository repository = getMetadataRepository(true);
 
+        repository.startReadView(false);
         MetadataRepositoryStorage newStorage = repository.createStorageRevision();
         repository.open(RepositoryOpenMode.READ_WRITE);
         try {
@@ -819,6 +1046,8 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
         } catch (Throwable exc) {
             repository.cancelStorageRevision(newStorage);
             log.error("Failed repository upgrade", exc);
+        } finally {
+            repository.closeReadView();
         }
     }
 
@@ -860,18 +1089,24 @@ public class ManifestManagerImpl extends BaseManifestManagerImpl implements Manu
 
     @Override
     public BackupContentsAccess backupContents(Long timestamp, boolean includeDeleted) throws IOException {
-        return new BackupContentsAccessImpl(getMetadataRepository(true),
+        return new BackupContentsAccessImpl(getBrowseRepository(),
                 timestamp, includeDeleted);
     }
 
     @Override
     public BackupSearchAccess backupSearch(Long timestamp, boolean includeDeleted) throws IOException {
-        return new BackupSearchAccessImpl(getMetadataRepository(true),
+        return new BackupSearchAccessImpl(getBrowseRepository(),
                 backupContents(timestamp, includeDeleted),
                 timestamp,
                 includeDeleted);
     }
 
+    private MetadataRepository getBrowseRepository() throws IOException {
+        MetadataRepository repository = getMetadataRepository(true);
+        MetadataRepository view = repository.readView();
+        return view != null ? view : repository;
+    }
+
     @Override
     public void updateKeyData(EncryptionIdentity key) throws IOException {
         ChangePasswordCommand.saveKeyFile(new File(InstanceFactory.getInstance(CommandLineModule.KEY_FILE_NAME)), key);
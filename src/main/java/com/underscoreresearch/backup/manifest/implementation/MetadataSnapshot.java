@@ -0,0 +1,304 @@
+package com.underscoreresearch.backup.manifest.implementation;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.encryption.EncryptionIdentity;
+import com.underscoreresearch.backup.encryption.Hash;
+import com.underscoreresearch.backup.file.CloseableLock;
+import com.underscoreresearch.backup.file.CloseableStream;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.io.IOIndex;
+import com.underscoreresearch.backup.manifest.LogConsumer;
+import com.underscoreresearch.backup.manifest.model.BackupSnapshot;
+import com.underscoreresearch.backup.manifest.model.BackupSnapshotTable;
+import com.underscoreresearch.backup.manifest.model.PushActivePath;
+import com.underscoreresearch.backup.model.BackupActivePath;
+import com.underscoreresearch.backup.model.BackupPendingSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+
+@Slf4j
+public class MetadataSnapshot {
+    public static final String SNAPSHOT_ROOT = "snapshots";
+    public static final String CHUNK_ROOT = SNAPSHOT_ROOT + PATH_SEPARATOR + "chunks";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "snapshot.intervalHours";
+    private static final int DEFAULT_CHUNK_ENTRIES = 10000;
+    private static final int MAXIMUM_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final DateTimeFormatter SNAPSHOT_FORMATTER
+            = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss.SSS").withZone(ZoneId.of("UTC"));
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2}\\.\\d{3}");
+
+    private final EncryptionIdentity encryptionIdentity;
+    private final int chunkEntries;
+
+    public MetadataSnapshot(EncryptionIdentity encryptionIdentity) {
+        this(encryptionIdentity, DEFAULT_CHUNK_ENTRIES);
+    }
+
+    MetadataSnapshot(EncryptionIdentity encryptionIdentity, int chunkEntries) {
+        this.encryptionIdentity = encryptionIdentity;
+        this.chunkEntries = chunkEntries;
+    }
+
+    // Chunk names are stored unencrypted, so they are salted like block hashes to not reveal the hash of known
+    // metadata content.
+    private static String chunkHash(EncryptionIdentity encryptionIdentity, byte[] data) {
+        Hash hash = new Hash();
+        encryptionIdentity.addBlockHashSalt(hash);
+        hash.addBytes(data);
+        return hash.getHash();
+    }
+
+    public static String snapshotKey(BackupSnapshot snapshot) {
+        return SNAPSHOT_ROOT + PATH_SEPARATOR + SNAPSHOT_FORMATTER.format(Instant.ofEpochMilli(snapshot.getCreated()));
+    }
+
+    public static String chunkKey(String chunk) {
+        return CHUNK_ROOT + PATH_SEPARATOR + chunk;
+    }
+
+    public static List<String> availableSnapshots(IOIndex index) throws IOException {
+        return index.availableKeys(SNAPSHOT_ROOT).stream()
+                .filter(name -> SNAPSHOT_NAME.matcher(name).matches())
+                .sorted()
+                .map(name -> SNAPSHOT_ROOT + PATH_SEPARATOR + name)
+                .collect(Collectors.toList());
+    }
+
+    public static Set<String> availableChunks(IOIndex index) throws IOException {
+        return new HashSet<>(index.availableKeys(CHUNK_ROOT));
+    }
+
+    public static boolean isDue(List<String> snapshots, int intervalHours) {
+        if (snapshots.isEmpty()) {
+            return true;
+        }
+        String last = snapshots.get(snapshots.size() - 1).substring(SNAPSHOT_ROOT.length() + 1);
+        Instant created = Instant.from(SNAPSHOT_FORMATTER.parse(last));
+        return created.plus(Duration.ofHours(intervalHours)).isBefore(Instant.now());
+    }
+
+    public static List<String> chunkKeys(BackupSnapshot snapshot) {
+        return snapshot.getTables().stream()
+                .flatMap(table -> table.getChunks().stream())
+                .distinct()
+                .map(MetadataSnapshot::chunkKey)
+                .collect(Collectors.toList());
+    }
+
+    // A snapshot taken at a log file is only valid if no log optimization has started after it, since the
+    // optimized log does not record deletions made before the optimization.
+    public static boolean usable(BackupSnapshot snapshot, List<String> logFiles) {
+        return snapshot.getLogFile() != null
+                && !logFiles.isEmpty()
+                && logFiles.get(0).compareTo(snapshot.getLogFile()) <= 0;
+    }
+
+    // A snapshot replaces every log file before it during a rebuild, so one that is missing anything the
+    // repository contains must never be uploaded.
+    public static void verify(BackupSnapshot snapshot, MetadataRepository repository) throws IOException {
+        verifyTable(snapshot, "block", repository.getBlockCount());
+        verifyTable(snapshot, "file", repository.getFileCount());
+        verifyTable(snapshot, "dir", repository.getDirectoryCount());
+        verifyTable(snapshot, "pendingSet", repository.getPendingSets().stream()
+                .filter(pendingSet -> !"".equals(pendingSet.getSetId())).count());
+    }
+
+    private static void verifyTable(BackupSnapshot snapshot, String type, long expected) throws IOException {
+        long entries = snapshot.getTables().stream()
+                .filter(table -> table.getType().equals(type))
+                .mapToLong(BackupSnapshotTable::getEntries)
+                .sum();
+        if (entries != expected) {
+            throw new IOException(String.format("Snapshot table \"%s\" contains %s entries, repository has %s",
+                    type, entries, expected));
+        }
+    }
+
+    public static void restore(BackupSnapshot snapshot, EncryptionIdentity encryptionIdentity, ChunkReader reader,
+                               LogConsumer consumer, AtomicLong processedOperations) throws IOException {
+        for (BackupSnapshotTable table : snapshot.getTables()) {
+            long entries = 0;
+            for (String chunk : table.getChunks()) {
+                byte[] data = reader.read(chunkKey(chunk));
+                if (data == null || !chunk.equals(chunkHash(encryptionIdentity, data))) {
+                    throw new IOException(String.format("Snapshot chunk \"%s\" is corrupt", chunk));
+                }
+                try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+                    while (input.available() > 0) {
+                        byte[] entry = new byte[input.readInt()];
+                        input.readFully(entry);
+                        consumer.replayLogEntry(table.getType(), new String(entry, StandardCharsets.UTF_8));
+                        processedOperations.incrementAndGet();
+                        entries++;
+                    }
+                }
+                if (InstanceFactory.isShutdown()) {
+                    throw new IOException("Shutting down while restoring snapshot");
+                }
+            }
+            if (entries != table.getEntries()) {
+                throw new IOException(String.format("Snapshot table \"%s\" contained %s entries, expected %s",
+                        table.getType(), entries, table.getEntries()));
+            }
+        }
+    }
+
+    public BackupSnapshot write(MetadataRepository repository, String logFile, Set<String> existingChunks,
+                                ChunkWriter writer, AtomicLong processedOperations) throws IOException {
+        return write(repository, repository, logFile, existingChunks, writer, processedOperations);
+    }
+
+    // Files and directories are read from the view, which only needs to contain those tables. The remaining tables
+    // are read from the repository in one pass holding its lock, so the block table doesn't have to be copied to
+    // the view. Changes made after the log file the snapshot is taken at are replayed from the log during a
+    // rebuild, so the tables don't have to be from exactly the same point in time.
+    public BackupSnapshot write(MetadataRepository view, MetadataRepository repository, String logFile,
+                                Set<String> existingChunks, ChunkWriter writer,
+                                AtomicLong processedOperations) throws IOException {
+        Set<String> available = new HashSet<>(existingChunks);
+
+        TableWriter files = new TableWriter("file", available, writer);
+        writeStream(view.allFiles(true), files, processedOperations);
+        BackupSnapshotTable fileTable = files.finish();
+
+        TableWriter directories = new TableWriter("dir", available, writer);
+        writeStream(view.allDirectories(true), directories, processedOperations);
+        BackupSnapshotTable directoryTable = directories.finish();
+
+        BackupSnapshotTable blockTable;
+        BackupSnapshotTable pathTable;
+        BackupSnapshotTable pendingSetTable;
+        try (CloseableLock ignored = repository.acquireLock()) {
+            TableWriter blocks = new TableWriter("block", available, writer);
+            writeStream(repository.allBlocks(), blocks, processedOperations);
+            blockTable = blocks.finish();
+
+            TableWriter paths = new TableWriter("path", available, writer);
+            for (Map.Entry<String, BackupActivePath> entry : repository.getActivePaths(null).entrySet()) {
+                for (String setId : entry.getValue().getSetIds()) {
+                    paths.add(new PushActivePath(setId, entry.getKey(), entry.getValue()));
+                }
+                processedOperations.incrementAndGet();
+            }
+            pathTable = paths.finish();
+
+            TableWriter pendingSets = new TableWriter("pendingSet", available, writer);
+            long pendingSetCount = 0;
+            for (BackupPendingSet pendingSet : repository.getPendingSets()) {
+                if (!"".equals(pendingSet.getSetId())) {
+                    pendingSets.add(pendingSet);
+                    pendingSetCount++;
+                }
+                processedOperations.incrementAndGet();
+            }
+            pendingSetTable = pendingSets.finish();
+
+            verifyTable(blockTable, repository.getBlockCount());
+            verifyTable(pendingSetTable, pendingSetCount);
+        }
+        verifyTable(fileTable, view.getFileCount());
+        verifyTable(directoryTable, view.getDirectoryCount());
+
+        return new BackupSnapshot(logFile, Instant.now().toEpochMilli(),
+                Lists.newArrayList(blockTable, fileTable, directoryTable, pathTable, pendingSetTable));
+    }
+
+    private static void verifyTable(BackupSnapshotTable table, long expected) throws IOException {
+        if (table.getEntries() != expected) {
+            throw new IOException(String.format("Snapshot table \"%s\" contains %s entries, repository has %s",
+                    table.getType(), table.getEntries(), expected));
+        }
+    }
+
+    private <T> void writeStream(CloseableStream<T> stream, TableWriter table,
+                                 AtomicLong processedOperations) throws IOException {
+        try (stream) {
+            Iterator<T> iterator = stream.stream().iterator();
+            while (iterator.hasNext()) {
+                table.add(iterator.next());
+                processedOperations.incrementAndGet();
+                if (InstanceFactory.isShutdown()) {
+                    throw new IOException("Shutting down while creating snapshot");
+                }
+            }
+        }
+    }
+
+    public interface ChunkWriter {
+        void write(String key, byte[] data) throws IOException;
+    }
+
+    public interface ChunkReader {
+        byte[] read(String key) throws IOException;
+    }
+
+    private class TableWriter {
+        private final BackupSnapshotTable table;
+        private final Set<String> available;
+        private final ChunkWriter writer;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(buffer);
+
+        private TableWriter(String type, Set<String> available, ChunkWriter writer) {
+            this.table = new BackupSnapshotTable(type, 0, new ArrayList<>());
+            this.available = available;
+            this.writer = writer;
+        }
+
+        private void add(Object value) throws IOException {
+            byte[] data = MAPPER.writeValueAsBytes(value);
+            output.writeInt(data.length);
+            output.write(data);
+            table.setEntries(table.getEntries() + 1);
+
+            // Chunk boundaries are picked from the entries themselves so that a change only affects the chunk
+            // it is in and unchanged chunks deduplicate against the previous snapshot.
+            if (Math.floorMod(Hashing.murmur3_32_fixed().hashBytes(data).asInt(), chunkEntries) == 0
+                    || buffer.size() >= MAXIMUM_CHUNK_SIZE) {
+                flushChunk();
+            }
+        }
+
+        private BackupSnapshotTable finish() throws IOException {
+            flushChunk();
+            return table;
+        }
+
+        private void flushChunk() throws IOException {
+            if (buffer.size() > 0) {
+                output.flush();
+                byte[] data = buffer.toByteArray();
+                buffer.reset();
+                String chunk = chunkHash(encryptionIdentity, data);
+                table.getChunks().add(chunk);
+                if (available.add(chunk)) {
+                    writer.write(chunkKey(chunk), data);
+                }
+            }
+        }
+    }
+}
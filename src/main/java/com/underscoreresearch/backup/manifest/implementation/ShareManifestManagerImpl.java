@@ -4,7 +4,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
 import com.underscoreresearch.backup.encryption.EncryptionIdentity;
 import com.underscoreresearch.backup.encryption.IdentityKeys;
-import com.underscoreresearch.backup.io.IOUtils;
 import com.underscoreresearch.backup.io.RateLimitController;
 import com.underscoreresearch.backup.io.UploadScheduler;
 import com.underscoreresearch.backup.manifest.LogConsumer;
@@ -101,7 +100,7 @@ public class ShareManifestManagerImpl extends BaseManifestManagerImpl implements
                         if (lock.tryLock(true)) {
                             try (InputStream stream = Channels
                                     .newInputStream(lock.getLockedChannel())) {
-                                data = IOUtils.readAllBytes(stream);
+                                data = compressConfigData(stream);
                             }
                         } else {
                             log.warn("Log file \"{}\" locked by other process", file.getAbsolutePath());
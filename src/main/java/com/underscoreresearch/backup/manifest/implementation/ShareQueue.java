@@ -0,0 +1,118 @@
+package com.underscoreresearch.backup.manifest.implementation;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.SystemUtils;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static com.underscoreresearch.backup.io.IOUtils.createDirectory;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+
+// Share manifest updates waiting to be applied. Updates are only removed after they have been applied, so updates
+// pending when the process stops are applied again after the next start. Commits are batched, so updates queued in
+// the last second before a crash can still be lost.
+@Slf4j
+public class ShareQueue implements Closeable {
+    private static final long COMMIT_INTERVAL_MS = 1000;
+    private static final String ENTRIES = "entries";
+
+    private final File file;
+    private DB db;
+    private BTreeMap<Long, String> entries;
+    private long nextIndex;
+    private long lastCommit;
+
+    public ShareQueue(String manifestLocation) {
+        file = Paths.get(manifestLocation, "db", "share.queue.db").toFile();
+    }
+
+    public synchronized void open() {
+        if (db == null) {
+            createDirectory(file.getParentFile(), true);
+            DBMaker.Maker maker = DBMaker.fileDB(file).fileMmapPreclearDisable().transactionEnable();
+            if (SystemUtils.IS_OS_WINDOWS)
+                maker.fileChannelEnable();
+            else
+                maker.fileMmapEnableIfSupported();
+            db = maker.make();
+            entries = db.treeMap(ENTRIES, Serializer.LONG, Serializer.STRING).createOrOpen();
+            if (entries.isEmpty()) {
+                nextIndex = 0;
+            } else {
+                nextIndex = entries.lastKey() + 1;
+                log.info("Applying {} share updates pending from earlier run", entries.size());
+            }
+        }
+    }
+
+    public synchronized void add(String type, String data) throws IOException {
+        open();
+        entries.put(nextIndex++, MAPPER.writeValueAsString(new Entry(type, data)));
+        commitIfDue();
+    }
+
+    public synchronized Map.Entry<Long, Entry> first() throws IOException {
+        open();
+        Map.Entry<Long, String> entry = entries.firstEntry();
+        if (entry == null) {
+            return null;
+        }
+        return Map.entry(entry.getKey(), MAPPER.readValue(entry.getValue(), Entry.class));
+    }
+
+    public synchronized void remove(long index) {
+        if (db != null) {
+            entries.remove(index);
+            commitIfDue();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        open();
+        return entries.isEmpty();
+    }
+
+    public synchronized void commit() {
+        if (db != null) {
+            lastCommit = System.currentTimeMillis();
+            db.commit();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (db != null) {
+            db.commit();
+            db.close();
+            db = null;
+            entries = null;
+        }
+    }
+
+    private void commitIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastCommit >= COMMIT_INTERVAL_MS) {
+            lastCommit = now;
+            db.commit();
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private String type;
+        private String data;
+    }
+}
@@ -0,0 +1,20 @@
+package com.underscoreresearch.backup.manifest.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BackupSnapshot {
+    private String logFile;
+    private Long created;
+    private List<BackupSnapshotTable> tables;
+}
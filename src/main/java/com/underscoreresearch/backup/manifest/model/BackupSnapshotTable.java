@@ -0,0 +1,18 @@
+package com.underscoreresearch.backup.manifest.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BackupSnapshotTable {
+    private String type;
+    private long entries;
+    private List<String> chunks;
+}
@@ -27,6 +27,7 @@ import static com.underscoreresearch.backup.utils.LogUtil.readableNumber;
 @Slf4j
 public class BackupBlock {
     private static final String SUPERBLOCK_PREFIX = "S=";
+    private static final String ZERO_BLOCK_PREFIX = "Z=";
     private String hash;
     private long created;
     private String format;
@@ -43,11 +44,35 @@ public class BackupBlock {
         return SUPERBLOCK_PREFIX + UUID.randomUUID();
     }
 
+    // Zero blocks are never stored or uploaded, the hash itself records the length of the run of zeros.
+    public static boolean isZeroBlock(String hash) {
+        return hash.startsWith(ZERO_BLOCK_PREFIX);
+    }
+
+    public static String createZeroBlockHash(long length) {
+        return ZERO_BLOCK_PREFIX + length;
+    }
+
+    public static long zeroBlockLength(String hash) {
+        return Long.parseLong(hash.substring(ZERO_BLOCK_PREFIX.length()));
+    }
+
+    private static BackupBlock zeroBlock(String hash) {
+        return BackupBlock.builder().hash(hash).storage(new ArrayList<>()).build();
+    }
+
     public static List<BackupBlock> expandBlock(String blockHash, MetadataRepository repository) throws IOException {
+        if (isZeroBlock(blockHash)) {
+            return Lists.newArrayList(zeroBlock(blockHash));
+        }
         BackupBlock block = repository.block(blockHash);
         if (block.isSuperBlock()) {
             List<BackupBlock> blocks = new ArrayList<>();
             for (String hash : block.getHashes()) {
+                if (isZeroBlock(hash)) {
+                    blocks.add(zeroBlock(hash));
+                    continue;
+                }
                 BackupBlock childBlock = repository.block(hash);
                 if (childBlock == null) {
                     throw new IOException("Block \"" + hash + "\" not found");
@@ -65,6 +90,11 @@ public class BackupBlock {
         return isSuperBlock(hash);
     }
 
+    @JsonIgnore
+    public boolean isZeroBlock() {
+        return isZeroBlock(hash);
+    }
+
     public BackupBlock createAdditionalBlock(BackupBlockAdditional blockAdditional) {
         List<BackupBlockStorage> newStorages = new ArrayList<>();
         for (int i = 0; i < storage.size(); i++) {
@@ -1,6 +1,7 @@
 package com.underscoreresearch.backup.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -18,6 +19,7 @@ import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
 @Data
 @Builder
 @JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class BackupFile implements Comparable<BackupFile> {
@@ -28,6 +30,7 @@ public class BackupFile implements Comparable<BackupFile> {
     private String path;
     private String permissions;
     private List<BackupLocation> locations;
+    private String digest;
 
     @Override
     public int compareTo(BackupFile backupFile) {
@@ -7,9 +7,11 @@ import com.google.common.collect.ImmutableList;
 import com.underscoreresearch.backup.file.PathNormalizer;
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import lombok.ToString;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -28,6 +30,18 @@ public class BackupFileSelection {
     private List<Pattern> exclusionPatterns;
     @JsonIgnore
     private List<Pattern> exclusionDirectoryPatterns;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @JsonIgnore
+    private ExclusionMatcher exclusionMatcher;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @JsonIgnore
+    private ExclusionMatcher exclusionDirectoryMatcher;
 
     private List<String> exclusions;
     private List<BackupSetRoot> roots;
@@ -53,16 +67,18 @@ public class BackupFileSelection {
         } else {
             exclusionDirectoryPatterns = exclusionPatterns = new ArrayList<>();
         }
+        exclusionMatcher = new ExclusionMatcher(exclusionPatterns);
+        exclusionDirectoryMatcher = new ExclusionMatcher(exclusionDirectoryPatterns);
     }
 
     @JsonIgnore
     boolean checkExcluded(String finalFile) {
-        return exclusionPatterns.stream().anyMatch(pattern -> pattern.matcher(finalFile).find());
+        return exclusionMatcher.matches(finalFile);
     }
 
     @JsonIgnore
     private boolean checkExcludedDirectory(String finalDirectory) {
-        return exclusionDirectoryPatterns.stream().anyMatch(pattern -> pattern.matcher(finalDirectory).find());
+        return exclusionDirectoryMatcher.matches(finalDirectory);
     }
 
     @JsonIgnore
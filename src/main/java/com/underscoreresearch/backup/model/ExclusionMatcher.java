@@ -0,0 +1,135 @@
+package com.underscoreresearch.backup.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Only patterns whose required literal occurs in the path are evaluated. Patterns where no literal can be safely
+// extracted are always evaluated.
+class ExclusionMatcher {
+    private static final String SIMPLE_ESCAPES = "dDsSwWbBAzZGhHvVRXntrfe";
+
+    private final String[] literals;
+    private final Pattern[][] literalPatterns;
+    private final Pattern[] otherPatterns;
+
+    ExclusionMatcher(List<Pattern> patterns) {
+        Map<String, List<Pattern>> byLiteral = new HashMap<>();
+        List<Pattern> other = new ArrayList<>();
+        for (Pattern pattern : patterns) {
+            String literal = requiredLiteral(pattern);
+            if (literal != null) {
+                byLiteral.computeIfAbsent(literal, t -> new ArrayList<>()).add(pattern);
+            } else {
+                other.add(pattern);
+            }
+        }
+
+        literals = new String[byLiteral.size()];
+        literalPatterns = new Pattern[byLiteral.size()][];
+        int i = 0;
+        for (Map.Entry<String, List<Pattern>> entry : byLiteral.entrySet()) {
+            literals[i] = entry.getKey();
+            literalPatterns[i] = entry.getValue().toArray(new Pattern[0]);
+            i++;
+        }
+        otherPatterns = other.toArray(new Pattern[0]);
+    }
+
+    static String requiredLiteral(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        if (regex.indexOf('|') >= 0 || regex.indexOf('(') >= 0) {
+            return null;
+        }
+
+        String best = "";
+        StringBuilder current = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            switch (c) {
+                case '\\' -> {
+                    if (i >= regex.length()) {
+                        return null;
+                    }
+                    char next = regex.charAt(i++);
+                    if (Character.isLetterOrDigit(next)) {
+                        if (SIMPLE_ESCAPES.indexOf(next) < 0) {
+                            return null;
+                        }
+                        best = longest(best, current);
+                    } else {
+                        current.append(next);
+                    }
+                }
+                case '[' -> {
+                    best = longest(best, current);
+                    int depth = 1;
+                    while (i < regex.length() && depth > 0) {
+                        char skipped = regex.charAt(i++);
+                        if (skipped == '\\') {
+                            i++;
+                        } else if (skipped == '[') {
+                            depth++;
+                        } else if (skipped == ']') {
+                            depth--;
+                        }
+                    }
+                    if (depth > 0) {
+                        return null;
+                    }
+                }
+                case '?', '*' -> {
+                    if (!current.isEmpty()) {
+                        current.setLength(current.length() - 1);
+                    }
+                    best = longest(best, current);
+                }
+                case '{' -> {
+                    if (!current.isEmpty()) {
+                        current.setLength(current.length() - 1);
+                    }
+                    best = longest(best, current);
+                    int end = regex.indexOf('}', i);
+                    if (end < 0) {
+                        return null;
+                    }
+                    i = end + 1;
+                }
+                case '+', '.', '^', '$' -> best = longest(best, current);
+                default -> current.append(c);
+            }
+        }
+        best = longest(best, current);
+        return best.isEmpty() ? null : best;
+    }
+
+    private static String longest(String best, StringBuilder current) {
+        String ret = current.length() > best.length() ? current.toString() : best;
+        current.setLength(0);
+        return ret;
+    }
+
+    boolean matches(String path) {
+        for (int i = 0; i < literals.length; i++) {
+            if (path.contains(literals[i])) {
+                for (Pattern pattern : literalPatterns[i]) {
+                    if (pattern.matcher(path).find()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        for (Pattern pattern : otherPatterns) {
+            if (pattern.matcher(path).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+package com.underscoreresearch.backup.utils;
+
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+import static com.underscoreresearch.backup.utils.LogUtil.readableSize;
+
+// Shared byte budget for data held in memory between pipeline stages. A stage that has nothing outstanding is
+// always admitted so that data already admitted by an upstream stage can make it through downstream stages.
+@Slf4j
+public class MemoryBudget implements StatusLogger {
+    public static final String BYTES_PROPERTY = "memoryBudget.bytes";
+    public static final String HEAP_PERCENT_PROPERTY = "memoryBudget.heapPercent";
+    public static final String LARGE_BLOCK_STAGE = "largeBlock";
+    public static final String SMALL_BLOCK_STAGE = "smallBlock";
+    public static final String UPLOAD_STAGE = "upload";
+    public static final String DOWNLOAD_STAGE = "download";
+    public static final String LOG_PREFETCH_STAGE = "logPrefetch";
+    private static final int DEFAULT_HEAP_PERCENT = 40;
+    private static final long MINIMUM_BUDGET = 16 * 1024 * 1024;
+
+    private final long limit;
+    private final Map<String, Long> stageUsage = new HashMap<>();
+    private long used;
+    private long peak;
+    private long waits;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    public static MemoryBudget create(BackupConfiguration configuration) {
+        long limit = configuration.getProperty(BYTES_PROPERTY, 0L);
+        if (limit <= 0) {
+            int percent = configuration.getProperty(HEAP_PERCENT_PROPERTY, DEFAULT_HEAP_PERCENT);
+            limit = Math.max(Runtime.getRuntime().maxMemory() / 100 * percent, MINIMUM_BUDGET);
+        }
+        return new MemoryBudget(limit);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    public synchronized void acquire(String stage, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        boolean waited = false;
+        while (used > 0 && used + bytes > limit && stageUsage.getOrDefault(stage, 0L) > 0
+                && !InstanceFactory.isShutdown()) {
+            if (!waited) {
+                waited = true;
+                waits++;
+                debug(() -> log.debug("Waiting for {} of memory budget for {}", readableSize(bytes), stage));
+            }
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Failed to wait", e);
+                break;
+            }
+        }
+        used += bytes;
+        stageUsage.merge(stage, bytes, Long::sum);
+        if (used > peak) {
+            peak = used;
+        }
+    }
+
+    // Accounts for a difference between an earlier estimate and the actual size without waiting.
+    public synchronized void adjust(String stage, long bytes) {
+        used += bytes;
+        stageUsage.merge(stage, bytes, Long::sum);
+        if (used > peak) {
+            peak = used;
+        }
+        if (bytes < 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized void release(String stage, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        used -= bytes;
+        stageUsage.merge(stage, -bytes, Long::sum);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void resetStatus() {
+        peak = used;
+        waits = 0;
+    }
+
+    @Override
+    public synchronized List<StatusLine> status() {
+        List<StatusLine> ret = new ArrayList<>();
+        if (peak > 0) {
+            ret.add(new StatusLine(getClass(), "MEMORY_BUDGET", "Memory budget in use", used, limit,
+                    readableSize(used) + " / " + readableSize(limit) + " (" + used * 100 / limit + "%)"));
+            ret.add(new StatusLine(getClass(), "MEMORY_BUDGET_PEAK", "Peak memory budget in use", peak, limit,
+                    readableSize(peak) + " / " + readableSize(limit)));
+        }
+        if (waits > 0) {
+            ret.add(new StatusLine(getClass(), "MEMORY_BUDGET_WAITS", "Waits for memory budget", waits));
+        }
+        return ret;
+    }
+}
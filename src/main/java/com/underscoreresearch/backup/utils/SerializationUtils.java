@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.manifest.model.BackupSnapshot;
 import com.underscoreresearch.backup.manifest.model.PushActivePath;
 import com.underscoreresearch.backup.model.BackupActivatedShare;
 import com.underscoreresearch.backup.model.BackupActivePath;
@@ -56,6 +57,9 @@ public class SerializationUtils {
     public static final ObjectWriter BACKUP_FILE_PART_WRITER = MAPPER
             .writerFor(BackupFilePart.class);
 
+    public static final ObjectWriter EXTERNAL_BACKUP_FILE_WRITER = MAPPER
+            .writerFor(ExternalBackupFile.class);
+
     public static final ObjectWriter EXTERNAL_BACKUP_FILES_WRITER = MAPPER
             .writerFor(new TypeReference<List<ExternalBackupFile>>() {
             });
@@ -71,4 +75,7 @@ public class SerializationUtils {
 
     public static final ObjectReader BACKUP_ACTIVATED_SHARE_READER = MAPPER.readerFor(BackupActivatedShare.class);
     public static final ObjectWriter BACKUP_ACTIVATED_SHARE_WRITER = MAPPER.writerFor(BackupActivatedShare.class);
+
+    public static final ObjectReader BACKUP_SNAPSHOT_READER = MAPPER.readerFor(BackupSnapshot.class);
+    public static final ObjectWriter BACKUP_SNAPSHOT_WRITER = MAPPER.writerFor(BackupSnapshot.class);
 }
@@ -0,0 +1,40 @@
+package com.underscoreresearch.backup.utils.state;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+
+public interface LinuxLibC extends Library {
+    LinuxLibC INSTANCE = Native.load("c", LinuxLibC.class);
+
+    int PRIO_PROCESS = 0;
+    int SCHED_IDLE = 5;
+    int IOPRIO_WHO_PROCESS = 1;
+    int IOPRIO_CLASS_IDLE = 3;
+    int IOPRIO_CLASS_SHIFT = 13;
+    int O_RDONLY = 0;
+    int O_RDWR = 2;
+    int O_CLOEXEC = 0x80000;
+    int FALLOC_FL_KEEP_SIZE = 1;
+    int POSIX_FADV_WILLNEED = 3;
+    int POSIX_FADV_DONTNEED = 4;
+    int SEEK_DATA = 3;
+    int ENXIO = 6;
+
+    int setpriority(int which, int who, int prio);
+
+    int sched_setscheduler(int pid, int policy, int[] param);
+
+    long syscall(long number, Object... args);
+
+    int open(String path, int flags);
+
+    int close(int fd);
+
+    int fallocate(int fd, int mode, long offset, long length);
+
+    int posix_fadvise(int fd, long offset, long length, int advice);
+
+    long lseek(int fd, long offset, int whence);
+
+    int ftruncate(int fd, long length);
+}
@@ -14,11 +14,28 @@ import java.util.List;
 import java.util.Optional;
 
 import static com.underscoreresearch.backup.configuration.CommandLineModule.SERVICE_MODE;
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
 
 @Slf4j
 public class LinuxState extends MachineState {
-    public LinuxState(boolean pauseOnBattery) {
+    private static final int LOW_PRIORITY_NICE = 10;
+    private static final long IO_PRIORITY_SYSCALL = ioPrioritySyscall(System.getProperty("os.arch"));
+    private final PressureStallMonitor pressureMonitor;
+
+    public LinuxState(boolean pauseOnBattery, PressureStallMonitor pressureMonitor) {
         super(pauseOnBattery);
+        this.pressureMonitor = pressureMonitor;
+    }
+
+    @Override
+    public String getPressureReason() {
+        if (pressureMonitor != null) {
+            String resource = pressureMonitor.exceededResource();
+            if (resource != null) {
+                return String.format("Paused until system %s pressure goes down", resource);
+            }
+        }
+        return null;
     }
 
     @Override
@@ -85,12 +102,62 @@ public class LinuxState extends MachineState {
         }
     }
 
+    // Nice level, scheduling policy and IO priority are per thread on Linux. Only the scanner, upload and download
+    // workers are changed, each one as it starts, so threads serving the UI are not starved.
     @Override
     public void lowPriority() {
+        try {
+            // Loading the library fails here rather than in every worker when it isn't available.
+            if (LinuxLibC.INSTANCE != null) {
+                enableLowPriorityWorkers();
+            }
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+            log.warn("Can't load native library to change priority, using renice", exc);
+            renice();
+        }
+    }
+
+    @Override
+    protected void lowerThreadPriority() {
+        try {
+            // A thread id of 0 is the calling thread for all three calls.
+            boolean success = LinuxLibC.INSTANCE.setpriority(LinuxLibC.PRIO_PROCESS, 0, LOW_PRIORITY_NICE) == 0;
+            success &= LinuxLibC.INSTANCE.sched_setscheduler(0, LinuxLibC.SCHED_IDLE, new int[]{0}) == 0;
+            if (IO_PRIORITY_SYSCALL > 0) {
+                success &= LinuxLibC.INSTANCE.syscall(IO_PRIORITY_SYSCALL, LinuxLibC.IOPRIO_WHO_PROCESS, 0,
+                        LinuxLibC.IOPRIO_CLASS_IDLE << LinuxLibC.IOPRIO_CLASS_SHIFT) == 0;
+            }
+            if (!success) {
+                debug(() -> log.debug("Failed to change thread \"{}\" to low priority",
+                        Thread.currentThread().getName()));
+            }
+        } catch (UnsatisfiedLinkError | NoClassDefFoundError exc) {
+            debug(() -> log.debug("Can't load native library to change priority", exc));
+        }
+    }
+
+    // ioprio_set has no libc wrapper and its number differs between architectures, IO priority is left unchanged on
+    // architectures not listed.
+    private static long ioPrioritySyscall(String arch) {
+        if (arch == null) {
+            return 0;
+        }
+        return switch (arch) {
+            case "amd64", "x86_64" -> 251;
+            case "x86", "i386", "i486", "i586", "i686" -> 289;
+            case "aarch64", "riscv64" -> 30;
+            case "arm" -> 314;
+            case "ppc64", "ppc64le" -> 273;
+            case "s390x" -> 282;
+            default -> 0;
+        };
+    }
+
+    private void renice() {
         try {
             Process process = Runtime.getRuntime()
                     .exec(new String[]{
-                            "renice", "+10", "-p", Long.toString(ProcessHandle.current().pid())
+                            "renice", "+" + LOW_PRIORITY_NICE, "-p", Long.toString(ProcessHandle.current().pid())
                     });
             try {
                 if (process.waitFor() != 0) {
@@ -1,5 +1,6 @@
 package com.underscoreresearch.backup.utils.state;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.underscoreresearch.backup.configuration.InstanceFactory;
 import com.underscoreresearch.backup.file.changepoller.FileChangePoller;
 import com.underscoreresearch.backup.file.changepoller.FsChangePoller;
@@ -20,6 +21,8 @@ import java.time.Instant;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import static com.underscoreresearch.backup.io.IOUtils.executeProcess;
 
@@ -27,11 +30,14 @@ import static com.underscoreresearch.backup.io.IOUtils.executeProcess;
 @RequiredArgsConstructor
 public class MachineState {
     private static final Duration MINIMUM_WAIT = Duration.ofSeconds(2);
+    private static volatile MachineState lowPriorityWorkers;
     private final boolean pauseOnBattery;
 
     private boolean loggedOnBattery;
     private Instant nextCheck = Instant.MIN;
     private Instant nextCpuCheck = Instant.MIN;
+    private Instant nextPressureCheck = Instant.MIN;
+    private String lastPressureReason;
     private boolean lastValue;
     private double lastCpuUsage;
 
@@ -56,47 +62,59 @@ public class MachineState {
         return Double.NaN;
     }
 
+    public String getPressureReason() {
+        return null;
+    }
+
     public void waitForRunCheck() {
-        if (pauseOnBattery) {
-            if (occasionallyGetOnBattery() || occasionallyGetCpuUsage() > getMaxCpuUsage()) {
-                String reason;
-                synchronized (this) {
-                    if (occasionallyGetOnBattery())
-                        reason = "Paused until power is restored";
-                    else
-                        reason = "Paused until CPU usage goes down";
-
-                    if (!loggedOnBattery) {
-                        loggedOnBattery = true;
-                        log.info(reason);
-                    }
-                }
-                try (Closeable ignored = PausedStatusLogger.startPause(reason)) {
-                    do {
-                        try {
-                            Thread.sleep(MINIMUM_WAIT.toMillis());
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            log.warn("Failed to wait", e);
-                        }
-                        if (InstanceFactory.isShutdown()) {
-                            return;
-                        }
-                    } while (occasionallyGetOnBattery() || occasionallyGetCpuUsage() > getMaxCpuUsage());
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        if (pauseReason() != null) {
+            String reason;
+            synchronized (this) {
+                reason = pauseReason();
+                if (reason == null) {
+                    return;
                 }
 
-                synchronized (this) {
-                    if (loggedOnBattery) {
-                        loggedOnBattery = false;
-                        log.info("Continuing after pausing for power or CPU usage");
+                if (!loggedOnBattery) {
+                    loggedOnBattery = true;
+                    log.info(reason);
+                }
+            }
+            try (Closeable ignored = PausedStatusLogger.startPause(reason)) {
+                do {
+                    try {
+                        Thread.sleep(MINIMUM_WAIT.toMillis());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log.warn("Failed to wait", e);
                     }
+                    if (InstanceFactory.isShutdown()) {
+                        return;
+                    }
+                } while (pauseReason() != null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            synchronized (this) {
+                if (loggedOnBattery) {
+                    loggedOnBattery = false;
+                    log.info("Continuing after pausing for power, CPU usage or system pressure");
                 }
             }
         }
     }
 
+    private String pauseReason() {
+        if (pauseOnBattery) {
+            if (occasionallyGetOnBattery())
+                return "Paused until power is restored";
+            if (occasionallyGetCpuUsage() > getMaxCpuUsage())
+                return "Paused until CPU usage goes down";
+        }
+        return occasionallyGetPressureReason();
+    }
+
     public ReleaseFileItem getDistribution(List<ReleaseFileItem> files) {
         Optional<ReleaseFileItem> ret = files.stream().filter(file -> file.getName().endsWith(".tar")).findAny();
         if (ret.isPresent())
@@ -108,6 +126,31 @@ public class MachineState {
     public void lowPriority() {
     }
 
+    // Threads scanning, uploading and downloading call this when they start. Once low priority workers have been
+    // enabled they lower their own priority, other threads such as the UI and web server keep theirs.
+    public static void applyWorkerPriority() {
+        MachineState state = lowPriorityWorkers;
+        if (state != null) {
+            state.lowerThreadPriority();
+        }
+    }
+
+    public static ThreadFactory workerThreadFactory(String nameFormat) {
+        ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat)
+                .setThreadFactory(runnable -> threadFactory.newThread(() -> {
+                    applyWorkerPriority();
+                    runnable.run();
+                })).build();
+    }
+
+    protected void enableLowPriorityWorkers() {
+        lowPriorityWorkers = this;
+    }
+
+    protected void lowerThreadPriority() {
+    }
+
     private synchronized double occasionallyGetCpuUsage() {
         if (nextCpuCheck.isBefore(Instant.now())) {
             lastCpuUsage = getCpuUsage();
@@ -117,6 +160,15 @@ public class MachineState {
         return lastCpuUsage;
     }
 
+    private synchronized String occasionallyGetPressureReason() {
+        if (nextPressureCheck.isBefore(Instant.now())) {
+            lastPressureReason = getPressureReason();
+            nextPressureCheck = Instant.now().plus(MINIMUM_WAIT);
+        }
+
+        return lastPressureReason;
+    }
+
     private synchronized boolean occasionallyGetOnBattery() {
         if (nextCheck.isBefore(Instant.now())) {
             lastValue = getOnBattery();
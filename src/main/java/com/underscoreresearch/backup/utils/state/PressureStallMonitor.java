@@ -0,0 +1,84 @@
+package com.underscoreresearch.backup.utils.state;
+
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.underscoreresearch.backup.utils.LogUtil.debug;
+
+// Uses the "some avg10" value of the kernel pressure stall information, the percentage of the last 10 seconds
+// where at least one task was stalled waiting on the resource.
+@Slf4j
+public class PressureStallMonitor {
+    public static final String ENABLED_PROPERTY = "pressureThrottle.enabled";
+    public static final String CPU_PROPERTY = "pressureThrottle.cpu";
+    public static final String IO_PROPERTY = "pressureThrottle.io";
+    public static final String MEMORY_PROPERTY = "pressureThrottle.memory";
+    private static final File PRESSURE_DIRECTORY = new File("/proc/pressure");
+    private static final double DEFAULT_CPU_THRESHOLD = 40;
+    private static final double DEFAULT_IO_THRESHOLD = 30;
+    private static final double DEFAULT_MEMORY_THRESHOLD = 20;
+
+    private final File directory;
+    private final Map<String, Double> thresholds;
+
+    public PressureStallMonitor(File directory, double cpuThreshold, double ioThreshold, double memoryThreshold) {
+        this.directory = directory;
+        thresholds = new LinkedHashMap<>();
+        thresholds.put("memory", memoryThreshold);
+        thresholds.put("io", ioThreshold);
+        thresholds.put("cpu", cpuThreshold);
+    }
+
+    public static PressureStallMonitor create(BackupConfiguration configuration) {
+        if (configuration == null || !"true".equals(configuration.getProperty(ENABLED_PROPERTY, "false"))) {
+            return null;
+        }
+        if (!new File(PRESSURE_DIRECTORY, "cpu").canRead()) {
+            log.warn("Pressure stall information not available, not throttling on system pressure");
+            return null;
+        }
+        return new PressureStallMonitor(PRESSURE_DIRECTORY,
+                configuration.getProperty(CPU_PROPERTY, DEFAULT_CPU_THRESHOLD),
+                configuration.getProperty(IO_PROPERTY, DEFAULT_IO_THRESHOLD),
+                configuration.getProperty(MEMORY_PROPERTY, DEFAULT_MEMORY_THRESHOLD));
+    }
+
+    public String exceededResource() {
+        for (Map.Entry<String, Double> entry : thresholds.entrySet()) {
+            if (entry.getValue() > 0) {
+                double pressure = readPressure(entry.getKey());
+                if (pressure > entry.getValue()) {
+                    debug(() -> log.debug("System {} pressure {} over threshold {}", entry.getKey(), pressure,
+                            entry.getValue()));
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    double readPressure(String resource) {
+        try {
+            List<String> lines = Files.readAllLines(new File(directory, resource).toPath());
+            for (String line : lines) {
+                if (line.startsWith("some ")) {
+                    for (String field : line.split(" ")) {
+                        if (field.startsWith("avg10=")) {
+                            return Double.parseDouble(field.substring("avg10=".length()));
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException exc) {
+            debug(() -> log.debug("Failed to read {} pressure", resource, exc));
+        }
+        return 0;
+    }
+}
@@ -13,7 +13,9 @@ import com.underscoreresearch.backup.model.BackupCompletion;
 import com.underscoreresearch.backup.model.BackupData;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupLocation;
 import com.underscoreresearch.backup.model.BackupSet;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import com.underscoreresearch.backup.utils.state.MachineState;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.Is;
@@ -25,8 +27,10 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -38,6 +42,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 
 class AssignmentTests {
     private BackupSet set;
@@ -128,7 +133,8 @@ class AssignmentTests {
     public void rawUpload() throws InterruptedException {
         RawLargeFileBlockAssignment largeFileBlockAssignment = new RawLargeFileBlockAssignment(uploader,
                 Mockito.mock(BlockDownloader.class), access,
-                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 50);
+                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 50,
+                new MemoryBudget(1024 * 1024));
         expectedFormat = "RAW";
 
         AtomicBoolean failed = new AtomicBoolean();
@@ -166,7 +172,8 @@ class AssignmentTests {
     public void gzipUpload() throws InterruptedException {
         GzipLargeFileBlockAssignment largeFileBlockAssignment = new GzipLargeFileBlockAssignment(uploader,
                 Mockito.mock(BlockDownloader.class), access,
-                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 50);
+                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 50,
+                new MemoryBudget(1024 * 1024));
         expectedFormat = "GZIP";
 
         AtomicBoolean failed = new AtomicBoolean();
@@ -208,11 +215,114 @@ class AssignmentTests {
         assertFalse(failed.get());
     }
 
+    @Test
+    public void digestMatchesContents() throws InterruptedException {
+        RawLargeFileBlockAssignment largeFileBlockAssignment = new RawLargeFileBlockAssignment(uploader,
+                Mockito.mock(BlockDownloader.class), access,
+                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 50,
+                new MemoryBudget(1024 * 1024));
+        SmallFileBlockAssignment smallFileBlockAssignment = new ZipSmallBlockAssignment(uploader,
+                Mockito.mock(BlockDownloader.class),
+                repository, access, encryptionKey, 150, 300,
+                new MemoryBudget(1024 * 1024));
+
+        byte[] expected = new byte[120];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+
+        expectedFormat = "RAW";
+        BackupFile largeFile = BackupFile.builder().path("120").length(120L).lastChanged(1L).build();
+        largeFileBlockAssignment.assignBlocks(set, largeFile, (locations) -> {
+        });
+        assertThat(largeFile.getDigest(), Is.is(Hash.hash(expected)));
+
+        expectedFormat = "ZIP";
+        BackupFile smallFile = BackupFile.builder().path("120").length(120L).lastChanged(1L).build();
+        smallFileBlockAssignment.assignBlocks(set, smallFile, (locations) -> {
+        });
+        smallFileBlockAssignment.flushAssignments();
+        assertThat(smallFile.getDigest(), Is.is(Hash.hash(expected)));
+
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void zeroBlocksNotUploaded() throws IOException, InterruptedException {
+        byte[] expected = new byte[3 * 8192];
+        for (int i = 0; i < 8192; i++) {
+            expected[i] = (byte) (i + 1);
+            expected[2 * 8192 + i] = (byte) (i + 1);
+        }
+        FileSystemAccess sparseAccess = Mockito.mock(FileSystemAccess.class);
+        Mockito.when(sparseAccess.readData(anyString(), any(), anyLong(), anyInt())).then((t) -> {
+            byte[] buffer = t.getArgument(1);
+            long offset = t.getArgument(2);
+            int length = t.getArgument(3);
+            System.arraycopy(expected, (int) offset, buffer, 0, length);
+            return length;
+        });
+
+        RawLargeFileBlockAssignment largeFileBlockAssignment = new RawLargeFileBlockAssignment(uploader,
+                Mockito.mock(BlockDownloader.class), sparseAccess,
+                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 8192,
+                new MemoryBudget(1024 * 1024));
+        largeFileBlockAssignment.setRecordZeroBlocks(true);
+        expectedFormat = "RAW";
+
+        BackupFile file = BackupFile.builder().path("sparse").length((long) expected.length).lastChanged(1L).build();
+        AtomicReference<List<BackupLocation>> result = new AtomicReference<>();
+        largeFileBlockAssignment.assignBlocks(set, file, result::set);
+        Thread.sleep(100);
+
+        List<BackupFilePart> parts = result.get().get(0).getParts();
+        assertThat(parts.size(), Is.is(3));
+        assertThat(parts.get(1).getBlockHash(), Is.is(BackupBlock.createZeroBlockHash(8192)));
+        assertThat(uploadedData.size(), Is.is(2));
+        assertThat(file.getDigest(), Is.is(Hash.hash(expected)));
+    }
+
+    @Test
+    public void holesNotRead() throws IOException, InterruptedException {
+        byte[] expected = new byte[2 * 8192];
+        for (int i = 0; i < 8192; i++) {
+            expected[8192 + i] = (byte) (i + 1);
+        }
+        FileSystemAccess sparseAccess = Mockito.mock(FileSystemAccess.class);
+        Mockito.when(sparseAccess.readData(anyString(), any(), anyLong(), anyInt())).then((t) -> {
+            byte[] buffer = t.getArgument(1);
+            long offset = t.getArgument(2);
+            int length = t.getArgument(3);
+            System.arraycopy(expected, (int) offset, buffer, 0, length);
+            return length;
+        });
+        Mockito.when(sparseAccess.isHole("sparse", 0L, 8192)).thenReturn(true);
+
+        RawLargeFileBlockAssignment largeFileBlockAssignment = new RawLargeFileBlockAssignment(uploader,
+                Mockito.mock(BlockDownloader.class), sparseAccess,
+                Mockito.mock(MetadataRepository.class), new MachineState(false), encryptionKey, 8192,
+                new MemoryBudget(1024 * 1024));
+        largeFileBlockAssignment.setRecordZeroBlocks(true);
+        expectedFormat = "RAW";
+
+        BackupFile file = BackupFile.builder().path("sparse").length((long) expected.length).lastChanged(1L).build();
+        AtomicReference<List<BackupLocation>> result = new AtomicReference<>();
+        largeFileBlockAssignment.assignBlocks(set, file, result::set);
+        Thread.sleep(100);
+
+        List<BackupFilePart> parts = result.get().get(0).getParts();
+        assertThat(parts.get(0).getBlockHash(), Is.is(BackupBlock.createZeroBlockHash(8192)));
+        assertThat(uploadedData.size(), Is.is(1));
+        assertThat(file.getDigest(), Is.is(Hash.hash(expected)));
+        Mockito.verify(sparseAccess, Mockito.never()).readData(anyString(), any(), eq(0L), anyInt());
+    }
+
     @Test
     public void zipUpload() throws InterruptedException {
         SmallFileBlockAssignment fileBlockAssignment = new ZipSmallBlockAssignment(uploader,
                 Mockito.mock(BlockDownloader.class),
-                repository, access, encryptionKey, 150, 300);
+                repository, access, encryptionKey, 150, 300,
+                new MemoryBudget(1024 * 1024));
         expectedFormat = "ZIP";
 
         AtomicBoolean failed = new AtomicBoolean();
@@ -267,7 +377,8 @@ class AssignmentTests {
     public void zipUploadExists() throws InterruptedException {
         SmallFileBlockAssignment smallBlockAssignment = new EncryptedSmallBlockAssignment(uploader,
                 Mockito.mock(BlockDownloader.class),
-                repository, access, encryptionKey, 150, 300);
+                repository, access, encryptionKey, 150, 300,
+                new MemoryBudget(1024 * 1024));
         registerPart = true;
 
         AtomicBoolean failed = new AtomicBoolean();
@@ -299,7 +410,8 @@ class AssignmentTests {
     @Test
     public void zipUploadExistsWrongDestination() throws InterruptedException {
         SmallFileBlockAssignment largeFileBlockAssignment = new ZipSmallBlockAssignment(uploader,
-                Mockito.mock(BlockDownloader.class), repository, access, encryptionKey, 150, 300);
+                Mockito.mock(BlockDownloader.class), repository, access, encryptionKey, 150, 300,
+                new MemoryBudget(1024 * 1024));
         expectedFormat = "ZIP";
         registerPart = true;
         set.setDestinations(Lists.newArrayList("destination", "other"));
@@ -324,7 +436,8 @@ class AssignmentTests {
         Mockito.when(downloader.downloadBlock(Mockito.any(), Mockito.eq("pwd"))).thenAnswer((t) ->
                 uploadedData.get(((BackupBlock) t.getArgument(0)).getHash()));
         SmallFileBlockAssignment fileBlockAssignment = new EncryptedSmallBlockAssignment(uploader,
-                downloader, repository, access, encryptionKey, 150, 300);
+                downloader, repository, access, encryptionKey, 150, 300,
+                new MemoryBudget(1024 * 1024));
         expectedFormat = "ENC";
 
         AtomicBoolean failed = new AtomicBoolean();
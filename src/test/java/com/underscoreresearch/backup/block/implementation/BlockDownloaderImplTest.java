@@ -0,0 +1,61 @@
+package com.underscoreresearch.backup.block.implementation;
+
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+class BlockDownloaderImplTest {
+    private Map<String, AtomicInteger> fetched;
+    private BlockDownloaderImpl downloader;
+
+    @BeforeEach
+    public void setup() {
+        fetched = new ConcurrentHashMap<>();
+        downloader = new BlockDownloaderImpl(new BackupConfiguration(), null, null, null, null, 1) {
+            @Override
+            protected byte[] fetchBlock(BackupBlock block, String password) {
+                fetched.computeIfAbsent(block.getHash(), key -> new AtomicInteger()).incrementAndGet();
+                return new byte[100];
+            }
+        };
+    }
+
+    @Test
+    public void retainedBlockFetchedOnce() throws IOException {
+        downloader.retainBlock("shared");
+        downloader.retainBlock("shared");
+        downloader.retainBlock("shared");
+        downloader.retainBlock("single");
+
+        for (int i = 0; i < 3; i++) {
+            downloader.downloadBlock(BackupBlock.builder().hash("shared").build(), null);
+        }
+        downloader.downloadBlock(BackupBlock.builder().hash("single").build(), null);
+        assertThat(fetched.get("shared").get(), is(1));
+        assertThat(fetched.get("single").get(), is(1));
+
+        // All references used, so the block is no longer kept.
+        downloader.downloadBlock(BackupBlock.builder().hash("shared").build(), null);
+        assertThat(fetched.get("shared").get(), is(2));
+    }
+
+    @Test
+    public void unretainedBlocksFetchedEveryTime() throws IOException {
+        downloader.retainBlock("shared");
+        downloader.retainBlock("shared");
+        downloader.releaseRetainedBlocks();
+
+        downloader.downloadBlock(BackupBlock.builder().hash("shared").build(), null);
+        downloader.downloadBlock(BackupBlock.builder().hash("shared").build(), null);
+        assertThat(fetched.get("shared").get(), is(2));
+    }
+}
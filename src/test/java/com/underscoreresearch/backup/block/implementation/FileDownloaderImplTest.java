@@ -0,0 +1,269 @@
+package com.underscoreresearch.backup.block.implementation;
+
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.block.BlockFormatPlugin;
+import com.underscoreresearch.backup.block.FileBlockExtractor;
+import com.underscoreresearch.backup.cli.helpers.RestoreExecutor;
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.encryption.Hash;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.PathNormalizer;
+import com.underscoreresearch.backup.file.implementation.BackupStatsLogger;
+import com.underscoreresearch.backup.file.implementation.FileSystemAccessImpl;
+import com.underscoreresearch.backup.io.DownloadScheduler;
+import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.manifest.BackupContentsAccess;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupLocation;
+import com.underscoreresearch.backup.model.BackupSetRoot;
+import lombok.Getter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+class FileDownloaderImplTest {
+    private static final int FILES = 6;
+    private static final int BLOCKS_PER_FILE = 3;
+    private static final int KILL_AFTER = 2 * BLOCKS_PER_FILE + 2;
+    private static final Map<String, byte[]> BLOCK_DATA = new HashMap<>();
+    private static final AtomicInteger EXTRACTED = new AtomicInteger();
+    private static int failAfter;
+
+    private File tempDir;
+    private File manifestDir;
+    private MetadataRepository repository;
+    private List<BackupFile> files;
+    private Map<String, byte[]> contents;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        InstanceFactory.initialize(new String[]{"--no-log", "--config-data", "{}"}, null, null);
+        tempDir = Files.createTempDirectory("restore").toFile();
+        manifestDir = Files.createTempDirectory("manifest").toFile();
+        BLOCK_DATA.clear();
+        EXTRACTED.set(0);
+        failAfter = -1;
+
+        repository = Mockito.mock(MetadataRepository.class);
+        when(repository.block(anyString())).thenAnswer(t -> BackupBlock.builder().hash(t.getArgument(0))
+                .format("JOURNAL_TEST").build());
+
+        Random random = new Random(1);
+        files = new ArrayList<>();
+        contents = new HashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            List<BackupFilePart> parts = new ArrayList<>();
+            for (int j = 0; j < BLOCKS_PER_FILE; j++) {
+                byte[] data = new byte[1000 + random.nextInt(1000)];
+                random.nextBytes(data);
+                String hash = "f" + i + "b" + j;
+                BLOCK_DATA.put(hash, data);
+                parts.add(BackupFilePart.builder().blockHash(hash).build());
+                stream.write(data);
+            }
+            String destination = PathNormalizer.normalizePath(new File(tempDir,
+                    "dir" + (i % 2) + File.separator + "file" + i).getAbsolutePath());
+            contents.put(destination, stream.toByteArray());
+            files.add(BackupFile.builder()
+                    .path("/source/dir" + (i % 2) + "/file" + i)
+                    .added(1L)
+                    .length((long) stream.size())
+                    .digest(Hash.hash(stream.toByteArray()))
+                    .locations(Lists.newArrayList(BackupLocation.builder().parts(parts).build()))
+                    .build());
+        }
+    }
+
+    @AfterEach
+    public void teardown() {
+        IOUtils.deleteContents(tempDir);
+        tempDir.delete();
+        IOUtils.deleteContents(manifestDir);
+        manifestDir.delete();
+    }
+
+    @Test
+    public void resumeInterruptedRestore() throws IOException {
+        failAfter = KILL_AFTER;
+        assertThat(restore(false), is(3));
+        assertThat(InstanceFactory.isShutdown(), is(true));
+        assertThat(journalFile().exists(), is(true));
+
+        InstanceFactory.initialize(new String[]{"--no-log", "--config-data", "{}"}, null, null);
+        failAfter = -1;
+        EXTRACTED.set(0);
+
+        assertThat(restore(false), is(FILES - 2));
+        assertThat(EXTRACTED.get(), is(FILES * BLOCKS_PER_FILE - KILL_AFTER));
+        assertRestored();
+        assertThat(journalFile().exists(), is(false));
+    }
+
+    @Test
+    public void differentRestoreDiscardsInterruptedProgress() throws IOException {
+        failAfter = KILL_AFTER;
+        restore(false);
+        assertThat(journalFile().exists(), is(true));
+
+        InstanceFactory.initialize(new String[]{"--no-log", "--config-data", "{}"}, null, null);
+        failAfter = -1;
+        EXTRACTED.set(0);
+
+        assertThat(restore(true), is(FILES));
+        assertThat(EXTRACTED.get(), is(FILES * BLOCKS_PER_FILE));
+        assertRestored();
+    }
+
+    private int restore(boolean overwrite) throws IOException {
+        BackupContentsAccess contentsAccess = Mockito.mock(BackupContentsAccess.class);
+        when(contentsAccess.directoryFiles("/source/")).thenReturn(Lists.newArrayList(
+                BackupFile.builder().path("/source/dir0/").build(),
+                BackupFile.builder().path("/source/dir1/").build()));
+        for (int i = 0; i < 2; i++) {
+            String directory = "/source/dir" + i + "/";
+            when(contentsAccess.directoryFiles(directory)).thenReturn(files.stream()
+                    .filter(file -> file.getPath().startsWith(directory))
+                    .collect(Collectors.toList()));
+        }
+
+        RestoreJournal journal = new RestoreJournal(manifestDir.getAbsolutePath());
+        FileDownloaderImpl downloader = new FileDownloaderImpl(repository, new FileSystemAccessImpl(), journal);
+        SynchronousScheduler scheduler = new SynchronousScheduler(downloader);
+        RestoreExecutor executor = new RestoreExecutor(contentsAccess, new FileSystemAccessImpl(), repository, null,
+                Mockito.mock(BackupStatsLogger.class), scheduler, journal);
+        executor.restorePaths(Lists.newArrayList(BackupSetRoot.builder().path("/source/").build()),
+                PathNormalizer.normalizePath(tempDir.getAbsolutePath()), true, overwrite, true);
+        return scheduler.getScheduled().get();
+    }
+
+    private void assertRestored() throws IOException {
+        for (BackupFile file : files) {
+            assertThat(Files.readAllBytes(new File(PathNormalizer.physicalPath(destination(file))).toPath()),
+                    is(contents.get(destination(file))));
+        }
+    }
+
+    private File journalFile() {
+        return new File(manifestDir, "db" + File.separator + "restore.journal.db");
+    }
+
+    @Test
+    public void restoreZeroBlocksAsHoles() throws IOException {
+        byte[] data = BLOCK_DATA.get("f0b0");
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(data);
+        stream.write(new byte[8192]);
+        stream.write(data);
+        stream.write(new byte[4096]);
+        byte[] expected = stream.toByteArray();
+
+        BackupFile file = BackupFile.builder()
+                .path("/source/sparse")
+                .added(1L)
+                .length((long) expected.length)
+                .digest(Hash.hash(expected))
+                .locations(Lists.newArrayList(BackupLocation.builder().parts(Lists.newArrayList(
+                        BackupFilePart.builder().blockHash("f0b0").build(),
+                        BackupFilePart.builder().blockHash(BackupBlock.createZeroBlockHash(8192)).build(),
+                        BackupFilePart.builder().blockHash("f0b0").build(),
+                        BackupFilePart.builder().blockHash(BackupBlock.createZeroBlockHash(4096)).build()))
+                        .build()))
+                .build();
+        String destination = PathNormalizer.normalizePath(new File(tempDir, "sparse").getAbsolutePath());
+
+        FileDownloaderImpl downloader = new FileDownloaderImpl(repository, new FileSystemAccessImpl());
+        downloader.downloadFile(file, destination, null);
+
+        assertThat(EXTRACTED.get(), is(2));
+        assertThat(Files.readAllBytes(new File(PathNormalizer.physicalPath(destination)).toPath()), is(expected));
+        assertThat(downloader.status().stream()
+                .filter(line -> line.getCode().equals("RESTORED_SPARSE_SIZE"))
+                .findAny().get().getValue(), is(8192L + 4096L));
+    }
+
+    private String destination(BackupFile file) {
+        int index = files.indexOf(file);
+        return PathNormalizer.normalizePath(new File(tempDir,
+                "dir" + (index % 2) + File.separator + "file" + index).getAbsolutePath());
+    }
+
+    // Downloads on the calling thread and stops the restore the same way as the process being stopped when a
+    // download fails.
+    private static class SynchronousScheduler implements DownloadScheduler {
+        private final FileDownloaderImpl downloader;
+        @Getter
+        private final AtomicInteger scheduled = new AtomicInteger();
+
+        private SynchronousScheduler(FileDownloaderImpl downloader) {
+            this.downloader = downloader;
+        }
+
+        @Override
+        public void scheduleDownload(BackupFile file, String destination, String password) {
+            if (InstanceFactory.isShutdown()) {
+                return;
+            }
+            scheduled.incrementAndGet();
+            try {
+                downloader.downloadFile(file, destination, password);
+            } catch (IOException exc) {
+                InstanceFactory.shutdown();
+            }
+        }
+
+        @Override
+        public void addCompletionCallback(Consumer<String> callback) {
+        }
+
+        @Override
+        public void removeCompletionCallback(Consumer<String> callback) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void waitForCompletion() {
+        }
+    }
+
+    @BlockFormatPlugin("JOURNAL_TEST")
+    public static class JournalTestExtractor implements FileBlockExtractor {
+        @Override
+        public byte[] extractPart(BackupFilePart file, BackupBlock block, String password) throws IOException {
+            if (failAfter >= 0 && EXTRACTED.get() >= failAfter) {
+                throw new IOException("Restore killed");
+            }
+            EXTRACTED.incrementAndGet();
+            return BLOCK_DATA.get(block.getHash());
+        }
+
+        @Override
+        public long blockSize(BackupFilePart file, byte[] blockData) {
+            return blockData.length;
+        }
+    }
+}
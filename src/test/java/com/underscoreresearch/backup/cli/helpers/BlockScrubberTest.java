@@ -0,0 +1,186 @@
+package com.underscoreresearch.backup.cli.helpers;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.configuration.InstanceFactory;
+import com.underscoreresearch.backup.errorcorrection.ErrorCorrectorFactory;
+import com.underscoreresearch.backup.file.CloseableStream;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.implementation.BackupStatsLogger;
+import com.underscoreresearch.backup.io.IOProvider;
+import com.underscoreresearch.backup.io.IOProviderFactory;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupBlockStorage;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupDestination;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static com.underscoreresearch.backup.errorcorrection.implementation.ReedSolomonErrorCorrector.RS;
+import static com.underscoreresearch.backup.utils.SerializationUtils.MAPPER;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BlockScrubberTest {
+    private File tempDir;
+    private MetadataRepository repository;
+    private DestinationBlockProcessor destinationBlockProcessor;
+    private BackupStatsLogger statsLogger;
+    private IOProvider provider;
+    private BackupBlock block;
+    private List<BackupBlock> blocks;
+    private BlockScrubber scrubber;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        InstanceFactory.initialize(new String[]{"--no-log", "--config-data", "{}"}, null, null);
+        tempDir = Files.createTempDirectory("scrub").toFile();
+
+        BackupDestination destination = new BackupDestination();
+        destination.setType("MEMORY");
+        BackupConfiguration configuration = new BackupConfiguration();
+        configuration.setDestinations(ImmutableMap.of("mem", destination));
+        configuration.setProperties(ImmutableMap.of(BlockScrubber.ENABLED_PROPERTY, "true",
+                BlockScrubber.BYTES_PER_SECOND_PROPERTY, "0"));
+        provider = IOProviderFactory.getProvider(destination);
+
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        BackupBlockStorage storage = BackupBlockStorage.builder().destination("mem").build();
+        List<byte[]> partData = ErrorCorrectorFactory.encodeBlocks(RS, storage, data);
+        List<String> parts = new ArrayList<>();
+        for (int i = 0; i < partData.size(); i++) {
+            parts.add(provider.upload("/scrub/" + i, partData.get(i)));
+        }
+        storage.setParts(parts);
+        block = BackupBlock.builder().hash("block").storage(Lists.newArrayList(storage)).build();
+        blocks = Lists.newArrayList(block);
+
+        repository = Mockito.mock(MetadataRepository.class);
+        when(repository.getBlockCount()).thenReturn(1L);
+        when(repository.block("block")).thenAnswer(t -> block);
+        when(repository.allBlocks()).thenAnswer(t -> new CloseableStream<BackupBlock>() {
+            @Override
+            public Stream<BackupBlock> stream() {
+                return blocks.stream();
+            }
+
+            @Override
+            public void setReportErrorsAsNull(boolean reportErrorsAsNull) {
+            }
+        });
+        destinationBlockProcessor = Mockito.mock(DestinationBlockProcessor.class);
+        statsLogger = Mockito.mock(BackupStatsLogger.class);
+
+        scrubber = new BlockScrubber(repository, configuration, destinationBlockProcessor, statsLogger,
+                tempDir.getAbsolutePath());
+    }
+
+    @AfterEach
+    public void teardown() {
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void intactBlock() throws IOException {
+        scrubber.scrub();
+
+        verify(repository, never()).addBlock(any());
+        verify(destinationBlockProcessor, never()).repairStorage(any(), anyList(), any());
+        assertThat(scrubber.getState().getCompletedPasses(), is(1L));
+        assertThat(scrubber.getState().getPosition(), is(0L));
+        assertThat(scrubber.getState().getLastHash(), nullValue());
+        assertThat(new File(tempDir, "scrubstate.json").exists(), is(true));
+    }
+
+    @Test
+    public void resumeFromLastHash() throws IOException {
+        blocks.add(0, BackupBlock.builder().hash("another").storage(new ArrayList<>()).build());
+        blocks.add(BackupBlock.builder().hash("aardvark").storage(new ArrayList<>()).build());
+        BlockScrubber.ScrubState state = new BlockScrubber.ScrubState();
+        state.setLastHash("another");
+        state.setPosition(2);
+        state.setPassStarted(1L);
+        MAPPER.writeValue(new File(tempDir, "scrubstate.json"), state);
+
+        scrubber.scrub();
+
+        verify(repository).block("block");
+        verify(repository, never()).block("another");
+        verify(repository, never()).block("aardvark");
+        assertThat(scrubber.getState().getCompletedPasses(), is(1L));
+        assertThat(scrubber.getState().getLastHash(), nullValue());
+    }
+
+    @Test
+    public void unconfiguredDestination() throws IOException {
+        BackupBlockStorage unknown = BackupBlockStorage.builder().destination("unknown")
+                .parts(Lists.newArrayList("missing")).build();
+        block.getStorage().add(unknown);
+        for (int i = 0; i < 4; i++) {
+            provider.delete(block.getStorage().get(0).getParts().get(i));
+        }
+
+        scrubber.scrub();
+
+        verify(repository, never()).deleteBlock(any());
+        verify(repository).addBlock(block);
+        assertThat(block.getStorage(), is(Lists.newArrayList(unknown)));
+    }
+
+    @Test
+    public void corruptPart() throws IOException {
+        String key = block.getStorage().get(0).getParts().get(2);
+        byte[] corrupt = provider.download(key).clone();
+        corrupt[0]++;
+        provider.upload(key, corrupt);
+
+        scrubber.scrub();
+
+        verify(destinationBlockProcessor).repairStorage(eq(block), eq(Lists.newArrayList(block.getStorage().get(0))),
+                any());
+        verify(repository).addBlock(block);
+        verify(repository, never()).deleteBlock(any());
+    }
+
+    @Test
+    public void lostBlock() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            provider.delete(block.getStorage().get(0).getParts().get(i));
+        }
+
+        scrubber.scrub();
+
+        verify(repository).deleteBlock(block);
+        verify(statsLogger).setNeedValidation(true);
+        assertThat(scrubber.getState().getCompletedPasses(), is(1L));
+    }
+
+    @Test
+    public void repeatedPasses() throws IOException {
+        scrubber.scrub();
+        scrubber.scrub();
+        assertThat(scrubber.getState().getCompletedPasses(), is(2L));
+        assertThat(scrubber.getState().getBytesToday() > 20000, is(true));
+    }
+}
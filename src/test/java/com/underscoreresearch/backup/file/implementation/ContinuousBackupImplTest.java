@@ -0,0 +1,121 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.file.FileConsumer;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.PathNormalizer;
+import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupRetention;
+import com.underscoreresearch.backup.model.BackupSet;
+import com.underscoreresearch.backup.model.BackupSetRoot;
+import com.underscoreresearch.backup.model.BackupTimeUnit;
+import com.underscoreresearch.backup.model.BackupTimespan;
+import com.underscoreresearch.backup.model.BackupUpdatedFile;
+import com.underscoreresearch.backup.utils.state.MachineState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ContinuousBackupImplTest {
+    private static final long QUIESCENCE_MS = 60000L;
+    private File tempDir;
+    private String root;
+    private MetadataRepository repository;
+    private FileConsumer fileConsumer;
+    private ContinuousBackupImpl continuousBackup;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("continuous").toFile();
+        root = PathNormalizer.normalizePath(tempDir.getAbsolutePath());
+        if (!root.endsWith(PathNormalizer.PATH_SEPARATOR)) {
+            root += PathNormalizer.PATH_SEPARATOR;
+        }
+
+        repository = Mockito.mock(MetadataRepository.class);
+        fileConsumer = Mockito.mock(FileConsumer.class);
+        when(repository.addUpdatedFile(any(), anyLong())).thenReturn(true);
+
+        BackupSet set = BackupSet.builder()
+                .id("set")
+                .roots(Lists.newArrayList(BackupSetRoot.builder().path(tempDir.getAbsolutePath()).build()))
+                .retention(BackupRetention.builder()
+                        .defaultFrequency(new BackupTimespan(1, BackupTimeUnit.MINUTES)).build())
+                .build();
+        set.setContinuous(true);
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("continuous.quiescenceSeconds", "60");
+        continuousBackup = new ContinuousBackupImpl(repository, fileConsumer, Mockito.mock(MachineState.class),
+                BackupConfiguration.builder().sets(Lists.newArrayList(set)).properties(properties).build());
+    }
+
+    @AfterEach
+    public void teardown() {
+        IOUtils.deleteContents(tempDir);
+        tempDir.delete();
+    }
+
+    @Test
+    public void quiescentFile() throws IOException {
+        BackupUpdatedFile updatedFile = createFile("quiescent", System.currentTimeMillis() - 2 * QUIESCENCE_MS);
+
+        continuousBackup.processFile(updatedFile);
+
+        ArgumentCaptor<BackupFile> captor = ArgumentCaptor.forClass(BackupFile.class);
+        verify(fileConsumer).backupFile(any(), captor.capture(), any());
+        assertThat(captor.getValue().getPath(), is(root + "quiescent"));
+        verify(repository).removeUpdatedFile(updatedFile);
+        verify(repository, never()).addUpdatedFile(any(), anyLong());
+    }
+
+    @Test
+    public void changingFile() throws IOException {
+        long lastChanged = System.currentTimeMillis() - 1000;
+        BackupUpdatedFile updatedFile = createFile("changing", lastChanged);
+        lastChanged = new File(tempDir, "changing").lastModified();
+
+        continuousBackup.processFile(updatedFile);
+
+        verify(fileConsumer, never()).backupFile(any(), any(), any());
+        verify(repository).removeUpdatedFile(updatedFile);
+        verify(repository).addUpdatedFile(eq(new BackupUpdatedFile(root + "changing",
+                lastChanged + QUIESCENCE_MS)), eq(-1L));
+    }
+
+    @Test
+    public void futureModificationTime() throws IOException {
+        BackupUpdatedFile updatedFile = createFile("future", System.currentTimeMillis() + 10 * QUIESCENCE_MS);
+
+        continuousBackup.processFile(updatedFile);
+
+        verify(fileConsumer).backupFile(any(), any(), any());
+        verify(repository, never()).addUpdatedFile(any(), anyLong());
+    }
+
+    private BackupUpdatedFile createFile(String name, long lastModified) throws IOException {
+        File file = new File(tempDir, name);
+        Files.writeString(file.toPath(), name);
+        file.setLastModified(lastModified);
+        return new BackupUpdatedFile(root + name, 0);
+    }
+}
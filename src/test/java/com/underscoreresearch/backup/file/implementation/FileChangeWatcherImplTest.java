@@ -0,0 +1,158 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.file.ContinuousBackup;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.PathNormalizer;
+import com.underscoreresearch.backup.file.changepoller.FileChangePoller;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupRetention;
+import com.underscoreresearch.backup.model.BackupSet;
+import com.underscoreresearch.backup.model.BackupSetRoot;
+import com.underscoreresearch.backup.model.BackupTimeUnit;
+import com.underscoreresearch.backup.model.BackupTimespan;
+import com.underscoreresearch.backup.model.BackupUpdatedFile;
+import com.underscoreresearch.backup.utils.StatusLine;
+import com.underscoreresearch.backup.utils.state.MachineState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FileChangeWatcherImplTest {
+    private File tempDir;
+    private File manifestDir;
+    private String root;
+    private MetadataRepository repository;
+    private ContinuousBackup continuousBackup;
+    private FileChangeWatcherImpl watcher;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("watcher").toFile();
+        manifestDir = Files.createTempDirectory("manifest").toFile();
+        root = PathNormalizer.normalizePath(tempDir.getAbsolutePath());
+        if (!root.endsWith(PathNormalizer.PATH_SEPARATOR)) {
+            root += PathNormalizer.PATH_SEPARATOR;
+        }
+
+        repository = Mockito.mock(MetadataRepository.class);
+        continuousBackup = Mockito.mock(ContinuousBackup.class);
+        when(repository.addUpdatedFile(any(), anyLong())).thenReturn(true);
+
+        BackupSet set = BackupSet.builder()
+                .id("set")
+                .roots(Lists.newArrayList(BackupSetRoot.builder().path(tempDir.getAbsolutePath()).build()))
+                .retention(BackupRetention.builder()
+                        .defaultFrequency(new BackupTimespan(1, BackupTimeUnit.MINUTES)).build())
+                .build();
+        set.setContinuous(true);
+
+        MachineState machineState = Mockito.mock(MachineState.class);
+        when(machineState.createPoller()).thenReturn(new OverflowingPoller());
+
+        watcher = new FileChangeWatcherImpl(BackupConfiguration.builder().sets(Lists.newArrayList(set)).build(),
+                repository, continuousBackup, manifestDir.getAbsolutePath(), machineState, new FileSystemAccessImpl());
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        watcher.stop();
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+        manifestDir.delete();
+    }
+
+    @Test
+    public void rescanAfterOverflow() throws IOException, InterruptedException {
+        File changed = new File(tempDir, "changed");
+        Files.writeString(changed.toPath(), "changed");
+        File unchanged = new File(tempDir, "unchanged");
+        Files.writeString(unchanged.toPath(), "unchanged");
+
+        when(repository.directoryFiles(eq(root), any())).thenReturn(Lists.newArrayList(BackupFile.builder()
+                .path(root + "unchanged")
+                .lastChanged(unchanged.lastModified())
+                .length(unchanged.length())
+                .build()));
+        when(repository.directory(eq(root), any(), anyBoolean())).thenReturn(BackupDirectory.builder()
+                .path(root)
+                .files(new TreeSet<>(Sets.newHashSet("changed", "unchanged", "deleted")))
+                .build());
+
+        watcher.start();
+        for (int i = 0; i < 100 && watcher.status().isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        List<StatusLine> status = watcher.status();
+        assertThat(status.size(), is(1));
+        assertThat(status.get(0).getCode(), is("OVERFLOW_RESCAN_PENDING"));
+
+        watcher.rescanOverflowPaths();
+
+        verify(repository).addUpdatedFile(eq(new BackupUpdatedFile(root + "changed", changed.lastModified())),
+                eq(60000L));
+        verify(repository).addUpdatedFile(eq(new BackupUpdatedFile(root + "deleted", 0)), eq(60000L));
+        verify(repository, never()).addUpdatedFile(eq(new BackupUpdatedFile(root + "unchanged",
+                unchanged.lastModified())), anyLong());
+        verify(repository, never()).file(any(), any());
+        verify(continuousBackup).signalChanged();
+
+        assertThat(watcher.status().stream().filter(t -> t.getCode().equals("OVERFLOW_RESCANNED_FILES"))
+                .findAny().get().getValue(), is(2L));
+    }
+
+    private static class OverflowingPoller implements FileChangePoller {
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+        private volatile boolean closed;
+
+        @Override
+        public void registerPaths(List<Path> paths) {
+        }
+
+        @Override
+        public List<String> fetchPaths() throws OverflowException {
+            if (!overflowed.getAndSet(true)) {
+                throw new OverflowException();
+            }
+            while (!closed) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.underscoreresearch.backup.file.implementation;
 
 import com.google.common.collect.Lists;
 import com.underscoreresearch.backup.block.FileBlockAssignment;
+import com.underscoreresearch.backup.encryption.Hash;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.model.BackupBlockCompletion;
 import com.underscoreresearch.backup.model.BackupCompletion;
@@ -60,6 +61,17 @@ class FileConsumerImplTest {
         Mockito.verify(secondAssignment, Mockito.never()).assignBlocks(any(), any(), any());
     }
 
+    @Test
+    public void digestOnlyRecordedWhenEnabled() throws IOException {
+        file.setLength(0L);
+        fileConsumer.backupFile(set, file, promise);
+        assertThat(file.getDigest(), Is.is((String) null));
+
+        fileConsumer.setRecordDigest(true);
+        fileConsumer.backupFile(set, file, promise);
+        assertThat(file.getDigest(), Is.is(Hash.hash(new byte[0])));
+    }
+
     @Test
     public void firstAssignmentCompletedSuccessfully() throws IOException {
         file.setLength(1L);
@@ -9,9 +9,11 @@ import com.underscoreresearch.backup.file.RepositoryOpenMode;
 import com.underscoreresearch.backup.manifest.ManifestManager;
 import com.underscoreresearch.backup.manifest.implementation.LoggingMetadataRepository;
 import com.underscoreresearch.backup.model.BackupCompletion;
+import com.underscoreresearch.backup.model.BackupConfiguration;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupFilter;
 import com.underscoreresearch.backup.model.BackupFilterType;
+import com.underscoreresearch.backup.model.BackupLocation;
 import com.underscoreresearch.backup.model.BackupSet;
 import com.underscoreresearch.backup.model.BackupSetRoot;
 import com.underscoreresearch.backup.utils.state.MachineState;
@@ -27,6 +29,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -120,6 +123,94 @@ class FileScannerImplTest {
         assertThat(processedFiles, Is.is(Sets.newHashSet(answer)));
     }
 
+    @Test
+    public void incrementalScan() throws IOException {
+        File sourceDir = Files.createTempDirectory("source").toFile();
+        try {
+            for (int i = 0; i < 3; i++) {
+                File dir = new File(sourceDir, "dir" + i);
+                dir.mkdir();
+                for (int j = 0; j < 3; j++) {
+                    Files.writeString(new File(dir, "file" + j).toPath(), "data" + i + j);
+                }
+            }
+
+            set = BackupSet.builder()
+                    .roots(Lists.newArrayList(BackupSetRoot.builder()
+                            .path(PathNormalizer.normalizePath(sourceDir.getAbsolutePath()))
+                            .build()))
+                    .id("s1")
+                    .destinations(Lists.newArrayList("do"))
+                    .build();
+            BackupConfiguration configuration = BackupConfiguration.builder()
+                    .properties(Map.of(DirectoryFingerprintStore.INCREMENTAL_SCAN_PROPERTY, "true",
+                            DirectoryFingerprintStore.FILE_SYSTEMS_PROPERTY,
+                            Files.getFileStore(sourceDir.toPath()).type()))
+                    .build();
+            scanner = new FileScannerImpl(repository, new RecordingConsumer(), access, new MachineState(false), true,
+                    manifestLocation.getAbsolutePath(), configuration);
+
+            scanner.startScanning(set);
+            assertThat(backedUp.size(), Is.is(9));
+
+            backedUp.clear();
+            scanner.startScanning(set);
+            assertThat(backedUp.size(), Is.is(0));
+
+            Files.writeString(new File(sourceDir, "dir1" + File.separator + "newFile").toPath(), "new");
+            backedUp.clear();
+            scanner.startScanning(set);
+            assertThat(backedUp, Is.is(Lists.newArrayList(PathNormalizer.normalizePath(
+                    new File(sourceDir, "dir1" + File.separator + "newFile").getAbsolutePath()))));
+        } finally {
+            deleteDir(sourceDir);
+        }
+    }
+
+    @Test
+    public void moveDetection() throws IOException {
+        File sourceDir = Files.createTempDirectory("source").toFile();
+        try {
+            File dir = new File(sourceDir, "before");
+            dir.mkdir();
+            for (int j = 0; j < 3; j++) {
+                Files.writeString(new File(dir, "file" + j).toPath(), "data" + j);
+            }
+
+            set = BackupSet.builder()
+                    .roots(Lists.newArrayList(BackupSetRoot.builder()
+                            .path(PathNormalizer.normalizePath(sourceDir.getAbsolutePath()))
+                            .build()))
+                    .id("s1")
+                    .destinations(Lists.newArrayList("do"))
+                    .build();
+            BackupConfiguration configuration = BackupConfiguration.builder()
+                    .properties(Map.of(MoveDetectionStore.MOVE_DETECTION_PROPERTY, "true",
+                            MoveDetectionStore.VERIFY_PROPERTY, "true"))
+                    .build();
+            scanner = new FileScannerImpl(repository, new RecordingConsumer(), access, new MachineState(false), true,
+                    manifestLocation.getAbsolutePath(), configuration);
+
+            scanner.startScanning(set);
+            assertThat(backedUp.size(), Is.is(3));
+
+            File moved = new File(sourceDir, "after");
+            Files.move(dir.toPath(), moved.toPath());
+            Files.writeString(new File(moved, "file1").toPath(), "changed");
+            backedUp.clear();
+            scanner.startScanning(set);
+
+            String changedPath = PathNormalizer.normalizePath(new File(moved, "file1").getAbsolutePath());
+            assertThat(backedUp, Is.is(Lists.newArrayList(changedPath)));
+            BackupFile movedFile = repository.file(PathNormalizer.normalizePath(
+                    new File(moved, "file0").getAbsolutePath()), null);
+            assertThat(movedFile.getLocations().size(), Is.is(1));
+            assertThat(movedFile.getLength(), Is.is(5L));
+        } finally {
+            deleteDir(sourceDir);
+        }
+    }
+
     @AfterEach
     public void teardown() throws IOException {
         repository.close();
@@ -140,6 +231,24 @@ class FileScannerImplTest {
         tempDir.delete();
     }
 
+    private class RecordingConsumer implements FileConsumer {
+        @Override
+        public void backupFile(BackupSet backupSet, BackupFile file, BackupCompletion completionPromise) {
+            try {
+                file.setLocations(Lists.newArrayList(new BackupLocation(file.getLength(), new ArrayList<>())));
+                repository.addFile(file);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            backupFileSubmit(file, completionPromise);
+        }
+
+        @Override
+        public void flushAssignments() {
+
+        }
+    }
+
     private class Consumer implements FileConsumer {
 
         @Override
@@ -9,8 +9,13 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -91,6 +96,128 @@ class FileSystemAccessImplTest {
         }
     }
 
+    @Test
+    public void testAttributeReadsPerEntry() throws IOException {
+        String normalizedRoot = PathNormalizer.normalizePath(tempDir.getPath());
+        for (int i = 0; i < 20; i++) {
+            access.writeData(normalizedRoot + "f" + i, data, 0, i);
+        }
+        for (int i = 0; i < 5; i++) {
+            access.writeData(normalizedRoot + "d" + i + PATH_SEPARATOR + "f", data, 0, data.length);
+        }
+
+        CountingFileSystemAccess counting = new CountingFileSystemAccess();
+        Set<BackupFile> files = counting.directoryFiles(normalizedRoot);
+
+        assertThat(files.size(), Is.is(25));
+        assertThat(files.stream().filter(BackupFile::isDirectory).count(), Is.is(5L));
+        assertThat(files.stream().filter(t -> t.getPath().equals(normalizedRoot + "f7"))
+                .findAny().get().getLength(), Is.is(7L));
+        assertThat(counting.attributeReads.get(), Is.is(25));
+        assertThat(counting.readableChecks.get(), Is.is(25));
+    }
+
+    @Test
+    public void testOpensPerFile() throws IOException {
+        String normalizedRoot = PathNormalizer.normalizePath(tempDir.getPath());
+        CountingFileSystemAccess counting = new CountingFileSystemAccess();
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < block.length; i++)
+            block[i] = (byte) i;
+        int blocks = 32;
+
+        for (int i = 0; i < blocks; i++) {
+            counting.writeData(normalizedRoot + "large", block, (long) i * block.length, block.length);
+        }
+        counting.completeFile(new BackupFile(), normalizedRoot + "large", (long) blocks * block.length);
+        assertThat(counting.opens.get(), Is.is(1));
+        assertThat(new File(tempDir, "large").length(), Is.is((long) blocks * block.length));
+
+        byte[] read = new byte[block.length];
+        for (int i = 0; i < blocks; i++) {
+            assertThat(counting.readData(normalizedRoot + "large", read, (long) i * block.length, read.length),
+                    Is.is(read.length));
+            assertThat(read[i], Is.is(block[i]));
+        }
+        assertThat(counting.opens.get(), Is.is(2));
+
+        counting.readData(normalizedRoot + "large", read, 0, read.length);
+        assertThat(counting.opens.get(), Is.is(3));
+        counting.delete(normalizedRoot + "large");
+        assertFalse(new File(tempDir, "large").exists());
+    }
+
+    @Test
+    public void testCloseFile() throws IOException {
+        String normalizedRoot = PathNormalizer.normalizePath(tempDir.getPath());
+        CountingFileSystemAccess counting = new CountingFileSystemAccess();
+
+        counting.writeData(normalizedRoot + "aborted", data, 0, data.length);
+        counting.writeData(normalizedRoot + "aborted", data, data.length, data.length);
+        assertThat(counting.opens.get(), Is.is(1));
+
+        counting.closeFile(normalizedRoot + "aborted");
+        counting.writeData(normalizedRoot + "aborted", data, 0, data.length);
+        assertThat(counting.opens.get(), Is.is(2));
+        counting.closeFile(normalizedRoot + "aborted");
+        assertThat(new File(tempDir, "aborted").length(), Is.is((long) data.length * 2));
+    }
+
+    @Test
+    public void testPreallocateFile() throws IOException {
+        String normalizedRoot = PathNormalizer.normalizePath(tempDir.getPath());
+        CountingFileSystemAccess counting = new CountingFileSystemAccess();
+
+        counting.preallocateFile(normalizedRoot + "preallocated", data.length * 2L);
+        assertThat(new File(tempDir, "preallocated").length(), Is.is(0L));
+        counting.writeData(normalizedRoot + "preallocated", data, 0, data.length);
+        counting.writeData(normalizedRoot + "preallocated", data, data.length, data.length);
+        counting.completeFile(new BackupFile(), normalizedRoot + "preallocated", data.length * 2L);
+        assertThat(counting.opens.get(), Is.is(1));
+        assertThat(new File(tempDir, "preallocated").length(), Is.is((long) data.length * 2));
+    }
+
+    @Test
+    public void testExtendedFile() throws IOException {
+        String normalizedRoot = PathNormalizer.normalizePath(tempDir.getPath());
+        long length = 4 * 1024 * 1024;
+
+        access.writeData(normalizedRoot + "sparse", data, 0, data.length);
+        access.completeFile(new BackupFile(), normalizedRoot + "sparse", length);
+        assertThat(new File(tempDir, "sparse").length(), Is.is(length));
+        assertFalse(access.isHole(normalizedRoot + "sparse", 0, data.length));
+
+        byte[] read = new byte[data.length];
+        assertThat(access.readData(normalizedRoot + "sparse", read, length - read.length, read.length),
+                Is.is(read.length));
+        for (byte b : read)
+            assertThat(b, Is.is((byte) 0));
+    }
+
+    private static class CountingFileSystemAccess extends FileSystemAccessImpl {
+        private final AtomicInteger attributeReads = new AtomicInteger();
+        private final AtomicInteger readableChecks = new AtomicInteger();
+        private final AtomicInteger opens = new AtomicInteger();
+
+        @Override
+        protected FileChannel openChannel(File file, boolean write) throws IOException {
+            opens.incrementAndGet();
+            return super.openChannel(file, write);
+        }
+
+        @Override
+        protected BasicFileAttributes readAttributes(Path filePath) throws IOException {
+            attributeReads.incrementAndGet();
+            return super.readAttributes(filePath);
+        }
+
+        @Override
+        protected boolean isReadable(Path filePath) {
+            readableChecks.incrementAndGet();
+            return super.isReadable(filePath);
+        }
+    }
+
     @AfterEach()
     public void teardown() {
         deleteDir(tempDir);
@@ -0,0 +1,79 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import org.hamcrest.core.Is;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KnownHashFilterTest {
+    @Test
+    public void notReady() {
+        KnownHashFilter filter = new KnownHashFilter(0);
+        assertTrue(filter.mightContain("missing"));
+        assertThat(filter.status("BLOCK", "Block").size(), Is.is(0));
+    }
+
+    @Test
+    public void lookups() {
+        KnownHashFilter filter = new KnownHashFilter(1000);
+        filter.build(IntStream.range(0, 1000).mapToObj(i -> "hash" + i));
+        filter.put("added");
+
+        assertTrue(filter.isReady());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("hash" + i));
+        }
+        assertTrue(filter.mightContain("added"));
+
+        int skipped = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (!filter.mightContain("other" + i)) {
+                skipped++;
+            }
+        }
+        assertThat(filter.getSkipped(), Is.is((long) skipped));
+        assertThat(10000L - filter.getSkipped(), lessThan(500L));
+        assertThat(filter.status("BLOCK", "Block").size(), Is.is(2));
+    }
+
+    @Test
+    public void putDuringBuild() {
+        KnownHashFilter filter = new KnownHashFilter(0);
+        filter.build(IntStream.range(0, 10).mapToObj(i -> {
+            filter.put("added" + i);
+            return "hash" + i;
+        }));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.mightContain("hash" + i));
+            assertTrue(filter.mightContain("added" + i));
+        }
+        assertFalse(filter.isOverCapacity());
+    }
+
+    @Test
+    public void overCapacity() {
+        KnownHashFilter filter = new KnownHashFilter(0);
+        filter.put("early");
+        assertFalse(filter.isOverCapacity());
+        filter.build(IntStream.range(0, 99999).mapToObj(i -> "hash" + i));
+        assertFalse(filter.isOverCapacity());
+        filter.put("added");
+        assertTrue(filter.isOverCapacity());
+    }
+
+    @Test
+    public void emptyBuild() {
+        KnownHashFilter filter = new KnownHashFilter(0);
+        filter.build(Stream.empty());
+        assertFalse(filter.mightContain("missing"));
+        filter.put("missing");
+        assertTrue(filter.mightContain("missing"));
+    }
+}
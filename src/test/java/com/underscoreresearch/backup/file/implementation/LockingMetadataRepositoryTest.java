@@ -3,10 +3,12 @@ package com.underscoreresearch.backup.file.implementation;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.file.CloseableLock;
 import com.underscoreresearch.backup.file.CloseableMap;
 import com.underscoreresearch.backup.file.CloseableSortedMap;
 import com.underscoreresearch.backup.file.CloseableStream;
 import com.underscoreresearch.backup.file.MapSerializer;
+import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.RepositoryOpenMode;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
 import com.underscoreresearch.backup.model.BackupActiveFile;
@@ -36,8 +38,14 @@ import java.nio.file.Files;
 import java.time.Instant;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -50,6 +58,7 @@ import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -235,6 +244,161 @@ public abstract class LockingMetadataRepositoryTest {
         }
     }
 
+    @Test
+    public void testDirectoryFiles() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        repository.addFile(BackupFile.builder().path("/a/file1").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/a/file1").added(3L).lastChanged(3L).build());
+        repository.addFile(BackupFile.builder().path("/a/sub/file2").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/a/sub/deeper/file3").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/a/sub-file").added(2L).lastChanged(2L).build());
+        repository.addFile(BackupFile.builder().path("/ab/file4").added(1L).lastChanged(1L).build());
+
+        List<BackupFile> files = repository.directoryFiles("/a/", null);
+        assertThat(files.stream().map(BackupFile::getPath).toList(), Is.is(Lists.newArrayList("/a/file1", "/a/sub-file")));
+        assertThat(files.get(0).getAdded(), Is.is(3L));
+        assertThat(files.get(0).getLastChanged(), Is.is(3L));
+
+        files = repository.directoryFiles("/a", 2L);
+        assertThat(files.size(), Is.is(2));
+        assertThat(files.get(0).getAdded(), Is.is(1L));
+
+        assertThat(repository.directoryFiles("/a/", 0L).size(), Is.is(0));
+        assertThat(repository.directoryFiles("/a/sub/", null).stream().map(BackupFile::getPath).toList(),
+                Is.is(Lists.newArrayList("/a/sub/file2")));
+        assertThat(repository.directoryFiles("/missing/", null).size(), Is.is(0));
+    }
+
+    @Test
+    public void testSubDirectories() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        repository.addDirectory(new BackupDirectory("/a/", 1L, null, Sets.newTreeSet(Lists.newArrayList("b/")), null));
+        repository.addDirectory(new BackupDirectory("/a/b/", 1L, null, Sets.newTreeSet(Lists.newArrayList("x")), null));
+        repository.addDirectory(new BackupDirectory("/a/b/", 3L, null, Sets.newTreeSet(Lists.newArrayList("y")), null));
+        repository.addDirectory(new BackupDirectory("/a/b/c/", 1L, null, Sets.newTreeSet(Lists.newArrayList("z")), null));
+        repository.addDirectory(new BackupDirectory("/a/b-c/", 2L, null, Sets.newTreeSet(Lists.newArrayList("w")), null));
+        repository.addDirectory(new BackupDirectory("/a/d/", 1L, null, Sets.newTreeSet(Lists.newArrayList("v")), null));
+        repository.addDirectory(new BackupDirectory("/ab/", 1L, null, Sets.newTreeSet(Lists.newArrayList("u")), null));
+
+        List<BackupDirectory> directories = repository.subDirectories("/a/", null);
+        assertThat(directories.stream().map(BackupDirectory::getPath).toList(),
+                Is.is(Lists.newArrayList("/a/b-c/", "/a/b/", "/a/d/")));
+        assertThat(directories.get(1).getFiles(), Is.is(Sets.newTreeSet(Lists.newArrayList("y"))));
+
+        directories = repository.subDirectories("/a", 2L);
+        assertThat(directories.stream().map(BackupDirectory::getPath).toList(),
+                Is.is(Lists.newArrayList("/a/b-c/", "/a/b/", "/a/d/")));
+        assertThat(directories.get(1).getFiles(), Is.is(Sets.newTreeSet(Lists.newArrayList("x"))));
+
+        assertThat(repository.subDirectories("/a/b/", null).stream().map(BackupDirectory::getPath).toList(),
+                Is.is(Lists.newArrayList("/a/b/c/")));
+        assertThat(repository.subDirectories("/missing/", null).size(), Is.is(0));
+    }
+
+    @Test
+    public void testSortedLoad() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        backupFile.setAdded(backupFile.getLastChanged());
+        repository.addFile(backupFile);
+
+        repository.startSortedLoad();
+        BackupFile otherFile = BackupFile.builder().path(PATH + "2").added(2L).lastChanged(2L)
+                .locations(backupFile.getLocations()).build();
+        repository.addFile(otherFile);
+        repository.deleteFile(backupFile);
+        repository.addBlock(backupBlock);
+        repository.setLastSyncedLogFile(null, "log");
+        assertNull(repository.file(PATH + "2", null));
+        assertNull(repository.block(HASH));
+        assertThat(repository.lastSyncedLogFile(null), Is.is("log"));
+
+        repository.finishSortedLoad();
+        assertNull(repository.file(PATH, null));
+        assertThat(repository.file(PATH + "2", null), Is.is(otherFile));
+        assertThat(repository.existingFilePart(PART_HASH).get(0), Is.is(filePart));
+        assertNotNull(repository.block(HASH));
+        assertThat(repository.lastSyncedLogFile(null), Is.is("log"));
+    }
+
+    @Test
+    public void testReadView() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        repository.addFile(backupFile);
+        repository.addBlock(backupBlock);
+        repository.addDirectory(new BackupDirectory("/a/", 1L, null, Sets.newTreeSet(Lists.newArrayList("b")), null));
+
+        repository.startReadView(false);
+        MetadataRepository view = repository.readView();
+        assertNotNull(view);
+        assertNull(view.block(backupBlock.getHash()));
+
+        BackupFile otherFile = BackupFile.builder().path("/other").lastChanged(1L).build();
+        repository.addFile(otherFile);
+        repository.addDirectory(new BackupDirectory("/a/", 2L, null, Sets.newTreeSet(Lists.newArrayList("c")), null));
+
+        // Lookups in the view must not wait for a maintenance operation holding the repository.
+        try (CloseableLock ignored = repository.acquireLock();
+             ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            executor.submit(() -> {
+                assertThat(view.file(PATH, null).getPath(), Is.is(PATH));
+                assertNull(view.file("/other", null));
+                assertThat(view.directory("/a/", null, false).getFiles(),
+                        Is.is(Sets.newTreeSet(Lists.newArrayList("b"))));
+                return null;
+            }).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new RuntimeException(e);
+        }
+        assertThat(repository.file("/other", null).getPath(), Is.is("/other"));
+
+        repository.closeReadView();
+        assertNull(repository.readView());
+        assertFalse(new File(tempDir, "readview").exists());
+
+        repository.startReadView(true);
+        MetadataRepository fullView = repository.readView();
+        assertThat(fullView.block(backupBlock.getHash()).getHash(), Is.is(backupBlock.getHash()));
+        assertThat(fullView.getFileCount(), Is.is(repository.getFileCount()));
+        repository.closeReadView();
+    }
+
+    @Test
+    public void testPathIndex() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        repository.addFile(BackupFile.builder().path("/photos/2019/Summer.jpg").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/photos/2019/Summer.jpg").added(2L).lastChanged(2L).build());
+        repository.addFile(BackupFile.builder().path("/photos/2019/winter.jpg").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/docs/summary.txt").added(1L).lastChanged(1L).build());
+        repository.addFile(BackupFile.builder().path("/docs/summer/notes.txt").added(1L).lastChanged(1L).build());
+
+        assertThat(pathIndexFiles("summer"), Is.is(Lists.newArrayList("/docs/summer/notes.txt:1",
+                "/photos/2019/Summer.jpg:1", "/photos/2019/Summer.jpg:2")));
+        assertThat(pathIndexFiles("2019/win"), Is.is(Lists.newArrayList("/photos/2019/Summer.jpg:1",
+                "/photos/2019/Summer.jpg:2", "/photos/2019/winter.jpg:1")));
+
+        repository.deleteFile(BackupFile.builder().path("/docs/summer/notes.txt").added(1L).build());
+        repository.deleteFile(BackupFile.builder().path("/photos/2019/Summer.jpg").added(1L).build());
+        assertThat(pathIndexFiles("summer"), Is.is(Lists.newArrayList("/photos/2019/Summer.jpg:2")));
+        assertThat(pathIndexFiles("missing").size(), Is.is(0));
+        assertNull(repository.pathIndexFiles("ab"));
+    }
+
+    private List<String> pathIndexFiles(String text) throws IOException {
+        try (CloseableStream<BackupFile> files = repository.pathIndexFiles(text)) {
+            return files.stream().map(file -> file.getPath() + ":" + file.getAdded()).toList();
+        }
+    }
+
     @Test
     public void testBlock() throws IOException {
         if (repository == null) {
@@ -410,6 +574,34 @@ public abstract class LockingMetadataRepositoryTest {
         repository.popActivePath("s1", "whatever");
     }
 
+    @Test
+    public void testFilterConcurrentAdds() throws IOException, InterruptedException {
+        if (repository == null) {
+            return;
+        }
+        for (int i = 0; i < 10000; i++) {
+            repository.addBlock(BackupBlock.builder().hash("existing" + i).build());
+        }
+        repository.flushLogging();
+        repository.close();
+
+        repository = createRepository(tempDir);
+        repository.open(RepositoryOpenMode.READ_WRITE);
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            repository.addBlock(BackupBlock.builder().hash("added" + i).build());
+        }
+        for (int i = 0; i < 100 && !repository.filtersReady(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(repository.filtersReady());
+
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            assertNotNull(repository.block("added" + i));
+        }
+        assertNotNull(repository.block("existing0"));
+        assertNull(repository.block("missing"));
+    }
+
     @Test
     public void testDeleteBlocks() throws IOException {
         if (repository == null) {
@@ -0,0 +1,97 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.file.RepositoryOpenMode;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupLocation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static com.underscoreresearch.backup.file.implementation.performance.MetadataRepositoryStoragePerformance.deleteDir;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class RepositoryUpgraderTest {
+    private static final int ITEMS = 2500;
+    private File tempDir;
+    private File progressFile;
+    private MapdbMetadataRepositoryStorage storage;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("test").toFile();
+        progressFile = new File(tempDir, "upgrade.json");
+
+        storage = new MapdbMetadataRepositoryStorage(tempDir.getPath(), LockingMetadataRepository.MAPDB_STORAGE,
+                0, false);
+        storage.open(RepositoryOpenMode.READ_WRITE);
+        for (int i = 0; i < ITEMS; i++) {
+            BackupFilePart part = BackupFilePart.builder().partHash("part" + i).blockHash("block" + i)
+                    .blockIndex(0).build();
+            storage.addFilePart(part);
+            storage.addBlock(BackupBlock.builder().hash("block" + i).format("ZIP").created(1L)
+                    .storage(Lists.newArrayList()).build());
+            storage.addFile(BackupFile.builder().path("/dir/file" + i).added(1L).lastChanged(1L).length(1L)
+                    .locations(Lists.newArrayList(BackupLocation.builder().parts(Lists.newArrayList(part)).build()))
+                    .build());
+            storage.addDirectory(new BackupDirectory("/dir" + i + "/", 1L, null,
+                    Sets.newTreeSet(Lists.newArrayList("file")), null));
+        }
+        storage.close();
+        storage.open(RepositoryOpenMode.READ_ONLY);
+    }
+
+    @AfterEach
+    public void teardown() {
+        storage.close();
+        deleteDir(tempDir);
+    }
+
+    @Test
+    public void resumeInterruptedUpgrade() throws Exception {
+        MapdbMetadataRepositoryStorage failing = Mockito.spy(createUpgradedStorage());
+        doThrow(new IOException("Upgrade killed")).when(failing).addDirectory(any());
+        assertThrows(IOException.class, () -> new RepositoryUpgrader(storage, failing, progressFile).upgrade());
+        failing.close();
+        assertThat(progressFile.exists(), is(true));
+
+        MapdbMetadataRepositoryStorage upgraded = Mockito.spy(createUpgradedStorage());
+        new RepositoryUpgrader(storage, upgraded, progressFile).upgrade();
+
+        verify(upgraded, never()).addFile(any());
+        verify(upgraded, never()).addFilePart(any());
+        verify(upgraded, never()).addBlock(any());
+        verify(upgraded, atLeastOnce()).addDirectory(any());
+        assertThat(progressFile.exists(), is(false));
+
+        assertThat(upgraded.getFileCount(), is((long) ITEMS));
+        assertThat(upgraded.getPartCount(), is((long) ITEMS));
+        assertThat(upgraded.getBlockCount(), is((long) ITEMS));
+        assertThat(upgraded.getDirectoryCount(), is((long) ITEMS));
+        assertNotNull(upgraded.file("/dir/file" + (ITEMS - 1), null));
+        assertNotNull(upgraded.directory("/dir" + (ITEMS - 1) + "/", null, false));
+        upgraded.close();
+    }
+
+    private MapdbMetadataRepositoryStorage createUpgradedStorage() {
+        return new MapdbMetadataRepositoryStorage(tempDir.getPath(),
+                LockingMetadataRepository.MAPDB_STORAGE_LEAF_STORAGE, 0, false);
+    }
+}
@@ -0,0 +1,180 @@
+package com.underscoreresearch.backup.file.implementation;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.file.CloseableStream;
+import com.underscoreresearch.backup.file.MetadataRepositoryStorage;
+import com.underscoreresearch.backup.file.RepositoryOpenMode;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupLocation;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.underscoreresearch.backup.file.implementation.performance.MetadataRepositoryStoragePerformance.deleteDir;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+
+@Slf4j
+class SortedRebuildLoaderTest {
+    private static final int OPERATIONS = 20000;
+    private static final int KEYS = 3000;
+    private File tempDir;
+    private MapdbMetadataRepositoryStorage replayed;
+    private MapdbMetadataRepositoryStorage sorted;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("test").toFile();
+        replayed = new MapdbMetadataRepositoryStorage(new File(tempDir, "replayed").getPath(),
+                LockingMetadataRepository.MAPDB_STORAGE_LEAF_STORAGE, 0, false);
+        sorted = new MapdbMetadataRepositoryStorage(new File(tempDir, "sorted").getPath(),
+                LockingMetadataRepository.MAPDB_STORAGE_LEAF_STORAGE, 0, false);
+        replayed.open(RepositoryOpenMode.READ_WRITE);
+        sorted.open(RepositoryOpenMode.READ_WRITE);
+    }
+
+    @AfterEach
+    public void teardown() {
+        replayed.close();
+        sorted.close();
+        deleteDir(tempDir);
+    }
+
+    @Test
+    public void sameResultAsReplay() throws IOException {
+        Stopwatch replayTime = Stopwatch.createStarted();
+        replay(new Random(1), null);
+        replayTime.stop();
+
+        Stopwatch sortedTime = Stopwatch.createStarted();
+        SortedRebuildLoader loader = new SortedRebuildLoader(new File(tempDir, "runs"), 500, 4);
+        replay(new Random(1), loader);
+        loader.load(sorted);
+        loader.close();
+        sortedTime.stop();
+
+        log.info("Replayed {} operations in {}, sorted load in {}", OPERATIONS, replayTime, sortedTime);
+
+        assertThat(replayed.getFileCount(), greaterThan(0L));
+        assertThat(list(sorted.allFiles(true)), is(list(replayed.allFiles(true))));
+        assertThat(list(sorted.allDirectories(true)), is(list(replayed.allDirectories(true))));
+        assertThat(list(sorted.allFileParts()), is(list(replayed.allFileParts())));
+        assertThat(blocks(sorted), is(blocks(replayed)));
+        assertThat(sorted.getFileCount(), is(replayed.getFileCount()));
+        assertThat(new File(tempDir, "runs").exists(), is(false));
+    }
+
+    private void replay(Random random, SortedRebuildLoader loader) throws IOException {
+        for (int i = 0; i < OPERATIONS; i++) {
+            if (i == OPERATIONS / 3) {
+                if (loader != null) {
+                    loader.clear();
+                } else {
+                    replayed.close();
+                    replayed.clear();
+                    replayed.open(RepositoryOpenMode.READ_WRITE);
+                }
+            }
+
+            String key = "/path/" + random.nextInt(KEYS);
+            long added = random.nextInt(3);
+            boolean delete = random.nextInt(4) == 0;
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    BackupFilePart part = BackupFilePart.builder().partHash("part" + random.nextInt(KEYS))
+                            .blockHash("block" + i).blockIndex(0).build();
+                    BackupFile file = BackupFile.builder().path(key).added(added).lastChanged(added)
+                            .length((long) i)
+                            .locations(Lists.newArrayList(BackupLocation.builder()
+                                    .parts(Lists.newArrayList(part)).build()))
+                            .build();
+                    if (loader != null) {
+                        if (delete) {
+                            loader.deleteFile(file);
+                        } else {
+                            loader.addFile(file);
+                            loader.addFilePart(part);
+                        }
+                    } else if (delete) {
+                        replayed.deleteFile(file);
+                    } else {
+                        replayed.addFile(file);
+                        replayed.addFilePart(part);
+                    }
+                }
+                case 1 -> {
+                    BackupFilePart part = BackupFilePart.builder().partHash("part" + random.nextInt(KEYS))
+                            .blockHash("block" + random.nextInt(10)).blockIndex(i).build();
+                    if (loader != null) {
+                        if (delete) {
+                            loader.deleteFilePart(part);
+                        } else {
+                            loader.addFilePart(part);
+                        }
+                    } else if (delete) {
+                        replayed.deleteFilePart(part);
+                    } else {
+                        replayed.addFilePart(part);
+                    }
+                }
+                case 2 -> {
+                    BackupBlock block = BackupBlock.builder().hash("block" + random.nextInt(KEYS)).format("ZIP")
+                            .created((long) i).storage(Lists.newArrayList()).build();
+                    if (loader != null) {
+                        if (delete) {
+                            loader.deleteBlock(block);
+                        } else {
+                            loader.addBlock(block);
+                        }
+                    } else if (delete) {
+                        replayed.deleteBlock(block);
+                    } else {
+                        replayed.addBlock(block);
+                    }
+                }
+                default -> {
+                    BackupDirectory directory = new BackupDirectory(key + "/", added, null,
+                            Sets.newTreeSet(Lists.newArrayList("file" + i)), null);
+                    if (loader != null) {
+                        if (delete) {
+                            loader.deleteDirectory(directory.getPath(), added);
+                        } else {
+                            loader.addDirectory(directory);
+                        }
+                    } else if (delete) {
+                        replayed.deleteDirectory(directory.getPath(), added);
+                    } else {
+                        replayed.addDirectory(directory);
+                    }
+                }
+            }
+        }
+    }
+
+    private <T> List<T> list(CloseableStream<T> stream) throws IOException {
+        try (stream) {
+            return stream.stream().collect(Collectors.toList());
+        }
+    }
+
+    private List<BackupBlock> blocks(MetadataRepositoryStorage storage) throws IOException {
+        List<BackupBlock> blocks = list(storage.allBlocks());
+        blocks.sort(Comparator.comparing(BackupBlock::getHash));
+        return blocks;
+    }
+}
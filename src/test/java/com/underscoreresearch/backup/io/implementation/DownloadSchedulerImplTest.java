@@ -2,6 +2,7 @@ package com.underscoreresearch.backup.io.implementation;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.underscoreresearch.backup.block.BlockDownloader;
 import com.underscoreresearch.backup.block.FileDownloader;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.file.RepositoryOpenMode;
@@ -9,6 +10,7 @@ import com.underscoreresearch.backup.file.implementation.LockingMetadataReposito
 import com.underscoreresearch.backup.io.DownloadScheduler;
 import com.underscoreresearch.backup.io.IOPlugin;
 import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.model.BackupBlock;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupFilePart;
 import com.underscoreresearch.backup.model.BackupLocation;
@@ -16,12 +18,19 @@ import org.hamcrest.Matchers;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.underscoreresearch.backup.file.implementation.LockingMetadataRepositoryTest.LARGE_PATH;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -126,6 +135,126 @@ public class DownloadSchedulerImplTest {
         Mockito.verify(downloader, Mockito.times(100)).downloadFile(any(), any(), any());
     }
 
+    @Test
+    public void testGroupSharedFirstBlock() throws IOException {
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(10, repository, downloader);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.scheduleDownload(createFile("" + i, i % 2 == 0 ? "a" : "b", i + 1, null), "dest" + i, "pwd");
+        }
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.size(), Matchers.is(10));
+        for (int i = 2; i < 10; i++) {
+            assertThat(downloader.downloadThreads.get("dest" + i),
+                    Matchers.is(downloader.downloadThreads.get("dest" + (i % 2))));
+        }
+    }
+
+    @Test
+    public void testDuplicateContent() throws IOException {
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(10, repository, downloader);
+
+        scheduler.scheduleDownload(createFile("0", "a", 10, "digest"), "dest0", "pwd");
+        scheduler.scheduleDownload(createFile("1", "a", 10, "digest"), "dest1", "pwd");
+        scheduler.scheduleDownload(createFile("2", "a", 10, "other"), "dest2", "pwd");
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.keySet(), Matchers.containsInAnyOrder("dest0", "dest2"));
+        assertThat(downloader.duplicates, Matchers.contains("dest0>dest1"));
+    }
+
+    @Test
+    public void testDuplicateFailureDownloads() throws IOException {
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        downloader.failDuplicate = true;
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(10, repository, downloader);
+
+        scheduler.scheduleDownload(createFile("0", "a", 10, "digest"), "dest0", "pwd");
+        scheduler.scheduleDownload(createFile("1", "a", 10, "digest"), "dest1", "pwd");
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.keySet(), Matchers.containsInAnyOrder("dest0", "dest1"));
+        assertThat(downloader.duplicates, Matchers.contains("dest0>dest1"));
+    }
+
+    @Test
+    public void testDuplicateContentAcrossGroups() throws IOException {
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(1, repository, downloader);
+
+        for (int i = 0; i < 40; i++) {
+            scheduler.scheduleDownload(createFile("" + i, "a", 10, "digest"), "dest" + i, "pwd");
+        }
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.keySet(), Matchers.contains("dest0"));
+        assertThat(downloader.duplicates.size(), Matchers.is(39));
+    }
+
+    @Test
+    public void testSharedLaterBlock() throws IOException {
+        for (String hash : new String[]{"a", "b", "shared"}) {
+            repository.addBlock(BackupBlock.builder().hash(hash).storage(new ArrayList<>()).build());
+        }
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        BlockDownloader blockDownloader = Mockito.mock(BlockDownloader.class);
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(10, repository, downloader, blockDownloader);
+
+        scheduler.scheduleDownload(createFile("0", Lists.newArrayList("a", "shared"), 10), "dest0", "pwd");
+        scheduler.scheduleDownload(createFile("1", Lists.newArrayList("b", "shared"), 10), "dest1", "pwd");
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.keySet(), Matchers.containsInAnyOrder("dest0", "dest1"));
+        InOrder order = Mockito.inOrder(blockDownloader);
+        order.verify(blockDownloader, Mockito.times(4)).retainBlock(any());
+        order.verify(blockDownloader).releaseRetainedBlocks();
+        Mockito.verify(blockDownloader, Mockito.times(2)).retainBlock("shared");
+        Mockito.verify(blockDownloader).retainBlock("a");
+        Mockito.verify(blockDownloader).retainBlock("b");
+    }
+
+    @Test
+    public void testZeroBlocksNotGrouped() throws IOException {
+        for (String hash : new String[]{"a", "b"}) {
+            repository.addBlock(BackupBlock.builder().hash(hash).storage(new ArrayList<>()).build());
+        }
+        RecordingFileDownloader downloader = new RecordingFileDownloader();
+        BlockDownloader blockDownloader = Mockito.mock(BlockDownloader.class);
+        DownloadScheduler scheduler = new DownloadSchedulerImpl(10, repository, downloader, blockDownloader);
+
+        String zero = BackupBlock.createZeroBlockHash(4096);
+        scheduler.scheduleDownload(createFile("0", Lists.newArrayList(zero, "a"), 10), "dest0", "pwd");
+        scheduler.scheduleDownload(createFile("1", Lists.newArrayList(zero, "b"), 10), "dest1", "pwd");
+        scheduler.scheduleDownload(createFile("2", Lists.newArrayList(zero, "a"), 10), "dest2", "pwd");
+        scheduler.waitForCompletion();
+
+        assertThat(downloader.downloadThreads.get("dest0"), Matchers.is(downloader.downloadThreads.get("dest2")));
+        Mockito.verify(blockDownloader, Mockito.never()).retainBlock(zero);
+        Mockito.verify(blockDownloader, Mockito.times(2)).retainBlock("a");
+    }
+
+    private static BackupFile createFile(String path, List<String> blocks, long length) {
+        return BackupFile.builder()
+                .path(path).length(length)
+                .locations(Lists.newArrayList(BackupLocation.builder()
+                        .parts(blocks.stream().map(block -> BackupFilePart.builder().blockHash(block).build())
+                                .collect(Collectors.toList()))
+                        .build()))
+                .build();
+    }
+
+    private static BackupFile createFile(String path, String block, long length, String digest) {
+        return BackupFile.builder()
+                .path(path).length(length).digest(digest)
+                .locations(Lists.newArrayList(BackupLocation.builder()
+                        .parts(Lists.newArrayList(BackupFilePart.builder().blockHash(block).build()))
+                        .build()))
+                .build();
+    }
+
     @IOPlugin("DELAY")
     public static class DelayedFiledownloader implements FileDownloader {
         @Override
@@ -137,9 +266,37 @@ public class DownloadSchedulerImplTest {
             }
         }
 
+        @Override
+        public void duplicateFile(BackupFile source, String existingDestination, String destination) {
+        }
+
         @Override
         public void shutdown() {
 
         }
     }
-}
\ No newline at end of file
+
+    private static class RecordingFileDownloader implements FileDownloader {
+        private final Map<String, String> downloadThreads = new ConcurrentHashMap<>();
+        private final List<String> duplicates = Collections.synchronizedList(new ArrayList<>());
+        private boolean failDuplicate;
+
+        @Override
+        public void downloadFile(BackupFile source, String destination, String password) {
+            downloadThreads.put(destination, Thread.currentThread().getName());
+        }
+
+        @Override
+        public void duplicateFile(BackupFile source, String existingDestination, String destination)
+                throws IOException {
+            duplicates.add(existingDestination + ">" + destination);
+            if (failDuplicate) {
+                throw new IOException("Copy failed");
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
@@ -10,6 +10,7 @@ import com.underscoreresearch.backup.io.UploadScheduler;
 import com.underscoreresearch.backup.model.BackupDestination;
 import com.underscoreresearch.backup.model.BackupLimits;
 import com.underscoreresearch.backup.model.BackupUploadCompletion;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.Is;
 import org.junit.jupiter.api.BeforeEach;
@@ -39,7 +40,8 @@ public class UploadSchedulerImplTest {
 
     @Test
     public void testConcurrency() {
-        UploadScheduler scheduler = new UploadSchedulerImpl(10, rateLimitController);
+        UploadScheduler scheduler = new UploadSchedulerImpl(10, rateLimitController,
+                new MemoryBudget(1024 * 1024));
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         AtomicInteger completed = new AtomicInteger();
@@ -90,7 +92,8 @@ public class UploadSchedulerImplTest {
     @Test
     public void testOverallRateLimit() {
         rateLimitController = new RateLimitController(BackupLimits.builder().maximumUploadBytesPerSecond(1000L).build());
-        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController);
+        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController,
+                new MemoryBudget(1024 * 1024));
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         AtomicInteger completed = new AtomicInteger();
@@ -128,7 +131,8 @@ public class UploadSchedulerImplTest {
 
     @Test
     public void testDestinationRateLimit() {
-        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController);
+        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController,
+                new MemoryBudget(1024 * 1024));
         destination.setLimits(BackupLimits.builder().maximumUploadBytesPerSecond(1000L).build());
 
         BackupDestination destination2 = new BackupDestination();
@@ -174,7 +178,8 @@ public class UploadSchedulerImplTest {
     @Test
     public void testBothRateLimit() {
         rateLimitController = new RateLimitController(BackupLimits.builder().maximumUploadBytesPerSecond(1000L).build());
-        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController);
+        UploadScheduler scheduler = new UploadSchedulerImpl(100, rateLimitController,
+                new MemoryBudget(1024 * 1024));
         destination.setLimits(BackupLimits.builder().maximumUploadBytesPerSecond(1000L).build());
 
         BackupDestination destination2 = new BackupDestination();
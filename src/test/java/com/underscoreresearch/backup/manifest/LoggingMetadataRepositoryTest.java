@@ -1,28 +1,45 @@
 package com.underscoreresearch.backup.manifest;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.underscoreresearch.backup.file.MetadataRepository;
 import com.underscoreresearch.backup.manifest.implementation.LoggingMetadataRepository;
+import com.underscoreresearch.backup.manifest.implementation.ShareQueue;
 import com.underscoreresearch.backup.manifest.model.BackupDirectory;
 import com.underscoreresearch.backup.manifest.model.PushActivePath;
 import com.underscoreresearch.backup.model.BackupActiveFile;
 import com.underscoreresearch.backup.model.BackupActivePath;
 import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupBlockAdditional;
+import com.underscoreresearch.backup.model.BackupBlockStorage;
 import com.underscoreresearch.backup.model.BackupFile;
 import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupFileSpecification;
+import com.underscoreresearch.backup.model.BackupLocation;
 import com.underscoreresearch.backup.model.BackupPendingSet;
+import com.underscoreresearch.backup.model.BackupShare;
 import org.hamcrest.core.Is;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
+import static com.underscoreresearch.backup.file.implementation.performance.MetadataRepositoryStoragePerformance.deleteDir;
+import static com.underscoreresearch.backup.utils.SerializationUtils.BACKUP_FILE_WRITER;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 
@@ -187,4 +204,116 @@ class LoggingMetadataRepositoryTest {
         loggingMetadataRepository.deletePendingSets("1");
         Mockito.verify(repository).deletePendingSets("1");
     }
+
+    @Test
+    public void shareQueueMatchesSynchronousSharing() throws IOException {
+        List<String> synchronous = shareScenario(null);
+        File queueDir = Files.createTempDirectory("queue").toFile();
+        List<String> queued;
+        try {
+            queued = shareScenario(new ShareQueue(queueDir.getPath()));
+        } finally {
+            deleteDir(queueDir);
+        }
+
+        assertThat(queued, Is.is(synchronous));
+        assertThat(synchronous.stream().filter(t -> t.startsWith("block:") && t.contains("\"super\""))
+                .count(), Is.is(1L));
+        assertThat(synchronous.stream().filter(t -> t.startsWith("block:")).count(), Is.is(3L));
+        assertThat(synchronous.stream().filter(t -> t.startsWith("file:")).count(), Is.is(3L));
+        assertThat(synchronous.get(synchronous.size() - 1).startsWith("deleteBlock:"), Is.is(true));
+    }
+
+    @Test
+    public void shareQueueReplayedAfterRestart() throws IOException {
+        File queueDir = Files.createTempDirectory("queue").toFile();
+        try {
+            ShareQueue pending = new ShareQueue(queueDir.getPath());
+            pending.add("file", BACKUP_FILE_WRITER.writeValueAsString(shareFile("/a", "b1")));
+            pending.close();
+
+            List<String> entries = new ArrayList<>();
+            ShareManifestManager shareManager = Mockito.mock(ShareManifestManager.class);
+            Mockito.doAnswer(t -> {
+                entries.add(t.getArgument(0) + ":" + t.getArgument(1));
+                return null;
+            }).when(shareManager).addLogEntry(anyString(), anyString());
+            BackupFileSpecification contents = Mockito.mock(BackupFileSpecification.class);
+            Mockito.when(contents.includeFile(anyString())).thenReturn(true);
+
+            ShareQueue queue = new ShareQueue(queueDir.getPath());
+            LoggingMetadataRepository shareLogging = new LoggingMetadataRepository(repository, manifestManager,
+                    ImmutableMap.of("share", BackupShare.builder().contents(contents).build()),
+                    ImmutableMap.of("share", shareManager), 500, false, queue);
+            try {
+                shareLogging.flushLogging();
+                assertThat(queue.isEmpty(), Is.is(true));
+            } finally {
+                shareLogging.close();
+            }
+
+            assertThat(entries.stream().filter(t -> t.startsWith("file:") && t.contains("\"/a\""))
+                    .count(), Is.is(1L));
+        } finally {
+            deleteDir(queueDir);
+        }
+    }
+
+    private List<String> shareScenario(ShareQueue shareQueue) throws IOException {
+        Map<String, BackupBlock> blocks = new HashMap<>();
+        Map<String, BackupBlockAdditional> additionalBlocks = new HashMap<>();
+        MetadataRepository shareRepository = Mockito.mock(MetadataRepository.class);
+        Mockito.when(shareRepository.block(anyString())).thenAnswer(t -> blocks.get((String) t.getArgument(0)));
+        Mockito.when(shareRepository.additionalBlock(anyString(), anyString()))
+                .thenAnswer(t -> additionalBlocks.get((String) t.getArgument(1)));
+        Mockito.doAnswer(t -> {
+            BackupBlockAdditional additional = t.getArgument(0);
+            additionalBlocks.put(additional.getHash(), additional);
+            return null;
+        }).when(shareRepository).addAdditionalBlock(any());
+
+        for (String hash : Lists.newArrayList("b1", "b2")) {
+            blocks.put(hash, BackupBlock.builder().hash(hash)
+                    .storage(Lists.newArrayList(BackupBlockStorage.builder().destination("d").build())).build());
+            additionalBlocks.put(hash, BackupBlockAdditional.builder().publicKey("share").hash(hash)
+                    .properties(Lists.newArrayList(new HashMap<>())).build());
+        }
+        blocks.put("super", BackupBlock.builder().hash("super").hashes(Lists.newArrayList("b1", "b2")).build());
+
+        List<String> entries = Collections.synchronizedList(new ArrayList<>());
+        ShareManifestManager shareManager = Mockito.mock(ShareManifestManager.class);
+        Mockito.doAnswer(t -> {
+            entries.add(t.getArgument(0) + ":" + t.getArgument(1));
+            return null;
+        }).when(shareManager).addLogEntry(anyString(), anyString());
+
+        BackupFileSpecification contents = Mockito.mock(BackupFileSpecification.class);
+        Mockito.when(contents.includeFile(anyString())).thenReturn(true);
+        Mockito.when(contents.includeForShare(anyString())).thenReturn(true);
+
+        LoggingMetadataRepository shareLogging = new LoggingMetadataRepository(shareRepository, manifestManager,
+                ImmutableMap.of("share", BackupShare.builder().contents(contents).build()),
+                ImmutableMap.of("share", shareManager), 500, false, shareQueue);
+        try {
+            shareLogging.addFile(shareFile("/a", "super"));
+            shareLogging.addFile(shareFile("/b", "b1"));
+            shareLogging.addFile(shareFile("/c", "super"));
+            shareLogging.deleteFile(shareFile("/b", "b1"));
+            shareLogging.addDirectory(new BackupDirectory("/", 1L, null, Sets.newTreeSet(Lists.newArrayList("a", "c")),
+                    null));
+            shareLogging.deleteBlock(blocks.get("b2"));
+            shareLogging.flushLogging();
+        } finally {
+            shareLogging.close();
+        }
+        return new ArrayList<>(entries);
+    }
+
+    private BackupFile shareFile(String path, String blockHash) {
+        return BackupFile.builder().path(path).added(1L).length(1L)
+                .locations(Lists.newArrayList(BackupLocation.builder()
+                        .parts(Lists.newArrayList(BackupFilePart.builder().blockHash(blockHash).build()))
+                        .build()))
+                .build();
+    }
 }
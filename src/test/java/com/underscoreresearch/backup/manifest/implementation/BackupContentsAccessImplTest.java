@@ -115,6 +115,40 @@ class BackupContentsAccessImplTest {
             return null;
         });
 
+        Mockito.when(metadataRepository.directoryFiles(Mockito.anyString(), Mockito.any())).then((t) -> {
+            String path = t.getArgument(0);
+            Long added = t.getArgument(1);
+
+            List<BackupFile> ret = new ArrayList<>();
+            files.entrySet().stream().filter(entry -> isChild(path, entry.getKey())).forEach(entry -> {
+                for (int i = entry.getValue().size() - 1; i >= 0; i--) {
+                    if (added == null || entry.getValue().get(i).getAdded() <= added) {
+                        ret.add(entry.getValue().get(i));
+                        break;
+                    }
+                }
+            });
+            return ret;
+        });
+
+        Mockito.when(metadataRepository.subDirectories(Mockito.anyString(), Mockito.any())).then((t) -> {
+            String path = t.getArgument(0);
+            Long added = t.getArgument(1);
+
+            List<BackupDirectory> ret = new ArrayList<>();
+            directories.entrySet().stream().filter(entry -> isChild(path, entry.getKey())).forEach(entry -> {
+                for (int i = entry.getValue().size() - 1; i >= 0; i--) {
+                    BackupDirectory dir = entry.getValue().get(i);
+                    if (added == null || dir.getAdded() <= added) {
+                        ret.add(new BackupDirectory(entry.getKey(), dir.getAdded(), dir.getPermissions(),
+                                dir.getFiles(), dir.getDeleted()));
+                        break;
+                    }
+                }
+            });
+            return ret;
+        });
+
         backupContentsAccess = new BackupContentsAccessImpl(metadataRepository, null, false);
         backupContentsAccessCurrent = new BackupContentsAccessImpl(metadataRepository, Instant.now().toEpochMilli(), false);
         backupContentsAccessEarly = new BackupContentsAccessImpl(metadataRepository, 2L, false);
@@ -202,6 +236,26 @@ class BackupContentsAccessImplTest {
         assertThat(backupContentsAccessNowIncludeDeleted.directoryPermissions("/test/set1"), Matchers.is("23"));
     }
 
+    @Test
+    public void testPaging() throws IOException {
+        assertThat(backupContentsAccessCurrent.directoryFiles("/test/set1/", null, 2),
+                Is.is(newFileSet(file("/test/set1/dir/", 2L), file("/test/set1/file1", 4L))));
+        assertThat(backupContentsAccessCurrent.directoryFiles("/test/set1/", "/test/set1/file1", 2),
+                Is.is(newFileSet(file("/test/set1/file2", 4L))));
+        assertThat(backupContentsAccessCurrent.directoryFiles("/test/set1/", "/test/set1/file2", 2),
+                Is.is(newFileSet()));
+        assertThat(backupContentsAccessCurrent.directoryFiles("/test/", "/test/set1/", 0),
+                Is.is(newFileSet(file("/test/set2/"))));
+    }
+
+    private static boolean isChild(String parent, String path) {
+        if (!path.startsWith(parent) || path.length() == parent.length()) {
+            return false;
+        }
+        int separator = path.indexOf('/', parent.length());
+        return separator < 0 || separator == path.length() - 1;
+    }
+
     private List<BackupFile> newFileSet(BackupFile... files) {
         ArrayList<BackupFile> ret = new ArrayList<>();
         Collections.addAll(ret, files);
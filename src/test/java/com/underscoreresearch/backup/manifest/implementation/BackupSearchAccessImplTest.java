@@ -0,0 +1,23 @@
+package com.underscoreresearch.backup.manifest.implementation;
+
+import org.hamcrest.core.Is;
+import org.junit.jupiter.api.Test;
+
+import static com.underscoreresearch.backup.manifest.implementation.BackupSearchAccessImpl.requiredLiteral;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BackupSearchAccessImplTest {
+    @Test
+    public void literals() {
+        assertThat(requiredLiteral("summer"), Is.is("summer"));
+        assertThat(requiredLiteral("^.*summer\\.jpg$"), Is.is("summer.jpg"));
+        assertThat(requiredLiteral("photo[0-9]+/holidays?"), Is.is("/holiday"));
+        assertThat(requiredLiteral("abcd*efg"), Is.is("abc"));
+        assertThat(requiredLiteral("ab(cdefgh)?xyz"), Is.is("xyz"));
+        assertThat(requiredLiteral("report\\d{4}final"), Is.is("report"));
+        assertNull(requiredLiteral("summer|winter"));
+        assertNull(requiredLiteral("a.b.c"));
+        assertNull(requiredLiteral("\\Qsummer\\E"));
+    }
+}
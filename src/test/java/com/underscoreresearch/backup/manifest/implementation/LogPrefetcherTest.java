@@ -3,6 +3,7 @@ package com.underscoreresearch.backup.manifest.implementation;
 import com.google.common.base.Stopwatch;
 import com.underscoreresearch.backup.encryption.encryptors.NoneEncryptor;
 import com.underscoreresearch.backup.model.BackupConfiguration;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Test;
 
@@ -29,7 +30,7 @@ class LogPrefetcherTest {
                 throw new RuntimeException(e);
             }
             return file.getBytes(StandardCharsets.UTF_8);
-        }, new NoneEncryptor(), null);
+        }, new NoneEncryptor(), null, new MemoryBudget(1024 * 1024));
         Stopwatch stopwatch = Stopwatch.createStarted();
         logPrefetcher.start();
         for (int i = 0; i < 100; i++) {
@@ -59,7 +60,7 @@ class LogPrefetcherTest {
                 throw new RuntimeException(e);
             }
             return file.getBytes(StandardCharsets.UTF_8);
-        }, new NoneEncryptor(), null);
+        }, new NoneEncryptor(), null, new MemoryBudget(1024 * 1024));
         Stopwatch stopwatch = Stopwatch.createStarted();
         logPrefetcher.start();
         assertThrows(IOException.class, () -> {
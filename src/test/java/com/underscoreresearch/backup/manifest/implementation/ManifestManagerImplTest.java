@@ -37,6 +37,7 @@ import com.underscoreresearch.backup.model.BackupManifest;
 import com.underscoreresearch.backup.model.BackupSet;
 import com.underscoreresearch.backup.model.BackupSetRoot;
 import com.underscoreresearch.backup.model.BackupShare;
+import com.underscoreresearch.backup.utils.MemoryBudget;
 import lombok.extern.slf4j.Slf4j;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.Is;
@@ -146,7 +147,8 @@ class ManifestManagerImplTest {
         }
 
         IOProviderFactory.injectProvider(configuration.getDestinations().get("TEST"), ioProvider);
-        uploadScheduler = new UploadSchedulerImpl(4, Mockito.mock(RateLimitController.class));
+        uploadScheduler = new UploadSchedulerImpl(4, Mockito.mock(RateLimitController.class),
+                new MemoryBudget(1024 * 1024));
         logConsumer = Mockito.mock(LogConsumer.class);
         MetadataRepository repository = Mockito.mock(MetadataRepository.class);
         logFileRepository = new LogFileRepositoryImpl(Paths.get(Files.createTempDirectory("logs").toString(), "test.log"));
@@ -0,0 +1,210 @@
+package com.underscoreresearch.backup.manifest.implementation;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.underscoreresearch.backup.encryption.EncryptionIdentity;
+import com.underscoreresearch.backup.file.CloseableStream;
+import com.underscoreresearch.backup.file.MetadataRepository;
+import com.underscoreresearch.backup.file.RepositoryOpenMode;
+import com.underscoreresearch.backup.file.implementation.LockingMetadataRepository;
+import com.underscoreresearch.backup.io.IOUtils;
+import com.underscoreresearch.backup.manifest.ManifestManager;
+import com.underscoreresearch.backup.manifest.model.BackupDirectory;
+import com.underscoreresearch.backup.manifest.model.BackupSnapshot;
+import com.underscoreresearch.backup.model.BackupActiveFile;
+import com.underscoreresearch.backup.model.BackupActivePath;
+import com.underscoreresearch.backup.model.BackupActiveStatus;
+import com.underscoreresearch.backup.model.BackupBlock;
+import com.underscoreresearch.backup.model.BackupFile;
+import com.underscoreresearch.backup.model.BackupFilePart;
+import com.underscoreresearch.backup.model.BackupLocation;
+import com.underscoreresearch.backup.model.BackupPendingSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.underscoreresearch.backup.file.PathNormalizer.PATH_SEPARATOR;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MetadataSnapshotTest {
+    private static final int ITEMS = 500;
+    private File tempDir;
+    private LockingMetadataRepository source;
+    private LockingMetadataRepository target;
+    private Map<String, byte[]> uploaded;
+    private EncryptionIdentity encryptionIdentity;
+
+    @BeforeEach
+    public void setup() throws IOException, GeneralSecurityException {
+        encryptionIdentity = EncryptionIdentity.generateKeyWithPassword("password");
+        tempDir = Files.createTempDirectory("test").toFile();
+        source = new LockingMetadataRepository(new File(tempDir, "source").getPath(), false);
+        source.open(RepositoryOpenMode.READ_WRITE);
+        target = new LockingMetadataRepository(new File(tempDir, "target").getPath(), false);
+        target.open(RepositoryOpenMode.READ_WRITE);
+        uploaded = new HashMap<>();
+
+        for (int i = 0; i < ITEMS; i++) {
+            BackupFilePart part = BackupFilePart.builder().partHash("part" + i).blockHash("block" + i)
+                    .blockIndex(0).build();
+            source.addBlock(BackupBlock.builder().hash("block" + i).format("ZIP").created((long) i)
+                    .storage(Lists.newArrayList()).build());
+            source.addFile(BackupFile.builder().path("/dir/file" + i).added(1L).lastChanged(1L).length((long) i)
+                    .locations(Lists.newArrayList(BackupLocation.builder().parts(Lists.newArrayList(part)).build()))
+                    .build());
+            source.addDirectory(new BackupDirectory("/dir" + i + PATH_SEPARATOR, 1L, null,
+                    Sets.newTreeSet(Lists.newArrayList("file" + i)), null));
+        }
+        source.addPendingSets(BackupPendingSet.builder().setId("set").schedule("abc").scheduledAt(new Date(1000))
+                .build());
+        source.addPendingSets(BackupPendingSet.builder().setId("").schedule("def").scheduledAt(new Date(1000))
+                .build());
+        source.pushActivePath("set", PATH_SEPARATOR + "dir" + PATH_SEPARATOR, new BackupActivePath("",
+                Sets.newHashSet(new BackupActiveFile("file", BackupActiveStatus.INCOMPLETE))));
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        source.close();
+        target.close();
+        IOUtils.deleteContents(tempDir);
+        tempDir.delete();
+    }
+
+    @Test
+    public void restoreSnapshot() throws IOException {
+        BackupSnapshot snapshot = writeSnapshot();
+        assertThat(snapshot.getLogFile(), is("logs/last"));
+        assertThat(MetadataSnapshot.chunkKeys(snapshot).size(), greaterThan(20));
+
+        restore(snapshot);
+
+        assertThat(list(target.allFiles(true)), is(list(source.allFiles(true))));
+        assertThat(list(target.allFileParts()), is(list(source.allFileParts())));
+        assertThat(list(target.allDirectories(true)), is(list(source.allDirectories(true))));
+        assertThat(blocks(target), is(blocks(source)));
+        assertThat(target.getActivePaths(null), is(source.getActivePaths(null)));
+        assertThat(target.getPendingSets(), is(source.getPendingSets().stream()
+                .filter(set -> !set.getSetId().isEmpty())
+                .collect(Collectors.toSet())));
+    }
+
+    @Test
+    public void deduplicateAgainstPreviousSnapshot() throws IOException {
+        BackupSnapshot first = writeSnapshot();
+        int written = uploaded.size();
+
+        source.addFile(BackupFile.builder().path("/dir/file" + (ITEMS / 2)).added(2L).lastChanged(2L).length(1L)
+                .locations(Lists.newArrayList()).build());
+        BackupSnapshot second = writeSnapshot();
+
+        assertThat(uploaded.size() - written, lessThanOrEqualTo(3));
+        assertThat(new HashSet<>(MetadataSnapshot.chunkKeys(second)).equals(
+                new HashSet<>(MetadataSnapshot.chunkKeys(first))), is(false));
+
+        restore(second);
+        assertThat(list(target.allFiles(true)), is(list(source.allFiles(true))));
+    }
+
+    @Test
+    public void snapshotFromReadView() throws IOException {
+        source.startReadView(false);
+        try {
+            BackupSnapshot snapshot = new MetadataSnapshot(encryptionIdentity, 16).write(source.readView(), source,
+                    "logs/last", new HashSet<>(), (key, data) -> uploaded.put(key, data), new AtomicLong());
+            MetadataSnapshot.verify(snapshot, source);
+
+            restore(snapshot);
+            assertThat(list(target.allFiles(true)), is(list(source.allFiles(true))));
+            assertThat(list(target.allDirectories(true)), is(list(source.allDirectories(true))));
+            assertThat(blocks(target), is(blocks(source)));
+        } finally {
+            source.closeReadView();
+        }
+    }
+
+    @Test
+    public void incompleteReadView() throws IOException {
+        source.startReadView(false);
+        try {
+            BackupSnapshot snapshot = writeSnapshot(source.readView());
+            assertThrows(IOException.class, () -> MetadataSnapshot.verify(snapshot, source));
+        } finally {
+            source.closeReadView();
+        }
+    }
+
+    @Test
+    public void saltedChunkNames() throws IOException, GeneralSecurityException {
+        BackupSnapshot snapshot = writeSnapshot();
+        EncryptionIdentity otherIdentity = EncryptionIdentity.generateKeyWithPassword("password");
+        BackupSnapshot otherSnapshot = new MetadataSnapshot(otherIdentity, 16).write(source, "logs/last",
+                new HashSet<>(), (key, data) -> {
+                }, new AtomicLong());
+
+        assertThat(new HashSet<>(MetadataSnapshot.chunkKeys(snapshot)).removeAll(
+                MetadataSnapshot.chunkKeys(otherSnapshot)), is(false));
+        assertThrows(IOException.class, () -> MetadataSnapshot.restore(snapshot, otherIdentity,
+                key -> uploaded.get(key).clone(), new LoggingMetadataRepository(target,
+                        Mockito.mock(ManifestManager.class), false), new AtomicLong()));
+    }
+
+    @Test
+    public void corruptChunk() throws IOException {
+        BackupSnapshot snapshot = writeSnapshot();
+        byte[] data = uploaded.get(MetadataSnapshot.chunkKeys(snapshot).get(1));
+        data[data.length / 2] ^= 1;
+
+        assertThrows(IOException.class, () -> restore(snapshot));
+    }
+
+    private BackupSnapshot writeSnapshot() throws IOException {
+        return writeSnapshot(source);
+    }
+
+    private BackupSnapshot writeSnapshot(MetadataRepository repository) throws IOException {
+        return new MetadataSnapshot(encryptionIdentity, 16).write(repository, "logs/last",
+                uploaded.keySet().stream()
+                        .map(key -> key.substring(MetadataSnapshot.CHUNK_ROOT.length() + 1))
+                        .collect(Collectors.toSet()),
+                (key, data) -> uploaded.put(key, data), new AtomicLong());
+    }
+
+    private void restore(BackupSnapshot snapshot) throws IOException {
+        LoggingMetadataRepository consumer = new LoggingMetadataRepository(target,
+                Mockito.mock(ManifestManager.class), false);
+        MetadataSnapshot.restore(snapshot, encryptionIdentity, key -> uploaded.get(key).clone(), consumer,
+                new AtomicLong());
+    }
+
+    private <T> List<T> list(CloseableStream<T> stream) throws IOException {
+        try (stream) {
+            return stream.stream().collect(Collectors.toList());
+        }
+    }
+
+    private List<BackupBlock> blocks(MetadataRepository repository) throws IOException {
+        List<BackupBlock> blocks = new ArrayList<>(list(repository.allBlocks()));
+        blocks.sort(Comparator.comparing(BackupBlock::getHash));
+        return blocks;
+    }
+}
@@ -0,0 +1,105 @@
+package com.underscoreresearch.backup.model;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ExclusionMatcherTest {
+    private static final String[] PATTERN_TOKENS = new String[]{
+            "a", "b", "ab", "/", "\\.", ".", ".*", "a?", "b*", "a+", "[ab]", "[^/]", "\\d", "x{2}", "^", "$",
+            "(a|b)", "(?i)A", "\\w", "node_modules", "\\.tmp", "c", "1"
+    };
+    private static final String[] PATH_TOKENS = new String[]{
+            "a", "b", "ab", "/", ".", "node_modules", ".tmp", "c", "1", "xx", "A"
+    };
+
+    @Test
+    public void requiredLiteral() {
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("/node_modules/")), is("/node_modules/"));
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("\\.bak$")), is(".bak"));
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("^/proc/[^/]+/cache\\d")), is("/proc/"));
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("abc?d")), is("ab"));
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("ab{2,3}cd")), is("cd"));
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("a|b")), nullValue());
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("(?i)abc")), nullValue());
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile("\\x41bc")), nullValue());
+        assertThat(ExclusionMatcher.requiredLiteral(Pattern.compile(".*")), nullValue());
+    }
+
+    @Test
+    public void equivalentToAllPatterns() {
+        Random random = new Random(4711);
+        for (int round = 0; round < 200; round++) {
+            List<String> exclusions = new ArrayList<>();
+            int count = random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                exclusions.add(randomString(random, PATTERN_TOKENS, 5));
+            }
+            List<Pattern> patterns = exclusions.stream().map(Pattern::compile).collect(Collectors.toList());
+            ExclusionMatcher matcher = new ExclusionMatcher(patterns);
+
+            for (int i = 0; i < 200; i++) {
+                String path = "/" + randomString(random, PATH_TOKENS, 8);
+                boolean expected = patterns.stream().anyMatch(pattern -> pattern.matcher(path).find());
+                assertThat(exclusions + " " + path, matcher.matches(path), is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void equivalentSelection() {
+        BackupFilter filter = BackupFilter.builder().paths(Lists.newArrayList("a", "b/ab"))
+                .type(BackupFilterType.EXCLUDE)
+                .children(Lists.newArrayList(BackupFilter.builder().paths(Lists.newArrayList("c"))
+                        .type(BackupFilterType.INCLUDE).build()))
+                .build();
+        List<BackupSetRoot> roots = Lists.newArrayList(
+                BackupSetRoot.builder().path("/a").filters(Lists.newArrayList(filter)).build(),
+                BackupSetRoot.builder().path("/b").build());
+
+        Random random = new Random(1234);
+        for (int round = 0; round < 100; round++) {
+            List<String> exclusions = new ArrayList<>();
+            int count = random.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                exclusions.add(randomString(random, PATTERN_TOKENS, 4));
+            }
+            List<Pattern> patterns = exclusions.stream().map(Pattern::compile).collect(Collectors.toList());
+            BackupFileSelection selection = new BackupFileSelection(roots, exclusions);
+
+            for (int i = 0; i < 200; i++) {
+                String path = "/" + randomString(random, PATH_TOKENS, 6).replace("//", "/");
+                String file = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+                boolean excluded = patterns.stream().anyMatch(pattern -> pattern.matcher(file).find());
+                boolean expected = !excluded && roots.stream().anyMatch(root -> root.includeFile(file, null));
+                assertThat(exclusions + " " + file, selection.includeFile(file), is(expected));
+
+                String directory = file + "/";
+                boolean directoryExcluded = patterns.stream()
+                        .filter(pattern -> !pattern.pattern().contains("$"))
+                        .anyMatch(pattern -> pattern.matcher(directory).find());
+                boolean expectedDirectory = roots.stream().anyMatch(root -> root.includeDirectory(directory))
+                        && !directoryExcluded;
+                assertThat(exclusions + " " + directory, selection.includeDirectory(directory), is(expectedDirectory));
+            }
+        }
+    }
+
+    private static String randomString(Random random, String[] tokens, int maxTokens) {
+        StringBuilder builder = new StringBuilder();
+        int count = 1 + random.nextInt(maxTokens);
+        for (int i = 0; i < count; i++) {
+            builder.append(tokens[random.nextInt(tokens.length)]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.underscoreresearch.backup.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+class MemoryBudgetTest {
+    private static final long LIMIT = 1024 * 1024;
+
+    @Test
+    public void peakStaysWithinBudget() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(LIMIT);
+        AtomicLong outstanding = new AtomicLong();
+        AtomicLong maxOutstanding = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        for (int thread = 0; thread < 16; thread++) {
+            int seed = thread;
+            executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 200; i++) {
+                    int size = random.nextInt(128 * 1024) + 1;
+                    budget.acquire(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                    byte[] data = new byte[size];
+                    maxOutstanding.accumulateAndGet(outstanding.addAndGet(data.length), Math::max);
+                    try {
+                        Thread.sleep(random.nextInt(2));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    outstanding.addAndGet(-data.length);
+                    budget.release(MemoryBudget.LARGE_BLOCK_STAGE, size);
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(60, TimeUnit.SECONDS), is(true));
+
+        assertThat(budget.getPeak(), lessThanOrEqualTo(LIMIT));
+        assertThat(maxOutstanding.get(), lessThanOrEqualTo(LIMIT));
+        assertThat(budget.getUsed(), is(0L));
+    }
+
+    @Test
+    public void backpressure() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(LIMIT);
+        budget.acquire(MemoryBudget.LARGE_BLOCK_STAGE, LIMIT - 10);
+
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            budget.acquire(MemoryBudget.LARGE_BLOCK_STAGE, 100);
+            acquired.set(true);
+        });
+        thread.start();
+        Thread.sleep(100);
+        assertThat(acquired.get(), is(false));
+
+        budget.release(MemoryBudget.LARGE_BLOCK_STAGE, LIMIT - 10);
+        thread.join(1000);
+        assertThat(acquired.get(), is(true));
+        assertThat(budget.getUsed(), is(100L));
+    }
+
+    @Test
+    public void downstreamStageAlwaysProgresses() {
+        MemoryBudget budget = new MemoryBudget(LIMIT);
+        budget.acquire(MemoryBudget.LARGE_BLOCK_STAGE, LIMIT);
+
+        budget.acquire(MemoryBudget.UPLOAD_STAGE, 1000);
+        assertThat(budget.getUsed(), is(LIMIT + 1000));
+        budget.release(MemoryBudget.UPLOAD_STAGE, 1000);
+
+        List<StatusLine> status = new ArrayList<>(budget.status());
+        assertThat(status.get(0).getCode(), is("MEMORY_BUDGET"));
+        assertThat(status.get(0).getValue(), is(LIMIT));
+    }
+
+    @Test
+    public void adjustEstimate() {
+        MemoryBudget budget = new MemoryBudget(LIMIT);
+        budget.acquire(MemoryBudget.LOG_PREFETCH_STAGE, 1000);
+        budget.adjust(MemoryBudget.LOG_PREFETCH_STAGE, -400);
+        assertThat(budget.getUsed(), is(600L));
+        budget.release(MemoryBudget.LOG_PREFETCH_STAGE, 600);
+        assertThat(budget.getUsed(), is(0L));
+    }
+}
@@ -0,0 +1,48 @@
+package com.underscoreresearch.backup.utils.state;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class MachineStateTest {
+    private final List<String> loweredThreads = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    public void teardown() {
+        new MachineState(false).enableLowPriorityWorkers();
+    }
+
+    @Test
+    public void onlyWorkerThreadsLowered() throws InterruptedException {
+        MachineState state = new MachineState(false) {
+            @Override
+            protected void lowerThreadPriority() {
+                loweredThreads.add(Thread.currentThread().getName());
+            }
+        };
+
+        Thread before = MachineState.workerThreadFactory("Worker-%d").newThread(() -> {
+        });
+        before.start();
+        before.join();
+        assertThat(loweredThreads.size(), is(0));
+
+        state.enableLowPriorityWorkers();
+        Thread worker = MachineState.workerThreadFactory("Worker-%d").newThread(() -> {
+        });
+        worker.start();
+        worker.join();
+        Thread other = new Thread(() -> {
+        }, "Other");
+        other.start();
+        other.join();
+
+        assertThat(loweredThreads, is(List.of("Worker-0")));
+    }
+}
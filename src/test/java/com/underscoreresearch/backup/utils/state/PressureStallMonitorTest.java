@@ -0,0 +1,69 @@
+package com.underscoreresearch.backup.utils.state;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class PressureStallMonitorTest {
+    private File tempDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("pressure").toFile();
+    }
+
+    @AfterEach
+    public void teardown() {
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    private void writePressure(String resource, double some, double full) throws IOException {
+        Files.writeString(new File(tempDir, resource).toPath(),
+                String.format(Locale.ROOT, "some avg10=%.2f avg60=1.00 avg300=0.50 total=12345%n"
+                        + "full avg10=%.2f avg60=0.00 avg300=0.00 total=0%n", some, full));
+    }
+
+    @Test
+    public void belowThresholds() throws IOException {
+        writePressure("cpu", 10, 0);
+        writePressure("io", 5, 50);
+        writePressure("memory", 0, 0);
+        PressureStallMonitor monitor = new PressureStallMonitor(tempDir, 40, 30, 20);
+        assertThat(monitor.readPressure("cpu"), is(10.0));
+        assertThat(monitor.exceededResource(), nullValue());
+    }
+
+    @Test
+    public void exceeded() throws IOException {
+        writePressure("cpu", 60, 0);
+        writePressure("io", 35.5, 0);
+        writePressure("memory", 0, 0);
+        PressureStallMonitor monitor = new PressureStallMonitor(tempDir, 40, 30, 20);
+        assertThat(monitor.exceededResource(), is("io"));
+
+        writePressure("io", 0, 0);
+        assertThat(monitor.exceededResource(), is("cpu"));
+
+        monitor = new PressureStallMonitor(tempDir, 0, 30, 20);
+        assertThat(monitor.exceededResource(), nullValue());
+    }
+
+    @Test
+    public void missingFiles() {
+        PressureStallMonitor monitor = new PressureStallMonitor(tempDir, 40, 30, 20);
+        assertThat(monitor.readPressure("io"), is(0.0));
+        assertThat(monitor.exceededResource(), nullValue());
+    }
+}